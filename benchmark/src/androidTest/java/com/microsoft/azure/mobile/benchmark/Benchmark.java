@@ -0,0 +1,102 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal micro-benchmark harness for instrumented tests.
+ * <p>
+ * An operation is first repeated during {@link #WARMUP_DURATION} so that the runtime compiles it,
+ * then repeated during {@link #MEASURE_DURATION} to compute its throughput.
+ * Allocations are counted in a separate run of {@link #ALLOCATION_OPERATIONS} operations
+ * so that counting does not slow down the timed run.
+ * Only allocations on the calling thread are counted.
+ * Results are printed in logcat with the {@link #TAG} tag.
+ */
+final class Benchmark {
+
+    /**
+     * Log tag.
+     */
+    static final String TAG = "MobileCenterBenchmark";
+
+    /**
+     * Warm up duration in nanoseconds.
+     */
+    private static final long WARMUP_DURATION = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Measure duration in nanoseconds.
+     */
+    private static final long MEASURE_DURATION = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Number of operations run while counting allocations.
+     */
+    private static final int ALLOCATION_OPERATIONS = 100;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Measure an operation and print its throughput and allocations.
+     *
+     * @param name      operation name.
+     * @param operation operation to measure.
+     * @throws Exception if the operation fails.
+     */
+    @SuppressWarnings("deprecation")
+    static void measure(String name, Operation operation) throws Exception {
+
+        /* Warm up. */
+        repeat(operation, WARMUP_DURATION);
+
+        /* Time. */
+        long start = System.nanoTime();
+        long count = repeat(operation, MEASURE_DURATION);
+        double opsPerSecond = count * (double) TimeUnit.SECONDS.toNanos(1) / (System.nanoTime() - start);
+
+        /* Count allocations. */
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < ALLOCATION_OPERATIONS; i++)
+            operation.run();
+        Debug.stopAllocCounting();
+        long bytesPerOperation = Debug.getThreadAllocSize() / ALLOCATION_OPERATIONS;
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f ops/s, %d bytes allocated/op", name, opsPerSecond, bytesPerOperation));
+    }
+
+    /**
+     * Repeat an operation during some time.
+     *
+     * @param operation operation.
+     * @param duration  duration in nanoseconds.
+     * @return number of operations run.
+     * @throws Exception if the operation fails.
+     */
+    private static long repeat(Operation operation, long duration) throws Exception {
+        long end = System.nanoTime() + duration;
+        long count = 0;
+        do {
+            operation.run();
+            count++;
+        } while (System.nanoTime() < end);
+        return count;
+    }
+
+    /**
+     * Operation to measure.
+     */
+    interface Operation {
+
+        /**
+         * Run the operation once.
+         *
+         * @throws Exception if the operation fails.
+         */
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,82 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.microsoft.azure.mobile.channel.DefaultChannel;
+import com.microsoft.azure.mobile.ingestion.models.StartServiceLog;
+import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.ingestion.models.json.StartServiceLogFactory;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ChannelBenchmark {
+
+    private static final String GROUP = "group_benchmark";
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    private HandlerThread mHandlerThread;
+
+    private DefaultChannel mChannel;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getTargetContext();
+        StorageHelper.initialize(sContext);
+    }
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread(Benchmark.TAG);
+        mHandlerThread.start();
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(StartServiceLog.TYPE, new StartServiceLogFactory());
+        mChannel = new DefaultChannel(sContext, UUID.randomUUID().toString(), logSerializer, new Handler(mHandlerThread.getLooper()));
+
+        /* Batches are too large and too far apart to be sent during the benchmark. */
+        mChannel.addGroup(GROUP, 100000, TimeUnit.HOURS.toMillis(1), 1, null);
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.clear(GROUP);
+        mChannel.shutdown();
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void enqueue() throws Exception {
+        Benchmark.measure("DefaultChannel.enqueue", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                StartServiceLog log = new StartServiceLog();
+                log.setServices(Arrays.asList("Analytics", "Crashes"));
+                mChannel.enqueue(log, GROUP);
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.microsoft.azure.mobile.utils.crypto.CryptoUtils;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class CryptoUtilsBenchmark {
+
+    /**
+     * Size of the encrypted data, about the size of a token.
+     */
+    private static final int DATA_LENGTH = 256;
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    private static String sData;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getTargetContext();
+        char[] data = new char[DATA_LENGTH];
+        Arrays.fill(data, 'x');
+        sData = new String(data);
+    }
+
+    @Test
+    public void encrypt() throws Exception {
+        final CryptoUtils cryptoUtils = CryptoUtils.getInstance(sContext);
+        Benchmark.measure("CryptoUtils.encrypt", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                cryptoUtils.encrypt(sData);
+            }
+        });
+    }
+
+    @Test
+    public void decrypt() throws Exception {
+        final CryptoUtils cryptoUtils = CryptoUtils.getInstance(sContext);
+        final String encryptedData = cryptoUtils.encrypt(sData);
+        Benchmark.measure("CryptoUtils.decrypt", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                cryptoUtils.decrypt(encryptedData);
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ErrorLogHelperBenchmark {
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getTargetContext();
+    }
+
+    @Test
+    public void createErrorLog() throws Exception {
+
+        /* Stack traces are captured once, as the uncaught exception handler does before building the log. */
+        final Thread thread = Thread.currentThread();
+        final Throwable throwable = new IllegalStateException("benchmark", new RuntimeException());
+        final Map<Thread, StackTraceElement[]> allStackTraces = Thread.getAllStackTraces();
+        final long initializeTimestamp = SystemClock.elapsedRealtime();
+        Benchmark.measure("ErrorLogHelper.createErrorLog", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                ErrorLogHelper.createErrorLog(sContext, thread, throwable, allStackTraces, initializeTimestamp, true);
+            }
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.ingestion.models.json.ManagedErrorLogFactory;
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class LogSerializerBenchmark {
+
+    /**
+     * Number of logs in a container, as in a batch.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    private static LogSerializer sLogSerializer;
+
+    private static LogContainer sLogContainer;
+
+    @BeforeClass
+    public static void setUpClass() throws DeviceInfoHelper.DeviceInfoException {
+        sContext = InstrumentationRegistry.getTargetContext();
+        sLogSerializer = new DefaultLogSerializer();
+        sLogSerializer.addLogFactory(ManagedErrorLog.TYPE, ManagedErrorLogFactory.getInstance());
+
+        /* Crash reports are the largest logs. */
+        Device device = DeviceInfoHelper.getDeviceInfo(sContext);
+        List<Log> logs = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Log log = ErrorLogHelper.createErrorLog(sContext, Thread.currentThread(), new IllegalStateException("benchmark", new RuntimeException()), Thread.getAllStackTraces(), 0, true);
+            log.setDevice(device);
+            logs.add(log);
+        }
+        sLogContainer = new LogContainer();
+        sLogContainer.setLogs(logs);
+    }
+
+    @Test
+    public void serializeContainer() throws Exception {
+        Benchmark.measure("DefaultLogSerializer.serializeContainer(" + BATCH_SIZE + ")", new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                sLogSerializer.serializeContainer(sLogContainer);
+            }
+        });
+    }
+
+    @Test
+    public void deserializeLog() throws Exception {
+        final String json = sLogSerializer.serializeLog(sLogContainer.getLogs().get(0));
+        Benchmark.measure("DefaultLogSerializer.deserializeLog", new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                sLogSerializer.deserializeLog(json);
+            }
+        });
+    }
+}
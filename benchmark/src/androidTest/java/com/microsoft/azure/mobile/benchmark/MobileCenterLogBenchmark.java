@@ -0,0 +1,78 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+/**
+ * Checks that disabled logs on hot paths do not allocate at the default log level.
+ */
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class MobileCenterLogBenchmark {
+
+    private static final String TAG = "MobileCenterBenchmark";
+
+    private static final String GROUP = "group_benchmark";
+
+    private static final UUID ID = UUID.randomUUID();
+
+    private int mLogLevel;
+
+    private long mCount;
+
+    @Before
+    public void setUp() {
+        mLogLevel = MobileCenterLog.getLogLevel();
+        MobileCenterLog.setLogLevel(Log.ASSERT);
+    }
+
+    @After
+    public void tearDown() {
+        MobileCenterLog.setLogLevel(mLogLevel);
+    }
+
+    @Test
+    public void concatenated() throws Exception {
+        Benchmark.measure("MobileCenterLog.debug concatenated", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                MobileCenterLog.debug(TAG, "Logs for " + GROUP + " with " + ID + " count=" + mCount++);
+            }
+        });
+    }
+
+    @Test
+    public void formatted() throws Exception {
+        Benchmark.measure("MobileCenterLog.debug formatted", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                MobileCenterLog.debug(TAG, "Logs for %s with %s", GROUP, ID);
+            }
+        });
+    }
+
+    @Test
+    public void guarded() throws Exception {
+        Benchmark.measure("MobileCenterLog.debug guarded", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                if (MobileCenterLog.isLoggable(Log.DEBUG))
+                    MobileCenterLog.debug(TAG, "Logs for " + GROUP + " with " + ID + " count=" + mCount++);
+            }
+        });
+    }
+}
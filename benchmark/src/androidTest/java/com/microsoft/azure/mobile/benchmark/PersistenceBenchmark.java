@@ -0,0 +1,109 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.StartServiceLog;
+import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.ingestion.models.json.StartServiceLogFactory;
+import com.microsoft.azure.mobile.persistence.DatabasePersistence;
+import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PersistenceBenchmark {
+
+    private static final String GROUP = "group_benchmark";
+
+    /**
+     * Number of logs read per call, as in a batch.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    private static Device sDevice;
+
+    private DatabasePersistence mPersistence;
+
+    @BeforeClass
+    public static void setUpClass() throws DeviceInfoHelper.DeviceInfoException {
+        sContext = InstrumentationRegistry.getTargetContext();
+        StorageHelper.initialize(sContext);
+        sDevice = DeviceInfoHelper.getDeviceInfo(sContext);
+    }
+
+    private static Log generateLog() {
+        StartServiceLog log = new StartServiceLog();
+        log.setServices(Arrays.asList("Analytics", "Crashes"));
+        log.setDevice(sDevice);
+        return log;
+    }
+
+    @Before
+    public void setUp() {
+        mPersistence = new DatabasePersistence();
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(StartServiceLog.TYPE, new StartServiceLogFactory());
+        mPersistence.setLogSerializer(logSerializer);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mPersistence.deleteLogs(GROUP);
+        mPersistence.close();
+    }
+
+    @Test
+    public void putLog() throws Exception {
+        Benchmark.measure("DatabasePersistence.putLog", new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                mPersistence.putLog(GROUP, generateLog());
+            }
+        });
+    }
+
+    @Test
+    public void getLogs() throws Exception {
+        for (int i = 0; i < BATCH_SIZE * 10; i++)
+            mPersistence.putLog(GROUP, generateLog());
+        mPersistence.flush();
+        final List<Log> logs = new ArrayList<>(BATCH_SIZE);
+        Benchmark.measure("DatabasePersistence.getLogs(" + BATCH_SIZE + ")", new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+
+                /* Read the same batch again every time. */
+                logs.clear();
+                mPersistence.getLogs(GROUP, BATCH_SIZE, logs);
+                mPersistence.clearPendingLogState();
+            }
+        });
+    }
+}
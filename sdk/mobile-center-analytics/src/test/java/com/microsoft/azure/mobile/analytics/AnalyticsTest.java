@@ -14,6 +14,7 @@ import com.microsoft.azure.mobile.analytics.ingestion.models.json.EventLogFactor
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.PageLogFactory;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.StartSessionLogFactory;
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.GroupPriority;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.LogFactory;
 import com.microsoft.azure.mobile.utils.HandlerUtils;
@@ -376,7 +377,7 @@ public class AnalyticsTest {
         analytics.onStarting(mMobileCenterHandler);
         analytics.onStarted(mock(Context.class), "", channel);
         verify(channel).removeGroup(eq(analytics.getGroupName()));
-        verify(channel).addGroup(eq(analytics.getGroupName()), anyInt(), anyLong(), anyInt(), any(Channel.GroupListener.class));
+        verify(channel).addGroup(eq(analytics.getGroupName()), anyInt(), anyLong(), anyInt(), eq(GroupPriority.NORMAL), any(Channel.GroupListener.class));
         verify(channel).addListener(any(Channel.Listener.class));
 
         /* Now we can see the service enabled. */
@@ -505,7 +506,7 @@ public class AnalyticsTest {
         analytics.onStarting(mMobileCenterHandler);
         analytics.onStarted(mock(Context.class), "", channel);
         final ArgumentCaptor<Channel.GroupListener> captor = ArgumentCaptor.forClass(Channel.GroupListener.class);
-        verify(channel).addGroup(anyString(), anyInt(), anyLong(), anyInt(), captor.capture());
+        verify(channel).addGroup(anyString(), anyInt(), anyLong(), anyInt(), anyInt(), captor.capture());
         doAnswer(new Answer<Void>() {
 
             @Override
@@ -0,0 +1,254 @@
+package com.microsoft.azure.mobile.crashes.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+
+import com.microsoft.azure.mobile.Constants;
+import com.microsoft.azure.mobile.crashes.ingestion.models.Exception;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@SuppressWarnings("unused")
+public class CrashRecordAndroidTest {
+
+    /**
+     * Number of crashes simulated under memory pressure.
+     */
+    private static final int OUT_OF_MEMORY_TRIALS = 5;
+
+    /**
+     * Smallest chunk used to fill the heap.
+     */
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    /**
+     * Time in ms within which saving the throwable of a crash must return.
+     */
+    private static final long PROMPT_DELAY = 100;
+
+    private static Context sContext;
+
+    private File mErrorDirectory;
+
+    private File mRecordFile;
+
+    private File mThrowableFile;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getTargetContext();
+        Constants.loadFromContext(sContext);
+    }
+
+    private static int recurse(int depth) {
+        return recurse(depth + 1) + 1;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Before
+    public void setUp() {
+        mErrorDirectory = ErrorLogHelper.getErrorStorageDirectory();
+        File[] files = mErrorDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mRecordFile = ErrorLogHelper.getCrashRecordFile(sContext);
+        mThrowableFile = ErrorLogHelper.getCrashRecordThrowableFile(sContext);
+    }
+
+    /**
+     * Check the throwable of a virtual machine error is skipped without delaying the crash.
+     */
+    private void assertThrowableSkippedPromptly(Throwable throwable) {
+        long startTime = SystemClock.elapsedRealtime();
+        assertFalse(CrashRecordWriter.writeThrowable(mThrowableFile, throwable));
+        assertTrue(SystemClock.elapsedRealtime() - startTime < PROMPT_DELAY);
+        assertFalse(mThrowableFile.exists());
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @After
+    public void tearDown() {
+        File[] files = mErrorDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mErrorDirectory.delete();
+    }
+
+    @Test
+    public void writeAndRead() throws java.lang.Exception {
+        long initializeTimestamp = SystemClock.elapsedRealtime();
+        CrashRecordWriter writer = new CrashRecordWriter(sContext, mRecordFile, initializeTimestamp);
+        assertEquals(0, mRecordFile.length());
+
+        /* Write a crash with a cause. */
+        RuntimeException cause = new RuntimeException("Caus\u00e9 \u4e2d\u0000");
+        IllegalStateException exception = new IllegalStateException("Test", cause);
+        Thread thread = Thread.currentThread();
+        long before = System.currentTimeMillis();
+        assertTrue(writer.write(thread, exception));
+
+        /* Only the first crash is written. */
+        assertFalse(writer.write(thread, new RuntimeException()));
+        writer.close();
+
+        /* Regular exceptions are also kept as is. */
+        assertTrue(CrashRecordWriter.writeThrowable(mThrowableFile, exception));
+        assertTrue(mThrowableFile.length() > 0);
+
+        /* Check error log. */
+        ManagedErrorLog errorLog = CrashRecordReader.read(mRecordFile);
+        assertNotNull(errorLog.getId());
+        assertTrue(errorLog.getFatal());
+        assertEquals(Integer.valueOf(android.os.Process.myPid()), errorLog.getProcessId());
+        assertEquals(ErrorLogHelper.getArchitecture(), errorLog.getArchitecture());
+        assertNotNull(errorLog.getDevice());
+        assertTrue(errorLog.getToffset() >= before);
+        assertTrue(errorLog.getAppLaunchTOffset() >= 0);
+        assertEquals(Long.valueOf(thread.getId()), errorLog.getErrorThreadId());
+        assertEquals(thread.getName(), errorLog.getErrorThreadName());
+        Exception modelException = errorLog.getException();
+        assertEquals(IllegalStateException.class.getName(), modelException.getType());
+        assertEquals("Test", modelException.getMessage());
+        assertFramesEqual(exception.getStackTrace(), modelException.getFrames());
+        Exception modelCause = modelException.getInnerExceptions().get(0);
+        assertEquals(RuntimeException.class.getName(), modelCause.getType());
+        assertEquals(cause.getMessage(), modelCause.getMessage());
+        assertNull(modelCause.getInnerExceptions());
+        assertFalse(errorLog.getThreads().isEmpty());
+    }
+
+    @Test
+    public void stackOverflow() throws java.lang.Exception {
+        StackOverflowError error = null;
+        try {
+            recurse(0);
+        } catch (StackOverflowError e) {
+            error = e;
+        }
+        assertNotNull(error);
+        CrashRecordWriter writer = new CrashRecordWriter(sContext, mRecordFile, SystemClock.elapsedRealtime());
+        assertTrue(writer.write(Thread.currentThread(), error));
+        assertThrowableSkippedPromptly(error);
+        writer.close();
+        ManagedErrorLog errorLog = CrashRecordReader.read(mRecordFile);
+        Exception modelException = errorLog.getException();
+        assertEquals(StackOverflowError.class.getName(), modelException.getType());
+        List<StackFrame> frames = modelException.getFrames();
+        assertEquals(Math.min(ErrorLogHelper.FRAME_LIMIT, error.getStackTrace().length), frames.size());
+        assertEquals("recurse", frames.get(0).getMethodName());
+        assertTrue(mRecordFile.length() <= CrashRecordWriter.BUFFER_SIZE * 2);
+    }
+
+    @Test
+    public void outOfMemory() throws java.lang.Exception {
+        int successCount = 0;
+        for (int i = 0; i < OUT_OF_MEMORY_TRIALS; i++) {
+            CrashRecordWriter writer = new CrashRecordWriter(sContext, mRecordFile, SystemClock.elapsedRealtime());
+
+            /* Fill the heap and keep it full while saving the crash. */
+            List<byte[]> chunks = new ArrayList<>();
+            OutOfMemoryError error = null;
+            int chunkSize = 16 * 1024 * 1024;
+            while (chunkSize >= MIN_CHUNK_SIZE) {
+                try {
+                    chunks.add(new byte[chunkSize]);
+                } catch (OutOfMemoryError e) {
+                    error = e;
+                    chunkSize /= 2;
+                }
+            }
+            boolean written = error != null && writer.write(Thread.currentThread(), error);
+            if (error != null)
+                assertThrowableSkippedPromptly(error);
+            chunks.clear();
+            writer.close();
+            assertNotNull(error);
+            if (written && OutOfMemoryError.class.getName().equals(CrashRecordReader.read(mRecordFile).getException().getType()))
+                successCount++;
+        }
+        assertEquals(OUT_OF_MEMORY_TRIALS, successCount);
+    }
+
+    @Test
+    public void truncated() throws java.lang.Exception {
+
+        /* Build frames too big to fit in the buffer. */
+        char[] longName = new char[CrashRecordWriter.MAX_STRING_LENGTH * 2];
+        Arrays.fill(longName, 'a');
+        StackTraceElement[] stackTrace = new StackTraceElement[ErrorLogHelper.FRAME_LIMIT];
+        for (int i = 0; i < stackTrace.length; i++)
+            stackTrace[i] = new StackTraceElement(new String(longName), "method", "File.java", i);
+        char[] message = new char[CrashRecordWriter.MAX_STRING_LENGTH * 10];
+        Arrays.fill(message, 'm');
+        RuntimeException exception = new RuntimeException(new String(message));
+        exception.setStackTrace(stackTrace);
+        CrashRecordWriter writer = new CrashRecordWriter(sContext, mRecordFile, SystemClock.elapsedRealtime());
+        assertTrue(writer.write(Thread.currentThread(), exception));
+        writer.close();
+
+        /* Strings and frames are truncated but the record is complete. */
+        ManagedErrorLog errorLog = CrashRecordReader.read(mRecordFile);
+        Exception modelException = errorLog.getException();
+        assertEquals(CrashRecordWriter.MAX_STRING_LENGTH, modelException.getMessage().length());
+        List<StackFrame> frames = modelException.getFrames();
+        assertTrue(frames.size() > 0);
+        assertTrue(frames.size() < stackTrace.length);
+        assertEquals(CrashRecordWriter.MAX_STRING_LENGTH, frames.get(0).getClassName().length());
+
+        /* Truncate file in threads section: threads are dropped. */
+        long length = mRecordFile.length();
+        RandomAccessFile file = new RandomAccessFile(mRecordFile, "rw");
+        file.setLength(length - 1);
+        file.close();
+        errorLog = CrashRecordReader.read(mRecordFile);
+        assertNotNull(errorLog.getException());
+        assertTrue(errorLog.getThreads().isEmpty());
+
+        /* Truncate file in exception section: record is rejected. */
+        file = new RandomAccessFile(mRecordFile, "rw");
+        file.setLength(100);
+        file.close();
+        try {
+            CrashRecordReader.read(mRecordFile);
+            fail("Expected IOException");
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void assertFramesEqual(StackTraceElement[] stackTrace, List<StackFrame> frames) {
+        assertEquals(Math.min(ErrorLogHelper.FRAME_LIMIT, stackTrace.length), frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            StackFrame frame = frames.get(i);
+            assertEquals(stackTrace[i].getClassName(), frame.getClassName());
+            assertEquals(stackTrace[i].getMethodName(), frame.getMethodName());
+            assertEquals(stackTrace[i].getFileName(), frame.getFileName());
+            assertEquals(Integer.valueOf(stackTrace[i].getLineNumber()), frame.getLineNumber());
+        }
+    }
+}
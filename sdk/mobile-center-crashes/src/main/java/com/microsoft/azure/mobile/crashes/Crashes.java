@@ -10,12 +10,15 @@ import android.support.annotation.VisibleForTesting;
 import com.microsoft.azure.mobile.AbstractMobileCenterService;
 import com.microsoft.azure.mobile.Constants;
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.GroupPriority;
 import com.microsoft.azure.mobile.crashes.ingestion.models.ErrorAttachmentLog;
 import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
 import com.microsoft.azure.mobile.crashes.ingestion.models.json.ErrorAttachmentLogFactory;
 import com.microsoft.azure.mobile.crashes.ingestion.models.json.ManagedErrorLogFactory;
 import com.microsoft.azure.mobile.crashes.model.ErrorReport;
 import com.microsoft.azure.mobile.crashes.model.TestCrashException;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecordReader;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecordWriter;
 import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
@@ -31,10 +34,17 @@ import org.json.JSONException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -63,6 +73,38 @@ public class Crashes extends AbstractMobileCenterService {
     @VisibleForTesting
     public static final String PREF_KEY_ALWAYS_SEND = "com.microsoft.azure.mobile.crashes.always.send";
 
+    /**
+     * Preference storage key for occurrences of collapsed crash reports that are still pending,
+     * each entry is the report identifier, the occurrence count and the last error time separated by {@link #OCCURRENCES_SEPARATOR}.
+     */
+    @VisibleForTesting
+    static final String PREF_KEY_OCCURRENCES = "com.microsoft.azure.mobile.crashes.occurrences";
+
+    /**
+     * Separator of the fields in an entry of {@link #PREF_KEY_OCCURRENCES}.
+     */
+    @VisibleForTesting
+    static final String OCCURRENCES_SEPARATOR = "/";
+
+    /**
+     * Maximum number of pending error logs processed at startup, older ones are deleted without being read.
+     */
+    @VisibleForTesting
+    static final int MAX_PENDING_ERROR_LOGS = 20;
+
+    /**
+     * Number of pending occurrences of the same crash considered as a crash loop.
+     * Error logs accumulate only when the application crashes again before they could be processed, typically at startup.
+     */
+    @VisibleForTesting
+    static final int CRASH_LOOP_THRESHOLD = 3;
+
+    /**
+     * File name of the text attachment sent with a collapsed crash report, with its occurrence count and first and last error times.
+     */
+    @VisibleForTesting
+    static final String OCCURRENCES_ATTACHMENT_FILE_NAME = "occurrences.txt";
+
     /**
      * Group for sending logs.
      */
@@ -140,6 +182,26 @@ public class Crashes extends AbstractMobileCenterService {
      */
     private ErrorReport mLastSessionErrorReport;
 
+    /**
+     * Getters waiting for the last session error report to be loaded, null once loaded.
+     */
+    private List<Runnable> mLastSessionErrorReportCallbacks;
+
+    /**
+     * Loads stored error logs in background, null when disabled.
+     */
+    private ErrorLogLoader mErrorLogLoader;
+
+    /**
+     * Writer prepared at initialization to save an uncaught exception with bounded memory, null if not available.
+     */
+    private CrashRecordWriter mCrashRecordWriter;
+
+    /**
+     * File where the uncaught exception is serialized as is after the crash record, if memory allows.
+     */
+    private File mCrashRecordThrowableFile;
+
     private boolean mSavedUncaughtException;
 
     private Crashes() {
@@ -258,7 +320,13 @@ public class Crashes extends AbstractMobileCenterService {
 
             @Override
             public void run() {
-                future.complete(mLastSessionErrorReport != null);
+                runWhenLastSessionErrorReportLoaded(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        future.complete(isInstanceEnabled() && mLastSessionErrorReport != null);
+                    }
+                });
             }
         }, future, false);
         return future;
@@ -273,7 +341,13 @@ public class Crashes extends AbstractMobileCenterService {
 
             @Override
             public void run() {
-                future.complete(mLastSessionErrorReport);
+                runWhenLastSessionErrorReportLoaded(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        future.complete(isInstanceEnabled() ? mLastSessionErrorReport : null);
+                    }
+                });
             }
         }, future, null);
         return future;
@@ -285,19 +359,22 @@ public class Crashes extends AbstractMobileCenterService {
         initialize();
         if (!enabled) {
             for (File file : ErrorLogHelper.getErrorStorageDirectory().listFiles()) {
-                MobileCenterLog.debug(LOG_TAG, "Deleting file " + file);
+                MobileCenterLog.debug(LOG_TAG, "Deleting file %s", file);
                 if (!file.delete()) {
                     MobileCenterLog.warn(LOG_TAG, "Failed to delete file " + file);
                 }
             }
+            StorageHelper.PreferencesStorage.remove(PREF_KEY_OCCURRENCES);
             MobileCenterLog.info(LOG_TAG, "Deleted crashes local files");
         }
     }
 
     @Override
     public synchronized void onStarted(@NonNull Context context, @NonNull String appSecret, @NonNull Channel channel) {
-        super.onStarted(context, appSecret, channel);
+
+        /* Context is needed to prepare the crash record when initializing. */
         mContext = context;
+        super.onStarted(context, appSecret, channel);
         if (isInstanceEnabled()) {
             processPendingErrors();
         } else {
@@ -354,6 +431,11 @@ public class Crashes extends AbstractMobileCenterService {
         return 1;
     }
 
+    @Override
+    protected int getTriggerPriority() {
+        return GroupPriority.IMMEDIATE;
+    }
+
     @Override
     protected Channel.GroupListener getChannelListener() {
         return new Channel.GroupListener() {
@@ -486,25 +568,132 @@ public class Crashes extends AbstractMobileCenterService {
                 mUncaughtExceptionHandler.unregister();
                 mUncaughtExceptionHandler = null;
             }
+            closeCrashRecordWriter();
+            mErrorLogLoader = null;
+            setLastSessionErrorReportLoaded();
         } else {
             mUncaughtExceptionHandler = new UncaughtExceptionHandler();
             mUncaughtExceptionHandler.register();
-            final File logFile = ErrorLogHelper.getLastErrorLogFile();
-            if (logFile != null) {
+            convertCrashRecord();
+            openCrashRecordWriter();
+            final ErrorLogLoader loader = new ErrorLogLoader(ErrorLogLoader.getSharedExecutor(), mLogSerializer);
+            mErrorLogLoader = loader;
+            if (mLastSessionErrorReportCallbacks == null)
+                mLastSessionErrorReportCallbacks = new ArrayList<>();
+            File logFile = ErrorLogHelper.getLastErrorLogFile();
+            if (logFile == null) {
+                setLastSessionErrorReportLoaded();
+            } else {
+
+                /* Load the last session report first and expose it as soon as ready, without waiting for other pending errors. */
                 MobileCenterLog.debug(LOG_TAG, "Processing crash report for the last session.");
-                String logFileContents = StorageHelper.InternalStorage.read(logFile);
-                if (logFileContents == null)
-                    MobileCenterLog.error(LOG_TAG, "Error reading last session error log.");
-                else {
-                    try {
-                        ManagedErrorLog log = (ManagedErrorLog) mLogSerializer.deserializeLog(logFileContents);
-                        mLastSessionErrorReport = buildErrorReport(log);
-                        MobileCenterLog.debug(LOG_TAG, "Processed crash report for the last session.");
-                    } catch (JSONException e) {
-                        MobileCenterLog.error(LOG_TAG, "Error parsing last session error log.", e);
+                loader.load(logFile, new ErrorLogLoader.Listener() {
+
+                    @Override
+                    public void onLoaded(@NonNull final ErrorLogLoader.LoadedErrorLog errorLog) {
+                        post(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                if (loader != mErrorLogLoader)
+                                    return;
+                                ErrorReport report = cacheErrorReport(errorLog);
+                                if (report != null) {
+                                    mLastSessionErrorReport = report;
+                                    MobileCenterLog.debug(LOG_TAG, "Processed crash report for the last session.");
+                                }
+                                setLastSessionErrorReportLoaded();
+                            }
+                        });
                     }
-                }
+                });
+            }
+        }
+    }
+
+    /**
+     * Run a getter on the last session error report once loaded.
+     *
+     * @param callback getter, run on the SDK thread.
+     */
+    private void runWhenLastSessionErrorReportLoaded(Runnable callback) {
+        if (mLastSessionErrorReportCallbacks == null)
+            callback.run();
+        else
+            mLastSessionErrorReportCallbacks.add(callback);
+    }
+
+    /**
+     * Mark the last session error report as loaded (or given up when disabled) and run the getters waiting for it.
+     */
+    private void setLastSessionErrorReportLoaded() {
+        List<Runnable> callbacks = mLastSessionErrorReportCallbacks;
+        mLastSessionErrorReportCallbacks = null;
+        if (callbacks != null)
+            for (Runnable callback : callbacks)
+                callback.run();
+    }
+
+    /**
+     * Convert the crash record of the previous launch of this process, if it crashed, to error log and throwable files.
+     */
+    private void convertCrashRecord() {
+        File recordFile = ErrorLogHelper.getCrashRecordFile(mContext);
+        File recordThrowableFile = ErrorLogHelper.getCrashRecordThrowableFile(mContext);
+        if (recordFile == null || recordThrowableFile == null)
+            return;
+        if (recordFile.length() > 0) {
+            MobileCenterLog.debug(LOG_TAG, "Converting crash record of the last session.");
+            try {
+                ManagedErrorLog errorLog = CrashRecordReader.read(recordFile);
+                File errorStorageDirectory = ErrorLogHelper.getErrorStorageDirectory();
+                String filename = errorLog.getId().toString();
+                File errorLogFile = new File(errorStorageDirectory, filename + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
+                StorageHelper.InternalStorage.write(errorLogFile, mLogSerializer.serializeLog(errorLog));
+
+                /* Keep the throwable if it could be serialized, otherwise use an empty placeholder like wrapper SDKs do. */
+                File throwableFile = new File(errorStorageDirectory, filename + ErrorLogHelper.THROWABLE_FILE_EXTENSION);
+                if (!(recordThrowableFile.length() > 0 && recordThrowableFile.renameTo(throwableFile)) && !throwableFile.createNewFile())
+                    throw new IOException(throwableFile.getName());
+                MobileCenterLog.debug(LOG_TAG, "Converted crash record into %s", errorLogFile);
+            } catch (JSONException e) {
+                MobileCenterLog.error(LOG_TAG, "Error serializing error log from crash record", e);
+            } catch (IOException e) {
+                MobileCenterLog.error(LOG_TAG, "Error converting crash record", e);
+            }
+        }
+        StorageHelper.InternalStorage.delete(recordFile);
+        StorageHelper.InternalStorage.delete(recordThrowableFile);
+    }
+
+    /**
+     * Prepare saving an uncaught exception, so that a crash needs as little memory as possible.
+     */
+    private void openCrashRecordWriter() {
+        closeCrashRecordWriter();
+        File recordFile = ErrorLogHelper.getCrashRecordFile(mContext);
+        if (recordFile == null)
+            return;
+        try {
+            mCrashRecordWriter = new CrashRecordWriter(mContext, recordFile, mInitializeTimestamp);
+            mCrashRecordThrowableFile = ErrorLogHelper.getCrashRecordThrowableFile(mContext);
+        } catch (IOException e) {
+            MobileCenterLog.error(LOG_TAG, "Cannot prepare crash record, an uncaught exception will be saved with more memory", e);
+        }
+    }
+
+    /**
+     * Release the crash record writer if any.
+     */
+    private void closeCrashRecordWriter() {
+        if (mCrashRecordWriter != null) {
+            try {
+                mCrashRecordWriter.close();
+            } catch (IOException e) {
+                MobileCenterLog.warn(LOG_TAG, "Failed to close crash record", e);
             }
+            mCrashRecordWriter = null;
+            mCrashRecordThrowableFile = null;
         }
     }
 
@@ -516,30 +705,152 @@ public class Crashes extends AbstractMobileCenterService {
         return false;
     }
 
+    /**
+     * Load pending error files in parallel in background, then process them in order on the SDK thread.
+     */
     private void processPendingErrors() {
-        for (File logFile : ErrorLogHelper.getStoredErrorLogFiles()) {
+        final File[] logFiles = trimPendingErrorLogFiles(ErrorLogHelper.getStoredErrorLogFiles());
+        final ErrorLogLoader loader = mErrorLogLoader;
+        if (logFiles.length == 0 || loader == null) {
+            processUserConfirmation();
+            return;
+        }
+        final ErrorLogLoader.LoadedErrorLog[] errorLogs = new ErrorLogLoader.LoadedErrorLog[logFiles.length];
+        final int[] remaining = {logFiles.length};
+        for (int i = 0; i < logFiles.length; i++) {
+            final int index = i;
+            loader.load(logFiles[i], new ErrorLogLoader.Listener() {
+
+                @Override
+                public void onLoaded(@NonNull final ErrorLogLoader.LoadedErrorLog errorLog) {
+                    post(new Runnable() {
+
+                        @Override
+                        public void run() {
+
+                            /* Counting is confined to the SDK thread, results of a load started before disabling are ignored. */
+                            if (loader != mErrorLogLoader)
+                                return;
+                            errorLogs[index] = errorLog;
+                            if (--remaining[0] == 0) {
+                                loader.clear();
+                                processLoadedErrors(errorLogs);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Keep only the most recent pending error logs so that a crash storm does not slow down startup,
+     * older error logs are deleted without being read.
+     *
+     * @param logFiles pending error log files.
+     * @return error log files to process.
+     */
+    private File[] trimPendingErrorLogFiles(File[] logFiles) {
+        if (logFiles.length <= MAX_PENDING_ERROR_LOGS)
+            return logFiles;
+        File[] sortedFiles = logFiles.clone();
+        Arrays.sort(sortedFiles, new Comparator<File>() {
+
+            @Override
+            public int compare(File file1, File file2) {
+
+                /* Most recent first. */
+                long lastModified1 = file1.lastModified();
+                long lastModified2 = file2.lastModified();
+                return lastModified1 > lastModified2 ? -1 : lastModified1 == lastModified2 ? 0 : 1;
+            }
+        });
+        for (int i = MAX_PENDING_ERROR_LOGS; i < sortedFiles.length; i++) {
+            File logFile = sortedFiles[i];
+            String name = logFile.getName();
+            String id = name.substring(0, name.length() - ErrorLogHelper.ERROR_LOG_FILE_EXTENSION.length());
+            StorageHelper.InternalStorage.delete(logFile);
+            StorageHelper.InternalStorage.delete(new File(logFile.getParentFile(), id + ErrorLogHelper.THROWABLE_FILE_EXTENSION));
+            try {
+                WrapperSdkExceptionManager.deleteWrapperExceptionData(UUID.fromString(id));
+            } catch (IllegalArgumentException ignored) {
+
+                /* Not a report file, nothing else to clean up. */
+            }
+        }
+        MobileCenterLog.warn(LOG_TAG, "Too many pending error logs, deleted the " + (sortedFiles.length - MAX_PENDING_ERROR_LOGS) + " oldest ones.");
+        return Arrays.copyOf(sortedFiles, MAX_PENDING_ERROR_LOGS);
+    }
+
+    /**
+     * Process loaded pending errors in their original order,
+     * crashes with the same stack signature being collapsed into the oldest report,
+     * which then also becomes the last session report if that one was collapsed.
+     *
+     * @param errorLogs loaded error logs.
+     */
+    private void processLoadedErrors(ErrorLogLoader.LoadedErrorLog[] errorLogs) {
+        Set<String> occurrenceEntries = StorageHelper.PreferencesStorage.getStringSet(PREF_KEY_OCCURRENCES);
+        Map<String, String> occurrences = parseOccurrences(occurrenceEntries);
+        List<ErrorLogReport> reports = new ArrayList<>();
+        Map<String, ErrorLogReport> reportsBySignature = new HashMap<>();
+        for (ErrorLogLoader.LoadedErrorLog errorLog : errorLogs) {
             if (shouldStopProcessingPendingErrors())
                 return;
-            MobileCenterLog.debug(LOG_TAG, "Process pending error file: " + logFile);
-            String logfileContents = StorageHelper.InternalStorage.read(logFile);
-            if (logfileContents != null)
-                try {
-                    ManagedErrorLog log = (ManagedErrorLog) mLogSerializer.deserializeLog(logfileContents);
-                    UUID id = log.getId();
-                    ErrorReport report = buildErrorReport(log);
-                    if (report == null) {
-                        removeAllStoredErrorLogFiles(id);
-                    } else if (mCrashesListener.shouldProcess(report)) {
-                        MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned true, continue processing log: " + id.toString());
-                        mUnprocessedErrorReports.put(id, mErrorReportCache.get(id));
-                    } else {
-                        MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned false, clean up and ignore log: " + id.toString());
-                        removeAllStoredErrorLogFiles(id);
-                    }
-                } catch (JSONException e) {
-                    MobileCenterLog.error(LOG_TAG, "Error parsing error log", e);
+            if (errorLog.log == null)
+                continue;
+            MobileCenterLog.debug(LOG_TAG, "Process pending error file: %s", errorLog.file);
+            UUID id = errorLog.log.getId();
+            ErrorReport report = cacheErrorReport(errorLog);
+            if (report == null) {
+                removeAllStoredErrorLogFiles(id);
+                continue;
+            }
+            ErrorLogReport errorLogReport = mErrorReportCache.get(id);
+            restoreOccurrences(report, occurrences.get(id.toString()));
+            ErrorLogReport original = errorLog.signature == null ? null : reportsBySignature.get(errorLog.signature);
+            if (original == null) {
+                if (errorLog.signature != null)
+                    reportsBySignature.put(errorLog.signature, errorLogReport);
+                reports.add(errorLogReport);
+            } else if (original != errorLogReport) {
+
+                /* Keep the oldest report, its error time being the first occurrence. */
+                ErrorLogReport duplicate = errorLogReport;
+                Date appErrorTime = report.getAppErrorTime();
+                if (appErrorTime != null && original.report.getAppErrorTime() != null && appErrorTime.before(original.report.getAppErrorTime())) {
+                    reports.set(reports.indexOf(original), errorLogReport);
+                    reportsBySignature.put(errorLog.signature, errorLogReport);
+                    duplicate = original;
+                    original = errorLogReport;
                 }
+                mergeOccurrences(original.report, duplicate.report);
+
+                /* The last session report must be the one sent, with all the occurrences. */
+                if (mLastSessionErrorReport == duplicate.report)
+                    mLastSessionErrorReport = original.report;
+                MobileCenterLog.debug(LOG_TAG, "Collapse duplicate crash report %s into %s", duplicate.log.getId(), original.log.getId());
+                removeAllStoredErrorLogFiles(duplicate.log.getId());
+            }
+        }
+        List<ErrorLogReport> processedReports = new ArrayList<>();
+        for (ErrorLogReport errorLogReport : reports) {
+            if (shouldStopProcessingPendingErrors())
+                return;
+            UUID id = errorLogReport.log.getId();
+            ErrorReport report = errorLogReport.report;
+            if (report.getOccurrenceCount() >= CRASH_LOOP_THRESHOLD)
+                MobileCenterLog.warn(LOG_TAG, "Crash loop detected, the same crash occurred " + report.getOccurrenceCount() + " times since " + report.getAppErrorTime() + ", reporting it once: " + id);
+            if (mCrashesListener.shouldProcess(report)) {
+                MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned true, continue processing log: %s", id);
+                mUnprocessedErrorReports.put(id, errorLogReport);
+                processedReports.add(errorLogReport);
+            } else {
+                MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned false, clean up and ignore log: %s", id);
+                removeAllStoredErrorLogFiles(id);
+            }
         }
+        saveOccurrences(processedReports, occurrenceEntries);
 
         if (shouldStopProcessingPendingErrors())
             return;
@@ -616,6 +927,101 @@ public class Crashes extends AbstractMobileCenterService {
         return null;
     }
 
+    /**
+     * Parse the stored occurrences of collapsed crash reports.
+     *
+     * @param entries entries stored in {@link #PREF_KEY_OCCURRENCES}, can be null.
+     * @return occurrence count and last error time by report identifier.
+     */
+    private static Map<String, String> parseOccurrences(Set<String> entries) {
+        Map<String, String> occurrences = new HashMap<>();
+        if (entries != null)
+            for (String entry : entries) {
+                int separator = entry.indexOf(OCCURRENCES_SEPARATOR);
+                if (separator > 0)
+                    occurrences.put(entry.substring(0, separator), entry.substring(separator + 1));
+            }
+        return occurrences;
+    }
+
+    /**
+     * Restore the occurrences of a report collapsed in a previous session.
+     *
+     * @param report      error report.
+     * @param occurrences occurrence count and last error time, null if the report was never collapsed.
+     */
+    private static void restoreOccurrences(ErrorReport report, String occurrences) {
+        if (occurrences == null)
+            return;
+        String[] fields = occurrences.split(OCCURRENCES_SEPARATOR);
+        try {
+            report.setOccurrenceCount(Integer.parseInt(fields[0]));
+            long lastAppErrorTime = Long.parseLong(fields[1]);
+            if (lastAppErrorTime > 0)
+                report.setLastAppErrorTime(new Date(lastAppErrorTime));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            MobileCenterLog.warn(LOG_TAG, "Ignoring invalid crash occurrences: " + occurrences);
+        }
+    }
+
+    /**
+     * Add the occurrences of a duplicate report to the report it is collapsed into.
+     *
+     * @param report    report kept.
+     * @param duplicate duplicate report.
+     */
+    private static void mergeOccurrences(ErrorReport report, ErrorReport duplicate) {
+        report.setOccurrenceCount(report.getOccurrenceCount() + duplicate.getOccurrenceCount());
+        Date lastAppErrorTime = duplicate.getLastAppErrorTime();
+        if (lastAppErrorTime != null && (report.getLastAppErrorTime() == null || lastAppErrorTime.after(report.getLastAppErrorTime())))
+            report.setLastAppErrorTime(lastAppErrorTime);
+    }
+
+    /**
+     * Store the occurrences of collapsed reports so that they survive until the reports are sent.
+     * Entries of reports no longer pending, including the ones declined by {@link CrashesListener#shouldProcess(ErrorReport)}, are dropped.
+     *
+     * @param reports       reports pending to be sent.
+     * @param storedEntries entries currently stored, can be null.
+     */
+    private static void saveOccurrences(List<ErrorLogReport> reports, Set<String> storedEntries) {
+        Set<String> entries = new HashSet<>();
+        for (ErrorLogReport errorLogReport : reports) {
+            ErrorReport report = errorLogReport.report;
+            if (report.getOccurrenceCount() > 1) {
+                Date lastAppErrorTime = report.getLastAppErrorTime();
+                entries.add(errorLogReport.log.getId() + OCCURRENCES_SEPARATOR + report.getOccurrenceCount() + OCCURRENCES_SEPARATOR + (lastAppErrorTime != null ? lastAppErrorTime.getTime() : 0));
+            }
+        }
+        if (entries.isEmpty()) {
+            if (storedEntries != null)
+                StorageHelper.PreferencesStorage.remove(PREF_KEY_OCCURRENCES);
+        } else if (!entries.equals(storedEntries)) {
+            StorageHelper.PreferencesStorage.putStringSet(PREF_KEY_OCCURRENCES, entries);
+        }
+    }
+
+    /**
+     * Get or build the error report of an error log loaded in background.
+     *
+     * @param errorLog loaded error log.
+     * @return error report, null if the error log or its throwable could not be loaded.
+     */
+    @Nullable
+    private ErrorReport cacheErrorReport(ErrorLogLoader.LoadedErrorLog errorLog) {
+        ManagedErrorLog log = errorLog.log;
+        if (log == null)
+            return null;
+        UUID id = log.getId();
+        if (mErrorReportCache.containsKey(id))
+            return mErrorReportCache.get(id).report;
+        if (!errorLog.throwableLoaded)
+            return null;
+        ErrorReport report = ErrorLogHelper.getErrorReportFromErrorLog(log, errorLog.throwable);
+        mErrorReportCache.put(id, new ErrorLogReport(log, report));
+        return report;
+    }
+
     @VisibleForTesting
     CrashesListener getInstanceListener() {
         return mCrashesListener;
@@ -660,6 +1066,10 @@ public class Crashes extends AbstractMobileCenterService {
                         Iterable<ErrorAttachmentLog> attachments = mCrashesListener.getErrorAttachments(errorLogReport.report);
                         handleErrorAttachmentLogs(attachments, errorLogReport);
 
+                        /* The error log only describes the first occurrence of a collapsed crash. */
+                        if (errorLogReport.report.getOccurrenceCount() > 1)
+                            enqueueOccurrencesAttachment(errorLogReport);
+
                         /* Clean up an error log file and map entry. */
                         unprocessedIterator.remove();
                         ErrorLogHelper.removeStoredErrorLogFile(unprocessedEntry.getKey());
@@ -671,7 +1081,7 @@ public class Crashes extends AbstractMobileCenterService {
 
     private void handleErrorAttachmentLogs(Iterable<ErrorAttachmentLog> attachments, ErrorLogReport errorLogReport) {
         if (attachments == null) {
-            MobileCenterLog.debug(LOG_TAG, "CrashesListener.getErrorAttachments returned null, no additional information will be attached to log: " + errorLogReport.log.getId().toString());
+            MobileCenterLog.debug(LOG_TAG, "CrashesListener.getErrorAttachments returned null, no additional information will be attached to log: %s", errorLogReport.log.getId());
         } else {
             int totalErrorAttachments = 0;
             for (ErrorAttachmentLog attachment : attachments) {
@@ -694,6 +1104,24 @@ public class Crashes extends AbstractMobileCenterService {
         }
     }
 
+    /**
+     * Send the occurrences of a collapsed crash report as a text attachment of its error log.
+     *
+     * @param errorLogReport collapsed error log and report.
+     */
+    private void enqueueOccurrencesAttachment(ErrorLogReport errorLogReport) {
+        ErrorReport report = errorLogReport.report;
+        Date appErrorTime = report.getAppErrorTime();
+        Date lastAppErrorTime = report.getLastAppErrorTime();
+        String text = "occurrenceCount=" + report.getOccurrenceCount() + "\n"
+                + "firstAppErrorTime=" + (appErrorTime != null ? appErrorTime.getTime() : 0) + "\n"
+                + "lastAppErrorTime=" + (lastAppErrorTime != null ? lastAppErrorTime.getTime() : 0) + "\n";
+        ErrorAttachmentLog attachment = ErrorAttachmentLog.attachmentWithText(text, OCCURRENCES_ATTACHMENT_FILE_NAME);
+        attachment.setId(UUID.randomUUID());
+        attachment.setErrorId(errorLogReport.log.getId());
+        mChannel.enqueue(attachment, ERROR_GROUP);
+    }
+
     @VisibleForTesting
     void setLogSerializer(LogSerializer logSerializer) {
         mLogSerializer = logSerializer;
@@ -706,6 +1134,15 @@ public class Crashes extends AbstractMobileCenterService {
      * @param throwable uncaught exception or error.
      */
     void saveUncaughtException(Thread thread, Throwable throwable) {
+
+        /* Use the crash record prepared at initialization, then keep the throwable as is only if it is safe. */
+        CrashRecordWriter crashRecordWriter = mCrashRecordWriter;
+        File crashRecordThrowableFile = mCrashRecordThrowableFile;
+        if (!mSavedUncaughtException && crashRecordWriter != null && crashRecordWriter.write(thread, throwable)) {
+            mSavedUncaughtException = true;
+            CrashRecordWriter.writeThrowable(crashRecordThrowableFile, throwable);
+            return;
+        }
         try {
             saveUncaughtException(thread, throwable, ErrorLogHelper.getModelExceptionFromThrowable(throwable));
         } catch (JSONException e) {
@@ -738,11 +1175,11 @@ public class Crashes extends AbstractMobileCenterService {
         File errorLogFile = new File(errorStorageDirectory, filename + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
         String errorLogString = mLogSerializer.serializeLog(errorLog);
         StorageHelper.InternalStorage.write(errorLogFile, errorLogString);
-        MobileCenterLog.debug(Crashes.LOG_TAG, "Saved JSON content for ingestion into " + errorLogFile);
+        MobileCenterLog.debug(Crashes.LOG_TAG, "Saved JSON content for ingestion into %s", errorLogFile);
         File throwableFile = new File(errorStorageDirectory, filename + ErrorLogHelper.THROWABLE_FILE_EXTENSION);
         if (throwable != null) {
             StorageHelper.InternalStorage.writeObject(throwableFile, throwable);
-            MobileCenterLog.debug(Crashes.LOG_TAG, "Saved Throwable as is for client side inspection in " + throwableFile);
+            MobileCenterLog.debug(Crashes.LOG_TAG, "Saved Throwable as is for client side inspection in %s", throwableFile);
         } else {
 
             /*
@@ -752,7 +1189,7 @@ public class Crashes extends AbstractMobileCenterService {
             if (!throwableFile.createNewFile()) {
                 throw new IOException(throwableFile.getName());
             }
-            MobileCenterLog.debug(Crashes.LOG_TAG, "Saved empty Throwable file in " + throwableFile);
+            MobileCenterLog.debug(Crashes.LOG_TAG, "Saved empty Throwable file in %s", throwableFile);
         }
         return errorLogId;
     }
@@ -0,0 +1,303 @@
+package com.microsoft.azure.mobile.crashes;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.microsoft.azure.mobile.crashes.Crashes.LOG_TAG;
+
+/**
+ * Reads and de-serializes stored error logs and their throwables on a small pool of background threads,
+ * so that pending crash reports do not delay startup and are loaded in parallel.
+ * Stack signatures used to collapse duplicate crashes are computed there as well.
+ * Each file is loaded at most once per loader: listeners asking for a file already loading share the result.
+ */
+class ErrorLogLoader {
+
+    /**
+     * Maximum number of error logs loaded concurrently.
+     */
+    @VisibleForTesting
+    static final int POOL_SIZE = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Time in seconds an idle thread is kept alive.
+     */
+    private static final long KEEP_ALIVE_TIME = 10;
+
+    /**
+     * Thread name prefix.
+     */
+    @VisibleForTesting
+    static final String THREAD_NAME_PREFIX = "MobileCenter.Crashes-";
+
+    /**
+     * Shared executor.
+     */
+    private static Executor sSharedExecutor;
+
+    /**
+     * Executor running the loads.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Serializer used to parse error logs.
+     */
+    private final LogSerializer mLogSerializer;
+
+    /**
+     * Loads by file, guarded by this loader.
+     */
+    private final Map<File, LoadTask> mTasks = new HashMap<>();
+
+    /**
+     * Init.
+     *
+     * @param executor      executor running the loads.
+     * @param logSerializer serializer used to parse error logs.
+     */
+    ErrorLogLoader(@NonNull Executor executor, @NonNull LogSerializer logSerializer) {
+        mExecutor = executor;
+        mLogSerializer = logSerializer;
+    }
+
+    /**
+     * Get shared executor.
+     *
+     * @return shared executor.
+     */
+    static synchronized Executor getSharedExecutor() {
+        if (sSharedExecutor == null)
+            sSharedExecutor = newExecutor();
+        return sSharedExecutor;
+    }
+
+    /**
+     * Create a new bounded executor with low priority named threads.
+     *
+     * @return new executor.
+     */
+    @VisibleForTesting
+    static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+
+        /* Release threads once pending errors are loaded. */
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Load an error log in background, or reuse the load already started for that file.
+     *
+     * @param file     error log file.
+     * @param listener listener called once loaded, either from a background thread or from the caller thread if already loaded.
+     */
+    void load(@NonNull File file, @NonNull Listener listener) {
+        LoadTask task;
+        boolean start = false;
+        synchronized (this) {
+            task = mTasks.get(file);
+            if (task == null) {
+                task = new LoadTask(file);
+                mTasks.put(file, task);
+                start = true;
+            }
+        }
+        task.addListener(listener);
+        if (start)
+            mExecutor.execute(task);
+    }
+
+    /**
+     * Forget loaded files so that their content can be garbage collected, loads in progress still notify their listeners.
+     */
+    synchronized void clear() {
+        mTasks.clear();
+    }
+
+    /**
+     * Read and parse an error log file and its throwable, and compute its stack signature.
+     *
+     * @param file error log file.
+     * @return loaded error log.
+     */
+    @NonNull
+    private LoadedErrorLog loadErrorLog(File file) {
+        MobileCenterLog.debug(LOG_TAG, "Load pending error file: %s", file);
+        String contents = StorageHelper.InternalStorage.read(file);
+        if (contents == null) {
+            MobileCenterLog.error(LOG_TAG, "Error reading error log file " + file);
+            return new LoadedErrorLog(file, null, null, false, null);
+        }
+        ManagedErrorLog log;
+        try {
+            log = (ManagedErrorLog) mLogSerializer.deserializeLog(contents);
+        } catch (JSONException e) {
+            MobileCenterLog.error(LOG_TAG, "Error parsing error log", e);
+            return new LoadedErrorLog(file, null, null, false, null);
+        }
+        if (log == null)
+            return new LoadedErrorLog(file, null, null, false, null);
+        String signature = ErrorLogHelper.getStackSignature(log);
+        File throwableFile = ErrorLogHelper.getStoredThrowableFile(log.getId());
+        if (throwableFile != null) {
+            try {
+                Throwable throwable = null;
+                if (throwableFile.length() > 0)
+                    throwable = StorageHelper.InternalStorage.readObject(throwableFile);
+                return new LoadedErrorLog(file, log, throwable, true, signature);
+            } catch (ClassNotFoundException e) {
+                MobileCenterLog.error(LOG_TAG, "Cannot read throwable file " + throwableFile.getName(), e);
+            } catch (IOException e) {
+                MobileCenterLog.error(LOG_TAG, "Cannot access serialized throwable file " + throwableFile.getName(), e);
+            }
+        }
+        return new LoadedErrorLog(file, log, null, false, signature);
+    }
+
+    /**
+     * Listener for loaded error logs.
+     */
+    interface Listener {
+
+        /**
+         * Called when an error log has been loaded.
+         *
+         * @param errorLog loaded error log.
+         */
+        void onLoaded(@NonNull LoadedErrorLog errorLog);
+    }
+
+    /**
+     * Result of loading an error log file.
+     */
+    static class LoadedErrorLog {
+
+        /**
+         * Error log file.
+         */
+        final File file;
+
+        /**
+         * Error log, null if it could not be read or parsed.
+         */
+        final ManagedErrorLog log;
+
+        /**
+         * Throwable, null if not available, for example when reported by a wrapper SDK.
+         */
+        final Throwable throwable;
+
+        /**
+         * Whether the throwable file exists and could be read, an error report can be built only in that case.
+         */
+        final boolean throwableLoaded;
+
+        /**
+         * Stack signature used to collapse duplicate crashes, null if not available.
+         */
+        final String signature;
+
+        LoadedErrorLog(File file, ManagedErrorLog log, Throwable throwable, boolean throwableLoaded, String signature) {
+            this.file = file;
+            this.log = log;
+            this.throwable = throwable;
+            this.throwableLoaded = throwableLoaded;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Loads one file and notifies its listeners.
+     */
+    private class LoadTask implements Runnable {
+
+        /**
+         * Error log file.
+         */
+        private final File mFile;
+
+        /**
+         * Listeners waiting for the result, guarded by this task.
+         */
+        private final List<Listener> mListeners = new ArrayList<>();
+
+        /**
+         * Result, null until loaded, guarded by this task.
+         */
+        private LoadedErrorLog mResult;
+
+        LoadTask(File file) {
+            mFile = file;
+        }
+
+        void addListener(Listener listener) {
+            LoadedErrorLog result;
+            synchronized (this) {
+                result = mResult;
+                if (result == null)
+                    mListeners.add(listener);
+            }
+            if (result != null)
+                listener.onLoaded(result);
+        }
+
+        @Override
+        public void run() {
+            LoadedErrorLog result = loadErrorLog(mFile);
+            List<Listener> listeners;
+            synchronized (this) {
+                mResult = result;
+                listeners = new ArrayList<>(mListeners);
+                mListeners.clear();
+            }
+            for (Listener listener : listeners)
+                listener.onLoaded(result);
+        }
+    }
+
+    /**
+     * Creates named threads running with background priority.
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+
+        /**
+         * Thread counter used in names.
+         */
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME_PREFIX + mThreadCount.incrementAndGet());
+        }
+    }
+}
@@ -47,7 +47,7 @@ public class WrapperSdkExceptionManager {
                 sWrapperExceptionDataContainer.put(errorId.toString(), rawSerializedException);
                 File dataFile = getFile(errorId);
                 StorageHelper.InternalStorage.writeObject(dataFile, rawSerializedException);
-                MobileCenterLog.debug(Crashes.LOG_TAG, "Saved raw wrapper exception data into " + dataFile);
+                MobileCenterLog.debug(Crashes.LOG_TAG, "Saved raw wrapper exception data into %s", dataFile);
             }
             return errorId;
         } catch (Exception e) {
@@ -38,6 +38,16 @@ public class ErrorReport {
      */
     private Device device;
 
+    /**
+     * Number of times the same crash occurred before being reported, duplicates being collapsed into this report.
+     */
+    private int occurrenceCount = 1;
+
+    /**
+     * The date and time the same crash last occurred, <code>null</code> if unknown.
+     */
+    private Date lastAppErrorTime;
+
     /**
      * Gets the UUID for crash report.
      *
@@ -145,4 +155,42 @@ public class ErrorReport {
     public void setDevice(Device device) {
         this.device = device;
     }
+
+    /**
+     * Gets the number of times the same crash occurred before being reported.
+     * Reports of crashes with the same stack signature are collapsed into the oldest one,
+     * whose application error datetime is the first occurrence.
+     *
+     * @return The number of occurrences, at least 1.
+     */
+    public int getOccurrenceCount() {
+        return occurrenceCount;
+    }
+
+    /**
+     * Sets the number of times the same crash occurred before being reported.
+     *
+     * @param occurrenceCount A number of occurrences to set.
+     */
+    public void setOccurrenceCount(int occurrenceCount) {
+        this.occurrenceCount = occurrenceCount;
+    }
+
+    /**
+     * Gets the datetime of the last occurrence of the same crash.
+     *
+     * @return The datetime of the last occurrence.
+     */
+    public Date getLastAppErrorTime() {
+        return lastAppErrorTime;
+    }
+
+    /**
+     * Sets the datetime of the last occurrence of the same crash.
+     *
+     * @param lastAppErrorTime A datetime of the last occurrence to set.
+     */
+    public void setLastAppErrorTime(Date lastAppErrorTime) {
+        this.lastAppErrorTime = lastAppErrorTime;
+    }
 }
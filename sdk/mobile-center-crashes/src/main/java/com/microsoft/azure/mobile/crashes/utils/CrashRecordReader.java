@@ -0,0 +1,143 @@
+package com.microsoft.azure.mobile.crashes.utils;
+
+import android.support.annotation.NonNull;
+
+import com.microsoft.azure.mobile.crashes.Crashes;
+import com.microsoft.azure.mobile.crashes.ingestion.models.Exception;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
+import com.microsoft.azure.mobile.crashes.ingestion.models.Thread;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.microsoft.azure.mobile.crashes.utils.CrashRecordWriter.END_OF_SECTION;
+import static com.microsoft.azure.mobile.crashes.utils.CrashRecordWriter.MAGIC;
+import static com.microsoft.azure.mobile.crashes.utils.CrashRecordWriter.VERSION;
+
+/**
+ * Converts a record written by {@link CrashRecordWriter} to the error log it stands for.
+ */
+public class CrashRecordReader {
+
+    /**
+     * Read a crash record.
+     *
+     * @param file record file.
+     * @return fatal error log, with an empty thread list if the threads section was not completely written.
+     * @throws IOException if the file cannot be read or the exception section is incomplete.
+     */
+    @NonNull
+    public static ManagedErrorLog read(@NonNull File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+
+            /* Header. */
+            if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                throw new IOException("Unsupported crash record format.");
+            ManagedErrorLog errorLog = new ManagedErrorLog();
+            errorLog.setId(new UUID(input.readLong(), input.readLong()));
+            errorLog.setProcessId(input.readInt());
+            errorLog.setProcessName(readString(input));
+            errorLog.setArchitecture(readString(input));
+            String deviceJson = readString(input);
+            if (deviceJson != null)
+                try {
+                    Device device = new Device();
+                    device.read(new JSONObject(deviceJson));
+                    errorLog.setDevice(device);
+                } catch (JSONException e) {
+                    MobileCenterLog.error(Crashes.LOG_TAG, "Could not read device properties from crash record, will attach at sending time", e);
+                }
+            errorLog.setFatal(true);
+
+            /* Exception section. */
+            errorLog.setToffset(input.readLong());
+            errorLog.setAppLaunchTOffset(input.readLong());
+            errorLog.setErrorThreadId(input.readLong());
+            errorLog.setErrorThreadName(readString(input));
+            int exceptionCount = readCount(input);
+            Exception topException = null;
+            Exception parentException = null;
+            for (int i = 0; i < exceptionCount; i++) {
+                Exception exception = new Exception();
+                exception.setType(readString(input));
+                exception.setMessage(readString(input));
+                exception.setFrames(readFrames(input));
+                if (topException == null) {
+                    topException = exception;
+                } else {
+                    parentException.setInnerExceptions(Collections.singletonList(exception));
+                }
+                parentException = exception;
+            }
+            if (input.readInt() != END_OF_SECTION || topException == null)
+                throw new IOException("Incomplete crash record.");
+            errorLog.setException(topException);
+
+            /* Threads section, optional. */
+            List<Thread> threads = new ArrayList<>();
+            try {
+                int threadCount = readCount(input);
+                for (int i = 0; i < threadCount; i++) {
+                    Thread thread = new Thread();
+                    thread.setId(input.readLong());
+                    thread.setName(readString(input));
+                    thread.setFrames(readFrames(input));
+                    threads.add(thread);
+                }
+                if (input.readInt() != END_OF_SECTION)
+                    threads.clear();
+            } catch (IOException e) {
+                MobileCenterLog.warn(Crashes.LOG_TAG, "Crash record has no valid thread states.");
+                threads.clear();
+            }
+            errorLog.setThreads(threads);
+            return errorLog;
+        } finally {
+
+            /* Error ignored on purpose as we have read what we need. */
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static List<StackFrame> readFrames(DataInputStream input) throws IOException {
+        int count = readCount(input);
+        List<StackFrame> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StackFrame frame = new StackFrame();
+            frame.setClassName(readString(input));
+            frame.setMethodName(readString(input));
+            frame.setFileName(readString(input));
+            frame.setLineNumber(input.readInt());
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static int readCount(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0)
+            throw new IOException("Invalid count in crash record: " + count);
+        return count;
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readByte() == 0 ? null : input.readUTF();
+    }
+}
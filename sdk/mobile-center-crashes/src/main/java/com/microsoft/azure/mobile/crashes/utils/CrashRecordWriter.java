@@ -0,0 +1,385 @@
+package com.microsoft.azure.mobile.crashes.utils;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.microsoft.azure.mobile.crashes.Crashes;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.UUIDUtils;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.json.JSONException;
+import org.json.JSONStringer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes an uncaught exception to disk with bounded memory, as a compact binary record converted to an error log on next launch.
+ * <p>
+ * Everything that can be prepared in advance is done when the writer is created: the buffer is allocated,
+ * the record file is opened and the process and device properties are encoded in the buffer.
+ * At crash time, the exception is encoded into the pre-allocated buffer without building any model object,
+ * strings and frames are truncated to what fits, then the buffer is written to the already open file.
+ * <p>
+ * The record is written in 2 sections: the exception first, then the state of all threads.
+ * The threads are best effort as listing them allocates, the exception section is usable on its own.
+ * {@link CrashRecordReader} reads the record back.
+ */
+public class CrashRecordWriter implements Closeable {
+
+    /**
+     * Record file format identifier.
+     */
+    static final int MAGIC = 0x4d435244;
+
+    /**
+     * Record file format version.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Marker written at the end of a complete section.
+     */
+    static final int END_OF_SECTION = 0x454f5321;
+
+    /**
+     * Maximum number of chained causes written.
+     */
+    static final int MAX_EXCEPTION_COUNT = 16;
+
+    /**
+     * Maximum number of characters written per string, longer strings like exception messages are truncated.
+     */
+    static final int MAX_STRING_LENGTH = 1024;
+
+    /**
+     * Maximum number of characters of the device properties JSON, encoded only once when the writer is created.
+     */
+    private static final int MAX_DEVICE_LENGTH = 8192;
+
+    /**
+     * Pre-allocated buffer size.
+     */
+    @VisibleForTesting
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Bytes kept available for counts and markers that close a section.
+     */
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * Pre-allocated buffer.
+     */
+    private final byte[] mBuffer;
+
+    /**
+     * File opened in advance.
+     */
+    private final RandomAccessFile mFile;
+
+    /**
+     * Timestamp of initialization, expressed with {@link SystemClock#elapsedRealtime()}.
+     */
+    private final long mInitializeTimestamp;
+
+    /**
+     * Length of the header encoded in advance.
+     */
+    private final int mHeaderLength;
+
+    /**
+     * Current write position in buffer.
+     */
+    private int mPosition;
+
+    /**
+     * Whether a crash was already written.
+     */
+    private boolean mWritten;
+
+    /**
+     * Open the record file and prepare the header.
+     *
+     * @param context             application context.
+     * @param file                record file, truncated if existing.
+     * @param initializeTimestamp timestamp of initialization, expressed with {@link SystemClock#elapsedRealtime()}.
+     * @throws IOException if the file cannot be opened.
+     */
+    public CrashRecordWriter(@NonNull Context context, @NonNull File file, long initializeTimestamp) throws IOException {
+        mBuffer = new byte[BUFFER_SIZE];
+        mInitializeTimestamp = initializeTimestamp;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+
+        /* Encode header. */
+        UUID id = UUIDUtils.randomUUID();
+        writeInt(MAGIC);
+        writeInt(VERSION);
+        writeLong(id.getMostSignificantBits());
+        writeLong(id.getLeastSignificantBits());
+        writeInt(Process.myPid());
+        writeString(ErrorLogHelper.getProcessName(context), MAX_STRING_LENGTH);
+        writeString(ErrorLogHelper.getArchitecture(), MAX_STRING_LENGTH);
+        if (!writeString(getDeviceJson(context), MAX_DEVICE_LENGTH))
+            writeString(null, MAX_DEVICE_LENGTH);
+        mHeaderLength = mPosition;
+    }
+
+    /**
+     * Snapshot device properties.
+     *
+     * @param context application context.
+     * @return device properties as JSON, null if not available, will be attached at sending time.
+     */
+    private static String getDeviceJson(Context context) {
+        try {
+            Device device = DeviceInfoHelper.getDeviceInfo(context);
+            JSONStringer writer = new JSONStringer();
+            writer.object();
+            device.write(writer);
+            writer.endObject();
+            return writer.toString();
+        } catch (DeviceInfoHelper.DeviceInfoException | JSONException e) {
+            MobileCenterLog.error(Crashes.LOG_TAG, "Could not snapshot device properties for crash record, will attach at sending time", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write an uncaught exception. Only the first call is written.
+     *
+     * @param thread    thread where crash occurred.
+     * @param throwable uncaught exception or error.
+     * @return true if at least the exception section was written, false otherwise.
+     */
+    public synchronized boolean write(@NonNull Thread thread, @NonNull Throwable throwable) {
+        if (mWritten)
+            return false;
+        mWritten = true;
+
+        /* Exception section, enough to report the crash. */
+        try {
+            mPosition = mHeaderLength;
+            writeLong(System.currentTimeMillis());
+            writeLong(SystemClock.elapsedRealtime() - mInitializeTimestamp);
+            writeLong(thread.getId());
+            writeString(thread.getName(), MAX_STRING_LENGTH);
+            int countPosition = reserveInt();
+            int count = 0;
+            for (Throwable cause = throwable; cause != null && count < MAX_EXCEPTION_COUNT; cause = cause.getCause()) {
+                int mark = mPosition;
+                if (!writeException(cause)) {
+                    mPosition = mark;
+                    break;
+                }
+                count++;
+            }
+            putInt(countPosition, count);
+            writeEndOfSection();
+            mFile.write(mBuffer, 0, mPosition);
+        } catch (Throwable ignored) {
+            return false;
+        }
+
+        /* Threads section, best effort as listing threads allocates. */
+        try {
+            Map<Thread, StackTraceElement[]> allStackTraces = Thread.getAllStackTraces();
+            mPosition = 0;
+            int countPosition = reserveInt();
+            int count = 0;
+            for (Map.Entry<Thread, StackTraceElement[]> entry : allStackTraces.entrySet()) {
+                int mark = mPosition;
+                Thread stackThread = entry.getKey();
+                if (!writeLong(stackThread.getId()) || !writeString(stackThread.getName(), MAX_STRING_LENGTH) || !writeFrames(entry.getValue())) {
+                    mPosition = mark;
+                    break;
+                }
+                count++;
+            }
+            putInt(countPosition, count);
+            writeEndOfSection();
+            mFile.write(mBuffer, 0, mPosition);
+        } catch (Throwable ignored) {
+
+            /* The exception section is already on disk. */
+        }
+        return true;
+    }
+
+    /**
+     * Keep the throwable as is next to the record so that it can be exposed in the error report.
+     * Virtual machine errors such as {@link OutOfMemoryError} or {@link StackOverflowError} are skipped,
+     * serializing the throwable allocates without bound while the process is dying. The report is then built from the record only.
+     *
+     * @param file      file to write the throwable to.
+     * @param throwable uncaught exception or error.
+     * @return true if the throwable was written, false otherwise.
+     */
+    public static boolean writeThrowable(@NonNull File file, @NonNull Throwable throwable) {
+        int count = 0;
+        for (Throwable cause = throwable; cause != null && count < MAX_EXCEPTION_COUNT; cause = cause.getCause(), count++)
+            if (cause instanceof VirtualMachineError)
+                return false;
+        try {
+            StorageHelper.InternalStorage.writeObject(file, throwable);
+            return true;
+        } catch (Throwable e) {
+
+            /* The crash record alone is enough to report the crash. */
+            StorageHelper.InternalStorage.delete(file);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * Write an exception without its causes.
+     *
+     * @param throwable exception.
+     * @return false if the buffer is full.
+     */
+    private boolean writeException(Throwable throwable) {
+        return writeString(throwable.getClass().getName(), MAX_STRING_LENGTH)
+                && writeString(throwable.getMessage(), MAX_STRING_LENGTH)
+                && writeFrames(throwable.getStackTrace());
+    }
+
+    /**
+     * Write stack frames, keeping only beginning and end of huge stack traces like {@link ErrorLogHelper} does.
+     * Frames that don't fit in the buffer are skipped.
+     *
+     * @param stackTrace stack trace.
+     * @return false if the buffer is full before writing any frame.
+     */
+    private boolean writeFrames(StackTraceElement[] stackTrace) {
+        int countPosition = reserveInt();
+        if (countPosition < 0)
+            return false;
+        int length = stackTrace.length;
+        int half = ErrorLogHelper.FRAME_LIMIT / 2;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (length > ErrorLogHelper.FRAME_LIMIT && i == half)
+                i = length - half;
+            StackTraceElement frame = stackTrace[i];
+            int mark = mPosition;
+            if (!writeString(frame.getClassName(), MAX_STRING_LENGTH)
+                    || !writeString(frame.getMethodName(), MAX_STRING_LENGTH)
+                    || !writeString(frame.getFileName(), MAX_STRING_LENGTH)
+                    || !writeInt(frame.getLineNumber())) {
+                mPosition = mark;
+                break;
+            }
+            count++;
+        }
+        putInt(countPosition, count);
+        return true;
+    }
+
+    /**
+     * Write a nullable string in the format of {@link java.io.DataInput#readUTF()} prefixed by a presence flag.
+     *
+     * @param value     string.
+     * @param maxLength maximum number of characters written.
+     * @return false if the buffer is full, nothing is written in that case.
+     */
+    private boolean writeString(String value, int maxLength) {
+        int mark = mPosition;
+        if (value == null)
+            return writeByte(0);
+        if (!writeByte(1))
+            return false;
+        int lengthPosition = mPosition;
+        mPosition += 2;
+        int length = Math.min(value.length(), maxLength);
+        int limit = mBuffer.length - TRAILER_SIZE;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c != 0 && c < 0x80) {
+                if (mPosition + 1 > limit) {
+                    mPosition = mark;
+                    return false;
+                }
+                mBuffer[mPosition++] = (byte) c;
+            } else if (c < 0x800) {
+                if (mPosition + 2 > limit) {
+                    mPosition = mark;
+                    return false;
+                }
+                mBuffer[mPosition++] = (byte) (0xc0 | (c >> 6));
+                mBuffer[mPosition++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                if (mPosition + 3 > limit) {
+                    mPosition = mark;
+                    return false;
+                }
+                mBuffer[mPosition++] = (byte) (0xe0 | (c >> 12));
+                mBuffer[mPosition++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                mBuffer[mPosition++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        int byteLength = mPosition - lengthPosition - 2;
+        mBuffer[lengthPosition] = (byte) (byteLength >>> 8);
+        mBuffer[lengthPosition + 1] = (byte) byteLength;
+        return true;
+    }
+
+    /**
+     * Reserve room for an int written later by {@link #putInt(int, int)}.
+     *
+     * @return position of the int, -1 if the buffer is full.
+     */
+    private int reserveInt() {
+        int position = mPosition;
+        return writeInt(0) ? position : -1;
+    }
+
+    private boolean writeByte(int value) {
+        if (mPosition + 1 > mBuffer.length - TRAILER_SIZE)
+            return false;
+        mBuffer[mPosition++] = (byte) value;
+        return true;
+    }
+
+    private boolean writeInt(int value) {
+        if (mPosition + 4 > mBuffer.length - TRAILER_SIZE)
+            return false;
+        putInt(mPosition, value);
+        mPosition += 4;
+        return true;
+    }
+
+    /**
+     * Close a section, using the room kept by {@link #TRAILER_SIZE}.
+     */
+    private void writeEndOfSection() {
+        putInt(mPosition, END_OF_SECTION);
+        mPosition += 4;
+    }
+
+    private boolean writeLong(long value) {
+        return writeInt((int) (value >>> 32)) && writeInt((int) value);
+    }
+
+    private void putInt(int position, int value) {
+        mBuffer[position] = (byte) (value >>> 24);
+        mBuffer[position + 1] = (byte) (value >>> 16);
+        mBuffer[position + 2] = (byte) (value >>> 8);
+        mBuffer[position + 3] = (byte) value;
+    }
+}
@@ -17,7 +17,9 @@ import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
 import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
 import com.microsoft.azure.mobile.crashes.ingestion.models.Thread;
 import com.microsoft.azure.mobile.crashes.model.ErrorReport;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+import com.microsoft.azure.mobile.utils.HashUtils;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper;
@@ -46,6 +48,19 @@ public class ErrorLogHelper {
      */
     public static final String THROWABLE_FILE_EXTENSION = ".throwable";
 
+    /**
+     * Crash record file extension, a record is converted to an error log file with an identifier on next launch of its process.
+     * The serialized throwable of the record has the same name with {@link #THROWABLE_FILE_EXTENSION}.
+     */
+    @VisibleForTesting
+    static final String CRASH_RECORD_FILE_EXTENSION = ".record";
+
+    /**
+     * Crash record file name prefix, followed by the process name so that each process of the application has its own record.
+     */
+    @VisibleForTesting
+    static final String CRASH_RECORD_FILE_PREFIX = "crash-";
+
     /**
      * For huge stack traces such as giant StackOverflowError, we keep only beginning and end of frames according to this limit.
      */
@@ -92,14 +107,7 @@ public class ErrorLogHelper {
 
         /* Process information. Parent one is not available on Android. */
         errorLog.setProcessId(Process.myPid());
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        if (activityManager != null) {
-            for (ActivityManager.RunningAppProcessInfo info : activityManager.getRunningAppProcesses()) {
-                if (info.pid == Process.myPid()) {
-                    errorLog.setProcessName(info.processName);
-                }
-            }
-        }
+        errorLog.setProcessName(getProcessName(context));
 
         /* CPU architecture. */
         errorLog.setArchitecture(getArchitecture());
@@ -130,9 +138,23 @@ public class ErrorLogHelper {
         return errorLog;
     }
 
+    @Nullable
+    static String getProcessName(@NonNull Context context) {
+        String processName = null;
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            for (ActivityManager.RunningAppProcessInfo info : activityManager.getRunningAppProcesses()) {
+                if (info.pid == Process.myPid()) {
+                    processName = info.processName;
+                }
+            }
+        }
+        return processName;
+    }
+
     @SuppressWarnings("deprecation")
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private static String getArchitecture() {
+    static String getArchitecture() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             return Build.SUPPORTED_ABIS[0];
         } else {
@@ -149,6 +171,32 @@ public class ErrorLogHelper {
         return sErrorLogDirectory;
     }
 
+    @NonNull
+    public static File getCrashRecordFile(@NonNull Context context) {
+        return new File(getErrorStorageDirectory(), getCrashRecordFileName(context) + CRASH_RECORD_FILE_EXTENSION);
+    }
+
+    @NonNull
+    public static File getCrashRecordThrowableFile(@NonNull Context context) {
+        return new File(getErrorStorageDirectory(), getCrashRecordFileName(context) + THROWABLE_FILE_EXTENSION);
+    }
+
+    /**
+     * Get the crash record file name of the current process, without extension.
+     * The process name is kept across launches so that a crash is converted when its process starts again,
+     * the process identifier is used if the name is unknown.
+     *
+     * @param context application context.
+     * @return file name.
+     */
+    @NonNull
+    private static String getCrashRecordFileName(@NonNull Context context) {
+        String processName = getProcessName(context);
+        if (processName == null)
+            processName = String.valueOf(Process.myPid());
+        return CRASH_RECORD_FILE_PREFIX + processName.replaceAll("[^\\w.-]", "_");
+    }
+
     @NonNull
     public static File[] getStoredErrorLogFiles() {
         File[] files = getErrorStorageDirectory().listFiles(new FilenameFilter() {
@@ -179,7 +227,7 @@ public class ErrorLogHelper {
     public static void removeStoredThrowableFile(@NonNull UUID id) {
         File file = getStoredThrowableFile(id);
         if (file != null) {
-            MobileCenterLog.info(Crashes.LOG_TAG, "Deleting throwable file " + file.getName());
+            MobileCenterLog.info(Crashes.LOG_TAG, "Deleting throwable file %s", file.getName());
             StorageHelper.InternalStorage.delete(file);
         }
     }
@@ -192,7 +240,7 @@ public class ErrorLogHelper {
     public static void removeStoredErrorLogFile(@NonNull UUID id) {
         File file = getStoredErrorLogFile(id);
         if (file != null) {
-            MobileCenterLog.info(Crashes.LOG_TAG, "Deleting error log file " + file.getName());
+            MobileCenterLog.info(Crashes.LOG_TAG, "Deleting error log file %s", file.getName());
             StorageHelper.InternalStorage.delete(file);
         }
     }
@@ -206,9 +254,53 @@ public class ErrorLogHelper {
         report.setAppStartTime(new Date(log.getToffset() - log.getAppLaunchTOffset()));
         report.setAppErrorTime(new Date(log.getToffset()));
         report.setDevice(log.getDevice());
+        report.setLastAppErrorTime(report.getAppErrorTime());
         return report;
     }
 
+    /**
+     * Get the stack signature of an error log, identical for crashes with the same exception types and stack frames
+     * in the same application version.
+     * Messages are left out as they often contain data specific to each occurrence.
+     *
+     * @param log error log.
+     * @return sha256 of application version, exception types and frames, including causes, null if the log has no exception.
+     */
+    @Nullable
+    public static String getStackSignature(@NonNull ManagedErrorLog log) {
+        Exception exception = log.getException();
+        if (exception == null)
+            return null;
+        StringBuilder signature = new StringBuilder();
+
+        /* The same stack in another version is another crash, line numbers may not even mean the same code. */
+        Device device = log.getDevice();
+        if (device != null)
+            signature.append(device.getAppVersion()).append(' ').append(device.getAppBuild()).append('\n');
+        appendStackSignature(signature, exception);
+        return HashUtils.sha256(signature.toString());
+    }
+
+    private static void appendStackSignature(StringBuilder signature, Exception exception) {
+        signature.append(exception.getType()).append('\n');
+        List<StackFrame> frames = exception.getFrames();
+        if (frames != null) {
+            for (StackFrame frame : frames)
+                signature.append(frame.getClassName()).append('.').append(frame.getMethodName())
+                        .append('(').append(frame.getFileName()).append(':').append(frame.getLineNumber()).append(")\n");
+        } else if (exception.getStackTrace() != null) {
+
+            /* Wrapper SDKs may provide a raw stack trace instead of frames. */
+            signature.append(exception.getStackTrace()).append('\n');
+        }
+        List<Exception> innerExceptions = exception.getInnerExceptions();
+        if (innerExceptions != null)
+            for (Exception innerException : innerExceptions) {
+                signature.append("Caused by: ");
+                appendStackSignature(signature, innerException);
+            }
+    }
+
     @VisibleForTesting
     static void setErrorLogDirectory(File file) {
         sErrorLogDirectory = file;
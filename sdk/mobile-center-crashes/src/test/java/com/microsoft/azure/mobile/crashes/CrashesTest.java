@@ -8,6 +8,7 @@ import com.microsoft.azure.mobile.Constants;
 import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.MobileCenterHandler;
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.GroupPriority;
 import com.microsoft.azure.mobile.crashes.ingestion.models.ErrorAttachmentLog;
 import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
 import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
@@ -15,6 +16,8 @@ import com.microsoft.azure.mobile.crashes.ingestion.models.json.ErrorAttachmentL
 import com.microsoft.azure.mobile.crashes.ingestion.models.json.ManagedErrorLogFactory;
 import com.microsoft.azure.mobile.crashes.model.ErrorReport;
 import com.microsoft.azure.mobile.crashes.model.TestCrashException;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecordReader;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecordWriter;
 import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
 import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
@@ -37,6 +40,8 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -51,24 +56,31 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anySetOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -81,7 +93,7 @@ import static org.powermock.api.mockito.PowerMockito.verifyNoMoreInteractions;
 import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
 @SuppressWarnings("unused")
-@PrepareForTest({ErrorLogHelper.class, SystemClock.class, StorageHelper.InternalStorage.class, StorageHelper.PreferencesStorage.class, MobileCenterLog.class, MobileCenter.class, Crashes.class, HandlerUtils.class, Looper.class})
+@PrepareForTest({ErrorLogHelper.class, ErrorLogLoader.class, CrashRecordReader.class, SystemClock.class, StorageHelper.InternalStorage.class, StorageHelper.PreferencesStorage.class, MobileCenterLog.class, MobileCenter.class, Crashes.class, HandlerUtils.class, Looper.class})
 public class CrashesTest {
 
     @SuppressWarnings("ThrowableInstanceNeverThrown")
@@ -157,6 +169,16 @@ public class CrashesTest {
         HandlerUtils.runOnUiThread(any(Runnable.class));
         doAnswer(runNow).when(mMobileCenterHandler).post(any(Runnable.class), any(Runnable.class));
 
+        /* Load error logs synchronously unless a test controls background tasks. */
+        mockStatic(ErrorLogLoader.class);
+        when(ErrorLogLoader.getSharedExecutor()).thenReturn(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
         mErrorLog = ErrorLogHelper.createErrorLog(mock(Context.class), Thread.currentThread(), new RuntimeException(), Thread.getAllStackTraces(), 0, true);
     }
 
@@ -234,7 +256,7 @@ public class CrashesTest {
         crashes.onStarting(mMobileCenterHandler);
         crashes.onStarted(mock(Context.class), "", mockChannel);
         verify(mockChannel).removeGroup(eq(crashes.getGroupName()));
-        verify(mockChannel).addGroup(eq(crashes.getGroupName()), anyInt(), anyInt(), anyInt(), any(Channel.GroupListener.class));
+        verify(mockChannel).addGroup(eq(crashes.getGroupName()), anyInt(), anyInt(), anyInt(), eq(GroupPriority.IMMEDIATE), any(Channel.GroupListener.class));
 
         /* Test. */
         assertTrue(Crashes.isEnabled().get());
@@ -259,7 +281,7 @@ public class CrashesTest {
         assertTrue(Thread.getDefaultUncaughtExceptionHandler() instanceof UncaughtExceptionHandler);
         Crashes.setEnabled(true);
         assertTrue(Crashes.isEnabled().get());
-        verify(mockChannel, times(2)).addGroup(eq(crashes.getGroupName()), anyInt(), anyInt(), anyInt(), any(Channel.GroupListener.class));
+        verify(mockChannel, times(2)).addGroup(eq(crashes.getGroupName()), anyInt(), anyInt(), anyInt(), eq(GroupPriority.IMMEDIATE), any(Channel.GroupListener.class));
         Crashes.trackException(EXCEPTION);
         verify(mockChannel, times(1)).enqueue(any(ManagedErrorLog.class), eq(crashes.getGroupName()));
     }
@@ -467,7 +489,7 @@ public class CrashesTest {
             }
         });
 
-        /* Disabled while Crashes service is processing pending errors. */
+        /* Disabled while Crashes service is loading pending errors: nothing is processed. */
         Crashes crashes = Crashes.getInstance();
         crashes.setLogSerializer(logSerializer);
         crashes.setInstanceListener(listener);
@@ -475,10 +497,18 @@ public class CrashesTest {
         crashes.onStarted(mock(Context.class), "", channel);
 
         verify(channel, never()).enqueue(any(Log.class), anyString());
-        verify(listener).shouldProcess(errorReport);
         verifyNoMoreInteractions(listener);
 
-        /* Disabled right before handling user confirmation. */
+        /* Disabled while processing the first loaded error. */
+        when(StorageHelper.InternalStorage.read(any(File.class))).thenReturn("");
+        when(listener.shouldProcess(errorReport)).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                Crashes.setEnabled(false);
+                return true;
+            }
+        });
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[]{mock(File.class), mock(File.class)});
         Crashes.setEnabled(true);
         Crashes.unsetInstance();
         crashes = Crashes.getInstance();
@@ -488,8 +518,272 @@ public class CrashesTest {
         crashes.onStarted(mock(Context.class), "", channel);
 
         verify(channel, never()).enqueue(any(Log.class), anyString());
-        verify(listener, times(2)).shouldProcess(errorReport);
+        verify(listener).shouldProcess(errorReport);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void collapseDuplicateCrashes() throws JSONException, IOException, ClassNotFoundException {
+
+        /* 3 pending errors: 2 occurrences of the same crash, the second file being the oldest, and another crash. */
+        ManagedErrorLog[] errorLogs = new ManagedErrorLog[3];
+        ErrorReport[] errorReports = new ErrorReport[3];
+        File[] files = new File[3];
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        for (int i = 0; i < 3; i++) {
+            errorLogs[i] = new ManagedErrorLog();
+            errorLogs[i].setId(UUIDUtils.randomUUID());
+            errorLogs[i].setToffset(i == 1 ? 1000L : 2000L + i);
+            errorLogs[i].setAppLaunchTOffset(0L);
+            errorReports[i] = ErrorLogHelper.getErrorReportFromErrorLog(errorLogs[i], null);
+            files[i] = mock(File.class);
+            when(StorageHelper.InternalStorage.read(files[i])).thenReturn("log" + i);
+            when(logSerializer.deserializeLog("log" + i)).thenReturn(errorLogs[i]);
+        }
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(files);
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        for (int i = 0; i < 3; i++) {
+            when(ErrorLogHelper.getErrorReportFromErrorLog(errorLogs[i], null)).thenReturn(errorReports[i]);
+            when(ErrorLogHelper.getStackSignature(errorLogs[i])).thenReturn(i < 2 ? "same" : "other");
+        }
+        CrashesListener listener = mock(CrashesListener.class);
+        when(listener.shouldProcess(any(ErrorReport.class))).thenReturn(true);
+        Channel channel = mock(Channel.class);
+
+        /* Start. */
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(listener);
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", channel);
+
+        /* Duplicate is collapsed into the oldest report. */
+        verify(listener).shouldProcess(errorReports[1]);
+        verify(listener).shouldProcess(errorReports[2]);
+        verify(listener, never()).shouldProcess(errorReports[0]);
+        assertEquals(2, errorReports[1].getOccurrenceCount());
+        assertEquals(new Date(1000L), errorReports[1].getAppErrorTime());
+        assertEquals(errorReports[0].getAppErrorTime(), errorReports[1].getLastAppErrorTime());
+        assertEquals(1, errorReports[2].getOccurrenceCount());
+        verifyStatic();
+        ErrorLogHelper.removeStoredErrorLogFile(errorLogs[0].getId());
+        verifyStatic(never());
+        ErrorLogHelper.removeStoredErrorLogFile(errorLogs[1].getId());
+
+        /* Occurrences are stored until sent. */
+        verifyStatic();
+        StorageHelper.PreferencesStorage.putStringSet(Crashes.PREF_KEY_OCCURRENCES, Collections.singleton(errorLogs[1].getId() + "/2/2000"));
+        verifyStatic(never());
+        MobileCenterLog.warn(eq(Crashes.LOG_TAG), contains("Crash loop"));
+
+        /* Occurrences are sent with the collapsed report only. */
+        final UUID collapsedId = errorLogs[1].getId();
+        verify(channel).enqueue(errorLogs[1], Crashes.ERROR_GROUP);
+        verify(channel).enqueue(errorLogs[2], Crashes.ERROR_GROUP);
+        verify(channel).enqueue(argThat(new ArgumentMatcher<Log>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                if (!(argument instanceof ErrorAttachmentLog))
+                    return false;
+                ErrorAttachmentLog attachment = (ErrorAttachmentLog) argument;
+                return Crashes.OCCURRENCES_ATTACHMENT_FILE_NAME.equals(attachment.getFileName())
+                        && collapsedId.equals(attachment.getErrorId())
+                        && "occurrenceCount=2\nfirstAppErrorTime=1000\nlastAppErrorTime=2000\n".equals(new String(attachment.getData()));
+            }
+        }), eq(Crashes.ERROR_GROUP));
+        verify(channel, times(3)).enqueue(any(Log.class), anyString());
+    }
+
+    @Test
+    public void lastSessionReportIsCollapsedReport() throws JSONException, IOException, ClassNotFoundException {
+
+        /* The last session crashed again with the same crash as an older pending report. */
+        ManagedErrorLog[] errorLogs = new ManagedErrorLog[2];
+        ErrorReport[] errorReports = new ErrorReport[2];
+        File[] files = new File[2];
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        for (int i = 0; i < 2; i++) {
+            errorLogs[i] = new ManagedErrorLog();
+            errorLogs[i].setId(UUIDUtils.randomUUID());
+            errorLogs[i].setToffset(1000L * (2 - i));
+            errorLogs[i].setAppLaunchTOffset(0L);
+            errorReports[i] = ErrorLogHelper.getErrorReportFromErrorLog(errorLogs[i], null);
+            files[i] = mock(File.class);
+            when(StorageHelper.InternalStorage.read(files[i])).thenReturn("log" + i);
+            when(logSerializer.deserializeLog("log" + i)).thenReturn(errorLogs[i]);
+        }
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getLastErrorLogFile()).thenReturn(files[0]);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(files);
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        for (int i = 0; i < 2; i++)
+            when(ErrorLogHelper.getErrorReportFromErrorLog(errorLogs[i], null)).thenReturn(errorReports[i]);
+        when(ErrorLogHelper.getStackSignature(any(ManagedErrorLog.class))).thenReturn("same");
+        CrashesListener listener = mock(CrashesListener.class);
+        when(listener.shouldProcess(any(ErrorReport.class))).thenReturn(true);
+
+        /* Start. */
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(listener);
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", mock(Channel.class));
+
+        /* The last session report is the one sent, with both occurrences. */
+        verify(listener).shouldProcess(errorReports[1]);
+        verify(listener, never()).shouldProcess(errorReports[0]);
+        ErrorReport lastSessionReport = Crashes.getLastSessionCrashReport().get();
+        assertSame(errorReports[1], lastSessionReport);
+        assertEquals(2, lastSessionReport.getOccurrenceCount());
+        assertEquals(new Date(2000L), lastSessionReport.getLastAppErrorTime());
+    }
+
+    @Test
+    public void restoreOccurrencesAndDetectCrashLoop() throws JSONException, IOException, ClassNotFoundException {
+
+        /* A report collapsed in a previous session and a new occurrence. */
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(UUIDUtils.randomUUID());
+        errorLog.setToffset(1000L);
+        errorLog.setAppLaunchTOffset(0L);
+        ErrorReport errorReport = ErrorLogHelper.getErrorReportFromErrorLog(errorLog, null);
+        ManagedErrorLog newErrorLog = new ManagedErrorLog();
+        newErrorLog.setId(UUIDUtils.randomUUID());
+        newErrorLog.setToffset(5000L);
+        newErrorLog.setAppLaunchTOffset(0L);
+        ErrorReport newErrorReport = ErrorLogHelper.getErrorReportFromErrorLog(newErrorLog, null);
+        File file = mock(File.class);
+        File newFile = mock(File.class);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(StorageHelper.InternalStorage.read(file)).thenReturn("log");
+        when(StorageHelper.InternalStorage.read(newFile)).thenReturn("newLog");
+        when(logSerializer.deserializeLog("log")).thenReturn(errorLog);
+        when(logSerializer.deserializeLog("newLog")).thenReturn(newErrorLog);
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[]{newFile, file});
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        when(ErrorLogHelper.getErrorReportFromErrorLog(errorLog, null)).thenReturn(errorReport);
+        when(ErrorLogHelper.getErrorReportFromErrorLog(newErrorLog, null)).thenReturn(newErrorReport);
+        when(ErrorLogHelper.getStackSignature(any(ManagedErrorLog.class))).thenReturn("same");
+        when(StorageHelper.PreferencesStorage.getStringSet(Crashes.PREF_KEY_OCCURRENCES)).thenReturn(new HashSet<>(Arrays.asList(errorLog.getId() + "/2/3000", "invalid", UUIDUtils.randomUUID() + "/2/x")));
+        CrashesListener listener = mock(CrashesListener.class);
+
+        /* Start. */
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(listener);
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", mock(Channel.class));
+
+        /* 3 occurrences since the first one, reported once. */
+        verify(listener).shouldProcess(errorReport);
         verifyNoMoreInteractions(listener);
+        assertEquals(Crashes.CRASH_LOOP_THRESHOLD, errorReport.getOccurrenceCount());
+        assertEquals(new Date(5000L), errorReport.getLastAppErrorTime());
+        verifyStatic();
+        MobileCenterLog.warn(eq(Crashes.LOG_TAG), contains("Crash loop"));
+
+        /* The declined report is deleted along with its occurrences. */
+        verifyStatic();
+        ErrorLogHelper.removeStoredErrorLogFile(errorLog.getId());
+        verifyStatic();
+        StorageHelper.PreferencesStorage.remove(Crashes.PREF_KEY_OCCURRENCES);
+        verifyStatic(never());
+        StorageHelper.PreferencesStorage.putStringSet(eq(Crashes.PREF_KEY_OCCURRENCES), anySetOf(String.class));
+    }
+
+    @Test
+    public void trimPendingErrorLogs() {
+        File directory = errorStorageDirectory.getRoot();
+        File[] files = new File[Crashes.MAX_PENDING_ERROR_LOGS + 2];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = mock(File.class);
+            when(files[i].getName()).thenReturn(UUIDUtils.randomUUID() + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
+            when(files[i].getParentFile()).thenReturn(directory);
+            when(files[i].lastModified()).thenReturn(1000L + i);
+        }
+
+        /* Oldest file is not a report. */
+        when(files[0].getName()).thenReturn("invalid" + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(files);
+
+        /* Start. */
+        Crashes crashes = Crashes.getInstance();
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", mock(Channel.class));
+
+        /* The 2 oldest files are deleted without being read. */
+        for (int i = 0; i < files.length; i++) {
+            verifyStatic(i < 2 ? times(1) : never());
+            StorageHelper.InternalStorage.delete(files[i]);
+            verifyStatic(i < 2 ? never() : times(1));
+            StorageHelper.InternalStorage.read(files[i]);
+        }
+        String name = files[1].getName();
+        verifyStatic();
+        StorageHelper.InternalStorage.delete(new File(directory, name.replace(ErrorLogHelper.ERROR_LOG_FILE_EXTENSION, ErrorLogHelper.THROWABLE_FILE_EXTENSION)));
+        verifyStatic();
+        MobileCenterLog.warn(eq(Crashes.LOG_TAG), contains("Too many pending error logs"));
+    }
+
+    @Test
+    public void lastSessionCrashReportAvailableBeforeOtherPendingErrors() throws JSONException, IOException, ClassNotFoundException {
+
+        /* Keep background loads pending until the test runs them. */
+        final List<Runnable> tasks = new ArrayList<>();
+        when(ErrorLogLoader.getSharedExecutor()).thenReturn(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        /* 2 pending errors, last session error is the second file. */
+        ManagedErrorLog olderErrorLog = ErrorLogHelper.createErrorLog(mock(Context.class), Thread.currentThread(), new RuntimeException(), Thread.getAllStackTraces(), 0, true);
+        File olderErrorLogFile = mock(File.class);
+        File lastErrorLogFile = mock(File.class);
+        ErrorReport olderErrorReport = new ErrorReport();
+        ErrorReport lastErrorReport = new ErrorReport();
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getLastErrorLogFile()).thenReturn(lastErrorLogFile);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[]{olderErrorLogFile, lastErrorLogFile});
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        when(ErrorLogHelper.getErrorReportFromErrorLog(olderErrorLog, null)).thenReturn(olderErrorReport);
+        when(ErrorLogHelper.getErrorReportFromErrorLog(mErrorLog, null)).thenReturn(lastErrorReport);
+        when(StorageHelper.InternalStorage.read(olderErrorLogFile)).thenReturn("older");
+        when(StorageHelper.InternalStorage.read(lastErrorLogFile)).thenReturn("last");
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.deserializeLog("older")).thenReturn(olderErrorLog);
+        when(logSerializer.deserializeLog("last")).thenReturn(mErrorLog);
+        CrashesListener listener = mock(CrashesListener.class);
+
+        /* Start: nothing loaded yet. */
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(listener);
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", mock(Channel.class));
+        MobileCenterFuture<ErrorReport> future = Crashes.getLastSessionCrashReport();
+        assertFalse(future.isDone());
+
+        /* Each file is loaded once, last session first. */
+        assertEquals(2, tasks.size());
+        tasks.get(0).run();
+        assertSame(lastErrorReport, future.get());
+        assertTrue(Crashes.hasCrashedInLastSession().get());
+        verify(listener, never()).shouldProcess(any(ErrorReport.class));
+
+        /* Pending errors are processed in order once all are loaded. */
+        tasks.get(1).run();
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).shouldProcess(olderErrorReport);
+        inOrder.verify(listener).shouldProcess(lastErrorReport);
+        verifyStatic(times(1));
+        StorageHelper.InternalStorage.read(lastErrorLogFile);
     }
 
     @Test
@@ -1024,10 +1318,10 @@ public class CrashesTest {
         assertNull(Crashes.getLastSessionCrashReport().get());
 
         /*
-         * De-serializing fails twice: processing the log from last time as part of the bulk processing.
-         * And loading that same file for exposing it in getLastErrorReport.
+         * De-serializing fails only once: the file from last time is loaded once
+         * both for exposing it in getLastErrorReport and as part of the bulk processing.
          */
-        verifyStatic(times(2));
+        verifyStatic();
         MobileCenterLog.error(eq(Crashes.LOG_TAG), anyString(), eq(jsonException));
     }
 
@@ -1100,4 +1394,158 @@ public class CrashesTest {
         PowerMockito.verifyStatic();
         MobileCenterLog.warn(Crashes.LOG_TAG, expectedMessage);
     }
+
+    @Test
+    public void saveUncaughtExceptionWithCrashRecord() throws java.lang.Exception {
+        mockStatic(ErrorLogHelper.class);
+        File throwableFile = errorStorageDirectory.newFile();
+        CrashRecordWriter writer = mock(CrashRecordWriter.class);
+        when(writer.write(any(Thread.class), any(Throwable.class))).thenReturn(true);
+        Crashes crashes = Crashes.getInstance();
+        Whitebox.setInternalState(crashes, "mCrashRecordWriter", writer);
+        Whitebox.setInternalState(crashes, "mCrashRecordThrowableFile", throwableFile);
+
+        /* Only the first crash is saved, without building the error log. */
+        crashes.saveUncaughtException(Thread.currentThread(), EXCEPTION);
+        crashes.saveUncaughtException(Thread.currentThread(), EXCEPTION);
+        verify(writer).write(Thread.currentThread(), EXCEPTION);
+        verifyStatic();
+        StorageHelper.InternalStorage.writeObject(throwableFile, EXCEPTION);
+        verifyStatic(never());
+        ErrorLogHelper.createErrorLog(any(Context.class), any(Thread.class), any(com.microsoft.azure.mobile.crashes.ingestion.models.Exception.class), Matchers.<Map<Thread, StackTraceElement[]>>any(), anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void saveUncaughtExceptionWithCrashRecordAndNoMemoryForThrowable() throws java.lang.Exception {
+        mockStatic(ErrorLogHelper.class);
+        File throwableFile = errorStorageDirectory.newFile();
+        CrashRecordWriter writer = mock(CrashRecordWriter.class);
+        when(writer.write(any(Thread.class), any(Throwable.class))).thenReturn(true);
+        PowerMockito.doThrow(new OutOfMemoryError()).when(StorageHelper.InternalStorage.class);
+        StorageHelper.InternalStorage.writeObject(any(File.class), any(Throwable.class));
+        Crashes crashes = Crashes.getInstance();
+        Whitebox.setInternalState(crashes, "mCrashRecordWriter", writer);
+        Whitebox.setInternalState(crashes, "mCrashRecordThrowableFile", throwableFile);
+
+        /* The partial throwable is removed, the crash record is kept. */
+        crashes.saveUncaughtException(Thread.currentThread(), EXCEPTION);
+        verifyStatic();
+        StorageHelper.InternalStorage.delete(throwableFile);
+        verifyStatic(never());
+        ErrorLogHelper.createErrorLog(any(Context.class), any(Thread.class), any(com.microsoft.azure.mobile.crashes.ingestion.models.Exception.class), Matchers.<Map<Thread, StackTraceElement[]>>any(), anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void saveUncaughtExceptionWithCrashRecordSkipsVirtualMachineErrors() throws java.lang.Exception {
+        mockStatic(ErrorLogHelper.class);
+        File throwableFile = errorStorageDirectory.newFile();
+        CrashRecordWriter writer = mock(CrashRecordWriter.class);
+        when(writer.write(any(Thread.class), any(Throwable.class))).thenReturn(true);
+        Crashes crashes = Crashes.getInstance();
+        Whitebox.setInternalState(crashes, "mCrashRecordWriter", writer);
+        Whitebox.setInternalState(crashes, "mCrashRecordThrowableFile", throwableFile);
+
+        /* Out of memory, even as a cause, is not serialized: the crash record is enough. */
+        Throwable error = new RuntimeException(new OutOfMemoryError());
+        crashes.saveUncaughtException(Thread.currentThread(), error);
+        verify(writer).write(Thread.currentThread(), error);
+        verifyStatic(never());
+        StorageHelper.InternalStorage.writeObject(any(File.class), any(Throwable.class));
+        assertFalse(CrashRecordWriter.writeThrowable(throwableFile, new StackOverflowError()));
+        verifyStatic(never());
+        StorageHelper.InternalStorage.writeObject(any(File.class), any(Throwable.class));
+    }
+
+    @Test
+    public void saveUncaughtExceptionFallsBackWhenCrashRecordFails() throws java.lang.Exception {
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getErrorStorageDirectory()).thenReturn(errorStorageDirectory.getRoot());
+        when(ErrorLogHelper.createErrorLog(any(Context.class), any(Thread.class), any(com.microsoft.azure.mobile.crashes.ingestion.models.Exception.class), Matchers.<Map<Thread, StackTraceElement[]>>any(), anyLong(), anyBoolean())).thenReturn(mErrorLog);
+        CrashRecordWriter writer = mock(CrashRecordWriter.class);
+        when(writer.write(any(Thread.class), any(Throwable.class))).thenReturn(false);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(mErrorLog)).thenReturn("{}");
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        Whitebox.setInternalState(crashes, "mCrashRecordWriter", writer);
+
+        /* Error log is built and saved the regular way. */
+        crashes.saveUncaughtException(Thread.currentThread(), EXCEPTION);
+        verify(writer).write(Thread.currentThread(), EXCEPTION);
+        verifyStatic();
+        StorageHelper.InternalStorage.write(new File(errorStorageDirectory.getRoot(), mErrorLog.getId() + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION), "{}");
+        verifyStatic();
+        StorageHelper.InternalStorage.writeObject(new File(errorStorageDirectory.getRoot(), mErrorLog.getId() + ErrorLogHelper.THROWABLE_FILE_EXTENSION), EXCEPTION);
+    }
+
+    @Test
+    public void convertCrashRecordOnStart() throws java.lang.Exception {
+        File recordFile = errorStorageDirectory.newFile("crash-process.record");
+        FileWriter recordWriter = new FileWriter(recordFile);
+        recordWriter.write("record");
+        recordWriter.close();
+        File recordThrowableFile = errorStorageDirectory.newFile("crash-process.throwable");
+        FileWriter throwableWriter = new FileWriter(recordThrowableFile);
+        throwableWriter.write("throwable");
+        throwableWriter.close();
+        mockStatic(ErrorLogHelper.class);
+        mockStatic(CrashRecordReader.class);
+        when(ErrorLogHelper.getErrorStorageDirectory()).thenReturn(errorStorageDirectory.getRoot());
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[0]);
+        when(ErrorLogHelper.getCrashRecordFile(any(Context.class))).thenReturn(recordFile);
+        when(ErrorLogHelper.getCrashRecordThrowableFile(any(Context.class))).thenReturn(recordThrowableFile);
+        when(CrashRecordReader.read(recordFile)).thenReturn(mErrorLog);
+        CrashRecordWriter writer = mock(CrashRecordWriter.class);
+        PowerMockito.whenNew(CrashRecordWriter.class).withAnyArguments().thenReturn(writer);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(mErrorLog)).thenReturn("{}");
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", mock(Channel.class));
+
+        /* Record converted to error log, throwable renamed, then a new record prepared. */
+        verifyStatic();
+        StorageHelper.InternalStorage.write(new File(errorStorageDirectory.getRoot(), mErrorLog.getId() + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION), "{}");
+        assertTrue(new File(errorStorageDirectory.getRoot(), mErrorLog.getId() + ErrorLogHelper.THROWABLE_FILE_EXTENSION).exists());
+        verifyStatic();
+        StorageHelper.InternalStorage.delete(recordFile);
+        assertEquals(writer, Whitebox.getInternalState(crashes, "mCrashRecordWriter"));
+
+        /* Disabling releases the record. */
+        Crashes.setEnabled(false);
+        verify(writer).close();
+        assertNull(Whitebox.getInternalState(crashes, "mCrashRecordWriter"));
+    }
+
+    @Test
+    public void convertCorruptedCrashRecordOnStart() throws java.lang.Exception {
+        File recordFile = errorStorageDirectory.newFile("crash-process.record");
+        FileWriter recordWriter = new FileWriter(recordFile);
+        recordWriter.write("record");
+        recordWriter.close();
+        File recordThrowableFile = new File(errorStorageDirectory.getRoot(), "crash-process.throwable");
+        mockStatic(ErrorLogHelper.class);
+        mockStatic(CrashRecordReader.class);
+        when(ErrorLogHelper.getErrorStorageDirectory()).thenReturn(errorStorageDirectory.getRoot());
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[0]);
+        when(ErrorLogHelper.getCrashRecordFile(any(Context.class))).thenReturn(recordFile);
+        when(ErrorLogHelper.getCrashRecordThrowableFile(any(Context.class))).thenReturn(recordThrowableFile);
+        IOException exception = new IOException("Incomplete crash record.");
+        when(CrashRecordReader.read(recordFile)).thenThrow(exception);
+        PowerMockito.whenNew(CrashRecordWriter.class).withAnyArguments().thenThrow(new IOException());
+        Crashes crashes = Crashes.getInstance();
+        crashes.onStarting(mMobileCenterHandler);
+        crashes.onStarted(mock(Context.class), "", mock(Channel.class));
+
+        /* Record is discarded and the service still starts without a prepared record. */
+        verifyStatic();
+        MobileCenterLog.error(eq(Crashes.LOG_TAG), anyString(), eq(exception));
+        verifyStatic();
+        StorageHelper.InternalStorage.delete(recordFile);
+        verifyStatic(never());
+        StorageHelper.InternalStorage.write(any(File.class), anyString());
+        assertNull(Whitebox.getInternalState(crashes, "mCrashRecordWriter"));
+        assertTrue(Crashes.isEnabled().get());
+    }
 }
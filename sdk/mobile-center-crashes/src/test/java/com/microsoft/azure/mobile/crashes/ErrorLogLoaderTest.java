@@ -0,0 +1,219 @@
+package com.microsoft.azure.mobile.crashes;
+
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+
+@PrepareForTest({ErrorLogHelper.class, StorageHelper.InternalStorage.class, MobileCenterLog.class})
+public class ErrorLogLoaderTest {
+
+    @Rule
+    public PowerMockRule rule = new PowerMockRule();
+
+    private final List<Runnable> mTasks = new ArrayList<>();
+
+    private LogSerializer mLogSerializer;
+
+    private ErrorLogLoader mLoader;
+
+    @Before
+    public void setUp() {
+        mockStatic(ErrorLogHelper.class);
+        mockStatic(StorageHelper.InternalStorage.class);
+        mockStatic(MobileCenterLog.class);
+        mLogSerializer = mock(LogSerializer.class);
+        mLoader = new ErrorLogLoader(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                mTasks.add(command);
+            }
+        }, mLogSerializer);
+    }
+
+    private ErrorLogLoader.LoadedErrorLog load(File file) {
+        ErrorLogLoader.Listener listener = mock(ErrorLogLoader.Listener.class);
+        mLoader.load(file, listener);
+        mTasks.remove(0).run();
+        ArgumentCaptor<ErrorLogLoader.LoadedErrorLog> captor = ArgumentCaptor.forClass(ErrorLogLoader.LoadedErrorLog.class);
+        verify(listener).onLoaded(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void sharedExecutor() {
+        assertSame(ErrorLogLoader.getSharedExecutor(), ErrorLogLoader.getSharedExecutor());
+    }
+
+    @Test
+    public void boundedAndNamed() throws Exception {
+        ThreadPoolExecutor executor = ErrorLogLoader.newExecutor();
+        final Semaphore blocker = new Semaphore(0);
+        final Semaphore started = new Semaphore(0);
+        final String[] threadName = new String[1];
+        Runnable blockingTask = new Runnable() {
+
+            @Override
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                started.release();
+                blocker.acquireUninterruptibly();
+            }
+        };
+        for (int i = 0; i < ErrorLogLoader.POOL_SIZE + 1; i++)
+            executor.execute(blockingTask);
+        started.acquireUninterruptibly(ErrorLogLoader.POOL_SIZE);
+        assertTrue(threadName[0].startsWith(ErrorLogLoader.THREAD_NAME_PREFIX));
+        assertEquals(ErrorLogLoader.POOL_SIZE, executor.getPoolSize());
+        assertEquals(1, executor.getQueue().size());
+        blocker.release(ErrorLogLoader.POOL_SIZE + 1);
+        executor.shutdown();
+    }
+
+    @Test
+    public void loadOncePerFile() throws Exception {
+        File file = mock(File.class);
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(UUID.randomUUID());
+        File throwableFile = mock(File.class);
+        when(throwableFile.length()).thenReturn(1L);
+        RuntimeException throwable = new RuntimeException();
+        when(StorageHelper.InternalStorage.read(file)).thenReturn("{}");
+        when(mLogSerializer.deserializeLog("{}")).thenReturn(errorLog);
+        when(ErrorLogHelper.getStoredThrowableFile(errorLog.getId())).thenReturn(throwableFile);
+        when(StorageHelper.InternalStorage.readObject(throwableFile)).thenReturn(throwable);
+
+        /* Listeners waiting for the same file share a single load. */
+        ErrorLogLoader.Listener listener1 = mock(ErrorLogLoader.Listener.class);
+        ErrorLogLoader.Listener listener2 = mock(ErrorLogLoader.Listener.class);
+        mLoader.load(file, listener1);
+        mLoader.load(file, listener2);
+        assertEquals(1, mTasks.size());
+        verify(listener1, never()).onLoaded(any(ErrorLogLoader.LoadedErrorLog.class));
+        mTasks.remove(0).run();
+        ArgumentCaptor<ErrorLogLoader.LoadedErrorLog> captor = ArgumentCaptor.forClass(ErrorLogLoader.LoadedErrorLog.class);
+        verify(listener1).onLoaded(captor.capture());
+        ErrorLogLoader.LoadedErrorLog result = captor.getValue();
+        verify(listener2).onLoaded(result);
+        assertSame(file, result.file);
+        assertSame(errorLog, result.log);
+        assertSame(throwable, result.throwable);
+        assertTrue(result.throwableLoaded);
+
+        /* A listener added once loaded is called right away. */
+        ErrorLogLoader.Listener listener3 = mock(ErrorLogLoader.Listener.class);
+        mLoader.load(file, listener3);
+        verify(listener3).onLoaded(result);
+        assertTrue(mTasks.isEmpty());
+        verifyStatic();
+        StorageHelper.InternalStorage.read(file);
+
+        /* Clearing loads the file again. */
+        mLoader.clear();
+        mLoader.load(file, listener3);
+        assertEquals(1, mTasks.size());
+    }
+
+    @Test
+    public void emptyThrowableFile() throws Exception {
+        File file = mock(File.class);
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(UUID.randomUUID());
+        when(StorageHelper.InternalStorage.read(file)).thenReturn("{}");
+        when(mLogSerializer.deserializeLog("{}")).thenReturn(errorLog);
+        when(ErrorLogHelper.getStoredThrowableFile(errorLog.getId())).thenReturn(mock(File.class));
+        ErrorLogLoader.LoadedErrorLog result = load(file);
+        assertSame(errorLog, result.log);
+        assertNull(result.throwable);
+        assertTrue(result.throwableLoaded);
+        verifyStatic(never());
+        StorageHelper.InternalStorage.readObject(any(File.class));
+    }
+
+    @Test
+    public void readError() {
+        ErrorLogLoader.LoadedErrorLog result = load(mock(File.class));
+        assertNull(result.log);
+        assertFalse(result.throwableLoaded);
+    }
+
+    @Test
+    public void parseError() throws Exception {
+        File file = mock(File.class);
+        JSONException exception = new JSONException("mock");
+        when(StorageHelper.InternalStorage.read(file)).thenReturn("{");
+        when(mLogSerializer.deserializeLog(anyString())).thenThrow(exception);
+        ErrorLogLoader.LoadedErrorLog result = load(file);
+        assertNull(result.log);
+        assertFalse(result.throwableLoaded);
+        verifyStatic();
+        MobileCenterLog.error(eq(Crashes.LOG_TAG), anyString(), eq(exception));
+    }
+
+    @Test
+    public void throwableErrors() throws Exception {
+        File file = mock(File.class);
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(UUID.randomUUID());
+        File throwableFile = mock(File.class);
+        when(throwableFile.length()).thenReturn(1L);
+        when(StorageHelper.InternalStorage.read(file)).thenReturn("{}");
+        when(mLogSerializer.deserializeLog("{}")).thenReturn(errorLog);
+
+        /* No throwable file. */
+        ErrorLogLoader.LoadedErrorLog result = load(file);
+        assertSame(errorLog, result.log);
+        assertFalse(result.throwableLoaded);
+
+        /* Throwable cannot be read. */
+        when(ErrorLogHelper.getStoredThrowableFile(errorLog.getId())).thenReturn(throwableFile);
+        ClassNotFoundException classNotFoundException = new ClassNotFoundException();
+        IOException ioException = new IOException();
+        when(StorageHelper.InternalStorage.readObject(throwableFile)).thenThrow(classNotFoundException).thenThrow(ioException);
+        mLoader.clear();
+        result = load(file);
+        assertSame(errorLog, result.log);
+        assertFalse(result.throwableLoaded);
+        mLoader.clear();
+        result = load(file);
+        assertFalse(result.throwableLoaded);
+        verifyStatic();
+        MobileCenterLog.error(eq(Crashes.LOG_TAG), anyString(), eq(classNotFoundException));
+        verifyStatic();
+        MobileCenterLog.error(eq(Crashes.LOG_TAG), anyString(), eq(ioException));
+    }
+}
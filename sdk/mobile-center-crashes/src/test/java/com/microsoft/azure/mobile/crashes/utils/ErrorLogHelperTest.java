@@ -29,9 +29,11 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -215,6 +217,76 @@ public class ErrorLogHelperTest {
         assertEquals(errorLog.getToffset() - errorLog.getAppLaunchTOffset(), report.getAppStartTime().getTime());
         assertEquals(errorLog.getToffset(), report.getAppErrorTime().getTime());
         assertEquals(errorLog.getDevice(), report.getDevice());
+        assertEquals(1, report.getOccurrenceCount());
+        assertEquals(report.getAppErrorTime(), report.getLastAppErrorTime());
+    }
+
+    @Test
+    public void getStackSignature() {
+
+        /* No exception. */
+        assertNull(ErrorLogHelper.getStackSignature(new ManagedErrorLog()));
+
+        /* Same crash with different messages. */
+        StackTraceElement[] stackTrace = {
+                new StackTraceElement("com.example.Main", "onCreate", "Main.java", 10),
+                new StackTraceElement("android.app.Activity", "performCreate", "Activity.java", 100)
+        };
+        RuntimeException exception1 = new RuntimeException("user 1");
+        exception1.setStackTrace(stackTrace);
+        RuntimeException exception2 = new RuntimeException("user 2");
+        exception2.setStackTrace(stackTrace);
+        String signature = getStackSignature(exception1);
+        assertNotNull(signature);
+        assertEquals(signature, getStackSignature(exception2));
+
+        /* Different exception type. */
+        IllegalStateException exception3 = new IllegalStateException("user 1");
+        exception3.setStackTrace(stackTrace);
+        assertNotEquals(signature, getStackSignature(exception3));
+
+        /* Different line. */
+        RuntimeException exception4 = new RuntimeException("user 1");
+        exception4.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Main", "onCreate", "Main.java", 11),
+                stackTrace[1]
+        });
+        assertNotEquals(signature, getStackSignature(exception4));
+
+        /* Different cause. */
+        RuntimeException exception5 = new RuntimeException("user 1", new IllegalArgumentException());
+        exception5.setStackTrace(stackTrace);
+        assertNotEquals(signature, getStackSignature(exception5));
+
+        /* Same crash in another application version. */
+        ManagedErrorLog versionLog = new ManagedErrorLog();
+        versionLog.setException(ErrorLogHelper.getModelExceptionFromThrowable(exception1));
+        Device device = new Device();
+        device.setAppVersion("1.0");
+        device.setAppBuild("1");
+        versionLog.setDevice(device);
+        String versionSignature = ErrorLogHelper.getStackSignature(versionLog);
+        assertNotEquals(signature, versionSignature);
+        device.setAppBuild("2");
+        assertNotEquals(versionSignature, ErrorLogHelper.getStackSignature(versionLog));
+        device.setAppBuild("1");
+        assertEquals(versionSignature, ErrorLogHelper.getStackSignature(versionLog));
+
+        /* Raw stack trace from wrapper SDK. */
+        Exception wrapperException = new Exception();
+        wrapperException.setType("System.Exception");
+        wrapperException.setStackTrace("at Program.Main()");
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setException(wrapperException);
+        String wrapperSignature = ErrorLogHelper.getStackSignature(errorLog);
+        wrapperException.setStackTrace("at Program.Other()");
+        assertNotEquals(wrapperSignature, ErrorLogHelper.getStackSignature(errorLog));
+    }
+
+    private static String getStackSignature(Throwable throwable) {
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setException(ErrorLogHelper.getModelExceptionFromThrowable(throwable));
+        return ErrorLogHelper.getStackSignature(errorLog);
     }
 
     @Test
@@ -237,4 +309,31 @@ public class ErrorLogHelperTest {
         /* Clean up. */
         ErrorLogHelper.setErrorLogDirectory(null);
     }
+
+    @Test
+    public void crashRecordFilesArePerProcess() {
+
+        /* Mock process name. */
+        Context mockContext = mock(Context.class);
+        when(Process.myPid()).thenReturn(123);
+        ActivityManager activityManager = mock(ActivityManager.class);
+        RunningAppProcessInfo runningAppProcessInfo = new RunningAppProcessInfo(null, 0, null);
+        runningAppProcessInfo.pid = 123;
+        runningAppProcessInfo.processName = "com.app:remote";
+        when(mockContext.getSystemService(Context.ACTIVITY_SERVICE)).thenReturn(activityManager);
+        when(activityManager.getRunningAppProcesses()).thenReturn(Collections.singletonList(runningAppProcessInfo));
+        File errorLogDirectory = new File("errors");
+        ErrorLogHelper.setErrorLogDirectory(errorLogDirectory);
+
+        /* Files are named after the process. */
+        assertEquals(new File(errorLogDirectory, "crash-com.app_remote.record"), ErrorLogHelper.getCrashRecordFile(mockContext));
+        assertEquals(new File(errorLogDirectory, "crash-com.app_remote.throwable"), ErrorLogHelper.getCrashRecordThrowableFile(mockContext));
+
+        /* Process identifier is used when the name is unknown. */
+        when(activityManager.getRunningAppProcesses()).thenReturn(Collections.<RunningAppProcessInfo>emptyList());
+        assertEquals(new File(errorLogDirectory, "crash-123.record"), ErrorLogHelper.getCrashRecordFile(mockContext));
+
+        /* Clean up. */
+        ErrorLogHelper.setErrorLogDirectory(null);
+    }
 }
@@ -49,6 +49,22 @@ public class LogSerializerAndroidTest {
         Assert.assertEquals(expectedContainer.hashCode(), actualContainer.hashCode());
     }
 
+    @Test
+    public void rawLogs() throws JSONException {
+        LogContainer expectedContainer = AndroidTestUtils.generateMockLogContainer();
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        List<String> rawLogs = new ArrayList<>();
+        for (Log log : expectedContainer.getLogs())
+            rawLogs.add(serializer.serializeLog(log));
+        LogContainer rawContainer = new LogContainer();
+        rawContainer.setRawLogs(rawLogs);
+        String payload = serializer.serializeContainer(rawContainer);
+        android.util.Log.v(TAG, payload);
+        LogContainer actualContainer = serializer.deserializeContainer(payload);
+        Assert.assertEquals(expectedContainer, actualContainer);
+    }
+
     @Test(expected = JSONException.class)
     public void deserializeUnknownType() throws JSONException {
         MockLog log = AndroidTestUtils.generateMockLog();
@@ -1,6 +1,7 @@
 package com.microsoft.azure.mobile.persistence;
 
 import android.annotation.SuppressLint;
+import android.content.ContentValues;
 import android.content.Context;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.MediumTest;
@@ -29,6 +30,7 @@ import java.util.Map;
 
 import static com.microsoft.azure.mobile.ingestion.models.json.MockLog.MOCK_LOG_TYPE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -109,6 +111,111 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void putLogsShareDeviceSnapshot() throws PersistenceException, IOException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "putLogsShareDeviceSnapshot", 1);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Generate logs with the same device and persist. */
+            Log firstLog = AndroidTestUtils.generateMockLog();
+            Log secondLog = AndroidTestUtils.generateMockLog();
+            secondLog.setDevice(firstLog.getDevice());
+            persistence.putLog("test-p1", firstLog);
+            persistence.putLog("test-p1", secondLog);
+            persistence.flush();
+
+            /* Device is stored once and logs only reference it. */
+            assertEquals(1, persistence.mDevicesStorage.size());
+            DatabaseScanner scanner = persistence.mDatabaseStorage.getScanner();
+            for (ContentValues values : scanner) {
+                String payload = values.getAsString(DatabasePersistence.COLUMN_LOG);
+                assertNotNull(values.getAsString(DatabasePersistence.COLUMN_LOG_DEVICE_HASH));
+                assertFalse(payload.contains("\"device\":"));
+            }
+            scanner.close();
+
+            /* Logs are restored with their device. */
+            List<Log> outputLogs = new ArrayList<>();
+            List<String> outputPayloads = new ArrayList<>();
+            persistence.getLogs("test-p1", 2, outputLogs, outputPayloads);
+            assertEquals(firstLog, outputLogs.get(0));
+            assertEquals(secondLog, outputLogs.get(1));
+            assertEquals(firstLog, logSerializer.deserializeLog(outputPayloads.get(0)));
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+
+        /* A new instance finds the stored device snapshot. */
+        persistence = new DatabasePersistence("test-persistence", "putLogsShareDeviceSnapshot", 1);
+        persistence.setLogSerializer(logSerializer);
+        try {
+            Log log = AndroidTestUtils.generateMockLog();
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", 2, outputLogs);
+            log.setDevice(outputLogs.get(0).getDevice());
+            persistence.putLog("test-p1", log);
+            persistence.flush();
+            assertEquals(1, persistence.mDevicesStorage.size());
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void deleteUnreferencedDeviceSnapshots() throws PersistenceException, IOException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "deleteUnreferencedDeviceSnapshots", 1);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Generate more logs than the device snapshot limit, each with a different device. */
+            int logCount = DatabasePersistence.MAX_DEVICES + 2;
+            List<Log> logs = new ArrayList<>();
+            for (int i = 0; i < logCount; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                logs.add(log);
+                persistence.putLog("test-p1", log);
+            }
+            persistence.flush();
+            assertEquals(logCount, persistence.mDevicesStorage.size());
+
+            /* Deleting the oldest log deletes only its snapshot. */
+            List<Log> outputLogs = new ArrayList<>();
+            String id = persistence.getLogs("test-p1", 1, outputLogs);
+            persistence.deleteLogs("test-p1", id);
+            assertEquals(logCount - 1, persistence.mDevicesStorage.size());
+
+            /* Other logs keep their device. */
+            outputLogs.clear();
+            persistence.getLogs("test-p1", logCount, outputLogs);
+            assertEquals(logs.subList(1, logCount), outputLogs);
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
     @Test
     public void putTooManyLogs() throws PersistenceException, IOException {
 
@@ -293,9 +400,9 @@ public class DatabasePersistenceAndroidTest {
             persistence.getLogs("test-p3", 5, outputLogs);
 
             /* Verify. */
-            Map<String, List<Long>> pendingGroups = persistence.mPendingDbIdentifiersGroups;
-            assertNull(pendingGroups.get("test-p1" + id1));
-            assertEquals(1, pendingGroups.get("test-p2" + id2).size());
+            Map<String, Map<String, long[]>> pendingGroups = persistence.mPendingDbIdentifiersGroups;
+            assertNull(pendingGroups.get("test-p1"));
+            assertEquals(1, pendingGroups.get("test-p2").get(id2).length);
             assertEquals(1, pendingGroups.size());
             assertEquals(0, outputLogs.size());
             assertEquals(1, persistence.mDatabaseStorage.size());
@@ -0,0 +1,204 @@
+package com.microsoft.azure.mobile.utils.storage;
+
+import android.annotation.SuppressLint;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link DatabaseManager} with the untuned SQLite usage it replaced:
+ * default rollback journal with full sync, {@link ContentValues} inserts and uncompiled deletes and counts.
+ * Results are printed in logcat with the {@link #TAG} tag.
+ */
+@SuppressWarnings("unused")
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class DatabaseManagerBenchmarkAndroidTest {
+
+    /**
+     * Log tag.
+     */
+    private static final String TAG = "DatabaseBenchmark";
+
+    /**
+     * Database name for the tuned storage.
+     */
+    private static final String TUNED_DATABASE = "test-benchmark-tuned";
+
+    /**
+     * Database name for the baseline.
+     */
+    private static final String BASELINE_DATABASE = "test-benchmark-baseline";
+
+    /**
+     * Table name.
+     */
+    private static final String TABLE = "logs";
+
+    /**
+     * Number of rows per run.
+     */
+    private static final int ROW_COUNT = 1000;
+
+    /**
+     * Number of rows read per batch.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Context instance.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private static Context sContext;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getTargetContext();
+        cleanUp();
+    }
+
+    @After
+    public void tearDown() {
+        cleanUp();
+    }
+
+    private static void cleanUp() {
+        sContext.deleteDatabase(TUNED_DATABASE);
+        sContext.deleteDatabase(BASELINE_DATABASE);
+    }
+
+    private static ContentValues generateValues(int index) {
+        char[] payload = new char[1024];
+        Arrays.fill(payload, 'x');
+        ContentValues values = new ContentValues();
+        values.put("persistence_group", "group" + index % 2);
+        values.put("log", new String(payload));
+        return values;
+    }
+
+    private static void report(String operation, long baseline, long tuned) {
+        Log.i(TAG, operation + ": baseline=" + baseline + "ms tuned=" + tuned + "ms");
+    }
+
+    @Test
+    public void insertsBatchReadsAndDeletes() throws IOException {
+
+        /* Tuned storage. */
+        DatabaseManager databaseManager = new DatabaseManager(sContext, TUNED_DATABASE, TABLE, 1, generateValues(0), null);
+        Cursor journalMode = databaseManager.getDatabase().rawQuery("PRAGMA journal_mode", null);
+        journalMode.moveToFirst();
+        assertEquals("wal", journalMode.getString(0).toLowerCase());
+        journalMode.close();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROW_COUNT; i++)
+            databaseManager.put(generateValues(i));
+        long tunedInsert = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < ROW_COUNT / BATCH_SIZE; i++) {
+            DatabaseManager.Scanner scanner = databaseManager.getScanner("persistence_group", "group" + i % 2, null, BATCH_SIZE);
+            for (ContentValues values : scanner)
+                ids.add(values.getAsLong(DatabaseManager.PRIMARY_KEY));
+            scanner.close();
+            databaseManager.getRowCount();
+        }
+        long tunedRead = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        for (Long id : ids)
+            databaseManager.delete(id);
+        long tunedDelete = SystemClock.elapsedRealtime() - start;
+        assertEquals(0, databaseManager.getRowCount());
+        databaseManager.close();
+
+        /* Baseline. */
+        SQLiteDatabase database = sContext.openOrCreateDatabase(BASELINE_DATABASE, Context.MODE_PRIVATE, null);
+        database.rawQuery("PRAGMA journal_mode = DELETE", null).close();
+        database.execSQL("PRAGMA synchronous = FULL");
+        database.execSQL("CREATE TABLE `" + TABLE + "` (oid INTEGER PRIMARY KEY AUTOINCREMENT, `persistence_group` TEXT, `log` TEXT)");
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROW_COUNT; i++)
+            database.insertOrThrow(TABLE, null, generateValues(i));
+        long baselineInsert = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        ids.clear();
+        for (int i = 0; i < ROW_COUNT / BATCH_SIZE; i++) {
+            Cursor cursor = database.query(TABLE, null, "persistence_group = ?", new String[]{"group" + i % 2}, null, null, "oid", String.valueOf(BATCH_SIZE));
+            while (cursor.moveToNext())
+                ids.add(cursor.getLong(0));
+            cursor.close();
+            DatabaseUtils.queryNumEntries(database, TABLE);
+        }
+        long baselineRead = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        for (Long id : ids)
+            database.delete(TABLE, "oid = ?", new String[]{String.valueOf(id)});
+        long baselineDelete = SystemClock.elapsedRealtime() - start;
+        database.close();
+
+        /* Report. */
+        report("insert " + ROW_COUNT, baselineInsert, tunedInsert);
+        report("read " + ROW_COUNT / BATCH_SIZE + " batches", baselineRead, tunedRead);
+        report("delete " + ROW_COUNT, baselineDelete, tunedDelete);
+    }
+
+    @Test
+    public void insertsDuringBatchRead() throws Exception {
+
+        /* Fill the table. */
+        final DatabaseManager databaseManager = new DatabaseManager(sContext, TUNED_DATABASE, TABLE, 1, generateValues(0), null);
+        List<ContentValues> valuesList = new ArrayList<>();
+        for (int i = 0; i < ROW_COUNT; i++)
+            valuesList.add(generateValues(i));
+        databaseManager.put(valuesList);
+
+        /* Scan the whole table continuously on another thread while inserting. */
+        final SQLiteDatabase database = databaseManager.getDatabase();
+        final AtomicBoolean reading = new AtomicBoolean(true);
+        final Semaphore readingSemaphore = new Semaphore(0);
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                while (reading.get()) {
+                    Cursor cursor = database.rawQuery("SELECT * FROM `" + TABLE + "`", null);
+                    while (cursor.moveToNext())
+                        if (readingSemaphore.availablePermits() == 0)
+                            readingSemaphore.release();
+                    cursor.close();
+                }
+            }
+        };
+        reader.start();
+        readingSemaphore.acquireUninterruptibly();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < BATCH_SIZE; i++)
+            databaseManager.put(generateValues(i));
+        long insertDuringRead = SystemClock.elapsedRealtime() - start;
+        reading.set(false);
+        reader.join();
+        Log.i(TAG, "insert " + BATCH_SIZE + " during batch reads: " + insertDuringRead + "ms");
+        assertEquals(ROW_COUNT + BATCH_SIZE, databaseManager.getRowCount());
+        databaseManager.close();
+    }
+}
@@ -521,6 +521,7 @@ public class StorageHelperAndroidTest {
         try {
             /* Database will always create a column for identifiers so default length of all tables is 1. */
             assertEquals(2, databaseStorage.getColumnNames().length);
+            databaseStorage.put(oldVersionValue);
         } finally {
             /* Close. */
             //noinspection ThrowFromFinallyBlock
@@ -536,7 +537,13 @@ public class StorageHelperAndroidTest {
         });
 
         try {
+
+            /* Upgrade adds the new columns and keeps the old rows. */
             assertEquals(11, databaseStorage.getColumnNames().length);
+            assertEquals(1, databaseStorage.size());
+            ContentValues values = databaseStorage.get("COL_STRING", "Hello World");
+            assertNotNull(values);
+            assertNull(values.get("COL_INTEGER"));
         } finally {
             /* Close. */
             //noinspection ThrowFromFinallyBlock
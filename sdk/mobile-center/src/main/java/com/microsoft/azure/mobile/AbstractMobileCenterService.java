@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.GroupPriority;
 import com.microsoft.azure.mobile.ingestion.models.json.LogFactory;
 import com.microsoft.azure.mobile.utils.HandlerUtils;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
@@ -138,7 +139,7 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
 
             /* Register service to channel on enabling. */
             if (enabled) {
-                mChannel.addGroup(groupName, getTriggerCount(), getTriggerInterval(), getTriggerMaxParallelRequests(), getChannelListener());
+                mChannel.addGroup(groupName, getTriggerCount(), getTriggerInterval(), getTriggerMaxParallelRequests(), getTriggerPriority(), getChannelListener());
             }
 
             /* Otherwise, clear all persisted logs and remove a group for the service. */
@@ -180,7 +181,7 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
 
             /* Add a group to the channel if the service is enabled */
             if (enabled)
-                channel.addGroup(groupName, getTriggerCount(), getTriggerInterval(), getTriggerMaxParallelRequests(), getChannelListener());
+                channel.addGroup(groupName, getTriggerCount(), getTriggerInterval(), getTriggerMaxParallelRequests(), getTriggerPriority(), getChannelListener());
 
             /* Otherwise, clear all persisted logs for the service. */
             else
@@ -246,6 +247,16 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
         return DEFAULT_TRIGGER_MAX_PARALLEL_REQUESTS;
     }
 
+    /**
+     * Gets the priority class of the group, higher priority groups are sent first.
+     *
+     * @return A priority class.
+     */
+    @GroupPriority
+    protected int getTriggerPriority() {
+        return GroupPriority.NORMAL;
+    }
+
     /**
      * Gets a listener which will be called when channel completes synchronization.
      *
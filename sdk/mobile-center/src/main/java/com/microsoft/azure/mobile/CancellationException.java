@@ -8,4 +8,8 @@ public class CancellationException extends Exception {
     public CancellationException() {
         super("Request cancelled because Channel is disabled.");
     }
+
+    public CancellationException(String message) {
+        super(message);
+    }
 }
@@ -11,6 +11,7 @@ import android.support.annotation.WorkerThread;
 import android.util.Log;
 
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.ChannelMetrics;
 import com.microsoft.azure.mobile.channel.DefaultChannel;
 import com.microsoft.azure.mobile.ingestion.models.CustomPropertiesLog;
 import com.microsoft.azure.mobile.ingestion.models.StartServiceLog;
@@ -271,6 +272,19 @@ public class MobileCenter {
         return getInstance().getInstanceInstallId();
     }
 
+    /**
+     * Get a live view of the SDK pipeline health, meant to be polled and forwarded to the application telemetry:
+     * pending and in-flight logs per service, delivery latency, request status, size and retries,
+     * dropped, expired and evicted logs, and storage operation timings.
+     * The same view is returned each time and reading its counters does not block nor allocate.
+     *
+     * @return future with result being the metrics, <code>null</code> if the SDK is not configured.
+     * @see MobileCenterFuture
+     */
+    public static MobileCenterFuture<ChannelMetrics> getMetrics() {
+        return getInstance().getInstanceMetrics();
+    }
+
     /**
      * Check whether the SDK is ready for use or not.
      *
@@ -692,6 +706,28 @@ public class MobileCenter {
         return future;
     }
 
+    /**
+     * Implements {@link #getMetrics()}.
+     */
+    private synchronized MobileCenterFuture<ChannelMetrics> getInstanceMetrics() {
+        final DefaultMobileCenterFuture<ChannelMetrics> future = new DefaultMobileCenterFuture<>();
+        if (checkPrecondition()) {
+
+            /* Metrics remain available while disabled. */
+            Runnable runnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    future.complete(mChannel.getMetrics());
+                }
+            };
+            mMobileCenterHandler.post(runnable, runnable);
+        } else {
+            future.complete(null);
+        }
+        return future;
+    }
+
     @VisibleForTesting
     Set<MobileCenterService> getServices() {
         return mServices;
@@ -0,0 +1,237 @@
+package com.microsoft.azure.mobile.channel;
+
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Computes the batch size and batch interval of a channel group from network conditions.
+ * Values start from the ones the group was added with and stay within the group bounds.
+ */
+class AdaptiveBatchPolicy {
+
+    /**
+     * Default ratio between the bounds and the values a group was added with.
+     */
+    @VisibleForTesting
+    static final int DEFAULT_BOUNDS_FACTOR = 4;
+
+    /**
+     * Request latency in ms under which the network is considered fast.
+     */
+    @VisibleForTesting
+    static final long FAST_LATENCY = 500;
+
+    /**
+     * Request latency in ms over which the network is considered slow.
+     */
+    @VisibleForTesting
+    static final long SLOW_LATENCY = 2000;
+
+    /**
+     * Upload throughput in bytes per second under which a request that is not fast is considered slow.
+     */
+    @VisibleForTesting
+    static final long SLOW_THROUGHPUT = 8 * 1024;
+
+    /**
+     * Number of batches of backlog from which batches are grown to catch up.
+     */
+    @VisibleForTesting
+    static final int BACKLOG_BATCHES = 10;
+
+    /**
+     * Weight of a new sample in the moving averages of latency and throughput.
+     */
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    /**
+     * Batch size the group was added with.
+     */
+    private final int mBaseLogsPerBatch;
+
+    /**
+     * Batch interval the group was added with, in ms.
+     */
+    private final long mBaseBatchTimeInterval;
+
+    /**
+     * Minimum batch size.
+     */
+    private int mMinLogsPerBatch;
+
+    /**
+     * Maximum batch size.
+     */
+    private int mMaxLogsPerBatch;
+
+    /**
+     * Minimum batch interval in ms.
+     */
+    private long mMinBatchTimeInterval;
+
+    /**
+     * Maximum batch interval in ms.
+     */
+    private long mMaxBatchTimeInterval;
+
+    /**
+     * Is the current network metered.
+     */
+    private boolean mNetworkMetered;
+
+    /**
+     * Is the current network type a slow one.
+     */
+    private boolean mNetworkSlow;
+
+    /**
+     * Is the application in background.
+     */
+    private boolean mBackground;
+
+    /**
+     * Moving average of request latency in ms, negative until a request completes.
+     */
+    private double mLatency = -1;
+
+    /**
+     * Moving average of upload throughput in bytes per second, negative until a request completes.
+     */
+    private double mThroughput = -1;
+
+    /**
+     * Init.
+     *
+     * @param logsPerBatch      batch size the group was added with.
+     * @param batchTimeInterval batch interval the group was added with, in ms.
+     */
+    AdaptiveBatchPolicy(int logsPerBatch, long batchTimeInterval) {
+        mBaseLogsPerBatch = logsPerBatch;
+        mBaseBatchTimeInterval = batchTimeInterval;
+        setBounds(logsPerBatch, logsPerBatch * DEFAULT_BOUNDS_FACTOR, batchTimeInterval / DEFAULT_BOUNDS_FACTOR, batchTimeInterval * DEFAULT_BOUNDS_FACTOR);
+    }
+
+    /**
+     * Clamp a value between bounds.
+     */
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Update an exponential moving average.
+     */
+    private static double smooth(double average, double sample) {
+        return average < 0 ? sample : average + SMOOTHING_FACTOR * (sample - average);
+    }
+
+    /**
+     * Set the bounds the batch size and interval can be adapted within.
+     *
+     * @param minLogsPerBatch      minimum batch size.
+     * @param maxLogsPerBatch      maximum batch size.
+     * @param minBatchTimeInterval minimum batch interval in ms.
+     * @param maxBatchTimeInterval maximum batch interval in ms.
+     */
+    void setBounds(int minLogsPerBatch, int maxLogsPerBatch, long minBatchTimeInterval, long maxBatchTimeInterval) {
+        mMinLogsPerBatch = Math.max(1, minLogsPerBatch);
+        mMaxLogsPerBatch = Math.max(mMinLogsPerBatch, maxLogsPerBatch);
+        mMinBatchTimeInterval = Math.max(0, minBatchTimeInterval);
+        mMaxBatchTimeInterval = Math.max(mMinBatchTimeInterval, maxBatchTimeInterval);
+    }
+
+    /**
+     * Update the current network type.
+     *
+     * @param metered true if the network is metered.
+     * @param slow    true if the network type is a slow one.
+     */
+    void setNetwork(boolean metered, boolean slow) {
+        mNetworkMetered = metered;
+        mNetworkSlow = slow;
+    }
+
+    /**
+     * Update the application background state.
+     *
+     * @param background true if the application is in background.
+     */
+    void setBackground(boolean background) {
+        mBackground = background;
+    }
+
+    /**
+     * Record a completed request.
+     *
+     * @param latency request latency in ms.
+     * @param bytes   request payload size in bytes.
+     */
+    void onBatchSent(long latency, long bytes) {
+        mLatency = smooth(mLatency, latency);
+        if (latency > 0)
+            mThroughput = smooth(mThroughput, bytes * 1000.0 / latency);
+    }
+
+    /**
+     * Check whether the observed requests are slow.
+     *
+     * @return true if slow, false if fast or unknown.
+     */
+    private boolean isTransferSlow() {
+        return mLatency > SLOW_LATENCY || (mLatency > FAST_LATENCY && mThroughput >= 0 && mThroughput < SLOW_THROUGHPUT);
+    }
+
+    /**
+     * Check whether the observed requests are fast.
+     *
+     * @return true if fast, false if slow or unknown until a request with a measurable duration completes.
+     */
+    private boolean isTransferFast() {
+        return mThroughput >= 0 && mLatency < FAST_LATENCY;
+    }
+
+    /**
+     * Get the factor to apply to the values the group was added with.
+     * Metered and slow networks each double it to send fewer, larger requests.
+     *
+     * @return factor, 1 on a fast unmetered network.
+     */
+    private int getGrowthFactor() {
+        int factor = 1;
+        if (mNetworkMetered)
+            factor *= 2;
+        if (mNetworkSlow || isTransferSlow())
+            factor *= 2;
+        return factor;
+    }
+
+    /**
+     * Get the current batch size.
+     *
+     * @param backlog number of logs waiting to be sent.
+     * @return batch size.
+     */
+    int getMaxLogsPerBatch(long backlog) {
+        if (mBackground)
+            return mMinLogsPerBatch;
+        long logsPerBatch = (long) mBaseLogsPerBatch * getGrowthFactor();
+        if (backlog >= logsPerBatch * BACKLOG_BATCHES)
+            logsPerBatch *= 2;
+        return (int) clamp(logsPerBatch, mMinLogsPerBatch, mMaxLogsPerBatch);
+    }
+
+    /**
+     * Get the current batch interval, halved when requests are fast on an unmetered network.
+     *
+     * @return batch interval in ms.
+     */
+    long getBatchTimeInterval() {
+        if (mBackground)
+            return mMinBatchTimeInterval;
+        long batchTimeInterval = mBaseBatchTimeInterval * getGrowthFactor();
+
+        /* Requests are cheap on a fast unmetered network, send sooner. */
+        if (!mNetworkMetered && isTransferFast())
+            batchTimeInterval /= 2;
+        return clamp(batchTimeInterval, mMinBatchTimeInterval, mMaxBatchTimeInterval);
+    }
+}
@@ -3,6 +3,7 @@ package com.microsoft.azure.mobile.channel;
 import android.support.annotation.NonNull;
 
 import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.utils.storage.DatabaseStats;
 
 /**
  * The interface for Channel
@@ -20,6 +21,95 @@ public interface Channel {
      */
     void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener groupListener);
 
+    /**
+     * Add a group for logs to be persisted and sent, with a priority class.
+     *
+     * @param groupName          the name of a group.
+     * @param maxLogsPerBatch    maximum log count per batch.
+     * @param batchTimeInterval  time interval for a next batch.
+     * @param maxParallelBatches maximum number of batches in parallel.
+     * @param priority           the priority class of the group.
+     * @param groupListener      a listener for a service.
+     */
+    void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, @GroupPriority int priority, GroupListener groupListener);
+
+    /**
+     * Set the bounds within which the batch size and interval of a group are adapted to network conditions.
+     * By default a group is adapted between the values it was added with and 4 times those values,
+     * the interval going down to a quarter when the application is in background.
+     *
+     * @param groupName            the name of a group.
+     * @param minLogsPerBatch      minimum log count per batch.
+     * @param maxLogsPerBatch      maximum log count per batch.
+     * @param minBatchTimeInterval minimum time interval for a next batch.
+     * @param maxBatchTimeInterval maximum time interval for a next batch.
+     */
+    void setBatchBounds(String groupName, int minLogsPerBatch, int maxLogsPerBatch, long minBatchTimeInterval, long maxBatchTimeInterval);
+
+    /**
+     * Set how logs enqueued for a group are admitted. By default enqueuing waits until the log is persisted.
+     * Other policies stage logs in a bounded queue without waiting and apply the policy when it is full.
+     *
+     * @param groupName  the name of a group.
+     * @param policy     the admission policy.
+     * @param capacity   maximum number of staged logs.
+     * @param sampleRate one log out of this number is kept when the policy is {@link OverflowPolicy#SAMPLE}.
+     */
+    void setOverflowPolicy(String groupName, @OverflowPolicy int policy, int capacity, int sampleRate);
+
+    /**
+     * Get the number of logs dropped by the overflow policy of a group.
+     *
+     * @param groupName the name of a group.
+     * @return number of dropped logs.
+     */
+    long getDroppedLogCount(String groupName);
+
+    /**
+     * Set how long and how much persisted logs of a group are kept while waiting to be sent.
+     * Logs are checked periodically in background, expired logs and oldest logs over the quota
+     * are deleted and reported as failures to the group listener. By default logs are kept until sent.
+     *
+     * @param groupName the name of a group.
+     * @param maxLogAge maximum time in ms a log is kept, 0 for no limit.
+     * @param maxBytes  maximum storage size in bytes of the group logs, 0 for no limit.
+     */
+    void setRetentionPolicy(String groupName, long maxLogAge, long maxBytes);
+
+    /**
+     * Get the number of persisted logs of a group deleted because they expired.
+     *
+     * @param groupName the name of a group.
+     * @return number of expired logs.
+     */
+    long getExpiredLogCount(String groupName);
+
+    /**
+     * Get the number of persisted logs of a group deleted because of the storage quota.
+     *
+     * @param groupName the name of a group.
+     * @return number of evicted logs.
+     */
+    long getEvictedLogCount(String groupName);
+
+    /**
+     * Get the on-disk footprint of the logs waiting to be sent, as last measured by the channel.
+     *
+     * @return the storage statistics.
+     */
+    @NonNull
+    DatabaseStats getStorageStats();
+
+    /**
+     * Get a live view of the pipeline health: pending and in-flight logs per group, delivery latency,
+     * request status, size and retries, and storage operation timings.
+     * The same instance is returned each time and reading its counters does not block.
+     *
+     * @return the channel metrics.
+     */
+    @NonNull
+    ChannelMetrics getMetrics();
+
     /**
      * Remove a group for logs.
      *
@@ -84,7 +174,8 @@ public interface Channel {
     void removeListener(Listener listener);
 
     /**
-     * Suspend channel and wait for a limited period of time for queued logs to be persisted.
+     * Suspend channel and write any buffered log to the storage.
+     * This is safe to call from the uncaught exception handler to avoid losing logs on crash.
      */
     void shutdown();
 
@@ -94,7 +185,7 @@ public interface Channel {
     interface Listener {
 
         /**
-         * Called whenever a log is enqueued.
+         * Called whenever a log is enqueued, on the thread calling {@link #enqueue(Log, String)}.
          *
          * @param log       log being enqueued.
          * @param groupName group of the log.
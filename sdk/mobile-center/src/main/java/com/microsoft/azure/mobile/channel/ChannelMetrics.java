@@ -0,0 +1,136 @@
+package com.microsoft.azure.mobile.channel;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.microsoft.azure.mobile.http.CompressionStats;
+import com.microsoft.azure.mobile.http.ConnectionStats;
+import com.microsoft.azure.mobile.http.RequestStats;
+import com.microsoft.azure.mobile.ingestion.IngestionHttp;
+import com.microsoft.azure.mobile.persistence.Persistence;
+import com.microsoft.azure.mobile.persistence.PersistenceStats;
+import com.microsoft.azure.mobile.utils.storage.DatabaseStats;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Live view of the channel pipeline health: queues, requests and storage.
+ * The same instance is returned for the whole channel life time so it can be polled periodically.
+ */
+public class ChannelMetrics {
+
+    /**
+     * Group metrics by group name.
+     */
+    private final Map<String, GroupMetrics> mGroupMetrics;
+
+    /**
+     * Persistence.
+     */
+    private final Persistence mPersistence;
+
+    /**
+     * Ingestion, null if not sending logs over HTTP.
+     */
+    private final IngestionHttp mIngestion;
+
+    /**
+     * Last storage statistics measured by the channel.
+     */
+    private volatile DatabaseStats mStorageStats = new DatabaseStats(0, 0, 0, 0);
+
+    /**
+     * Init.
+     *
+     * @param groupMetrics read only view of group metrics by group name.
+     * @param persistence  persistence.
+     * @param ingestion    ingestion, null if not sending logs over HTTP.
+     */
+    ChannelMetrics(@NonNull Map<String, GroupMetrics> groupMetrics, @NonNull Persistence persistence, @Nullable IngestionHttp ingestion) {
+        mGroupMetrics = groupMetrics;
+        mPersistence = persistence;
+        mIngestion = ingestion;
+    }
+
+    /**
+     * Get the names of the groups currently added to the channel.
+     *
+     * @return read only set of group names.
+     */
+    @NonNull
+    public Set<String> getGroupNames() {
+        return mGroupMetrics.keySet();
+    }
+
+    /**
+     * Get the metrics of a group.
+     *
+     * @param groupName the name of a group.
+     * @return group metrics, null if the group was not added.
+     */
+    @Nullable
+    public GroupMetrics getGroupMetrics(String groupName) {
+        return mGroupMetrics.get(groupName);
+    }
+
+    /**
+     * Get statistics about requests status, size and retries.
+     *
+     * @return request statistics, null if not sending logs over HTTP.
+     */
+    @Nullable
+    public RequestStats getRequestStats() {
+        return mIngestion == null ? null : mIngestion.getRequestStats();
+    }
+
+    /**
+     * Get statistics about log batches compression.
+     *
+     * @return compression statistics, null if not sending logs over HTTP.
+     */
+    @Nullable
+    public CompressionStats getCompressionStats() {
+        return mIngestion == null ? null : mIngestion.getCompressionStats();
+    }
+
+    /**
+     * Get statistics about connections reuse.
+     *
+     * @return connection statistics, null if not sending logs over HTTP.
+     */
+    @Nullable
+    public ConnectionStats getConnectionStats() {
+        return mIngestion == null ? null : mIngestion.getConnectionStats();
+    }
+
+    /**
+     * Get the timings of storage operations.
+     *
+     * @return persistence statistics.
+     */
+    public PersistenceStats getPersistenceStats() {
+        return mPersistence.getStats();
+    }
+
+    /**
+     * Get the on-disk footprint of the logs waiting to be sent.
+     * This is the snapshot taken the last time storage was compacted or swept by retention policies,
+     * all zero until then.
+     *
+     * @return storage statistics.
+     */
+    @NonNull
+    public DatabaseStats getStorageStats() {
+        return mStorageStats;
+    }
+
+    /**
+     * Update the storage statistics snapshot.
+     *
+     * @param storageStats storage statistics.
+     */
+    void setStorageStats(@NonNull DatabaseStats storageStats) {
+        mStorageStats = storageStats;
+    }
+}
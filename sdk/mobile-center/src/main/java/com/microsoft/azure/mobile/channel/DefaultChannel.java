@@ -1,10 +1,14 @@
 package com.microsoft.azure.mobile.channel;
 
+import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.support.annotation.MainThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import com.microsoft.azure.mobile.CancellationException;
@@ -19,30 +23,68 @@ import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
 import com.microsoft.azure.mobile.persistence.DatabasePersistence;
 import com.microsoft.azure.mobile.persistence.Persistence;
 import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
-import com.microsoft.azure.mobile.utils.HandlerUtils;
 import com.microsoft.azure.mobile.utils.IdHelper;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.NetworkStateHelper;
+import com.microsoft.azure.mobile.utils.storage.DatabaseStats;
+
+import org.json.JSONException;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static android.util.Log.DEBUG;
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 
+/**
+ * Default channel implementation.
+ * <p>
+ * Each group state is guarded by its own monitor so that groups persist and send logs independently.
+ * Global transitions (enabling, disabling, suspending, adding or removing groups) are guarded by the channel monitor,
+ * which is always acquired before any group monitor.
+ */
 public class DefaultChannel implements Channel {
 
     /**
-     * Persistence batch size for {@link Persistence#getLogs(String, int, List)} when clearing.
+     * Persistence batch size for {@link Persistence#getLogs(String, int, List, List)} when clearing.
      */
     @VisibleForTesting
     static final int CLEAR_BATCH_SIZE = 100;
 
+    /**
+     * Maximum time in ms that an enqueued log can stay buffered in memory before being written to the database.
+     */
+    @VisibleForTesting
+    static final long PERSISTENCE_FLUSH_INTERVAL = 1000;
+
+    /**
+     * Time in ms between 2 checks of the retention policies.
+     */
+    @VisibleForTesting
+    static final long RETENTION_SWEEP_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Time in ms without a successful batch after which the channel is considered idle and the storage compacted.
+     */
+    @VisibleForTesting
+    static final long COMPACTION_IDLE_DELAY = 60 * 1000;
+
     /**
      * Application context.
      */
@@ -83,32 +125,117 @@ public class DefaultChannel implements Channel {
      */
     private final Ingestion mIngestion;
 
+    /**
+     * Live view of the pipeline health.
+     */
+    private final ChannelMetrics mMetrics;
+
     /**
      * Mobile Center core handler.
      */
     private final Handler mMobileCenterHandler;
 
+    /**
+     * Network state helper used to adapt batches to the network type, null if unknown.
+     */
+    private final NetworkStateHelper mNetworkStateHelper;
+
+    /**
+     * Is the application in background, set on the main thread.
+     */
+    private volatile boolean mBackground;
+
+    /**
+     * Number of started activities, used to detect when the application goes to background.
+     */
+    private int mStartedActivityCount;
+
     /**
      * Is channel enabled?
      */
-    private boolean mEnabled;
+    private volatile boolean mEnabled;
 
     /**
      * Is channel disabled due to connectivity issues or was the problem fatal?
      * In that case we stop accepting new logs in database.
      */
-    private boolean mDiscardLogs;
+    private volatile boolean mDiscardLogs;
 
     /**
      * Device properties.
      */
-    private Device mDevice;
+    private volatile Device mDevice;
 
     /**
      * State checker. If this counter changes during an async call, we have to ignore the result in the callback.
      * Cancelling a database call would be unreliable, and if it's too fast you could still have the callback being called.
      */
-    private int mCurrentState;
+    private volatile int mCurrentState;
+
+    /**
+     * Is a persistence flush scheduled.
+     */
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+    /**
+     * Batches waiting to be sent, coalesced into a single request on the Mobile Center handler thread.
+     */
+    private final Queue<Batch> mOutgoingBatches = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Is sending of outgoing batches scheduled.
+     */
+    private final AtomicBoolean mSendScheduled = new AtomicBoolean();
+
+    /**
+     * Runnable that sends outgoing batches.
+     */
+    private final Runnable mSendRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            sendOutgoingBatches();
+        }
+    };
+
+    /**
+     * Runnable that writes buffered logs to the database.
+     */
+    private final Runnable mFlushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Is a retention sweep scheduled.
+     */
+    private final AtomicBoolean mSweepScheduled = new AtomicBoolean();
+
+    /**
+     * Runnable that applies retention policies to persisted logs.
+     */
+    private final Runnable mSweepRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            sweepLogs();
+        }
+    };
+
+    /**
+     * Runnable that gives free space of the storage back to the file system.
+     */
+    private final Runnable mCompactRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mPersistence.compact();
+            refreshStorageStats();
+        }
+    };
 
     /**
      * Creates and initializes a new instance.
@@ -118,7 +245,7 @@ public class DefaultChannel implements Channel {
      * @param logSerializer The log serializer.
      */
     public DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull LogSerializer logSerializer, @NonNull Handler mobileCenterHandler) {
-        this(context, appSecret, buildDefaultPersistence(logSerializer), new IngestionHttp(context, logSerializer), mobileCenterHandler);
+        this(context, appSecret, buildDefaultPersistence(logSerializer), new IngestionHttp(context, logSerializer, mobileCenterHandler), mobileCenterHandler, NetworkStateHelper.getSharedInstance(context));
     }
 
     /**
@@ -132,16 +259,35 @@ public class DefaultChannel implements Channel {
      */
     @VisibleForTesting
     DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull Persistence persistence, @NonNull Ingestion ingestion, @NonNull Handler mobileCenterHandler) {
+        this(context, appSecret, persistence, ingestion, mobileCenterHandler, null);
+    }
+
+    /**
+     * Overloaded constructor with limited visibility that allows for dependency injection.
+     *
+     * @param context             The context.
+     * @param appSecret           The application secret.
+     * @param persistence         Persistence object for dependency injection.
+     * @param ingestion           Ingestion object for dependency injection.
+     * @param mobileCenterHandler Mobile Center looper thread handler.
+     * @param networkStateHelper  Network state helper, null if network type is unknown.
+     */
+    @VisibleForTesting
+    DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull Persistence persistence, @NonNull Ingestion ingestion, @NonNull Handler mobileCenterHandler, @Nullable NetworkStateHelper networkStateHelper) {
         mContext = context;
         mAppSecret = appSecret;
         mInstallId = IdHelper.getInstallId();
         mIngestionHandler = new Handler(Looper.getMainLooper());
-        mGroupStates = new HashMap<>();
-        mListeners = new HashSet<>();
+        mGroupStates = new ConcurrentHashMap<>();
+        mListeners = new CopyOnWriteArraySet<>();
         mPersistence = persistence;
         mIngestion = ingestion;
+        mMetrics = new ChannelMetrics(Collections.<String, GroupMetrics>unmodifiableMap(mGroupStates), persistence, ingestion instanceof IngestionHttp ? (IngestionHttp) ingestion : null);
         mMobileCenterHandler = mobileCenterHandler;
+        mNetworkStateHelper = networkStateHelper;
         mEnabled = true;
+        if (context instanceof Application)
+            ((Application) context).registerActivityLifecycleCallbacks(new BackgroundTracker());
     }
 
     /**
@@ -163,35 +309,120 @@ public class DefaultChannel implements Channel {
      * @param stateSnapshot state as before the async call.
      * @return true if state did not change and code should proceed, false if state changed.
      */
-    private synchronized boolean checkStateDidNotChange(GroupState groupState, int stateSnapshot) {
+    private boolean checkStateDidNotChange(GroupState groupState, int stateSnapshot) {
         return stateSnapshot == mCurrentState && groupState == mGroupStates.get(groupState.mName);
     }
 
     @Override
-    public synchronized void addGroup(final String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener groupListener) {
+    public void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener groupListener) {
+        addGroup(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, GroupPriority.NORMAL, groupListener);
+    }
+
+    @Override
+    public synchronized void addGroup(final String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, @GroupPriority int priority, GroupListener groupListener) {
 
         /* Init group. */
-        MobileCenterLog.debug(LOG_TAG, "addGroup(" + groupName + ")");
-        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, groupListener);
-        mGroupStates.put(groupName, groupState);
+        MobileCenterLog.debug(LOG_TAG, "addGroup(" + groupName + ") priority=" + priority);
+        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, priority, groupListener);
+        groupState.mBatchPolicy.setBackground(mBackground);
+        synchronized (groupState) {
+            mGroupStates.put(groupName, groupState);
+
+            /* Count pending logs. */
+            groupState.mPendingLogCount = mPersistence.countLogs(groupName);
+
+            /* Schedule sending any pending log. */
+            checkPendingLogs(groupState);
+        }
+    }
+
+    @Override
+    public void setBatchBounds(String groupName, int minLogsPerBatch, int maxLogsPerBatch, long minBatchTimeInterval, long maxBatchTimeInterval) {
+        GroupState groupState = mGroupStates.get(groupName);
+        if (groupState != null) {
+            synchronized (groupState) {
+                groupState.mBatchPolicy.setBounds(minLogsPerBatch, maxLogsPerBatch, minBatchTimeInterval, maxBatchTimeInterval);
+            }
+        }
+    }
+
+    @Override
+    public void setOverflowPolicy(String groupName, @OverflowPolicy int policy, int capacity, int sampleRate) {
+        final GroupState groupState = mGroupStates.get(groupName);
+        if (groupState == null)
+            return;
+        final LogStagingQueue previousStagingQueue;
+        synchronized (groupState) {
+            previousStagingQueue = groupState.mStagingQueue;
+            groupState.mStagingQueue = policy == OverflowPolicy.BLOCK ? null : new LogStagingQueue(policy, capacity, sampleRate);
+        }
+
+        /* Persist logs staged with the previous policy. */
+        if (previousStagingQueue != null) {
+            mMobileCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    drainStagedLogs(groupState, previousStagingQueue);
+                }
+            });
+        }
+    }
 
-        /* Count pending logs. */
-        groupState.mPendingLogCount = mPersistence.countLogs(groupName);
+    @Override
+    public long getDroppedLogCount(String groupName) {
+        GroupState groupState = mGroupStates.get(groupName);
+        return groupState == null ? 0 : groupState.mDroppedLogCount.get();
+    }
 
-        /* Schedule sending any pending log. */
-        checkPendingLogs(groupState.mName);
+    @Override
+    public void setRetentionPolicy(String groupName, long maxLogAge, long maxBytes) {
+        GroupState groupState = mGroupStates.get(groupName);
+        if (groupState == null)
+            return;
+        synchronized (groupState) {
+            groupState.mMaxLogAge = Math.max(0, maxLogAge);
+            groupState.mMaxStorageBytes = Math.max(0, maxBytes);
+        }
+        scheduleSweep(0);
+    }
+
+    @Override
+    public long getExpiredLogCount(String groupName) {
+        GroupState groupState = mGroupStates.get(groupName);
+        return groupState == null ? 0 : groupState.mExpiredLogCount.get();
+    }
+
+    @Override
+    public long getEvictedLogCount(String groupName) {
+        GroupState groupState = mGroupStates.get(groupName);
+        return groupState == null ? 0 : groupState.mEvictedLogCount.get();
+    }
+
+    @NonNull
+    @Override
+    public DatabaseStats getStorageStats() {
+        return mMetrics.getStorageStats();
+    }
+
+    @NonNull
+    @Override
+    public ChannelMetrics getMetrics() {
+        return mMetrics;
     }
 
     @Override
     public synchronized void removeGroup(String groupName) {
         GroupState groupState = mGroupStates.remove(groupName);
         if (groupState != null) {
-            cancelTimer(groupState);
+            synchronized (groupState) {
+                cancelTimer(groupState);
+            }
         }
     }
 
     @Override
-    public synchronized boolean isEnabled() {
+    public boolean isEnabled() {
         return mEnabled;
     }
 
@@ -210,8 +441,11 @@ public class DefaultChannel implements Channel {
             mEnabled = true;
             mDiscardLogs = false;
             mCurrentState++;
-            for (String groupName : mGroupStates.keySet())
-                checkPendingLogs(groupName);
+            for (GroupState groupState : mGroupStates.values()) {
+                synchronized (groupState) {
+                    checkPendingLogs(groupState);
+                }
+            }
         } else
             suspend(true, new CancellationException());
     }
@@ -227,17 +461,18 @@ public class DefaultChannel implements Channel {
      * @param groupName the group name.
      */
     @Override
-    public synchronized void clear(String groupName) {
+    public void clear(String groupName) {
         mPersistence.deleteLogs(groupName);
     }
 
     @Override
-    public synchronized void invalidateDeviceCache() {
+    public void invalidateDeviceCache() {
         mDevice = null;
     }
 
     /**
      * Stop sending logs until app is restarted or the channel is enabled again.
+     * Must be called with the channel monitor held.
      *
      * @param deleteLogs in addition to suspending, if this is true, delete all logs from Persistence.
      * @param exception  the exception that caused suspension.
@@ -247,18 +482,21 @@ public class DefaultChannel implements Channel {
         mDiscardLogs = deleteLogs;
         mCurrentState++;
         for (GroupState groupState : mGroupStates.values()) {
-            cancelTimer(groupState);
-
-            /* Delete all other batches and call callback method that are currently in progress. */
-            for (Iterator<Map.Entry<String, List<Log>>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
-                Map.Entry<String, List<Log>> entry = iterator.next();
-                List<Log> removedLogsForBatchId = groupState.mSendingBatches.get(entry.getKey());
-                iterator.remove();
-                if (deleteLogs) {
-                    GroupListener groupListener = groupState.mListener;
-                    if (groupListener != null) {
-                        for (Log log : removedLogsForBatchId)
-                            groupListener.onFailure(log, exception);
+            synchronized (groupState) {
+                cancelTimer(groupState);
+
+                /* Delete all other batches and call callback method that are currently in progress. */
+                for (Iterator<Map.Entry<String, LogContainer>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
+                    Map.Entry<String, LogContainer> entry = iterator.next();
+                    LogContainer removedLogsForBatchId = groupState.mSendingBatches.get(entry.getKey());
+                    iterator.remove();
+                    groupState.mInFlightBatchCount.decrementAndGet();
+                    if (deleteLogs) {
+                        GroupListener groupListener = groupState.mListener;
+                        if (groupListener != null) {
+                            for (Log log : removedLogsForBatchId.getLogs())
+                                groupListener.onFailure(log, exception);
+                        }
                     }
                 }
             }
@@ -270,7 +508,9 @@ public class DefaultChannel implements Channel {
         }
         if (deleteLogs) {
             for (GroupState groupState : mGroupStates.values()) {
-                deleteLogsOnSuspended(groupState);
+                synchronized (groupState) {
+                    deleteLogsOnSuspended(groupState);
+                }
             }
         } else {
             mPersistence.clearPendingLogState();
@@ -279,7 +519,7 @@ public class DefaultChannel implements Channel {
 
     private void deleteLogsOnSuspended(final GroupState groupState) {
         final List<Log> logs = new ArrayList<>();
-        mPersistence.getLogs(groupState.mName, CLEAR_BATCH_SIZE, logs);
+        mPersistence.getLogs(groupState.mName, CLEAR_BATCH_SIZE, logs, null);
         if (logs.size() > 0 && groupState.mListener != null) {
             for (Log log : logs) {
                 groupState.mListener.onBeforeSending(log);
@@ -302,8 +542,11 @@ public class DefaultChannel implements Channel {
 
     @VisibleForTesting
     @SuppressWarnings("SameParameterValue")
-    synchronized int getCounter(@NonNull String groupName) {
-        return mGroupStates.get(groupName).mPendingLogCount;
+    int getCounter(@NonNull String groupName) {
+        GroupState groupState = mGroupStates.get(groupName);
+        synchronized (groupState) {
+            return groupState.mPendingLogCount;
+        }
     }
 
     /**
@@ -311,182 +554,375 @@ public class DefaultChannel implements Channel {
      * It will also reset the counters for sending out items for both the number of items enqueued and
      * the handlers. It will do this even if we don't have reached the limit
      * of pending batches or the time interval.
+     * Must be called with the group monitor held.
      *
-     * @param groupName the group name
+     * @param groupState the group state.
      */
-    private synchronized void triggerIngestion(final @NonNull String groupName) {
-        if (!mEnabled) {
+    private void triggerIngestion(final @NonNull GroupState groupState) {
+        Batch batch = takeBatch(groupState, false);
+        if (batch == null)
             return;
+
+        /*
+         * Batches triggered by other groups in the meantime are sent in the same request.
+         * The HTTP client runs the call on its own threads, so sending happens on the Mobile Center handler thread.
+         */
+        mOutgoingBatches.add(batch);
+        if (mSendScheduled.compareAndSet(false, true))
+            mMobileCenterHandler.post(mSendRunnable);
+    }
+
+    /**
+     * Get the next batch of a group from persistence and mark it as being sent.
+     * Must be called with the group monitor held.
+     *
+     * @param groupState the group state.
+     * @param piggyback  true if the batch is sent along with batches of other groups.
+     * @return the batch or null if there is nothing to send.
+     */
+    private Batch takeBatch(final @NonNull GroupState groupState, boolean piggyback) {
+        if (!mEnabled || mGroupStates.get(groupState.mName) != groupState) {
+            return null;
         }
-        final GroupState groupState = mGroupStates.get(groupName);
-        MobileCenterLog.debug(LOG_TAG, "triggerIngestion(" + groupName + ") pendingLogCount=" + groupState.mPendingLogCount);
+        String groupName = groupState.mName;
+        if (MobileCenterLog.isLoggable(DEBUG))
+            MobileCenterLog.debug(LOG_TAG, "triggerIngestion(" + groupName + ") pendingLogCount=" + groupState.mPendingLogCount);
         cancelTimer(groupState);
 
-        /* Check if we have reached the maximum number of pending batches, log to LogCat and don't trigger another sending. */
-        if (groupState.mSendingBatches.size() == groupState.mMaxParallelBatches) {
-            MobileCenterLog.debug(LOG_TAG, "Already sending " + groupState.mMaxParallelBatches + " batches of analytics data to the server.");
-            return;
+        /* Adapt batch size to current conditions. */
+        updateNetwork(groupState);
+        int maxLogsPerBatch = groupState.mBatchPolicy.getMaxLogsPerBatch(groupState.mPendingLogCount);
+
+        /*
+         * Check if we have reached the maximum number of pending batches, log to LogCat and don't trigger another sending.
+         * A group gives up its parallel batches to higher priority groups that have logs to send,
+         * unless its batch rides along with theirs.
+         */
+        int maxParallelBatches = groupState.mMaxParallelBatches;
+        if (!piggyback && isHigherPriorityGroupBusy(groupState))
+            maxParallelBatches = 1;
+        if (groupState.mSendingBatches.size() >= maxParallelBatches) {
+            if (MobileCenterLog.isLoggable(DEBUG))
+                MobileCenterLog.debug(LOG_TAG, "Already sending " + maxParallelBatches + " batches of analytics data to the server.");
+            return null;
         }
 
-        /* Get a batch from Persistence. */
-        final List<Log> batch = new ArrayList<>(groupState.mMaxLogsPerBatch);
+        /* Get a batch from Persistence, logs are sent as stored and deserialized only if a group listener needs them. */
+        final List<Log> batch = groupState.mListener != null ? new ArrayList<Log>(maxLogsPerBatch) : null;
+        final List<String> payloads = new ArrayList<>(maxLogsPerBatch);
         final int stateSnapshot = mCurrentState;
-        final String batchId = mPersistence.getLogs(groupName, groupState.mMaxLogsPerBatch, batch);
+        final String batchId = mPersistence.getLogs(groupName, maxLogsPerBatch, batch, payloads);
         if (batchId == null) {
-            return;
+            return null;
         }
 
         /* Call group listener before sending logs to ingestion service. */
-        if (groupState.mListener != null) {
+        if (batch != null) {
             for (Log log : batch) {
                 groupState.mListener.onBeforeSending(log);
             }
         }
 
         /* Decrement counter. */
-        groupState.mPendingLogCount -= batch.size();
-        MobileCenterLog.debug(LOG_TAG, "ingestLogs(" + groupState.mName + "," + batchId + ") pendingLogCount=" + groupState.mPendingLogCount);
+        groupState.mPendingLogCount -= payloads.size();
+        if (MobileCenterLog.isLoggable(DEBUG))
+            MobileCenterLog.debug(LOG_TAG, "ingestLogs(" + groupState.mName + "," + batchId + ") pendingLogCount=" + groupState.mPendingLogCount);
 
         /* Remember this batch. */
-        groupState.mSendingBatches.put(batchId, batch);
+        final LogContainer logContainer = new LogContainer();
+        logContainer.setLogs(batch);
+        logContainer.setRawLogs(payloads);
+        groupState.mSendingBatches.put(batchId, logContainer);
+        groupState.mInFlightBatchCount.incrementAndGet();
+        return new Batch(groupState, stateSnapshot, batchId, logContainer);
+    }
 
-        /*
-         * Due to bug on old Android versions (verified on 4.0.4),
-         * if we start an async task from here, i.e. the async persistence handler thread,
-         * we end up with AsyncTask configured with the wrong Handler to use for onPostExecute
-         * instead of using main thread as advertised in Javadoc (and its a static field there).
-         *
-         * Our SDK guards against an application that would make a first async task in non UI
-         * thread before SDK is initialized, but we should also avoid corrupting AsyncTask
-         * with our wrong handler to avoid creating bugs in the application code since we are
-         * a library.
-         *
-         * So make sure we execute the async task from UI thread to avoid any issue.
-         */
-        HandlerUtils.runOnUiThread(new Runnable() {
+    /**
+     * Check whether a group with a higher priority has logs pending or being sent.
+     * Other groups are read through their volatile and atomic counters so that their monitor is not needed.
+     *
+     * @param groupState the group state.
+     * @return true if a higher priority group is busy.
+     */
+    private boolean isHigherPriorityGroupBusy(@NonNull GroupState groupState) {
+        for (GroupState otherGroupState : mGroupStates.values()) {
+            if (otherGroupState.mPriority > groupState.mPriority && (otherGroupState.mPendingLogCount > 0 || otherGroupState.mInFlightBatchCount.get() > 0))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send the outgoing batches in a single request, along with the pending logs of the other groups
+     * as the radio is woken up anyway. Logs of higher priority groups come first.
+     * Batches are read from persistence with only their group monitor held,
+     * so that global transitions (such as going to background on the main thread) don't wait for the database.
+     */
+    private void sendOutgoingBatches() {
+        mSendScheduled.set(false);
+        List<Batch> batches = new ArrayList<>();
+        Set<GroupState> groupStates = new HashSet<>();
+        Batch batch;
+        while ((batch = mOutgoingBatches.poll()) != null) {
+            batches.add(batch);
+            groupStates.add(batch.mGroupState);
+        }
+        if (batches.isEmpty())
+            return;
+        for (GroupState groupState : mGroupStates.values()) {
+            if (!groupStates.contains(groupState)) {
+                synchronized (groupState) {
+                    if (groupState.mPendingLogCount > 0) {
+                        batch = takeBatch(groupState, true);
+                        if (batch != null)
+                            batches.add(batch);
+                    }
+                }
+            }
+        }
+        Collections.sort(batches, new Comparator<Batch>() {
 
             @Override
-            public void run() {
-                sendLogs(groupState, stateSnapshot, batch, batchId);
+            public int compare(Batch lhs, Batch rhs) {
+                return rhs.mGroupState.mPriority - lhs.mGroupState.mPriority;
             }
         });
+        sendLogs(batches);
     }
 
     /**
      * Send logs.
+     * This holds the channel monitor so that no global transition happens while checking the batches state and sending.
      *
-     * @param groupState   The group state.
-     * @param currentState The current state.
-     * @param batch        The log batch.
-     * @param batchId      The batch ID.
+     * @param batches The batches to send in a single request.
      */
-    @MainThread
-    private synchronized void sendLogs(final GroupState groupState, final int currentState, List<Log> batch, final String batchId) {
-        if (checkStateDidNotChange(groupState, currentState)) {
+    private synchronized void sendLogs(final List<Batch> batches) {
+
+        /* Skip batches of groups that changed state since. */
+        for (Iterator<Batch> iterator = batches.iterator(); iterator.hasNext(); ) {
+            Batch batch = iterator.next();
+            synchronized (batch.mGroupState) {
+                if (!checkStateDidNotChange(batch.mGroupState, batch.mStateSnapshot))
+                    iterator.remove();
+            }
+        }
+        if (batches.isEmpty())
+            return;
 
-            /* Send logs. */
-            LogContainer logContainer = new LogContainer();
-            logContainer.setLogs(batch);
-            mIngestion.sendAsync(mAppSecret, mInstallId, logContainer, new ServiceCallback() {
+        /* Merge batches. */
+        LogContainer logContainer;
+        if (batches.size() == 1) {
+            logContainer = batches.get(0).mLogContainer;
+        } else {
+            logContainer = new LogContainer();
+            List<Log> logs = new ArrayList<>();
+            List<String> rawLogs = new ArrayList<>();
+            for (Batch batch : batches) {
+                if (logs != null && batch.mLogContainer.getLogs() != null)
+                    logs.addAll(batch.mLogContainer.getLogs());
+                else
+                    logs = null;
+                rawLogs.addAll(batch.mLogContainer.getRawLogs());
+            }
+            logContainer.setLogs(logs);
+            logContainer.setRawLogs(rawLogs);
+            if (MobileCenterLog.isLoggable(DEBUG))
+                MobileCenterLog.debug(LOG_TAG, "Coalesced " + batches.size() + " batches into a single request.");
+        }
 
-                @Override
-                public void onCallSucceeded(String payload) {
-                    mMobileCenterHandler.post(new Runnable() {
+        /* Send logs. */
+        final long startTime = SystemClock.elapsedRealtime();
+        final long payloadSize = getPayloadSize(logContainer);
+        mIngestion.sendAsync(mAppSecret, mInstallId, logContainer, new ServiceCallback() {
 
-                        @Override
-                        public void run() {
-                            handleSendingSuccess(groupState, currentState, batchId);
-                        }
-                    });
-                }
+            @Override
+            public void onCallSucceeded(String payload) {
+                final long latency = SystemClock.elapsedRealtime() - startTime;
+                mMobileCenterHandler.post(new Runnable() {
 
-                @Override
-                public void onCallFailed(final Exception e) {
-                    mMobileCenterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Batch batch : batches)
+                            handleSendingSuccess(batch, latency, payloadSize);
+                    }
+                });
+            }
 
-                        @Override
-                        public void run() {
-                            handleSendingFailure(groupState, currentState, batchId, e);
-                        }
-                    });
-                }
-            });
+            @Override
+            public void onCallFailed(final Exception e) {
+                mMobileCenterHandler.post(new Runnable() {
 
-            /* Check for more pending logs. */
+                    @Override
+                    public void run() {
+                        handleSendingFailure(batches, e);
+                    }
+                });
+            }
+        });
+
+        /* Check for more pending logs. */
+        for (final Batch batch : batches) {
             mMobileCenterHandler.post(new Runnable() {
 
                 @Override
                 public void run() {
-                    checkPendingLogsAfterPost(groupState, currentState);
+                    checkPendingLogsAfterPost(batch.mGroupState, batch.mStateSnapshot);
                 }
             });
         }
     }
 
+    /**
+     * Get the size of the logs sent in a batch.
+     *
+     * @param logContainer The log batch.
+     * @return The size of the serialized logs in UTF-8 bytes.
+     */
+    @VisibleForTesting
+    static long getPayloadSize(LogContainer logContainer) {
+        long size = 0;
+        for (String rawLog : logContainer.getRawLogs())
+            size += getUtf8Length(rawLog);
+        return size;
+    }
+
+    /**
+     * Count the UTF-8 bytes of a string without encoding it.
+     *
+     * @param string The string.
+     * @return The number of bytes.
+     */
+    private static long getUtf8Length(String string) {
+        long length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else
+                length += 3;
+        }
+        return length;
+    }
+
     private void checkPendingLogsAfterPost(@NonNull final GroupState groupState, int currentState) {
-        if (checkStateDidNotChange(groupState, currentState)) {
-            checkPendingLogs(groupState.mName);
+        synchronized (groupState) {
+            if (checkStateDidNotChange(groupState, currentState)) {
+                checkPendingLogs(groupState);
+            }
         }
     }
 
     /**
      * The actual implementation to react to sending a batch to the server successfully.
      *
-     * @param groupState   The group state.
-     * @param currentState The current state.
-     * @param batchId      The batch ID.
-     */
-    private synchronized void handleSendingSuccess(@NonNull final GroupState groupState, int currentState, @NonNull final String batchId) {
-        if (checkStateDidNotChange(groupState, currentState)) {
-            String groupName = groupState.mName;
-            mPersistence.deleteLogs(groupName, batchId);
-            List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
-            GroupListener groupListener = groupState.mListener;
-            if (groupListener != null) {
-                for (Log log : removedLogsForBatchId)
-                    groupListener.onSuccess(log);
+     * @param batch       The batch.
+     * @param latency     The request latency in ms.
+     * @param payloadSize The size of the sent logs.
+     */
+    private void handleSendingSuccess(@NonNull Batch batch, long latency, long payloadSize) {
+        GroupState groupState = batch.mGroupState;
+        synchronized (groupState) {
+            if (checkStateDidNotChange(groupState, batch.mStateSnapshot)) {
+                String groupName = groupState.mName;
+                groupState.mBatchPolicy.onBatchSent(latency, payloadSize);
+                mPersistence.deleteLogs(groupName, batch.mBatchId);
+                LogContainer removedLogsForBatchId = groupState.mSendingBatches.remove(batch.mBatchId);
+                groupState.mInFlightBatchCount.decrementAndGet();
+                groupState.mRequestLatency.record(latency);
+                recordDelivery(groupState, removedLogsForBatchId);
+                GroupListener groupListener = groupState.mListener;
+                if (groupListener != null) {
+                    for (Log log : removedLogsForBatchId.getLogs())
+                        groupListener.onSuccess(log);
+                }
+                checkPendingLogs(groupState);
+                scheduleCompaction(COMPACTION_IDLE_DELAY);
             }
-            checkPendingLogs(groupName);
         }
     }
 
     /**
-     * The actual implementation to react to not being able to send a batch to the server.
+     * The actual implementation to react to not being able to send a request to the server.
      * Will disable the sender in case of a recoverable error.
-     * Will delete batch of data in case of a non-recoverable error.
+     * Will delete batches of data in case of a non-recoverable error.
+     * This is a global transition so it holds the channel monitor, then the group monitors.
      *
-     * @param groupState   the group state
-     * @param currentState the current state
-     * @param batchId      the batch ID
-     * @param e            the exception
-     */
-    private synchronized void handleSendingFailure(@NonNull final GroupState groupState, int currentState, @NonNull final String batchId, @NonNull final Exception e) {
-        if (checkStateDidNotChange(groupState, currentState)) {
-            String groupName = groupState.mName;
-            MobileCenterLog.error(LOG_TAG, "Sending logs groupName=" + groupName + " id=" + batchId + " failed", e);
-            List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
-            boolean recoverableError = HttpUtils.isRecoverableError(e);
-            if (recoverableError) {
-                groupState.mPendingLogCount += removedLogsForBatchId.size();
-            } else {
-                GroupListener groupListener = groupState.mListener;
-                if (groupListener != null) {
-                    for (Log log : removedLogsForBatchId)
-                        groupListener.onFailure(log, e);
+     * @param batches the batches sent in the request.
+     * @param e       the exception
+     */
+    private synchronized void handleSendingFailure(@NonNull List<Batch> batches, @NonNull final Exception e) {
+        boolean recoverableError = HttpUtils.isRecoverableError(e);
+        boolean stateChanged = true;
+        for (Batch batch : batches) {
+            GroupState groupState = batch.mGroupState;
+            synchronized (groupState) {
+                if (!checkStateDidNotChange(groupState, batch.mStateSnapshot))
+                    continue;
+                stateChanged = false;
+                String groupName = groupState.mName;
+                MobileCenterLog.error(LOG_TAG, "Sending logs groupName=" + groupName + " id=" + batch.mBatchId + " failed", e);
+                LogContainer removedLogsForBatchId = groupState.mSendingBatches.remove(batch.mBatchId);
+                groupState.mInFlightBatchCount.decrementAndGet();
+                if (recoverableError) {
+                    groupState.mPendingLogCount += removedLogsForBatchId.getRawLogs().size();
+                } else {
+                    groupState.mFailedLogCount.addAndGet(removedLogsForBatchId.getRawLogs().size());
+                    GroupListener groupListener = groupState.mListener;
+                    if (groupListener != null) {
+                        for (Log log : removedLogsForBatchId.getLogs())
+                            groupListener.onFailure(log, e);
+                    }
                 }
             }
+        }
+        if (!stateChanged)
             suspend(!recoverableError, e);
+    }
+
+    /**
+     * Count acknowledged logs and record the time elapsed since they were enqueued.
+     * Logs were stamped with an absolute toffset when enqueued, which is read back from
+     * pre-serialized logs if the group has no listener.
+     *
+     * @param groupState   The group state.
+     * @param logContainer The acknowledged logs.
+     */
+    private static void recordDelivery(@NonNull GroupState groupState, @NonNull LogContainer logContainer) {
+        long now = System.currentTimeMillis();
+        List<Log> logs = logContainer.getLogs();
+        if (logs != null) {
+            for (int i = 0; i < logs.size(); i++)
+                groupState.mDeliveryLatency.record(now - logs.get(i).getToffset());
+            groupState.mSentLogCount.addAndGet(logs.size());
+        } else {
+            List<String> rawLogs = logContainer.getRawLogs();
+            for (int i = 0; i < rawLogs.size(); i++) {
+                try {
+                    groupState.mDeliveryLatency.record(now - IngestionHttp.getToffset(rawLogs.get(i)));
+                } catch (JSONException ignored) {
+
+                    /* Not a log stamped by this channel, nothing to measure. */
+                }
+            }
+            groupState.mSentLogCount.addAndGet(rawLogs.size());
         }
     }
 
     /**
-     * Actual implementation of enqueue logic. Will increase counters, triggers of batching logic.
+     * Actual implementation of enqueue logic.
+     * Persists the log right away, or stages it if the group has an overflow policy other than {@link OverflowPolicy#BLOCK}.
+     * The log is stamped and {@link Listener#onEnqueuingLog(Log, String)} is called on the calling thread in both cases.
      *
      * @param log       the Log to be enqueued
      * @param groupName the queue to use
      */
     @Override
-    public synchronized void enqueue(@NonNull Log log, @NonNull final String groupName) {
+    public void enqueue(@NonNull Log log, @NonNull final String groupName) {
 
         /* Check group name is registered. */
         final GroupState groupState = mGroupStates.get(groupName);
@@ -495,6 +931,104 @@ public class DefaultChannel implements Channel {
             return;
         }
 
+        /* Set an absolute timestamp, we'll convert to relative just before sending. Don't do it if the service already set a timestamp.*/
+        if (log.getToffset() == 0L)
+            log.setToffset(System.currentTimeMillis());
+
+        /* Stage log without waiting for persistence if the group allows it. */
+        LogStagingQueue stagingQueue = groupState.mStagingQueue;
+        if (stagingQueue != null) {
+            notifyEnqueuingLog(log, groupName);
+            stageLog(groupState, stagingQueue, log);
+        } else
+            persistLog(groupState, log, true);
+    }
+
+    /**
+     * Call listeners so that they can decorate the log.
+     *
+     * @param log       the log being enqueued.
+     * @param groupName the group of the log.
+     */
+    private void notifyEnqueuingLog(@NonNull Log log, @NonNull String groupName) {
+        for (Listener listener : mListeners)
+            listener.onEnqueuingLog(log, groupName);
+    }
+
+    /**
+     * Stage a log to be persisted on the Mobile Center handler thread, applying the group overflow policy.
+     *
+     * @param groupState   the group state.
+     * @param stagingQueue the group staging queue.
+     * @param log          the log to stage.
+     */
+    private void stageLog(@NonNull final GroupState groupState, @NonNull final LogStagingQueue stagingQueue, @NonNull Log log) {
+        final Log droppedLog = stagingQueue.offer(log);
+        if (droppedLog != null) {
+            long droppedLogCount = groupState.mDroppedLogCount.incrementAndGet();
+            if (MobileCenterLog.isLoggable(DEBUG))
+                MobileCenterLog.debug(LOG_TAG, "Dropped a log by overflow policy for group " + groupState.mName + ", droppedLogCount=" + droppedLogCount);
+            final GroupListener groupListener = groupState.mListener;
+            if (groupListener != null) {
+                mMobileCenterHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        groupListener.onBeforeSending(droppedLog);
+                        groupListener.onFailure(droppedLog, new CancellationException("Log dropped by channel overflow policy."));
+                    }
+                });
+            }
+        }
+        if (stagingQueue.scheduleDrain()) {
+            mMobileCenterHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    drainStagedLogs(groupState, stagingQueue);
+                }
+            });
+        }
+    }
+
+    /**
+     * Persist all logs of a staging queue.
+     *
+     * @param groupState   the group state.
+     * @param stagingQueue the staging queue.
+     */
+    private void drainStagedLogs(@NonNull GroupState groupState, @NonNull LogStagingQueue stagingQueue) {
+        stagingQueue.onDrainStarted();
+        Log log;
+        while ((log = stagingQueue.poll()) != null)
+            persistLog(groupState, log, false);
+    }
+
+    /**
+     * Persist a log. Will increase counters, triggers of batching logic.
+     *
+     * @param groupState      the group state.
+     * @param log             the log to persist.
+     * @param notifyListeners false if listeners were already called when the log was staged.
+     */
+    private void persistLog(@NonNull GroupState groupState, @NonNull Log log, boolean notifyListeners) {
+        synchronized (groupState) {
+            persistLogLocked(groupState, log, notifyListeners);
+        }
+    }
+
+    /**
+     * Implements {@link #persistLog(GroupState, Log, boolean)} with the group monitor held.
+     */
+    private void persistLogLocked(@NonNull GroupState groupState, @NonNull Log log, boolean notifyListeners) {
+
+        /* Check group was not removed in the meantime. */
+        String groupName = groupState.mName;
+        if (mGroupStates.get(groupName) != groupState) {
+            MobileCenterLog.error(LOG_TAG, "Invalid group name:" + groupName);
+            return;
+        }
+
         /* Check if disabled with discarding logs. */
         if (mDiscardLogs) {
             MobileCenterLog.warn(LOG_TAG, "Channel is disabled, log are discarded.");
@@ -506,16 +1040,18 @@ public class DefaultChannel implements Channel {
         }
 
         /* Call listeners so that they can decorate the log. */
-        for (Listener listener : mListeners)
-            listener.onEnqueuingLog(log, groupName);
+        if (notifyListeners)
+            notifyEnqueuingLog(log, groupName);
 
         /* Attach device properties to every log if its not already attached by a service. */
         if (log.getDevice() == null) {
 
-            /* Generate device properties only once per process life time. */
-            if (mDevice == null) {
+            /* Generate device properties only once per process life time, groups racing here generate equal snapshots. */
+            Device device = mDevice;
+            if (device == null) {
                 try {
-                    mDevice = DeviceInfoHelper.getDeviceInfo(mContext);
+                    device = DeviceInfoHelper.getDeviceInfo(mContext);
+                    mDevice = device;
                 } catch (DeviceInfoHelper.DeviceInfoException e) {
                     MobileCenterLog.error(LOG_TAG, "Device log cannot be generated", e);
                     return;
@@ -523,22 +1059,20 @@ public class DefaultChannel implements Channel {
             }
 
             /* Attach device properties. */
-            log.setDevice(mDevice);
+            log.setDevice(device);
         }
 
-        /* Set an absolute timestamp, we'll convert to relative just before sending. Don't do it if the service already set a timestamp.*/
-        if (log.getToffset() == 0L)
-            log.setToffset(System.currentTimeMillis());
-
         /* Persist log. */
         try {
 
             /* Increment counters and schedule ingestion if we are enabled. */
             mPersistence.putLog(groupName, log);
+            scheduleFlush();
             groupState.mPendingLogCount++;
-            MobileCenterLog.debug(LOG_TAG, "enqueue(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
+            if (MobileCenterLog.isLoggable(DEBUG))
+                MobileCenterLog.debug(LOG_TAG, "enqueue(" + groupState.mName + ") pendingLogCount=" + groupState.mPendingLogCount);
             if (mEnabled) {
-                checkPendingLogs(groupState.mName);
+                checkPendingLogs(groupState);
             } else {
                 MobileCenterLog.warn(LOG_TAG, "Channel is temporarily disabled, log was saved to disk.");
             }
@@ -549,40 +1083,269 @@ public class DefaultChannel implements Channel {
 
     /**
      * Check for logs to trigger immediately or schedule with a timer or does nothing if no logs.
+     * Must be called with the group monitor held.
      *
-     * @param groupName the group name.
+     * @param groupState the group state.
      */
-    private synchronized void checkPendingLogs(@NonNull String groupName) {
-        GroupState groupState = mGroupStates.get(groupName);
+    private void checkPendingLogs(@NonNull GroupState groupState) {
         long pendingLogCount = groupState.mPendingLogCount;
-        MobileCenterLog.debug(LOG_TAG, "checkPendingLogs(" + groupName + ") pendingLogCount=" + pendingLogCount);
-        if (pendingLogCount >= groupState.mMaxLogsPerBatch)
-            triggerIngestion(groupName);
+        if (MobileCenterLog.isLoggable(DEBUG))
+            MobileCenterLog.debug(LOG_TAG, "checkPendingLogs(" + groupState.mName + ") pendingLogCount=" + pendingLogCount);
+        updateNetwork(groupState);
+        boolean immediate = groupState.mPriority == GroupPriority.IMMEDIATE && pendingLogCount > 0;
+        if (immediate || pendingLogCount >= groupState.mBatchPolicy.getMaxLogsPerBatch(pendingLogCount))
+            triggerIngestion(groupState);
         else if (pendingLogCount > 0 && !groupState.mScheduled) {
             groupState.mScheduled = true;
-            mIngestionHandler.postDelayed(groupState.mRunnable, groupState.mBatchTimeInterval);
+            mIngestionHandler.postDelayed(groupState.mRunnable, groupState.mBatchPolicy.getBatchTimeInterval());
         }
     }
 
+    /**
+     * Update the batch policy of a group with the current network type.
+     *
+     * @param groupState the group state.
+     */
+    private void updateNetwork(@NonNull GroupState groupState) {
+        if (mNetworkStateHelper != null)
+            groupState.mBatchPolicy.setNetwork(mNetworkStateHelper.isNetworkMetered(), mNetworkStateHelper.isNetworkSlow());
+    }
+
+    /**
+     * Track when the application goes to background or foreground.
+     * Called on the main thread, batch policies are updated on the Mobile Center handler thread
+     * so that the main thread never waits for a group monitor held across database operations.
+     *
+     * @param background true if the application is in background.
+     */
+    private void setBackground(final boolean background) {
+        if (mBackground == background)
+            return;
+        mBackground = background;
+        MobileCenterLog.debug(LOG_TAG, "Application is in " + (background ? "background" : "foreground"));
+        mMobileCenterHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                applyBackground(background);
+            }
+        });
+    }
+
+    /**
+     * Update batch policies when the application goes to background or foreground.
+     * Going to background reschedules pending logs with the shortest interval so they are sent before the process is killed.
+     *
+     * @param background true if the application is in background.
+     */
+    private synchronized void applyBackground(boolean background) {
+
+        /* Skip a transition already superseded by the next one. */
+        if (mBackground != background)
+            return;
+        final int stateSnapshot = mCurrentState;
+        for (GroupState groupState : mGroupStates.values()) {
+            boolean reschedule;
+            synchronized (groupState) {
+                groupState.mBatchPolicy.setBackground(background);
+                reschedule = background && groupState.mScheduled;
+                if (reschedule)
+                    cancelTimer(groupState);
+            }
+            if (reschedule)
+                checkPendingLogsAfterPost(groupState, stateSnapshot);
+        }
+
+        /* Compact storage after the pending logs were triggered. */
+        if (background)
+            scheduleCompaction(0);
+    }
+
+    /**
+     * Schedule writing buffered logs to the database if not already scheduled.
+     */
+    private void scheduleFlush() {
+        if (mFlushScheduled.compareAndSet(false, true))
+            mMobileCenterHandler.postDelayed(mFlushRunnable, PERSISTENCE_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Write buffered logs to the database now.
+     */
+    private void flush() {
+        if (mFlushScheduled.compareAndSet(true, false))
+            mMobileCenterHandler.removeCallbacks(mFlushRunnable);
+        mPersistence.flush();
+    }
+
+    /**
+     * Schedule compacting the storage, postponing any compaction already scheduled.
+     * As it is postponed after each sent batch, compaction runs once sending becomes idle.
+     *
+     * @param delay delay in ms.
+     */
+    private void scheduleCompaction(long delay) {
+        mMobileCenterHandler.removeCallbacks(mCompactRunnable);
+        mMobileCenterHandler.postDelayed(mCompactRunnable, delay);
+    }
+
+    /**
+     * Schedule applying retention policies if not already scheduled.
+     *
+     * @param delay delay in ms.
+     */
+    private void scheduleSweep(long delay) {
+        if (mSweepScheduled.compareAndSet(false, true))
+            mMobileCenterHandler.postDelayed(mSweepRunnable, delay);
+    }
+
+    /**
+     * Delete expired logs and logs over the storage quota of every group that has a retention policy,
+     * reporting them as failures to the group listener. Runs on the Mobile Center handler thread
+     * and reschedules itself while a group has a retention policy.
+     */
+    @VisibleForTesting
+    void sweepLogs() {
+        mSweepScheduled.set(false);
+        boolean retention = false;
+        for (GroupState groupState : mGroupStates.values()) {
+            List<Log> expiredLogs = new ArrayList<>();
+            List<Log> evictedLogs = new ArrayList<>();
+            synchronized (groupState) {
+                if (groupState.mMaxLogAge <= 0 && groupState.mMaxStorageBytes <= 0)
+                    continue;
+                retention = true;
+                int deletedLogCount = mPersistence.trimLogs(groupState.mName, groupState.mMaxLogAge, groupState.mMaxStorageBytes, expiredLogs, evictedLogs);
+                groupState.mPendingLogCount = Math.max(0, groupState.mPendingLogCount - deletedLogCount);
+                groupState.mExpiredLogCount.addAndGet(expiredLogs.size());
+                groupState.mEvictedLogCount.addAndGet(evictedLogs.size());
+            }
+            GroupListener groupListener = groupState.mListener;
+            if (groupListener != null) {
+                for (Log log : expiredLogs) {
+                    groupListener.onBeforeSending(log);
+                    groupListener.onFailure(log, new CancellationException("Log expired before being sent."));
+                }
+                for (Log log : evictedLogs) {
+                    groupListener.onBeforeSending(log);
+                    groupListener.onFailure(log, new CancellationException("Log evicted by storage quota."));
+                }
+            }
+        }
+        if (retention) {
+            refreshStorageStats();
+            scheduleSweep(RETENTION_SWEEP_INTERVAL);
+        }
+    }
+
+    /**
+     * Measure storage on the Mobile Center handler thread so that metrics can be read without querying the database.
+     */
+    private void refreshStorageStats() {
+        DatabaseStats storageStats = mPersistence.getStorageStats();
+        if (storageStats != null)
+            mMetrics.setStorageStats(storageStats);
+    }
+
     @Override
-    public synchronized void addListener(Listener listener) {
+    public void addListener(Listener listener) {
         mListeners.add(listener);
     }
 
     @Override
-    public synchronized void removeListener(Listener listener) {
+    public void removeListener(Listener listener) {
         mListeners.remove(listener);
     }
 
     @Override
     public synchronized void shutdown() {
+
+        /* Persist staged logs. */
+        for (GroupState groupState : mGroupStates.values()) {
+            LogStagingQueue stagingQueue = groupState.mStagingQueue;
+            if (stagingQueue != null)
+                drainStagedLogs(groupState, stagingQueue);
+        }
         suspend(false, new CancellationException());
+        flush();
+    }
+
+    /**
+     * Tracks started activities to detect when the application goes to background.
+     */
+    private class BackgroundTracker implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            mStartedActivityCount++;
+            setBackground(false);
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            mStartedActivityCount = Math.max(0, mStartedActivityCount - 1);
+            if (mStartedActivityCount == 0)
+                setBackground(true);
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+
+    /**
+     * A batch of logs of a group being sent.
+     */
+    private class Batch {
+
+        /**
+         * Group state.
+         */
+        final GroupState mGroupState;
+
+        /**
+         * Channel state when the batch was created.
+         */
+        final int mStateSnapshot;
+
+        /**
+         * Batch identifier in persistence.
+         */
+        final String mBatchId;
+
+        /**
+         * Logs of the batch.
+         */
+        final LogContainer mLogContainer;
+
+        Batch(GroupState groupState, int stateSnapshot, String batchId, LogContainer logContainer) {
+            mGroupState = groupState;
+            mStateSnapshot = stateSnapshot;
+            mBatchId = batchId;
+            mLogContainer = logContainer;
+        }
     }
 
     /**
      * State for a specific log group.
      */
-    private class GroupState {
+    private class GroupState extends GroupMetrics {
 
         /**
          * Group name
@@ -590,43 +1353,64 @@ public class DefaultChannel implements Channel {
         final String mName;
 
         /**
-         * Maximum log count per batch.
+         * Batch size and time to wait before 2 batches, adapted to current conditions.
          */
-        final int mMaxLogsPerBatch;
+        final AdaptiveBatchPolicy mBatchPolicy;
 
         /**
-         * Time to wait before 2 batches, in ms.
+         * Maximum number of batches in parallel.
          */
-        final long mBatchTimeInterval;
+        final int mMaxParallelBatches;
 
         /**
-         * Maximum number of batches in parallel.
+         * Priority class.
          */
-        final int mMaxParallelBatches;
+        @GroupPriority
+        final int mPriority;
 
         /**
          * Batches being currently sent to ingestion.
          */
-        final Map<String, List<Log>> mSendingBatches = new HashMap<>();
+        final Map<String, LogContainer> mSendingBatches = new HashMap<>();
+
+        /**
+         * Size of {@link #mSendingBatches}, updated with the group monitor held but readable without it.
+         */
+        final AtomicInteger mInFlightBatchCount = new AtomicInteger();
 
         /**
          * A listener for a service.
          */
         final GroupListener mListener;
 
+        /**
+         * Logs waiting to be persisted, null when enqueuing blocks on persistence.
+         */
+        volatile LogStagingQueue mStagingQueue;
+
+        /**
+         * Maximum time in ms a persisted log is kept, 0 for no limit.
+         */
+        long mMaxLogAge;
+
+        /**
+         * Maximum storage size in bytes of persisted logs, 0 for no limit.
+         */
+        long mMaxStorageBytes;
+
         /**
          * Pending log count not part of a batch yet.
          */
-        int mPendingLogCount;
+        volatile int mPendingLogCount;
 
         /**
          * Is timer scheduled.
          */
-        boolean mScheduled;
+        volatile boolean mScheduled;
 
         /**
          * Runnable that triggers ingestion of this group data
-         * and triggers itself in {@link #mBatchTimeInterval} ms.
+         * and triggers itself after the batch interval of {@link #mBatchPolicy}.
          */
         final Runnable mRunnable = new Runnable() {
 
@@ -637,7 +1421,9 @@ public class DefaultChannel implements Channel {
 
                     @Override
                     public void run() {
-                        triggerIngestion(mName);
+                        synchronized (GroupState.this) {
+                            triggerIngestion(GroupState.this);
+                        }
                     }
                 });
             }
@@ -650,14 +1436,27 @@ public class DefaultChannel implements Channel {
          * @param maxLogsPerBatch    max batch size.
          * @param batchTimeInterval  batch interval in ms.
          * @param maxParallelBatches max number of parallel batches.
+         * @param priority           priority class.
          * @param listener           listener for a service.
          */
-        GroupState(String name, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener listener) {
+        GroupState(String name, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, @GroupPriority int priority, GroupListener listener) {
             mName = name;
-            mMaxLogsPerBatch = maxLogsPerBatch;
-            mBatchTimeInterval = batchTimeInterval;
+            mBatchPolicy = new AdaptiveBatchPolicy(maxLogsPerBatch, batchTimeInterval);
             mMaxParallelBatches = maxParallelBatches;
+            mPriority = priority;
             mListener = listener;
         }
+
+        @Override
+        public int getPendingLogCount() {
+            return Math.max(0, mPendingLogCount);
+        }
+
+        @Override
+        public int getInFlightBatchCount() {
+
+            /* Read without the group monitor so that polling metrics never waits for persistence. */
+            return mInFlightBatchCount.get();
+        }
     }
 }
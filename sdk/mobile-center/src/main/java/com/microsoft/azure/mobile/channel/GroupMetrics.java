@@ -0,0 +1,129 @@
+package com.microsoft.azure.mobile.channel;
+
+import com.microsoft.azure.mobile.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of a channel group. Reading them never blocks nor allocates.
+ */
+public abstract class GroupMetrics {
+
+    /**
+     * Number of logs dropped by the overflow policy.
+     */
+    final AtomicLong mDroppedLogCount = new AtomicLong();
+
+    /**
+     * Number of persisted logs deleted because they expired.
+     */
+    final AtomicLong mExpiredLogCount = new AtomicLong();
+
+    /**
+     * Number of persisted logs deleted because of the storage quota.
+     */
+    final AtomicLong mEvictedLogCount = new AtomicLong();
+
+    /**
+     * Number of logs acknowledged by ingestion.
+     */
+    final AtomicLong mSentLogCount = new AtomicLong();
+
+    /**
+     * Number of logs rejected by ingestion.
+     */
+    final AtomicLong mFailedLogCount = new AtomicLong();
+
+    /**
+     * Time between enqueuing logs and their acknowledgment by ingestion.
+     */
+    final LatencyHistogram mDeliveryLatency = new LatencyHistogram();
+
+    /**
+     * Duration of the requests that sent the batches of this group.
+     */
+    final LatencyHistogram mRequestLatency = new LatencyHistogram();
+
+    /**
+     * Init.
+     */
+    GroupMetrics() {
+    }
+
+    /**
+     * Get the number of persisted logs that are not part of a batch yet.
+     *
+     * @return number of pending logs.
+     */
+    public abstract int getPendingLogCount();
+
+    /**
+     * Get the number of batches being sent.
+     *
+     * @return number of batches in flight.
+     */
+    public abstract int getInFlightBatchCount();
+
+    /**
+     * Get the number of logs dropped by the overflow policy.
+     *
+     * @return number of dropped logs.
+     */
+    public long getDroppedLogCount() {
+        return mDroppedLogCount.get();
+    }
+
+    /**
+     * Get the number of persisted logs deleted because they expired.
+     *
+     * @return number of expired logs.
+     */
+    public long getExpiredLogCount() {
+        return mExpiredLogCount.get();
+    }
+
+    /**
+     * Get the number of persisted logs deleted because of the storage quota.
+     *
+     * @return number of evicted logs.
+     */
+    public long getEvictedLogCount() {
+        return mEvictedLogCount.get();
+    }
+
+    /**
+     * Get the number of logs acknowledged by ingestion.
+     *
+     * @return number of sent logs.
+     */
+    public long getSentLogCount() {
+        return mSentLogCount.get();
+    }
+
+    /**
+     * Get the number of logs rejected by ingestion with a non recoverable error.
+     *
+     * @return number of failed logs.
+     */
+    public long getFailedLogCount() {
+        return mFailedLogCount.get();
+    }
+
+    /**
+     * Get the time between enqueuing logs and their acknowledgment by ingestion.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getDeliveryLatency() {
+        return mDeliveryLatency;
+    }
+
+    /**
+     * Get the duration of the requests that sent the batches of this group.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return mRequestLatency;
+    }
+}
@@ -0,0 +1,34 @@
+package com.microsoft.azure.mobile.channel;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Priority classes for {@link Channel#addGroup}. Higher values are sent first.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        GroupPriority.NORMAL,
+        GroupPriority.HIGH,
+        GroupPriority.IMMEDIATE
+})
+public @interface GroupPriority {
+
+    /**
+     * Logs are sent when the batch is full or when the batch time interval elapsed. This is the default.
+     */
+    int NORMAL = 0;
+
+    /**
+     * Like {@link #NORMAL}, but sent before lower priority groups, which give up their parallel batches
+     * while this group has logs to send.
+     */
+    int HIGH = 1;
+
+    /**
+     * Like {@link #HIGH}, and logs are sent as soon as they are persisted regardless of the batch time interval.
+     */
+    int IMMEDIATE = 2;
+}
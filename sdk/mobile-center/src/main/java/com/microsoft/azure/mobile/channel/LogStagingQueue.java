@@ -0,0 +1,119 @@
+package com.microsoft.azure.mobile.channel;
+
+import com.microsoft.azure.mobile.ingestion.models.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue of logs waiting to be persisted, applying an {@link OverflowPolicy} when full.
+ */
+class LogStagingQueue {
+
+    /**
+     * Staged logs.
+     */
+    private final Queue<Log> mLogs = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of staged logs, the concurrent queue size being linear.
+     */
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    /**
+     * Is a drain of the queue scheduled.
+     */
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /**
+     * Number of logs enqueued while the queue was full, used for sampling.
+     */
+    private final AtomicLong mOverflowCount = new AtomicLong();
+
+    /**
+     * Admission policy.
+     */
+    private final int mPolicy;
+
+    /**
+     * Maximum number of staged logs.
+     */
+    private final int mCapacity;
+
+    /**
+     * One log out of this number is kept when sampling.
+     */
+    private final int mSampleRate;
+
+    /**
+     * Init.
+     *
+     * @param policy     admission policy.
+     * @param capacity   maximum number of staged logs.
+     * @param sampleRate one log out of this number is kept when sampling.
+     */
+    LogStagingQueue(@OverflowPolicy int policy, int capacity, int sampleRate) {
+        mPolicy = policy;
+        mCapacity = Math.max(1, capacity);
+        mSampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * Stage a log, applying the policy if the queue is full.
+     *
+     * @param log log to stage.
+     * @return the log that was dropped, either this one or the oldest one, or null if none was dropped.
+     */
+    Log offer(Log log) {
+        while (true) {
+            int size = mSize.get();
+            if (size < mCapacity) {
+                if (mSize.compareAndSet(size, size + 1)) {
+                    mLogs.offer(log);
+                    return null;
+                }
+                continue;
+            }
+            if (mPolicy == OverflowPolicy.DROP_NEWEST || (mPolicy == OverflowPolicy.SAMPLE && mOverflowCount.incrementAndGet() % mSampleRate != 0))
+                return log;
+
+            /* Replace the oldest log, retry if the queue was drained in the meantime. */
+            Log oldest = mLogs.poll();
+            if (oldest != null) {
+                mLogs.offer(log);
+                return oldest;
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest staged log.
+     *
+     * @return the oldest staged log, or null if empty.
+     */
+    Log poll() {
+        Log log = mLogs.poll();
+        if (log != null)
+            mSize.decrementAndGet();
+        return log;
+    }
+
+    /**
+     * Mark a drain as scheduled.
+     *
+     * @return true if a drain was not already scheduled and the caller must schedule one.
+     */
+    boolean scheduleDrain() {
+        return mDrainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Mark the scheduled drain as started, logs staged after this call schedule a new drain.
+     */
+    void onDrainStarted() {
+        mDrainScheduled.set(false);
+    }
+}
@@ -0,0 +1,39 @@
+package com.microsoft.azure.mobile.channel;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Admission policies for {@link Channel#setOverflowPolicy}, applied when a group staging queue is full.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        OverflowPolicy.BLOCK,
+        OverflowPolicy.DROP_NEWEST,
+        OverflowPolicy.DROP_OLDEST,
+        OverflowPolicy.SAMPLE
+})
+public @interface OverflowPolicy {
+
+    /**
+     * Logs are not staged, enqueuing waits until the log is persisted. This is the default.
+     */
+    int BLOCK = 0;
+
+    /**
+     * The log being enqueued is dropped.
+     */
+    int DROP_NEWEST = 1;
+
+    /**
+     * The oldest staged log is dropped to make room for the log being enqueued.
+     */
+    int DROP_OLDEST = 2;
+
+    /**
+     * Only one log out of the sample rate is kept, replacing the oldest staged log, the others are dropped.
+     */
+    int SAMPLE = 3;
+}
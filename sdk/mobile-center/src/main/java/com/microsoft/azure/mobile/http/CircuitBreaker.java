@@ -0,0 +1,217 @@
+package com.microsoft.azure.mobile.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper.PreferencesStorage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
+
+/**
+ * Circuit breaker shared by all the calls to an endpoint.
+ * <p>
+ * The circuit is closed while the endpoint works. After {@link #FAILURE_THRESHOLD} consecutive
+ * server errors, or as soon as the server asks to back off with a 429 or 503 status, the circuit opens:
+ * calls wait until the open period ends, honoring the Retry-After header if any, up to {@link #MAX_OPEN_DURATION}.
+ * The open period grows with decorrelated jitter so that devices don't retry in sync.
+ * Once the open period ends the circuit is half-open: a single probe call goes through,
+ * closing the circuit if it succeeds or opening it again if it fails.
+ * The end of the open period is persisted so that restarting the application does not bypass it.
+ */
+class CircuitBreaker {
+
+    /**
+     * Number of consecutive server errors that opens the circuit.
+     */
+    @VisibleForTesting
+    static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * Minimum time the circuit stays open.
+     */
+    @VisibleForTesting
+    static final long MIN_OPEN_DURATION = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Maximum time the circuit stays open, even if the server asks for longer.
+     */
+    @VisibleForTesting
+    static final long MAX_OPEN_DURATION = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Time after which a probe call that did not report back is considered lost.
+     */
+    @VisibleForTesting
+    static final long PROBE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Preference key prefix for the end of the open period of an endpoint.
+     */
+    @VisibleForTesting
+    static final String PREFERENCE_OPEN_UNTIL = "HttpCircuitBreaker.openUntil.";
+
+    /**
+     * Preference key prefix for the last open duration of an endpoint.
+     */
+    @VisibleForTesting
+    static final String PREFERENCE_OPEN_DURATION = "HttpCircuitBreaker.openDuration.";
+
+    /**
+     * Shared instances per endpoint.
+     */
+    private static final Map<String, CircuitBreaker> sInstances = new HashMap<>();
+
+    /**
+     * Random used for jitter.
+     */
+    private final Random mRandom = new Random();
+
+    /**
+     * Endpoint.
+     */
+    private final String mEndpoint;
+
+    /**
+     * Number of consecutive server errors.
+     */
+    private int mFailureCount;
+
+    /**
+     * Last open duration, 0 if the circuit did not open since the last success.
+     */
+    private long mOpenDuration;
+
+    /**
+     * End of the open period as a wall clock time, 0 when the circuit is closed.
+     * When in the past, the circuit is half-open.
+     */
+    private long mOpenUntil;
+
+    /**
+     * Start time of the probe call in half-open state, 0 if none.
+     */
+    private long mProbeStartTime;
+
+    /**
+     * Init and restore persisted state.
+     *
+     * @param endpoint endpoint.
+     */
+    @VisibleForTesting
+    CircuitBreaker(@NonNull String endpoint) {
+        mEndpoint = endpoint;
+        mOpenUntil = PreferencesStorage.getLong(PREFERENCE_OPEN_UNTIL + endpoint, 0);
+        mOpenDuration = PreferencesStorage.getLong(PREFERENCE_OPEN_DURATION + endpoint, 0);
+    }
+
+    /**
+     * Get the circuit breaker of an endpoint.
+     *
+     * @param endpoint endpoint, usually the URL authority.
+     * @return shared instance.
+     */
+    static synchronized CircuitBreaker getInstance(@NonNull String endpoint) {
+        CircuitBreaker instance = sInstances.get(endpoint);
+        if (instance == null) {
+            instance = new CircuitBreaker(endpoint);
+            sInstances.put(endpoint, instance);
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    static synchronized void unsetInstances() {
+        sInstances.clear();
+    }
+
+    /**
+     * Ask for permission to call the endpoint.
+     *
+     * @return 0 if the call can proceed, otherwise the time to wait in ms before asking again.
+     */
+    synchronized long acquire() {
+        if (mOpenUntil == 0)
+            return 0;
+        long now = System.currentTimeMillis();
+
+        /* The wall clock may have been set back since the end of the open period was saved. */
+        if (mOpenUntil - now > MAX_OPEN_DURATION)
+            mOpenUntil = now + MAX_OPEN_DURATION;
+        if (now < mOpenUntil)
+            return mOpenUntil - now;
+
+        /* Half-open: let a single probe through. */
+        if (mProbeStartTime > 0 && now - mProbeStartTime < PROBE_TIMEOUT)
+            return MIN_OPEN_DURATION;
+        mProbeStartTime = now;
+        return 0;
+    }
+
+    /**
+     * Report a successful call, closing the circuit.
+     */
+    synchronized void onSuccess() {
+        mFailureCount = 0;
+        mProbeStartTime = 0;
+        if (mOpenUntil != 0 || mOpenDuration != 0) {
+            MobileCenterLog.info(LOG_TAG, "Circuit closed for " + mEndpoint);
+            mOpenUntil = 0;
+            mOpenDuration = 0;
+            PreferencesStorage.remove(PREFERENCE_OPEN_UNTIL + mEndpoint);
+            PreferencesStorage.remove(PREFERENCE_OPEN_DURATION + mEndpoint);
+        }
+    }
+
+    /**
+     * Report a failed call.
+     *
+     * @param exception the failure.
+     */
+    synchronized void onFailure(Exception exception) {
+        mProbeStartTime = 0;
+
+        /* Only server errors tell something about the endpoint health. */
+        if (!(exception instanceof HttpException) || !HttpUtils.isRecoverableError(exception))
+            return;
+        HttpException httpException = (HttpException) exception;
+        int statusCode = httpException.getStatusCode();
+        boolean backOff = statusCode == 429 || statusCode == 503;
+        boolean halfOpen = mOpenUntil != 0;
+        if (++mFailureCount >= FAILURE_THRESHOLD || backOff || halfOpen)
+            open(httpException.getRetryAfter());
+    }
+
+    /**
+     * Bound a server directed delay to what the circuit would wait at most.
+     *
+     * @param retryAfter time in ms the server asked to wait.
+     * @return the delay to honor, between 0 and {@link #MAX_OPEN_DURATION}.
+     */
+    static long clampRetryAfter(long retryAfter) {
+        return Math.max(0, Math.min(retryAfter, MAX_OPEN_DURATION));
+    }
+
+    /**
+     * Open the circuit.
+     *
+     * @param retryAfter time in ms the server asked to wait, 0 if none.
+     */
+    private void open(long retryAfter) {
+
+        /* Decorrelated jitter: random between the minimum and 3 times the previous duration. */
+        long upperBound = Math.max(MIN_OPEN_DURATION, Math.min(MAX_OPEN_DURATION, mOpenDuration * 3));
+        mOpenDuration = MIN_OPEN_DURATION + (long) (mRandom.nextDouble() * (upperBound - MIN_OPEN_DURATION));
+        long duration = Math.max(mOpenDuration, clampRetryAfter(retryAfter));
+        mOpenUntil = System.currentTimeMillis() + duration;
+        mFailureCount = 0;
+        MobileCenterLog.warn(LOG_TAG, "Circuit opened for " + mEndpoint + " during " + duration + " ms");
+        PreferencesStorage.putLong(PREFERENCE_OPEN_UNTIL + mEndpoint, mOpenUntil);
+        PreferencesStorage.putLong(PREFERENCE_OPEN_DURATION + mEndpoint, mOpenDuration);
+    }
+}
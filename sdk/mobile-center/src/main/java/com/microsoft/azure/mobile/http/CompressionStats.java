@@ -0,0 +1,92 @@
+package com.microsoft.azure.mobile.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters about request bodies compressed by {@link DefaultHttpClient}.
+ */
+public class CompressionStats {
+
+    /**
+     * Number of compressed requests.
+     */
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Total size of request bodies before compression, in bytes.
+     */
+    private final AtomicLong mUncompressedBytes = new AtomicLong();
+
+    /**
+     * Total size of request bodies after compression, in bytes.
+     */
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+
+    /**
+     * Total time spent compressing, in nanoseconds.
+     */
+    private final AtomicLong mCompressionTime = new AtomicLong();
+
+    /**
+     * Record a compressed request body.
+     *
+     * @param uncompressedBytes size before compression.
+     * @param compressedBytes   size after compression.
+     * @param compressionTime   time spent compressing in nanoseconds.
+     */
+    void record(long uncompressedBytes, long compressedBytes, long compressionTime) {
+        mRequestCount.incrementAndGet();
+        mUncompressedBytes.addAndGet(uncompressedBytes);
+        mCompressedBytes.addAndGet(compressedBytes);
+        mCompressionTime.addAndGet(compressionTime);
+    }
+
+    /**
+     * Get the number of compressed requests.
+     *
+     * @return number of compressed requests.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Get the total size of request bodies before compression.
+     *
+     * @return size in bytes.
+     */
+    public long getUncompressedBytes() {
+        return mUncompressedBytes.get();
+    }
+
+    /**
+     * Get the total size of request bodies after compression.
+     *
+     * @return size in bytes.
+     */
+    public long getCompressedBytes() {
+        return mCompressedBytes.get();
+    }
+
+    /**
+     * Get the total time spent compressing request bodies.
+     * When a body is streamed, this also includes the time spent writing it to the connection.
+     *
+     * @return time in milliseconds.
+     */
+    public long getCompressionTime() {
+        return mCompressionTime.get() / 1000000L;
+    }
+
+    /**
+     * Get the compressed size divided by the uncompressed size, over all compressed requests.
+     *
+     * @return compression ratio, 1 if nothing was compressed yet.
+     */
+    public double getCompressionRatio() {
+        long uncompressedBytes = mUncompressedBytes.get();
+        if (uncompressedBytes == 0)
+            return 1;
+        return (double) mCompressedBytes.get() / uncompressedBytes;
+    }
+}
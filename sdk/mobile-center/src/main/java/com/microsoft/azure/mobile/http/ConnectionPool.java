@@ -0,0 +1,217 @@
+package com.microsoft.azure.mobile.http;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
+
+/**
+ * Keeps HTTP connections of a {@link DefaultHttpClient} alive between calls.
+ * <p>
+ * Connections are pooled by {@link HttpURLConnection} as long as responses are fully read
+ * and connections are not disconnected. For HTTPS, this class also tracks the sockets it opens
+ * through its own socket factory to count handshakes and to close the connections that were
+ * idle for too long or that exceed the pool size, as servers may have closed them already.
+ */
+class ConnectionPool {
+
+    /**
+     * Maximum number of connections kept alive.
+     */
+    private final int mMaxConnections;
+
+    /**
+     * Time in ms after which an idle connection is not reused.
+     */
+    private final long mIdleTimeout;
+
+    /**
+     * Connection statistics.
+     */
+    private final ConnectionStats mConnectionStats = new ConnectionStats();
+
+    /**
+     * Open sockets, oldest first.
+     */
+    private final LinkedList<Socket> mSockets = new LinkedList<>();
+
+    /**
+     * Socket factory set on HTTPS connections, the same instance must be used for connections to be reused.
+     */
+    private SSLSocketFactory mSocketFactory;
+
+    /**
+     * Number of calls in progress.
+     */
+    private int mActiveCallCount;
+
+    /**
+     * Time of the end of the last call, from {@link SystemClock#elapsedRealtime()}.
+     */
+    private long mLastCallEndTime;
+
+    /**
+     * Init.
+     *
+     * @param maxConnections maximum number of connections kept alive.
+     * @param idleTimeout    time in ms after which an idle connection is not reused.
+     */
+    ConnectionPool(int maxConnections, long idleTimeout) {
+        mMaxConnections = Math.max(1, maxConnections);
+        mIdleTimeout = idleTimeout;
+    }
+
+    /**
+     * Get connection statistics.
+     *
+     * @return connection statistics.
+     */
+    ConnectionStats getConnectionStats() {
+        return mConnectionStats;
+    }
+
+    /**
+     * Get the number of tracked open connections.
+     *
+     * @return number of open connections.
+     */
+    @VisibleForTesting
+    synchronized int getConnectionCount() {
+        return mSockets.size();
+    }
+
+    /**
+     * Prepare a connection before a call.
+     *
+     * @param urlConnection connection about to be used.
+     */
+    synchronized void onCallStarted(HttpURLConnection urlConnection) {
+
+        /* Don't reuse connections that were idle too long, the server may have closed them. */
+        if (mActiveCallCount == 0 && !mSockets.isEmpty() && SystemClock.elapsedRealtime() - mLastCallEndTime > mIdleTimeout) {
+            MobileCenterLog.debug(LOG_TAG, "Closing " + mSockets.size() + " idle connection(s).");
+            closeSockets(mSockets.size());
+        }
+        mActiveCallCount++;
+        if (urlConnection instanceof HttpsURLConnection) {
+            if (mSocketFactory == null)
+                mSocketFactory = new TrackingSocketFactory(((HttpsURLConnection) urlConnection).getSSLSocketFactory());
+            ((HttpsURLConnection) urlConnection).setSSLSocketFactory(mSocketFactory);
+            mConnectionStats.recordRequest();
+        }
+    }
+
+    /**
+     * Release resources after a call.
+     */
+    synchronized void onCallEnded() {
+        mActiveCallCount--;
+        mLastCallEndTime = SystemClock.elapsedRealtime();
+
+        /* We only know which connections are idle when no call is in progress. */
+        if (mActiveCallCount == 0)
+            closeSockets(mSockets.size() - mMaxConnections);
+    }
+
+    /**
+     * Track a new socket.
+     *
+     * @param socket new socket.
+     * @return the socket.
+     */
+    @VisibleForTesting
+    synchronized Socket onSocketCreated(Socket socket) {
+        mConnectionStats.recordHandshake();
+        mSockets.add(socket);
+        return socket;
+    }
+
+    /**
+     * Close the oldest sockets, forgetting the ones closed by the connection pool or the server.
+     *
+     * @param count number of sockets to close.
+     */
+    private void closeSockets(int count) {
+        for (Iterator<Socket> iterator = mSockets.iterator(); iterator.hasNext(); ) {
+            Socket socket = iterator.next();
+            if (socket.isClosed()) {
+                iterator.remove();
+            } else if (count > 0) {
+                count--;
+                iterator.remove();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    MobileCenterLog.warn(LOG_TAG, "Failed to close connection.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Socket factory reporting the sockets it creates to the pool.
+     */
+    private class TrackingSocketFactory extends SSLSocketFactory {
+
+        /**
+         * Factory creating the sockets.
+         */
+        private final SSLSocketFactory mDelegate;
+
+        TrackingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return onSocketCreated(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return onSocketCreated(mDelegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return onSocketCreated(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return onSocketCreated(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return onSocketCreated(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return onSocketCreated(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.microsoft.azure.mobile.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters about connections used by {@link DefaultHttpClient} when keep-alive is enabled.
+ * Only HTTPS connections are tracked.
+ */
+public class ConnectionStats {
+
+    /**
+     * Number of requests.
+     */
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Number of new connections, each paying a TCP and TLS handshake.
+     */
+    private final AtomicLong mHandshakeCount = new AtomicLong();
+
+    /**
+     * Record a request.
+     */
+    void recordRequest() {
+        mRequestCount.incrementAndGet();
+    }
+
+    /**
+     * Record a new connection.
+     */
+    void recordHandshake() {
+        mHandshakeCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of requests.
+     *
+     * @return number of requests.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Get the number of requests that opened a new connection.
+     *
+     * @return number of handshakes.
+     */
+    public long getHandshakeCount() {
+        return mHandshakeCount.get();
+    }
+
+    /**
+     * Get the number of requests that reused a pooled connection.
+     *
+     * @return number of reused connections.
+     */
+    public long getReuseCount() {
+        return Math.max(0, mRequestCount.get() - mHandshakeCount.get());
+    }
+}
@@ -1,21 +1,30 @@
 package com.microsoft.azure.mobile.http;
 
 import android.net.TrafficStats;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 
 import com.microsoft.azure.mobile.utils.HandlerUtils;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
 
+import static android.util.Log.VERBOSE;
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 import static java.lang.Math.max;
 
@@ -50,10 +59,34 @@ public class DefaultHttpClient implements HttpClient {
      */
     private static final String CONTENT_TYPE_KEY = "Content-Type";
 
+    /**
+     * Content encoding header key.
+     */
+    @VisibleForTesting
+    static final String CONTENT_ENCODING_KEY = "Content-Encoding";
+
+    /**
+     * Content encoding header value for compressed request bodies.
+     */
+    @VisibleForTesting
+    static final String CONTENT_ENCODING_VALUE = "gzip";
+
+    /**
+     * Minimum payload length in bytes to use compression, smaller ones would not fill a network packet anyway.
+     */
+    @VisibleForTesting
+    static final int MIN_GZIP_LENGTH = 1400;
+
     /**
      * Character encoding.
      */
-    private static final String CHARSET_NAME = "UTF-8";
+    public static final String CHARSET_NAME = "UTF-8";
+
+    /**
+     * Chunk size when streaming request body.
+     */
+    @VisibleForTesting
+    static final int STREAMING_CHUNK_SIZE = 8192;
 
     /**
      * Read buffer size.
@@ -70,6 +103,71 @@ public class DefaultHttpClient implements HttpClient {
      */
     private static final int READ_TIMEOUT = 20000;
 
+    /**
+     * Compression statistics, {@code null} if compression is disabled.
+     */
+    private final CompressionStats mCompressionStats;
+
+    /**
+     * Request statistics.
+     */
+    private final RequestStats mRequestStats = new RequestStats();
+
+    /**
+     * Executor running the calls.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Handler receiving the callbacks, {@code null} to use the UI thread.
+     */
+    private final Handler mCallbackHandler;
+
+    /**
+     * Pool keeping connections alive between calls, {@code null} to disconnect after each call.
+     */
+    private ConnectionPool mConnectionPool;
+
+    /**
+     * Init without request compression.
+     */
+    public DefaultHttpClient() {
+        this(false);
+    }
+
+    /**
+     * Init with calls running on the SDK network threads and callbacks on the UI thread.
+     *
+     * @param compressionEnabled whether to gzip request bodies.
+     */
+    public DefaultHttpClient(boolean compressionEnabled) {
+        this(compressionEnabled, null);
+    }
+
+    /**
+     * Init with calls running on the SDK network threads.
+     *
+     * @param compressionEnabled whether to gzip request bodies.
+     * @param callbackHandler    handler receiving the callbacks, {@code null} to use the UI thread.
+     */
+    public DefaultHttpClient(boolean compressionEnabled, Handler callbackHandler) {
+        this(compressionEnabled, HttpExecutor.getSharedInstance(), callbackHandler);
+    }
+
+    /**
+     * Init.
+     *
+     * @param compressionEnabled whether to gzip request bodies.
+     * @param executor           executor running the calls.
+     * @param callbackHandler    handler receiving the callbacks, {@code null} to use the UI thread.
+     */
+    @VisibleForTesting
+    DefaultHttpClient(boolean compressionEnabled, @NonNull Executor executor, Handler callbackHandler) {
+        mCompressionStats = compressionEnabled ? new CompressionStats() : null;
+        mExecutor = executor;
+        mCallbackHandler = callbackHandler;
+    }
+
     /**
      * Dump stream to string.
      *
@@ -102,13 +200,33 @@ public class DefaultHttpClient implements HttpClient {
         }
     }
 
+    /**
+     * Get response headers, first value of each header, with case insensitive names.
+     *
+     * @param urlConnection URL connection.
+     * @return headers.
+     */
+    private static Map<String, String> getHeaders(HttpURLConnection urlConnection) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Map<String, List<String>> headerFields = urlConnection.getHeaderFields();
+        if (headerFields != null) {
+            for (Map.Entry<String, List<String>> header : headerFields.entrySet()) {
+
+                /* Status line has a null name. */
+                if (header.getKey() != null && header.getValue() != null && !header.getValue().isEmpty())
+                    headers.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        return headers;
+    }
+
     /**
      * Do call and tag socket to avoid strict mode issue.
      */
-    private static String doCall(String urlString, String method, Map<String, String> headers, CallTemplate callTemplate) throws Exception {
+    private static String doCall(String urlString, String method, Map<String, String> headers, CallTemplate callTemplate, CompressionStats compressionStats, ConnectionPool connectionPool, RequestStats requestStats) throws Exception {
         TrafficStats.setThreadStatsTag(THREAD_STATS_TAG);
         try {
-            return doHttpCall(urlString, method, headers, callTemplate);
+            return doHttpCall(urlString, method, headers, callTemplate, compressionStats, connectionPool, requestStats);
         } finally {
             TrafficStats.clearThreadStatsTag();
         }
@@ -117,11 +235,17 @@ public class DefaultHttpClient implements HttpClient {
     /**
      * Do http call.
      */
-    private static String doHttpCall(String urlString, String method, Map<String, String> headers, CallTemplate callTemplate) throws Exception {
+    private static String doHttpCall(String urlString, String method, Map<String, String> headers, CallTemplate callTemplate, CompressionStats compressionStats, ConnectionPool connectionPool, RequestStats requestStats) throws Exception {
 
         /* HTTP session. */
         URL url = new URL(urlString);
         HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        if (connectionPool != null)
+            connectionPool.onCallStarted(urlConnection);
+        boolean keepAlive = false;
+        long startTime = SystemClock.elapsedRealtime();
+        long requestBytes = 0;
+        boolean recorded = false;
         try {
 
             /* Configure connection timeouts. */
@@ -138,50 +262,110 @@ public class DefaultHttpClient implements HttpClient {
             if (callTemplate != null)
                 callTemplate.onBeforeCalling(url, headers);
 
+            /* Stream payload through the wire, unless we need to print it for debugging. */
+            if (method.equals(METHOD_POST) && callTemplate instanceof StreamingCallTemplate && MobileCenterLog.getLogLevel() > VERBOSE) {
+                urlConnection.setDoOutput(true);
+                urlConnection.setChunkedStreamingMode(STREAMING_CHUNK_SIZE);
+
+                /* Size is unknown in advance so always compress if enabled. */
+                if (compressionStats != null)
+                    urlConnection.setRequestProperty(CONTENT_ENCODING_KEY, CONTENT_ENCODING_VALUE);
+                OutputStream out = urlConnection.getOutputStream();
+                try {
+                    if (compressionStats != null) {
+                        CountingOutputStream compressedOut = new CountingOutputStream(out);
+                        GZIPOutputStream gzipOut = new GZIPOutputStream(compressedOut, STREAMING_CHUNK_SIZE);
+                        CountingOutputStream uncompressedOut = new CountingOutputStream(gzipOut);
+                        ((StreamingCallTemplate) callTemplate).writeRequestBody(uncompressedOut);
+                        long compressionStartTime = System.nanoTime();
+                        gzipOut.finish();
+
+                        /* Time in the gzip stream includes writing the compressed bytes to the socket, which is not compression. */
+                        long compressionTime = uncompressedOut.mWriteTime + System.nanoTime() - compressionStartTime - compressedOut.mWriteTime;
+                        compressionStats.record(uncompressedOut.mCount, compressedOut.mCount, compressionTime);
+                        requestBytes = compressedOut.mCount;
+                    } else {
+                        CountingOutputStream countingOut = new CountingOutputStream(out);
+                        ((StreamingCallTemplate) callTemplate).writeRequestBody(countingOut);
+                        requestBytes = countingOut.mCount;
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+
             /* Build payload. */
-            if (method.equals(METHOD_POST) && callTemplate != null) {
+            else if (method.equals(METHOD_POST) && callTemplate != null) {
                 String payload = callTemplate.buildRequestBody();
                 MobileCenterLog.verbose(LOG_TAG, payload);
 
-                /* Send payload through the wire. */
+                /* Compress payload if large enough. */
                 byte[] binaryPayload = payload.getBytes(CHARSET_NAME);
+                if (compressionStats != null && binaryPayload.length >= MIN_GZIP_LENGTH) {
+                    long compressionStartTime = System.nanoTime();
+                    ByteArrayOutputStream gzipBuffer = new ByteArrayOutputStream(binaryPayload.length);
+                    GZIPOutputStream gzipOut = new GZIPOutputStream(gzipBuffer);
+                    gzipOut.write(binaryPayload);
+                    gzipOut.close();
+                    byte[] compressedPayload = gzipBuffer.toByteArray();
+                    compressionStats.record(binaryPayload.length, compressedPayload.length, System.nanoTime() - compressionStartTime);
+                    binaryPayload = compressedPayload;
+                    urlConnection.setRequestProperty(CONTENT_ENCODING_KEY, CONTENT_ENCODING_VALUE);
+                }
+
+                /* Send payload through the wire. */
                 urlConnection.setDoOutput(true);
                 urlConnection.setFixedLengthStreamingMode(binaryPayload.length);
                 OutputStream out = urlConnection.getOutputStream();
                 out.write(binaryPayload);
                 out.close();
+                requestBytes = binaryPayload.length;
             }
 
             /* Read response. */
             int status = urlConnection.getResponseCode();
             String response = dump(urlConnection);
-            MobileCenterLog.verbose(LOG_TAG, "HTTP response status=" + status + " payload=" + response);
+            if (MobileCenterLog.isLoggable(VERBOSE))
+                MobileCenterLog.verbose(LOG_TAG, "HTTP response status=" + status + " payload=" + response);
+            if (requestStats != null)
+                requestStats.recordResponse(status, requestBytes, SystemClock.elapsedRealtime() - startTime);
+            recorded = true;
 
             /* Generate exception on failure. */
             if (status != 200)
-                throw new HttpException(status, response);
+                throw new HttpException(status, response, getHeaders(urlConnection));
+
+            /* Response was fully read, the connection can be reused. */
+            keepAlive = connectionPool != null;
             return response;
         } finally {
 
-            /* Release connection. */
-            urlConnection.disconnect();
+            /* Count calls that failed before getting a response. */
+            if (!recorded && requestStats != null)
+                requestStats.recordNetworkError(requestBytes, SystemClock.elapsedRealtime() - startTime);
+
+            /* Release connection, unless keeping it alive for the next call. */
+            if (!keepAlive)
+                urlConnection.disconnect();
+            if (connectionPool != null)
+                connectionPool.onCallEnded();
         }
     }
 
     @Override
     public ServiceCall callAsync(String url, String method, Map<String, String> headers, CallTemplate callTemplate, final ServiceCallback serviceCallback) {
-        final Call call = new Call(url, method, headers, callTemplate, serviceCallback);
+        final Call call = new Call(url, method, headers, callTemplate, serviceCallback, mCompressionStats, mCallbackHandler, mConnectionPool, mRequestStats);
         try {
-            call.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            call.executeOnExecutor(mExecutor);
         } catch (final RejectedExecutionException e) {
 
             /*
-             * When executor saturated (shared with app), we should use the retry mechanism
+             * When executor saturated, we should use the retry mechanism
              * rather than creating more threads to avoid putting too much pressure on the hosting app.
              * Also we need to return the method before calling the listener,
              * so we post the callback on handler to make sure of that.
              */
-            HandlerUtils.runOnUiThread(new Runnable() {
+            post(mCallbackHandler, new Runnable() {
 
                 @Override
                 public void run() {
@@ -199,14 +383,104 @@ public class DefaultHttpClient implements HttpClient {
         };
     }
 
+    /**
+     * Post a runnable to a callback handler.
+     *
+     * @param handler  handler, {@code null} to use the UI thread.
+     * @param runnable runnable.
+     */
+    private static void post(Handler handler, Runnable runnable) {
+        if (handler == null)
+            HandlerUtils.runOnUiThread(runnable);
+        else
+            handler.post(runnable);
+    }
+
     @Override
     public void close() throws IOException {
 
         /* No-op. A decorator can take care of tracking calls to cancel. */
     }
 
+    /**
+     * Keep connections alive between calls instead of disconnecting after each call.
+     * Must be called before the first call.
+     *
+     * @param maxConnections maximum number of connections kept alive.
+     * @param idleTimeout    time in ms after which an idle connection is not reused.
+     */
+    public void setKeepAlive(int maxConnections, long idleTimeout) {
+        mConnectionPool = new ConnectionPool(maxConnections, idleTimeout);
+    }
+
+    /**
+     * Get connection statistics.
+     *
+     * @return connection statistics, {@code null} if keep-alive is disabled.
+     */
+    public ConnectionStats getConnectionStats() {
+        return mConnectionPool == null ? null : mConnectionPool.getConnectionStats();
+    }
+
+    /**
+     * Get request compression statistics.
+     *
+     * @return compression statistics, {@code null} if compression is disabled.
+     */
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
+    /**
+     * Get request statistics.
+     *
+     * @return request statistics.
+     */
+    public RequestStats getRequestStats() {
+        return mRequestStats;
+    }
+
+    /**
+     * Output stream that counts bytes written to it and time spent writing them.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * Number of bytes written.
+         */
+        long mCount;
+
+        /**
+         * Time spent writing in nanoseconds.
+         */
+        long mWriteTime;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            long startTime = System.nanoTime();
+            out.write(oneByte);
+            mWriteTime += System.nanoTime() - startTime;
+            mCount++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            long startTime = System.nanoTime();
+            out.write(buffer, offset, length);
+            mWriteTime += System.nanoTime() - startTime;
+            mCount += length;
+        }
+    }
+
+    /**
+     * HTTP call running on an executor and delivering its result on a handler.
+     */
     @VisibleForTesting
-    static class Call extends AsyncTask<Void, Void, Object> {
+    static class Call implements Runnable {
 
         private final String mUrl;
 
@@ -218,25 +492,116 @@ public class DefaultHttpClient implements HttpClient {
 
         private final ServiceCallback mServiceCallback;
 
-        public Call(String url, String method, Map<String, String> headers, CallTemplate callTemplate, ServiceCallback serviceCallback) {
+        private final CompressionStats mCompressionStats;
+
+        private final Handler mCallbackHandler;
+
+        private final ConnectionPool mConnectionPool;
+
+        private final RequestStats mRequestStats;
+
+        /**
+         * Cancellation flag.
+         */
+        private boolean mCancelled;
+
+        /**
+         * Thread running the call, {@code null} when not running.
+         */
+        private Thread mThread;
+
+        public Call(String url, String method, Map<String, String> headers, CallTemplate callTemplate, ServiceCallback serviceCallback, CompressionStats compressionStats, Handler callbackHandler, ConnectionPool connectionPool, RequestStats requestStats) {
             mUrl = url;
             mMethod = method;
             mHeaders = headers;
             mCallTemplate = callTemplate;
             mServiceCallback = serviceCallback;
+            mCompressionStats = compressionStats;
+            mCallbackHandler = callbackHandler;
+            mConnectionPool = connectionPool;
+            mRequestStats = requestStats;
+        }
+
+        /**
+         * Submit the call.
+         *
+         * @param executor executor running the call.
+         * @return this call.
+         * @throws RejectedExecutionException if the executor is saturated.
+         */
+        Call executeOnExecutor(Executor executor) {
+            executor.execute(this);
+            return this;
+        }
+
+        /**
+         * Cancel the call, its callback will not be invoked.
+         *
+         * @param mayInterruptIfRunning whether to interrupt the thread running the call.
+         */
+        synchronized void cancel(boolean mayInterruptIfRunning) {
+            mCancelled = true;
+            if (mayInterruptIfRunning && mThread != null)
+                mThread.interrupt();
+        }
+
+        /**
+         * Check whether the call was canceled.
+         *
+         * @return true if canceled.
+         */
+        synchronized boolean isCancelled() {
+            return mCancelled;
         }
 
         @Override
-        protected Object doInBackground(Void... params) {
+        public void run() {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+                mThread = Thread.currentThread();
+            }
+            final Object result;
+            try {
+                result = doInBackground();
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+
+                    /* Don't leak the interrupted status of a canceled call to the next call on this thread. */
+                    Thread.interrupted();
+                }
+            }
+            post(mCallbackHandler, new Runnable() {
+
+                @Override
+                public void run() {
+                    onPostExecute(result);
+                }
+            });
+        }
+
+        /**
+         * Do the call.
+         *
+         * @return response string or exception.
+         */
+        Object doInBackground() {
             try {
-                return doCall(mUrl, mMethod, mHeaders, mCallTemplate);
+                return doCall(mUrl, mMethod, mHeaders, mCallTemplate, mCompressionStats, mConnectionPool, mRequestStats);
             } catch (Exception e) {
                 return e;
             }
         }
 
-        @Override
-        protected void onPostExecute(Object result) {
+        /**
+         * Deliver the result unless canceled.
+         *
+         * @param result response string or exception.
+         */
+        void onPostExecute(Object result) {
+            if (isCancelled())
+                return;
             if (result instanceof Exception)
                 mServiceCallback.onCallFailed((Exception) result);
             else
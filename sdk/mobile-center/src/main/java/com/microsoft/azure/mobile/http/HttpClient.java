@@ -3,6 +3,8 @@ package com.microsoft.azure.mobile.http;
 import org.json.JSONException;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.Map;
 
@@ -15,4 +17,20 @@ public interface HttpClient extends Closeable {
 
         void onBeforeCalling(URL url, Map<String, String> headers);
     }
+
+    /**
+     * Call template that can also write the request body directly to the connection,
+     * so that the whole body does not have to be held in memory.
+     */
+    interface StreamingCallTemplate extends CallTemplate {
+
+        /**
+         * Write the request body, UTF-8 encoded. The stream must be left open.
+         *
+         * @param out connection output stream.
+         * @throws JSONException if the body could not be serialized.
+         * @throws IOException   if the body could not be written.
+         */
+        void writeRequestBody(OutputStream out) throws JSONException, IOException;
+    }
 }
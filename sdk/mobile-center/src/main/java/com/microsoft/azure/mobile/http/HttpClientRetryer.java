@@ -7,11 +7,15 @@ import android.support.annotation.VisibleForTesting;
 import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
+import static android.util.Log.DEBUG;
+
 /**
  * Decorator managing retries.
  */
@@ -37,6 +41,16 @@ public class HttpClientRetryer extends HttpClientDecorator {
      */
     private final Random mRandom = new Random();
 
+    /**
+     * Whether calls go through the circuit breaker of their endpoint.
+     */
+    private final boolean mCircuitBreakerEnabled;
+
+    /**
+     * Statistics counting retries, null if not tracked.
+     */
+    private final RequestStats mRequestStats;
+
     /**
      * Init with default retry policy.
      *
@@ -52,18 +66,59 @@ public class HttpClientRetryer extends HttpClientDecorator {
      * @param decoratedApi API to decorate.
      * @param handler      handler for timed retries.
      */
-    @VisibleForTesting
-    HttpClientRetryer(HttpClient decoratedApi, Handler handler) {
+    public HttpClientRetryer(HttpClient decoratedApi, Handler handler) {
+        this(decoratedApi, handler, false);
+    }
+
+    /**
+     * Init.
+     *
+     * @param decoratedApi          API to decorate.
+     * @param handler               handler for timed retries.
+     * @param circuitBreakerEnabled whether calls go through the circuit breaker shared by all the calls to the same endpoint.
+     */
+    public HttpClientRetryer(HttpClient decoratedApi, Handler handler, boolean circuitBreakerEnabled) {
+        this(decoratedApi, handler, circuitBreakerEnabled, null);
+    }
+
+    /**
+     * Init.
+     *
+     * @param decoratedApi          API to decorate.
+     * @param handler               handler for timed retries.
+     * @param circuitBreakerEnabled whether calls go through the circuit breaker shared by all the calls to the same endpoint.
+     * @param requestStats          statistics counting retries, null if not tracked.
+     */
+    public HttpClientRetryer(HttpClient decoratedApi, Handler handler, boolean circuitBreakerEnabled, RequestStats requestStats) {
         super(decoratedApi);
         mHandler = handler;
+        mCircuitBreakerEnabled = circuitBreakerEnabled;
+        mRequestStats = requestStats;
     }
 
+    /**
+     * Get the circuit breaker of the endpoint of a URL.
+     *
+     * @param url URL.
+     * @return circuit breaker or null if disabled.
+     */
+    private CircuitBreaker getCircuitBreaker(String url) {
+        if (!mCircuitBreakerEnabled || url == null)
+            return null;
+        String endpoint;
+        try {
+            endpoint = new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            endpoint = url;
+        }
+        return CircuitBreaker.getInstance(endpoint);
+    }
 
     @Override
     public ServiceCall callAsync(String url, String method, Map<String, String> headers, CallTemplate callTemplate, ServiceCallback serviceCallback) {
 
         /* Wrap the call with the retry logic and call delegate. */
-        RetryableCall retryableCall = new RetryableCall(mDecoratedApi, url, method, headers, callTemplate, serviceCallback);
+        RetryableCall retryableCall = new RetryableCall(mDecoratedApi, url, method, headers, callTemplate, serviceCallback, getCircuitBreaker(url));
         retryableCall.run();
         return retryableCall;
     }
@@ -78,8 +133,37 @@ public class HttpClientRetryer extends HttpClientDecorator {
          */
         private int mRetryCount;
 
-        RetryableCall(HttpClient decoratedApi, String url, String method, Map<String, String> headers, CallTemplate callTemplate, ServiceCallback serviceCallback) {
+        /**
+         * Circuit breaker of the endpoint, null if disabled.
+         */
+        private final CircuitBreaker mCircuitBreaker;
+
+        RetryableCall(HttpClient decoratedApi, String url, String method, Map<String, String> headers, CallTemplate callTemplate, ServiceCallback serviceCallback, CircuitBreaker circuitBreaker) {
             super(decoratedApi, url, method, headers, callTemplate, serviceCallback);
+            mCircuitBreaker = circuitBreaker;
+        }
+
+        @Override
+        public synchronized void run() {
+
+            /* Wait without using a retry while the circuit is open. */
+            if (mCircuitBreaker != null) {
+                long delay = mCircuitBreaker.acquire();
+                if (delay > 0) {
+                    if (MobileCenterLog.isLoggable(DEBUG))
+                        MobileCenterLog.debug(MobileCenter.LOG_TAG, "Circuit is open, call delayed by " + delay + " ms");
+                    mHandler.postDelayed(this, delay);
+                    return;
+                }
+            }
+            super.run();
+        }
+
+        @Override
+        public void onCallSucceeded(String payload) {
+            if (mCircuitBreaker != null)
+                mCircuitBreaker.onSuccess();
+            super.onCallSucceeded(payload);
         }
 
         @Override
@@ -90,13 +174,21 @@ public class HttpClientRetryer extends HttpClientDecorator {
 
         @Override
         public void onCallFailed(Exception e) {
+            if (mCircuitBreaker != null)
+                mCircuitBreaker.onFailure(e);
             if (mRetryCount < RETRY_INTERVALS.length && HttpUtils.isRecoverableError(e)) {
                 long delay = RETRY_INTERVALS[mRetryCount++] / 2;
                 delay += mRandom.nextInt((int) delay);
+
+                /* Honor server directed backoff, the circuit breaker may delay further when retrying. */
+                if (e instanceof HttpException)
+                    delay = Math.max(delay, CircuitBreaker.clampRetryAfter(((HttpException) e).getRetryAfter()));
                 String message = "Try #" + mRetryCount + " failed and will be retried in " + delay + " ms";
                 if (e instanceof UnknownHostException)
                     message += " (UnknownHostException)";
                 MobileCenterLog.warn(MobileCenter.LOG_TAG, message, e);
+                if (mRequestStats != null)
+                    mRequestStats.recordRetry();
                 mHandler.postDelayed(this, delay);
             } else
                 mServiceCallback.onCallFailed(e);
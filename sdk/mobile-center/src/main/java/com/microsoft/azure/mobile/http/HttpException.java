@@ -1,15 +1,34 @@
 package com.microsoft.azure.mobile.http;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 /**
  * HTTP exception.
  */
 public class HttpException extends IOException {
 
+    /**
+     * Retry-After HTTP header.
+     */
+    @VisibleForTesting
+    static final String RETRY_AFTER = "Retry-After";
+
+    /**
+     * HTTP date format used by Retry-After.
+     */
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
     /**
      * HTTP status code.
      */
@@ -20,6 +39,11 @@ public class HttpException extends IOException {
      */
     private final String payload;
 
+    /**
+     * HTTP response headers.
+     */
+    private final Map<String, String> headers;
+
     /**
      * Init with empty response body.
      *
@@ -37,9 +61,21 @@ public class HttpException extends IOException {
      */
     @SuppressWarnings("WeakerAccess")
     public HttpException(int status, @NonNull String payload) {
+        this(status, payload, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Init.
+     *
+     * @param status  HTTP status code.
+     * @param payload HTTP payload.
+     * @param headers HTTP response headers.
+     */
+    public HttpException(int status, @NonNull String payload, @NonNull Map<String, String> headers) {
         super(getDetailMessage(status, payload));
         this.payload = payload;
         this.statusCode = status;
+        this.headers = headers;
     }
 
     @NonNull
@@ -70,6 +106,41 @@ public class HttpException extends IOException {
         return payload;
     }
 
+    /**
+     * Get the HTTP response headers.
+     *
+     * @return HTTP response headers. Can be empty.
+     */
+    @NonNull
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the time the server asked to wait before retrying, from the Retry-After header.
+     *
+     * @return time in ms, 0 if the header is missing or invalid.
+     */
+    public long getRetryAfter() {
+        String value = headers.get(RETRY_AFTER);
+        if (value == null)
+            return 0;
+        value = value.trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+
+            /* Try an HTTP date instead of seconds. */
+            try {
+                SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+            } catch (ParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
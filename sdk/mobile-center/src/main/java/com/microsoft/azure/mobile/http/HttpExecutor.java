@@ -0,0 +1,103 @@
+package com.microsoft.azure.mobile.http;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pool owned by the SDK to run HTTP calls, so that they do not compete with the
+ * application for {@link android.os.AsyncTask} threads.
+ * It is bounded both in threads and in queued calls: when saturated, execution is rejected
+ * and the caller relies on the retry mechanism instead of putting pressure on the hosting app.
+ */
+class HttpExecutor {
+
+    /**
+     * Maximum number of concurrent HTTP calls.
+     */
+    @VisibleForTesting
+    static final int POOL_SIZE = 2;
+
+    /**
+     * Maximum number of HTTP calls waiting for a thread.
+     */
+    @VisibleForTesting
+    static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * Time in seconds an idle thread is kept alive.
+     */
+    private static final long KEEP_ALIVE_TIME = 30;
+
+    /**
+     * Thread name prefix.
+     */
+    @VisibleForTesting
+    static final String THREAD_NAME_PREFIX = "MobileCenter.Http-";
+
+    /**
+     * Shared instance.
+     */
+    private static Executor sSharedInstance;
+
+    @VisibleForTesting
+    HttpExecutor() {
+
+        /* Hide constructor as only static members are used. */
+    }
+
+    /**
+     * Get shared instance.
+     *
+     * @return shared instance.
+     */
+    static synchronized Executor getSharedInstance() {
+        if (sSharedInstance == null)
+            sSharedInstance = newExecutor();
+        return sSharedInstance;
+    }
+
+    /**
+     * Create a new bounded executor with low priority named threads.
+     *
+     * @return new executor.
+     */
+    @VisibleForTesting
+    static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new BackgroundThreadFactory());
+
+        /* Release threads when the SDK is idle. */
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates named threads running with background priority.
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+
+        /**
+         * Thread counter used in names.
+         */
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, THREAD_NAME_PREFIX + mThreadCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.microsoft.azure.mobile.http;
+
+import com.microsoft.azure.mobile.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters about requests made by {@link DefaultHttpClient} and retried by {@link HttpClientRetryer}.
+ */
+public class RequestStats {
+
+    /**
+     * Number of requests per status class, index 0 counting requests that failed without a response.
+     */
+    private final AtomicLongArray mStatusCounts = new AtomicLongArray(6);
+
+    /**
+     * Total size of request bodies sent on the wire, in bytes.
+     */
+    private final AtomicLong mRequestBytes = new AtomicLong();
+
+    /**
+     * Number of retries.
+     */
+    private final AtomicLong mRetryCount = new AtomicLong();
+
+    /**
+     * Request durations, including sending the body and reading the response.
+     */
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    /**
+     * Record a request that got a response.
+     *
+     * @param status   HTTP status code.
+     * @param bytes    size of the request body sent on the wire.
+     * @param duration request duration in milliseconds.
+     */
+    void recordResponse(int status, long bytes, long duration) {
+        int statusClass = status / 100;
+        mStatusCounts.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : 0);
+        mRequestBytes.addAndGet(bytes);
+        mLatency.record(duration);
+    }
+
+    /**
+     * Record a request that failed without a response.
+     *
+     * @param bytes    size of the request body sent on the wire before failing.
+     * @param duration request duration in milliseconds.
+     */
+    void recordNetworkError(long bytes, long duration) {
+        mStatusCounts.incrementAndGet(0);
+        mRequestBytes.addAndGet(bytes);
+        mLatency.record(duration);
+    }
+
+    /**
+     * Record a retry.
+     */
+    void recordRetry() {
+        mRetryCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of requests.
+     *
+     * @return number of requests.
+     */
+    public long getRequestCount() {
+        long count = 0;
+        for (int i = 0; i < mStatusCounts.length(); i++)
+            count += mStatusCounts.get(i);
+        return count;
+    }
+
+    /**
+     * Get the number of requests that got a response with a status code in the given class.
+     *
+     * @param statusClass first digit of the status code, from 1 to 5.
+     * @return number of requests.
+     */
+    public long getStatusCount(int statusClass) {
+        return statusClass >= 1 && statusClass <= 5 ? mStatusCounts.get(statusClass) : 0;
+    }
+
+    /**
+     * Get the number of requests that failed without a response, like timeouts or unreachable hosts.
+     *
+     * @return number of requests.
+     */
+    public long getNetworkErrorCount() {
+        return mStatusCounts.get(0);
+    }
+
+    /**
+     * Get the total size of request bodies sent on the wire, after compression if any.
+     *
+     * @return size in bytes.
+     */
+    public long getRequestBytes() {
+        return mRequestBytes.get();
+    }
+
+    /**
+     * Get the number of retries.
+     *
+     * @return number of retries.
+     */
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * Get the request durations.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+}
@@ -1,14 +1,19 @@
 package com.microsoft.azure.mobile.ingestion;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 
+import com.microsoft.azure.mobile.http.CompressionStats;
+import com.microsoft.azure.mobile.http.ConnectionStats;
 import com.microsoft.azure.mobile.http.DefaultHttpClient;
 import com.microsoft.azure.mobile.http.HttpClient;
 import com.microsoft.azure.mobile.http.HttpClientNetworkStateHandler;
 import com.microsoft.azure.mobile.http.HttpClientRetryer;
 import com.microsoft.azure.mobile.http.HttpUtils;
+import com.microsoft.azure.mobile.http.RequestStats;
 import com.microsoft.azure.mobile.http.ServiceCall;
 import com.microsoft.azure.mobile.http.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.models.Log;
@@ -19,8 +24,13 @@ import com.microsoft.azure.mobile.utils.NetworkStateHelper;
 
 import org.json.JSONException;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +39,9 @@ import java.util.UUID;
 import static android.util.Log.VERBOSE;
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 import static com.microsoft.azure.mobile.http.DefaultHttpClient.APP_SECRET;
+import static com.microsoft.azure.mobile.http.DefaultHttpClient.CHARSET_NAME;
 import static com.microsoft.azure.mobile.http.DefaultHttpClient.METHOD_POST;
+import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.TOFFSET;
 
 public class IngestionHttp implements Ingestion {
 
@@ -51,6 +63,23 @@ public class IngestionHttp implements Ingestion {
     @VisibleForTesting
     static final String INSTALL_ID = "Install-ID";
 
+    /**
+     * Maximum number of ingestion connections kept alive, matching the number of HTTP threads.
+     */
+    @VisibleForTesting
+    static final int MAX_CONNECTIONS = 2;
+
+    /**
+     * Time in ms after which an idle ingestion connection is not reused.
+     */
+    @VisibleForTesting
+    static final long CONNECTION_IDLE_TIMEOUT = 30000;
+
+    /**
+     * Key of toffset property as written in serialized logs.
+     */
+    private static final String TOFFSET_KEY = "\"" + TOFFSET + "\":";
+
     /**
      * Log serializer.
      */
@@ -61,6 +90,21 @@ public class IngestionHttp implements Ingestion {
      */
     private final HttpClient mHttpClient;
 
+    /**
+     * Request compression statistics.
+     */
+    private final CompressionStats mCompressionStats;
+
+    /**
+     * Connection statistics.
+     */
+    private final ConnectionStats mConnectionStats;
+
+    /**
+     * Request statistics.
+     */
+    private final RequestStats mRequestStats;
+
     /**
      * Log base URL (scheme + authority).
      */
@@ -73,8 +117,25 @@ public class IngestionHttp implements Ingestion {
      * @param logSerializer log serializer.
      */
     public IngestionHttp(@NonNull Context context, @NonNull LogSerializer logSerializer) {
+        this(context, logSerializer, null);
+    }
+
+    /**
+     * Init.
+     *
+     * @param context         any context.
+     * @param logSerializer   log serializer.
+     * @param callbackHandler handler receiving the callbacks and retries, {@code null} to use the UI thread.
+     */
+    public IngestionHttp(@NonNull Context context, @NonNull LogSerializer logSerializer, Handler callbackHandler) {
         mLogSerializer = logSerializer;
-        HttpClientRetryer retryer = new HttpClientRetryer(new DefaultHttpClient());
+        DefaultHttpClient defaultHttpClient = new DefaultHttpClient(true, callbackHandler);
+        defaultHttpClient.setKeepAlive(MAX_CONNECTIONS, CONNECTION_IDLE_TIMEOUT);
+        mCompressionStats = defaultHttpClient.getCompressionStats();
+        mConnectionStats = defaultHttpClient.getConnectionStats();
+        mRequestStats = defaultHttpClient.getRequestStats();
+        Handler retryHandler = callbackHandler == null ? new Handler(Looper.getMainLooper()) : callbackHandler;
+        HttpClientRetryer retryer = new HttpClientRetryer(defaultHttpClient, retryHandler, true, mRequestStats);
         NetworkStateHelper networkStateHelper = NetworkStateHelper.getSharedInstance(context);
         mHttpClient = new HttpClientNetworkStateHandler(retryer, networkStateHelper);
         mLogUrl = DEFAULT_LOG_URL;
@@ -105,10 +166,118 @@ public class IngestionHttp implements Ingestion {
         mHttpClient.close();
     }
 
+    /**
+     * Get statistics about log batches compression.
+     *
+     * @return compression statistics.
+     */
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
+    /**
+     * Get statistics about ingestion connections reuse.
+     *
+     * @return connection statistics.
+     */
+    public ConnectionStats getConnectionStats() {
+        return mConnectionStats;
+    }
+
+    /**
+     * Get statistics about ingestion requests status, size and retries.
+     *
+     * @return request statistics.
+     */
+    public RequestStats getRequestStats() {
+        return mRequestStats;
+    }
+
+    /**
+     * Replace the absolute toffset of a serialized log by the time elapsed since then, without parsing the whole JSON.
+     * The log serializer writes toffset as a top level number right after the type, so the first match is the right one.
+     *
+     * @param rawLog serialized log.
+     * @param now    current time in milliseconds.
+     * @return serialized log with a relative toffset.
+     * @throws JSONException if toffset cannot be found.
+     */
+    @VisibleForTesting
+    static String toRelativeToffset(String rawLog, long now) throws JSONException {
+        int start = getToffsetStart(rawLog);
+        int end = getToffsetEnd(rawLog, start);
+        long toffset = parseToffset(rawLog, start, end);
+        return rawLog.substring(0, start) + (now - toffset) + rawLog.substring(end);
+    }
+
+    /**
+     * Get the absolute toffset of a serialized log without parsing the whole JSON nor allocating.
+     *
+     * @param rawLog serialized log.
+     * @return absolute toffset.
+     * @throws JSONException if toffset cannot be found.
+     */
+    public static long getToffset(String rawLog) throws JSONException {
+        int start = getToffsetStart(rawLog);
+        return parseToffset(rawLog, start, getToffsetEnd(rawLog, start));
+    }
+
+    /**
+     * Find where the toffset value of a serialized log starts.
+     *
+     * @param rawLog serialized log.
+     * @return index of the first character of the value.
+     * @throws JSONException if toffset cannot be found.
+     */
+    private static int getToffsetStart(String rawLog) throws JSONException {
+        int start = rawLog.indexOf(TOFFSET_KEY);
+        if (start < 0)
+            throw new JSONException("Missing " + TOFFSET + " in log");
+        return start + TOFFSET_KEY.length();
+    }
+
+    /**
+     * Find where the toffset value of a serialized log ends.
+     *
+     * @param rawLog serialized log.
+     * @param start  index of the first character of the value.
+     * @return index after the last character of the value.
+     */
+    private static int getToffsetEnd(String rawLog, int start) {
+        int end = start;
+        if (end < rawLog.length() && rawLog.charAt(end) == '-')
+            end++;
+        while (end < rawLog.length() && Character.isDigit(rawLog.charAt(end)))
+            end++;
+        return end;
+    }
+
+    /**
+     * Parse the toffset value of a serialized log.
+     *
+     * @param rawLog serialized log.
+     * @param start  index of the first character of the value.
+     * @param end    index after the last character of the value.
+     * @return toffset.
+     * @throws JSONException if the value is not a valid number.
+     */
+    private static long parseToffset(String rawLog, int start, int end) throws JSONException {
+        boolean negative = start < end && rawLog.charAt(start) == '-';
+        int index = negative ? start + 1 : start;
+
+        /* 18 digits cannot overflow a long. */
+        if (index == end || end - index > 18)
+            throw new JSONException("Invalid " + TOFFSET + " in log");
+        long toffset = 0;
+        for (; index < end; index++)
+            toffset = toffset * 10 + rawLog.charAt(index) - '0';
+        return negative ? -toffset : toffset;
+    }
+
     /**
      * Inner class is used to be able to mock System.currentTimeMillis, does not work if using anonymous inner class...
      */
-    private static class IngestionCallTemplate implements HttpClient.CallTemplate {
+    private static class IngestionCallTemplate implements HttpClient.StreamingCallTemplate {
 
         private final LogSerializer mLogSerializer;
 
@@ -122,7 +291,62 @@ public class IngestionHttp implements Ingestion {
         @Override
         public String buildRequestBody() throws JSONException {
 
-            /* Timestamps need to be as accurate as possible so we convert absolute time to relative now. Save times. */
+            /* Pre-serialized logs. */
+            if (mLogContainer.getRawLogs() != null)
+                return mLogSerializer.serializeContainer(getRelativeRawLogContainer());
+
+            /* Serialize payload. */
+            long[] absoluteTimes = setRelativeTimes();
+            try {
+                return mLogSerializer.serializeContainer(mLogContainer);
+            } finally {
+                restoreAbsoluteTimes(absoluteTimes);
+            }
+        }
+
+        @Override
+        public void writeRequestBody(OutputStream out) throws JSONException, IOException {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET_NAME));
+
+            /* Pre-serialized logs. */
+            if (mLogContainer.getRawLogs() != null)
+                mLogSerializer.serializeContainer(getRelativeRawLogContainer(), writer);
+
+            /* Serialize payload log by log. */
+            else {
+                long[] absoluteTimes = setRelativeTimes();
+                try {
+                    mLogSerializer.serializeContainer(mLogContainer, writer);
+                } finally {
+                    restoreAbsoluteTimes(absoluteTimes);
+                }
+            }
+            writer.flush();
+        }
+
+        /**
+         * Copy pre-serialized logs with absolute times rewritten to relative ones, original ones could be retried later.
+         *
+         * @return container with relative times.
+         * @throws JSONException if a log has no valid toffset.
+         */
+        private LogContainer getRelativeRawLogContainer() throws JSONException {
+            List<String> rawLogs = mLogContainer.getRawLogs();
+            long now = System.currentTimeMillis();
+            List<String> relativeLogs = new ArrayList<>(rawLogs.size());
+            for (String rawLog : rawLogs)
+                relativeLogs.add(toRelativeToffset(rawLog, now));
+            LogContainer logContainer = new LogContainer();
+            logContainer.setRawLogs(relativeLogs);
+            return logContainer;
+        }
+
+        /**
+         * Timestamps need to be as accurate as possible so we convert absolute time to relative now.
+         *
+         * @return saved absolute times.
+         */
+        private long[] setRelativeTimes() {
             List<Log> logs = mLogContainer.getLogs();
             int size = logs.size();
             long[] absoluteTimes = new long[size];
@@ -132,18 +356,18 @@ public class IngestionHttp implements Ingestion {
                 absoluteTimes[i] = toffset;
                 log.setToffset(System.currentTimeMillis() - toffset);
             }
+            return absoluteTimes;
+        }
 
-            /* Serialize payload. */
-            String payload;
-            try {
-                payload = mLogSerializer.serializeContainer(mLogContainer);
-            } finally {
-
-                /* Restore original times, could be retried later. */
-                for (int i = 0; i < size; i++)
-                    logs.get(i).setToffset(absoluteTimes[i]);
-            }
-            return payload;
+        /**
+         * Restore original times, could be retried later.
+         *
+         * @param absoluteTimes times saved by {@link #setRelativeTimes()}.
+         */
+        private void restoreAbsoluteTimes(long[] absoluteTimes) {
+            List<Log> logs = mLogContainer.getLogs();
+            for (int i = 0; i < absoluteTimes.length; i++)
+                logs.get(i).setToffset(absoluteTimes[i]);
         }
 
         @Override
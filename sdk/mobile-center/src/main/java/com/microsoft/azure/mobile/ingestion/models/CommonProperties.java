@@ -6,6 +6,8 @@ public final class CommonProperties {
 
     public static final String TYPE = "type";
 
+    public static final String TOFFSET = "toffset";
+
     public static final String ID = "id";
 
     public static final String NAME = "name";
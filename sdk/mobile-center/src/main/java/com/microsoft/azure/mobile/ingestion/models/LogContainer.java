@@ -12,6 +12,11 @@ public class LogContainer {
      */
     private List<Log> logs;
 
+    /**
+     * The list of pre-serialized logs, sent instead of {@link #logs} when set.
+     */
+    private List<String> rawLogs;
+
     /**
      * Get the logs value.
      *
@@ -30,6 +35,24 @@ public class LogContainer {
         this.logs = logs;
     }
 
+    /**
+     * Get the pre-serialized logs value.
+     *
+     * @return the pre-serialized logs value
+     */
+    public List<String> getRawLogs() {
+        return this.rawLogs;
+    }
+
+    /**
+     * Set the pre-serialized logs value, each item being the JSON object of a log as stored in persistence.
+     *
+     * @param rawLogs the pre-serialized logs value to set
+     */
+    public void setRawLogs(List<String> rawLogs) {
+        this.rawLogs = rawLogs;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -37,11 +60,14 @@ public class LogContainer {
 
         LogContainer container = (LogContainer) o;
 
-        return logs != null ? logs.equals(container.logs) : container.logs == null;
+        if (logs != null ? !logs.equals(container.logs) : container.logs != null) return false;
+        return rawLogs != null ? rawLogs.equals(container.rawLogs) : container.rawLogs == null;
     }
 
     @Override
     public int hashCode() {
-        return logs != null ? logs.hashCode() : 0;
+        int result = logs != null ? logs.hashCode() : 0;
+        result = 31 * result + (rawLogs != null ? rawLogs.hashCode() : 0);
+        return result;
     }
 }
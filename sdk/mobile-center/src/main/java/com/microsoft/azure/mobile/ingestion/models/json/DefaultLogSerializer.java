@@ -12,6 +12,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -61,6 +63,22 @@ public class DefaultLogSerializer implements LogSerializer {
     @Override
     public String serializeContainer(@NonNull LogContainer logContainer) throws JSONException {
 
+        /* Splice pre-serialized logs into the envelope, they are already valid JSON objects. */
+        List<String> rawLogs = logContainer.getRawLogs();
+        if (rawLogs != null) {
+            int length = LOGS.length() + 7;
+            for (String rawLog : rawLogs)
+                length += rawLog.length() + 1;
+            StringBuilder builder = new StringBuilder(length);
+            builder.append("{\"").append(LOGS).append("\":[");
+            for (int i = 0; i < rawLogs.size(); i++) {
+                if (i > 0)
+                    builder.append(',');
+                builder.append(rawLogs.get(i));
+            }
+            return builder.append("]}").toString();
+        }
+
         /* Init JSON serializer, in verbose: try to make it pretty. */
         JSONStringer writer = null;
         if (MobileCenterLog.getLogLevel() <= android.util.Log.VERBOSE) {
@@ -85,6 +103,29 @@ public class DefaultLogSerializer implements LogSerializer {
         return writer.toString();
     }
 
+    @Override
+    public void serializeContainer(@NonNull LogContainer logContainer, @NonNull Writer writer) throws JSONException, IOException {
+        writer.write("{\"");
+        writer.write(LOGS);
+        writer.write("\":[");
+        List<String> rawLogs = logContainer.getRawLogs();
+        if (rawLogs != null) {
+            for (int i = 0; i < rawLogs.size(); i++) {
+                if (i > 0)
+                    writer.write(',');
+                writer.write(rawLogs.get(i));
+            }
+        } else {
+            List<Log> logs = logContainer.getLogs();
+            for (int i = 0; i < logs.size(); i++) {
+                if (i > 0)
+                    writer.write(',');
+                writer.write(serializeLog(logs.get(i)));
+            }
+        }
+        writer.write("]}");
+    }
+
     @NonNull
     @Override
     public LogContainer deserializeContainer(@NonNull String json) throws JSONException {
@@ -7,6 +7,9 @@ import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.io.Writer;
+
 public interface LogSerializer {
 
     @NonNull
@@ -18,6 +21,16 @@ public interface LogSerializer {
     @NonNull
     String serializeContainer(@NonNull LogContainer container) throws JSONException;
 
+    /**
+     * Serialize a container directly to a writer, holding at most one serialized log in memory at a time.
+     *
+     * @param container container to serialize.
+     * @param writer    writer to serialize to, it is not flushed nor closed.
+     * @throws JSONException if a log could not be serialized.
+     * @throws IOException   if writing failed.
+     */
+    void serializeContainer(@NonNull LogContainer container, @NonNull Writer writer) throws JSONException, IOException;
+
     @NonNull
     LogContainer deserializeContainer(@NonNull String json) throws JSONException;
 
@@ -1,28 +1,35 @@
 package com.microsoft.azure.mobile.persistence;
 
 import android.content.ContentValues;
+import android.os.SystemClock;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import com.microsoft.azure.mobile.ingestion.models.AbstractLog;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.utils.HashUtils;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 import com.microsoft.azure.mobile.utils.storage.DatabaseManager;
+import com.microsoft.azure.mobile.utils.storage.DatabaseStats;
 
 import org.json.JSONException;
+import org.json.JSONStringer;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
+import static android.util.Log.DEBUG;
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 import static com.microsoft.azure.mobile.utils.storage.StorageHelper.DatabaseStorage;
 
@@ -40,6 +47,24 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     static final String COLUMN_LOG = "log";
 
+    /**
+     * Name of the column storing when a log was persisted, in milliseconds since epoch.
+     */
+    @VisibleForTesting
+    static final String COLUMN_TIMESTAMP = "timestamp";
+
+    /**
+     * Name of the column storing the size of a log payload.
+     */
+    @VisibleForTesting
+    static final String COLUMN_SIZE = "size";
+
+    /**
+     * Name of the column storing the hash of the device snapshot of a log, {@code null} if the log has no device.
+     */
+    @VisibleForTesting
+    static final String COLUMN_LOG_DEVICE_HASH = "device_hash";
+
     /**
      * Database name.
      */
@@ -50,10 +75,49 @@ public class DatabasePersistence extends Persistence {
      */
     private static final String TABLE = "logs";
 
+    /**
+     * Schema version, upgrading adds the new columns to the table.
+     */
+    private static final int VERSION = 3;
+
+    /**
+     * Table name of device snapshots, in the same database as logs.
+     */
+    private static final String DEVICES_TABLE = "devices";
+
+    /**
+     * Name of device snapshot hash column in the devices table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE_HASH = "hash";
+
+    /**
+     * Name of device snapshot JSON column in the devices table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE = "device";
+
+    /**
+     * Number of device snapshots above which the ones no log references any more are deleted.
+     */
+    @VisibleForTesting
+    static final int MAX_DEVICES = 50;
+
+    /**
+     * Maximum number of logs buffered in memory before they are written to the database in a single transaction.
+     */
+    @VisibleForTesting
+    static final int WRITE_BUFFER_SIZE = 20;
+
     /**
      * Table schema for Persistence.
      */
-    private static final ContentValues SCHEMA = getContentValues("", "");
+    private static final ContentValues SCHEMA = getContentValues("", "", "");
+
+    /**
+     * Table schema for device snapshots.
+     */
+    private static final ContentValues DEVICES_SCHEMA = getDeviceContentValues("", "");
 
     /**
      * Database storage instance to access Persistence database.
@@ -61,22 +125,52 @@ public class DatabasePersistence extends Persistence {
     final DatabaseStorage mDatabaseStorage;
 
     /**
-     * Pending log groups. Key is a UUID and value is a list of database identifiers.
+     * Pending logs. Key is the group, value maps a batch UUID to its database identifiers.
      */
     @VisibleForTesting
-    final Map<String, List<Long>> mPendingDbIdentifiersGroups;
+    final Map<String, Map<String, long[]>> mPendingDbIdentifiersGroups;
 
     /**
-     * Pending logs across all groups.
+     * Logs waiting to be written to the database.
+     * It has its own lock so that storing a log does not wait for queries, only for writing a full buffer.
      */
     @VisibleForTesting
-    final Set<Long> mPendingDbIdentifiers;
+    final List<ContentValues> mWriteBuffer;
+
+    /**
+     * Device snapshots waiting to be written to the database with the buffered logs referencing them.
+     * Guarded by the {@link #mWriteBuffer} lock.
+     */
+    private final List<ContentValues> mDeviceWriteBuffer;
+
+    /**
+     * Database storage of device snapshots, created when the first log with a device is stored.
+     */
+    @VisibleForTesting
+    DatabaseStorage mDevicesStorage;
+
+    /**
+     * Interned device snapshots, mapped to the hash of their JSON.
+     * Also the lock for all device snapshot state as logs are serialized outside of the persistence lock.
+     */
+    @VisibleForTesting
+    final Map<Device, String> mDeviceHashes = new HashMap<>();
+
+    /**
+     * Cache of device snapshot JSON by hash.
+     */
+    private final Map<String, String> mDevicePayloads = new HashMap<>();
+
+    /**
+     * Hashes of the device snapshots known to be stored or buffered.
+     */
+    private final Set<String> mStoredDeviceHashes = new HashSet<>();
 
     /**
      * Initializes variables.
      */
     public DatabasePersistence() {
-        this(DATABASE, TABLE, 1);
+        this(DATABASE, TABLE, VERSION);
     }
 
     /**
@@ -100,7 +194,8 @@ public class DatabasePersistence extends Persistence {
      */
     DatabasePersistence(String database, String table, int version, int maxRecords) {
         mPendingDbIdentifiersGroups = new HashMap<>();
-        mPendingDbIdentifiers = new HashSet<>();
+        mWriteBuffer = new ArrayList<>(WRITE_BUFFER_SIZE);
+        mDeviceWriteBuffer = new ArrayList<>();
         mDatabaseStorage = DatabaseStorage.getDatabaseStorage(database, table, version, SCHEMA, maxRecords,
                 new DatabaseStorage.DatabaseErrorListener() {
                     @Override
@@ -108,117 +203,321 @@ public class DatabasePersistence extends Persistence {
                         MobileCenterLog.error(LOG_TAG, "Cannot complete an operation (" + operation + ")", e);
                     }
                 });
+
+        /*
+         * Logs stored before version 2 are dated from the upgrade and sized from their payload.
+         * Logs stored before version 3 embed their device and keep a null device hash.
+         */
+        mDatabaseStorage.setUpgradeStatements(
+                "UPDATE `" + table + "` SET `" + COLUMN_TIMESTAMP + "` = strftime('%s', 'now') * 1000 WHERE `" + COLUMN_TIMESTAMP + "` IS NULL",
+                "UPDATE `" + table + "` SET `" + COLUMN_SIZE + "` = length(`" + COLUMN_LOG + "`) WHERE `" + COLUMN_SIZE + "` IS NULL");
     }
 
     /**
      * Instantiates {@link ContentValues} with the give values.
      *
-     * @param group The group of the storage for the log.
-     * @param logJ  The JSON string for a log.
+     * @param group      The group of the storage for the log.
+     * @param logJ       The JSON string for a log.
+     * @param deviceHash The hash of the device snapshot of the log, if any.
      * @return A {@link ContentValues} instance.
      */
-    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ) {
+    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ, @Nullable String deviceHash) {
         ContentValues values = new ContentValues();
         values.put(COLUMN_GROUP, group);
         values.put(COLUMN_LOG, logJ);
+        values.put(COLUMN_LOG_DEVICE_HASH, deviceHash);
+
+        /* Payloads are JSON, mostly ASCII, so the length approximates the stored bytes without encoding them. */
+        values.put(COLUMN_TIMESTAMP, System.currentTimeMillis());
+        values.put(COLUMN_SIZE, logJ == null ? 0 : logJ.length());
+        return values;
+    }
+
+    /**
+     * Instantiates {@link ContentValues} for a device snapshot.
+     *
+     * @param hash    The hash of the device snapshot JSON.
+     * @param deviceJ The JSON string for a device snapshot.
+     * @return A {@link ContentValues} instance.
+     */
+    private static ContentValues getDeviceContentValues(@Nullable String hash, @Nullable String deviceJ) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_DEVICE_HASH, hash);
+        values.put(COLUMN_DEVICE, deviceJ);
         return values;
     }
 
     @Override
     public void putLog(@NonNull String group, @NonNull Log log) throws PersistenceException {
-        /* Convert log to JSON string and put in the database. */
+        /* Convert log to JSON string and buffer it, the buffer is written to the database when full. */
+        boolean full;
         try {
-            MobileCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type " + log.getType() + " with " + log.getSid());
-            mDatabaseStorage.put(getContentValues(group, getLogSerializer().serializeLog(log)));
+            MobileCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type %s with %s", log.getType(), log.getSid());
+            Device device = log.getDevice();
+            if (device == null) {
+                ContentValues values = getContentValues(group, getLogSerializer().serializeLog(log), null);
+                synchronized (mWriteBuffer) {
+                    mWriteBuffer.add(values);
+                    full = mWriteBuffer.size() >= WRITE_BUFFER_SIZE;
+                }
+            } else {
+
+                /* Serialize the log without its device, it only references a device snapshot stored once. */
+                String logJ;
+                log.setDevice(null);
+                try {
+                    logJ = getLogSerializer().serializeLog(log);
+                } finally {
+                    log.setDevice(device);
+                }
+
+                /* A new device snapshot is buffered with the log so that both are written in the same transaction. */
+                synchronized (mDeviceHashes) {
+                    String deviceHash = getDeviceHash(device);
+                    ContentValues deviceValues = null;
+                    if (!mStoredDeviceHashes.contains(deviceHash)) {
+                        if (getDevicesStorage().get(COLUMN_DEVICE_HASH, deviceHash) == null)
+                            deviceValues = getDeviceContentValues(deviceHash, mDevicePayloads.get(deviceHash));
+                        mStoredDeviceHashes.add(deviceHash);
+                    }
+                    ContentValues values = getContentValues(group, logJ, deviceHash);
+                    synchronized (mWriteBuffer) {
+                        if (deviceValues != null)
+                            mDeviceWriteBuffer.add(deviceValues);
+                        mWriteBuffer.add(values);
+                        full = mWriteBuffer.size() >= WRITE_BUFFER_SIZE;
+                    }
+                }
+            }
         } catch (JSONException e) {
             throw new PersistenceException("Cannot convert to JSON string", e);
         }
+        if (full)
+            flush();
+    }
+
+    /**
+     * Get the hash of a device snapshot while holding the device snapshot lock, serializing the snapshot the first time.
+     *
+     * @param device The device snapshot.
+     * @return The hash of the device snapshot JSON.
+     * @throws JSONException If the device cannot be serialized.
+     */
+    private String getDeviceHash(@NonNull Device device) throws JSONException {
+        String deviceHash = mDeviceHashes.get(device);
+        if (deviceHash == null) {
+            JSONStringer writer = new JSONStringer();
+            writer.object();
+            device.write(writer);
+            writer.endObject();
+            String deviceJ = writer.toString();
+            deviceHash = HashUtils.sha256(deviceJ);
+            mDeviceHashes.put(device, deviceHash);
+            mDevicePayloads.put(deviceHash, deviceJ);
+        }
+        return deviceHash;
+    }
+
+    /**
+     * Re-expand the device snapshot of a stored log, logs stored without device snapshot are returned as is.
+     *
+     * @param payload    The JSON string for a stored log.
+     * @param deviceHash The hash of the device snapshot of the log, if any.
+     * @return The JSON string for the log with its device object.
+     * @throws JSONException If the device snapshot cannot be found.
+     */
+    private String expandDevice(@NonNull String payload, @Nullable String deviceHash) throws JSONException {
+        if (deviceHash == null)
+            return payload;
+        String deviceJ;
+        synchronized (mDeviceHashes) {
+            deviceJ = mDevicePayloads.get(deviceHash);
+            if (deviceJ == null) {
+                ContentValues values = getDevicesStorage().get(COLUMN_DEVICE_HASH, deviceHash);
+                if (values == null)
+                    throw new JSONException("Missing device snapshot " + deviceHash);
+                deviceJ = values.getAsString(COLUMN_DEVICE);
+                mDevicePayloads.put(deviceHash, deviceJ);
+            }
+        }
+        return payload.substring(0, payload.length() - 1) + ",\"" + AbstractLog.DEVICE + "\":" + deviceJ + "}";
+    }
+
+    /**
+     * Get the database storage of device snapshots, opening it if needed.
+     *
+     * @return The database storage of device snapshots.
+     */
+    private DatabaseStorage getDevicesStorage() {
+        if (mDevicesStorage == null) {
+            mDevicesStorage = DatabaseStorage.getDatabaseStorage(mDatabaseStorage, DEVICES_TABLE, DEVICES_SCHEMA,
+                    new DatabaseStorage.DatabaseErrorListener() {
+                        @Override
+                        public void onError(String operation, RuntimeException e) {
+                            MobileCenterLog.error(LOG_TAG, "Cannot complete an operation on device snapshots (" + operation + ")", e);
+                        }
+                    });
+        }
+        return mDevicesStorage;
+    }
+
+    /**
+     * Deletes the device snapshots that no log references any more, once there are more than {@link #MAX_DEVICES} of them.
+     * Buffered logs are written first so that the snapshots they reference are kept.
+     */
+    private void deleteUnreferencedDevices() {
+        synchronized (mDeviceHashes) {
+            if (mDevicesStorage == null || mDevicesStorage.size() <= MAX_DEVICES)
+                return;
+            flush();
+            int deleted = mDevicesStorage.deleteUnreferenced(COLUMN_DEVICE_HASH, mDatabaseStorage, COLUMN_LOG_DEVICE_HASH);
+            mStoredDeviceHashes.clear();
+            MobileCenterLog.debug(LOG_TAG, "Deleted %s device snapshot(s) no log references", deleted);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+
+        /* Take the buffer under the persistence lock so that buffers are written in order. */
+        List<ContentValues> valuesList;
+        List<ContentValues> deviceValuesList;
+        DatabaseStorage devicesStorage;
+        synchronized (mWriteBuffer) {
+            if (mWriteBuffer.isEmpty() && mDeviceWriteBuffer.isEmpty())
+                return;
+            valuesList = new ArrayList<>(mWriteBuffer);
+            mWriteBuffer.clear();
+            deviceValuesList = new ArrayList<>(mDeviceWriteBuffer);
+            mDeviceWriteBuffer.clear();
+            devicesStorage = mDevicesStorage;
+        }
+        if (MobileCenterLog.isLoggable(DEBUG))
+            MobileCenterLog.debug(LOG_TAG, "Writing " + valuesList.size() + " buffered log(s) to the Persistence database");
+        long startTime = SystemClock.elapsedRealtime();
+
+        /* New device snapshots are written in the same transaction as the logs referencing them. */
+        if (deviceValuesList.isEmpty())
+            mDatabaseStorage.put(valuesList);
+        else {
+            synchronized (mDeviceHashes) {
+                mDatabaseStorage.put(valuesList, devicesStorage, deviceValuesList);
+            }
+        }
+        getStats().getWriteLatency().record(SystemClock.elapsedRealtime() - startTime);
     }
 
     @Override
-    public void deleteLogs(@NonNull String group, @NonNull String id) {
+    public synchronized void deleteLogs(@NonNull String group, @NonNull String id) {
         /* Log. */
-        MobileCenterLog.debug(LOG_TAG, "Deleting logs from the Persistence database for " + group + " with " + id);
-        MobileCenterLog.debug(LOG_TAG, "The IDs for deleting log(s) is/are:");
-
-        List<Long> dbIdentifiers = mPendingDbIdentifiersGroups.remove(group + id);
-        if (dbIdentifiers != null) {
-            for (Long dbIdentifier : dbIdentifiers) {
-                MobileCenterLog.debug(LOG_TAG, "\t" + dbIdentifier);
-                mDatabaseStorage.delete(dbIdentifier);
-                mPendingDbIdentifiers.remove(dbIdentifier);
+        MobileCenterLog.debug(LOG_TAG, "Deleting logs from the Persistence database for %s with %s", group, id);
+
+        Map<String, long[]> pendingBatches = mPendingDbIdentifiersGroups.get(group);
+        if (pendingBatches != null) {
+            long[] dbIdentifiers = pendingBatches.remove(id);
+            if (dbIdentifiers != null) {
+                if (MobileCenterLog.isLoggable(DEBUG)) {
+                    MobileCenterLog.debug(LOG_TAG, "The IDs for deleting log(s) is/are:");
+                    for (long dbIdentifier : dbIdentifiers)
+                        MobileCenterLog.debug(LOG_TAG, "\t" + dbIdentifier);
+                }
+                long startTime = SystemClock.elapsedRealtime();
+                mDatabaseStorage.delete(COLUMN_GROUP, group, dbIdentifiers);
+                getStats().getDeleteLatency().record(SystemClock.elapsedRealtime() - startTime);
+                deleteUnreferencedDevices();
             }
+            if (pendingBatches.isEmpty())
+                mPendingDbIdentifiersGroups.remove(group);
         }
     }
 
     @Override
-    public void deleteLogs(String group) {
+    public synchronized void deleteLogs(String group) {
         /* Log. */
-        MobileCenterLog.debug(LOG_TAG, "Deleting all logs from the Persistence database for " + group);
+        MobileCenterLog.debug(LOG_TAG, "Deleting all logs from the Persistence database for %s", group);
+
+        /* Discard buffered logs of that group. */
+        synchronized (mWriteBuffer) {
+            for (Iterator<ContentValues> iterator = mWriteBuffer.iterator(); iterator.hasNext(); ) {
+                if (group.equals(iterator.next().getAsString(COLUMN_GROUP)))
+                    iterator.remove();
+            }
+        }
 
         /* Delete from database. */
+        long startTime = SystemClock.elapsedRealtime();
         mDatabaseStorage.delete(COLUMN_GROUP, group);
+        getStats().getDeleteLatency().record(SystemClock.elapsedRealtime() - startTime);
+        deleteUnreferencedDevices();
 
         /* Delete from pending state. */
-        for (Iterator<String> iterator = mPendingDbIdentifiersGroups.keySet().iterator(); iterator.hasNext(); ) {
-            String key = iterator.next();
-            if (key.startsWith(group))
-                iterator.remove();
-        }
+        mPendingDbIdentifiersGroups.remove(group);
     }
 
     @Override
-    public int countLogs(@NonNull String group) {
+    public synchronized int countLogs(@NonNull String group) {
 
-        /* Query database and get scanner. */
-        DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group);
-        int count = scanner.getCount();
-        scanner.close();
-        return count;
+        /* Write buffered logs first. */
+        flush();
+
+        /* Read the row counter maintained by the database. */
+        return (int) mDatabaseStorage.size(COLUMN_GROUP, group);
     }
 
     @Override
     @Nullable
-    public String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+    public synchronized String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @Nullable List<Log> outLogs, @Nullable List<String> outPayloads) {
         /* Log. */
-        MobileCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs from the Persistence database for " + group);
+        if (MobileCenterLog.isLoggable(DEBUG))
+            MobileCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs from the Persistence database for " + group);
+
+        /* Write buffered logs first. */
+        flush();
 
-        /* Query database and get scanner. */
-        DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group);
+        /* Query only the next logs that are not already being sent, SQLite filters, orders and limits them. */
+        long startTime = SystemClock.elapsedRealtime();
+        DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group, getPendingDbIdentifiers(group), limit);
 
-        /* Add logs to output parameter after deserialization if logs are not already sent. */
-        int count = 0;
-        Map<Long, Log> candidates = new TreeMap<>();
+        /* Add logs to output parameters, deserializing them only if objects are requested. */
+        long[] candidateDbIdentifiers = new long[limit];
+        int candidateCount = 0;
         List<Long> failedDbIdentifiers = new ArrayList<>();
-        for (Iterator<ContentValues> iterator = scanner.iterator(); iterator.hasNext() && count < limit; ) {
-            ContentValues values = iterator.next();
+        for (ContentValues values : scanner) {
+            if (candidateCount >= limit)
+                break;
             Long dbIdentifier = values.getAsLong(DatabaseManager.PRIMARY_KEY);
-
-            /* If the log is already in pending state, then skip. Otherwise put the log to candidate container. */
-            if (!mPendingDbIdentifiers.contains(dbIdentifier)) {
-                try {
-                    /* Deserialize JSON to Log. */
-                    candidates.put(dbIdentifier, getLogSerializer().deserializeLog(values.getAsString(COLUMN_LOG)));
-                    count++;
-                } catch (JSONException e) {
-                    /* If it is not able to deserialize, delete and get another log. */
-                    MobileCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
-
-                    /* Put the failed identifier to delete. */
-                    failedDbIdentifiers.add(dbIdentifier);
-                }
+            try {
+                String payload = expandDevice(values.getAsString(COLUMN_LOG), values.getAsString(COLUMN_LOG_DEVICE_HASH));
+                /* Deserialize JSON to Log. */
+                if (outLogs != null)
+                    outLogs.add(getLogSerializer().deserializeLog(payload));
+                if (outPayloads != null)
+                    outPayloads.add(payload);
+                candidateDbIdentifiers[candidateCount++] = dbIdentifier;
+            } catch (JSONException e) {
+                /* If it is not able to deserialize, delete it, next call will get another log. */
+                MobileCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
+
+                /* Put the failed identifier to delete. */
+                failedDbIdentifiers.add(dbIdentifier);
             }
         }
         scanner.close();
+        getStats().getReadLatency().record(SystemClock.elapsedRealtime() - startTime);
 
         /* Delete any logs that cannot be deserialized. */
         if (failedDbIdentifiers.size() > 0) {
-            mDatabaseStorage.delete(failedDbIdentifiers);
+            long[] dbIdentifiers = new long[failedDbIdentifiers.size()];
+            for (int i = 0; i < dbIdentifiers.length; i++)
+                dbIdentifiers[i] = failedDbIdentifiers.get(i);
+            mDatabaseStorage.delete(COLUMN_GROUP, group, dbIdentifiers);
+            getStats().recordCorruptedLogs(dbIdentifiers.length);
             MobileCenterLog.warn(LOG_TAG, "Deleted logs that cannot be deserialized");
+            deleteUnreferencedDevices();
         }
 
         /* No logs found. */
-        if (candidates.size() <= 0) {
+        if (candidateCount <= 0) {
             MobileCenterLog.debug(LOG_TAG, "No logs found in the Persistence database at the moment");
             return null;
         }
@@ -226,41 +525,141 @@ public class DatabasePersistence extends Persistence {
         /* Generate an ID. */
         String id = UUIDUtils.randomUUID().toString();
 
-        /* Log. */
-        MobileCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) with an ID, " + id);
-        MobileCenterLog.debug(LOG_TAG, "The SID/ID pairs for returning log(s) is/are:");
-
-        List<Long> pendingDbIdentifiersGroup = new ArrayList<>();
-        for (Map.Entry<Long, Log> entry : candidates.entrySet()) {
-            Long dbIdentifier = entry.getKey();
+        /* Log, walking the returned logs only if debug logs are printed. */
+        if (MobileCenterLog.isLoggable(DEBUG)) {
+            MobileCenterLog.debug(LOG_TAG, "Returning " + candidateCount + " log(s) with an ID, " + id);
+            if (outLogs != null) {
+                MobileCenterLog.debug(LOG_TAG, "The SID/ID pairs for returning log(s) is/are:");
+                int offset = outLogs.size() - candidateCount;
+                for (int i = 0; i < candidateCount; i++)
+                    MobileCenterLog.debug(LOG_TAG, "\t" + outLogs.get(offset + i).getSid() + " / " + candidateDbIdentifiers[i]);
+            }
+        }
 
-            /* Change a database identifier to pending state. */
-            mPendingDbIdentifiers.add(dbIdentifier);
+        /* Change database identifiers to pending state for the batch. */
+        Map<String, long[]> pendingBatches = mPendingDbIdentifiersGroups.get(group);
+        if (pendingBatches == null) {
+            pendingBatches = new HashMap<>();
+            mPendingDbIdentifiersGroups.put(group, pendingBatches);
+        }
+        pendingBatches.put(id, Arrays.copyOf(candidateDbIdentifiers, candidateCount));
+        return id;
+    }
 
-            /* Store a database identifier to a group of the ID. */
-            pendingDbIdentifiersGroup.add(dbIdentifier);
+    /**
+     * Gets the database identifiers of all pending batches for a group.
+     *
+     * @param group The group of the storage for logs.
+     * @return The pending database identifiers, {@code null} if none.
+     */
+    @Nullable
+    private long[] getPendingDbIdentifiers(@NonNull String group) {
+        Map<String, long[]> pendingBatches = mPendingDbIdentifiersGroups.get(group);
+        if (pendingBatches == null)
+            return null;
+        int size = 0;
+        for (long[] dbIdentifiers : pendingBatches.values())
+            size += dbIdentifiers.length;
+        long[] pendingDbIdentifiers = new long[size];
+        int index = 0;
+        for (long[] dbIdentifiers : pendingBatches.values()) {
+            System.arraycopy(dbIdentifiers, 0, pendingDbIdentifiers, index, dbIdentifiers.length);
+            index += dbIdentifiers.length;
+        }
+        return pendingDbIdentifiers;
+    }
 
-            /* Add to output parameter. */
-            outLogs.add(entry.getValue());
+    @Override
+    public synchronized int trimLogs(@NonNull String group, long maxLogAge, long maxBytes, @NonNull List<Log> outExpiredLogs, @NonNull List<Log> outEvictedLogs) {
+        if (maxLogAge <= 0 && maxBytes <= 0)
+            return 0;
+
+        /* Write buffered logs first. */
+        flush();
+        long startTime = SystemClock.elapsedRealtime();
+
+        /*
+         * Walk from the newest log reading only small columns: the first one that is too old or over quota
+         * ends the range to delete, as logs are stored in chronological order.
+         */
+        long expiryTime = maxLogAge > 0 ? System.currentTimeMillis() - maxLogAge : Long.MIN_VALUE;
+        long bytes = 0;
+        long maxDbIdentifier = -1;
+        DatabaseStorage.DatabaseScanner sizeScanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group, new String[]{DatabaseManager.PRIMARY_KEY, COLUMN_TIMESTAMP, COLUMN_SIZE}, true);
+        for (ContentValues values : sizeScanner) {
+            Long size = values.getAsLong(COLUMN_SIZE);
+            Long timestamp = values.getAsLong(COLUMN_TIMESTAMP);
+            bytes += size == null ? 0 : size;
+            if ((maxBytes > 0 && bytes > maxBytes) || (timestamp != null && timestamp < expiryTime)) {
+                maxDbIdentifier = values.getAsLong(DatabaseManager.PRIMARY_KEY);
+                break;
+            }
+        }
+        sizeScanner.close();
+        if (maxDbIdentifier < 0) {
+            getStats().getTrimLatency().record(SystemClock.elapsedRealtime() - startTime);
+            return 0;
+        }
 
-            /* Log. */
-            MobileCenterLog.debug(LOG_TAG, "\t" + entry.getValue().getSid() + " / " + dbIdentifier);
+        /* Read the logs to delete so that they can be reported, logs being sent are kept. */
+        long[] pendingDbIdentifiers = getPendingDbIdentifiers(group);
+        int expiredCount = 0;
+        int evictedCount = 0;
+        DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group, pendingDbIdentifiers, 0);
+        for (ContentValues values : scanner) {
+            Long dbIdentifier = values.getAsLong(DatabaseManager.PRIMARY_KEY);
+            if (dbIdentifier == null || dbIdentifier > maxDbIdentifier)
+                break;
+            try {
+                Log log = getLogSerializer().deserializeLog(expandDevice(values.getAsString(COLUMN_LOG), values.getAsString(COLUMN_LOG_DEVICE_HASH)));
+                Long timestamp = values.getAsLong(COLUMN_TIMESTAMP);
+                if (timestamp != null && timestamp < expiryTime) {
+                    outExpiredLogs.add(log);
+                    expiredCount++;
+                } else {
+                    outEvictedLogs.add(log);
+                    evictedCount++;
+                }
+            } catch (JSONException e) {
+                MobileCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
+            }
         }
+        scanner.close();
 
-        /* Update pending IDs. */
-        mPendingDbIdentifiersGroups.put(group + id, pendingDbIdentifiersGroup);
-        return id;
+        /* Delete them with a single statement. */
+        int deleted = mDatabaseStorage.delete(COLUMN_GROUP, group, maxDbIdentifier, pendingDbIdentifiers);
+        getStats().getTrimLatency().record(SystemClock.elapsedRealtime() - startTime);
+        deleteUnreferencedDevices();
+        MobileCenterLog.info(LOG_TAG, "Deleted " + deleted + " log(s) from the Persistence database for " + group + ": " + expiredCount + " expired, " + evictedCount + " over quota");
+        return deleted;
     }
 
     @Override
-    public void clearPendingLogState() {
-        mPendingDbIdentifiers.clear();
+    public synchronized void compact() {
+        mDatabaseStorage.compact();
+    }
+
+    @NonNull
+    @Override
+    public synchronized DatabaseStats getStorageStats() {
+        return mDatabaseStorage.getStats();
+    }
+
+    @Override
+    public synchronized void clearPendingLogState() {
         mPendingDbIdentifiersGroups.clear();
         MobileCenterLog.debug(LOG_TAG, "Cleared pending log states");
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+        flush();
+
+        /* Device snapshots are in the database of logs, close their table first. */
+        synchronized (mDeviceHashes) {
+            if (mDevicesStorage != null)
+                mDevicesStorage.close();
+        }
         mDatabaseStorage.close();
     }
 }
\ No newline at end of file
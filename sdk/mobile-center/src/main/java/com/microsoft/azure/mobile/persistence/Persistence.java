@@ -6,6 +6,7 @@ import android.support.annotation.Nullable;
 
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.storage.DatabaseStats;
 
 import java.io.Closeable;
 import java.util.List;
@@ -25,6 +26,11 @@ public abstract class Persistence implements Closeable {
      */
     private LogSerializer mLogSerializer;
 
+    /**
+     * Database operation timings.
+     */
+    private final PersistenceStats mStats = new PersistenceStats();
+
     /**
      * Writes a log to the storage with the given {@code group}.
      *
@@ -66,7 +72,54 @@ public abstract class Persistence implements Closeable {
      * @return An ID for {@code outLogs}. {@code null} if no logs exist.
      */
     @Nullable
-    public abstract String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs);
+    public String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
+        return getLogs(group, limit, outLogs, null);
+    }
+
+    /**
+     * Gets an array of logs for the given {@code group}, as objects and/or as the JSON payloads they were stored with.
+     * Logs are only deserialized when {@code outLogs} is not {@code null}.
+     *
+     * @param group       The group of the storage for logs.
+     * @param limit       The max number of logs to be returned.
+     * @param outLogs     An optional list to receive {@link Log} objects.
+     * @param outPayloads An optional list to receive the serialized JSON object of each log, in the same order.
+     * @return An ID for the returned logs. {@code null} if no logs exist.
+     */
+    @Nullable
+    public abstract String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @Nullable List<Log> outLogs, @Nullable List<String> outPayloads);
+
+    /**
+     * Deletes the logs of the {@code group} that are older than a maximum age or that exceed a storage quota.
+     * The quota keeps the newest logs. Logs being sent are not deleted.
+     *
+     * @param group          The group of the storage for logs.
+     * @param maxLogAge      The maximum age of a log in milliseconds, {@code 0} for no limit.
+     * @param maxBytes       The maximum size of the logs of the group in bytes, {@code 0} for no limit.
+     * @param outExpiredLogs A list to receive the logs deleted because of their age.
+     * @param outEvictedLogs A list to receive the logs deleted because of the quota.
+     * @return The number of deleted logs, including the ones that could not be read back to be reported.
+     */
+    public abstract int trimLogs(@NonNull String group, long maxLogAge, long maxBytes, @NonNull List<Log> outExpiredLogs, @NonNull List<Log> outEvictedLogs);
+
+    /**
+     * Writes any buffered log to the storage. Logs are also flushed automatically before being read or counted.
+     */
+    public abstract void flush();
+
+    /**
+     * Gives free space of the storage back to the file system, a small step at a time.
+     * This is meant to be called when the application is idle or in background.
+     */
+    public abstract void compact();
+
+    /**
+     * Gets the on-disk footprint of the storage.
+     *
+     * @return The storage statistics.
+     */
+    @NonNull
+    public abstract DatabaseStats getStorageStats();
 
     /**
      * Clears all associations between logs of the {@code group} and ids returned by {@link #getLogs(String, int, List)}}.
@@ -74,6 +127,15 @@ public abstract class Persistence implements Closeable {
      */
     public abstract void clearPendingLogState();
 
+    /**
+     * Gets the timings of storage operations.
+     *
+     * @return The persistence statistics.
+     */
+    public PersistenceStats getStats() {
+        return mStats;
+    }
+
     /**
      * Gets a {@link LogSerializer}.
      *
@@ -0,0 +1,90 @@
+package com.microsoft.azure.mobile.persistence;
+
+import com.microsoft.azure.mobile.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings of database operations run by a {@link Persistence}.
+ */
+public class PersistenceStats {
+
+    /**
+     * Durations of writing buffered logs.
+     */
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+    /**
+     * Durations of reading a batch of logs.
+     */
+    private final LatencyHistogram mReadLatency = new LatencyHistogram();
+
+    /**
+     * Durations of deleting logs.
+     */
+    private final LatencyHistogram mDeleteLatency = new LatencyHistogram();
+
+    /**
+     * Durations of trimming logs by retention policy.
+     */
+    private final LatencyHistogram mTrimLatency = new LatencyHistogram();
+
+    /**
+     * Number of stored logs deleted because they could not be read back.
+     */
+    private final AtomicLong mCorruptedLogCount = new AtomicLong();
+
+    /**
+     * Record logs that could not be read back and were deleted.
+     *
+     * @param count number of logs.
+     */
+    void recordCorruptedLogs(int count) {
+        mCorruptedLogCount.addAndGet(count);
+    }
+
+    /**
+     * Get the durations of writing buffered logs to the database.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * Get the durations of reading a batch of logs from the database.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getReadLatency() {
+        return mReadLatency;
+    }
+
+    /**
+     * Get the durations of deleting logs from the database.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getDeleteLatency() {
+        return mDeleteLatency;
+    }
+
+    /**
+     * Get the durations of deleting logs by retention policy, including reading the logs to report.
+     *
+     * @return latency histogram.
+     */
+    public LatencyHistogram getTrimLatency() {
+        return mTrimLatency;
+    }
+
+    /**
+     * Get the number of stored logs deleted because they could not be read back.
+     *
+     * @return number of logs.
+     */
+    public long getCorruptedLogCount() {
+        return mCorruptedLogCount.get();
+    }
+}
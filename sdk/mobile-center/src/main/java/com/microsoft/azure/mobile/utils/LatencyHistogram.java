@@ -0,0 +1,159 @@
+package com.microsoft.azure.mobile.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of durations in milliseconds, using fixed buckets so that recording never allocates.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Inclusive upper bounds of the buckets in milliseconds, the last bucket counts anything above the last bound.
+     */
+    private static final long[] BUCKET_BOUNDS = new long[]{
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000, 3600000
+    };
+
+    /**
+     * Number of values per bucket.
+     */
+    private final AtomicLongArray mBucketCounts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+    /**
+     * Number of values.
+     */
+    private final AtomicLong mCount = new AtomicLong();
+
+    /**
+     * Sum of values in milliseconds.
+     */
+    private final AtomicLong mSum = new AtomicLong();
+
+    /**
+     * Maximum value in milliseconds.
+     */
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Get the number of buckets.
+     *
+     * @return number of buckets.
+     */
+    public static int getBucketCount() {
+        return BUCKET_BOUNDS.length + 1;
+    }
+
+    /**
+     * Get the inclusive upper bound of a bucket.
+     *
+     * @param bucket bucket index.
+     * @return upper bound in milliseconds, {@link Long#MAX_VALUE} for the last bucket.
+     */
+    public static long getBucketBound(int bucket) {
+        return bucket < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param duration duration in milliseconds, negative values are recorded as 0.
+     */
+    public void record(long duration) {
+        duration = Math.max(0, duration);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && duration > BUCKET_BOUNDS[bucket])
+            bucket++;
+        mBucketCounts.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(duration);
+        long max;
+        do {
+            max = mMax.get();
+        } while (duration > max && !mMax.compareAndSet(max, duration));
+    }
+
+    /**
+     * Get the number of recorded durations.
+     *
+     * @return number of durations.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Get the sum of recorded durations.
+     *
+     * @return sum in milliseconds.
+     */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /**
+     * Get the mean of recorded durations.
+     *
+     * @return mean in milliseconds, 0 if nothing was recorded.
+     */
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Get the longest recorded duration.
+     *
+     * @return maximum in milliseconds.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Get the number of durations recorded in a bucket.
+     *
+     * @param bucket bucket index, see {@link #getBucketBound(int)}.
+     * @return number of durations.
+     */
+    public long getBucketCount(int bucket) {
+        return mBucketCounts.get(bucket);
+    }
+
+    /**
+     * Copy bucket counts without allocating.
+     *
+     * @param outCounts array of at least {@link #getBucketCount()} elements receiving the counts.
+     */
+    public void getBucketCounts(@NonNull long[] outCounts) {
+        for (int i = 0; i < mBucketCounts.length(); i++)
+            outCounts[i] = mBucketCounts.get(i);
+    }
+
+    /**
+     * Estimate a percentile as the upper bound of the bucket containing it, capped by the maximum.
+     *
+     * @param percentile percentile between 0 and 100.
+     * @return estimated duration in milliseconds, 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < mBucketCounts.length(); i++) {
+            seen += mBucketCounts.get(i);
+            if (seen >= rank)
+                return Math.min(getBucketBound(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", mean=" + getMean() + ", p50=" + getPercentile(50) + ", p99=" + getPercentile(99) + ", max=" + getMax() + "}";
+    }
+}
@@ -3,6 +3,8 @@ package com.microsoft.azure.mobile.utils;
 import android.support.annotation.IntRange;
 import android.util.Log;
 
+import java.util.Locale;
+
 import static android.util.Log.VERBOSE;
 
 /**
@@ -10,6 +12,9 @@ import static android.util.Log.VERBOSE;
  * Wrapper class for logging in the SDK as well as
  * setting the desired log level for end users.
  * Log levels correspond to those of android.util.Log.
+ * <p>
+ * Messages built from arguments should use the format overloads, which format only if the level is enabled,
+ * or be guarded by {@link #isLoggable(int)} when arguments are primitives, so that disabled logs never allocate.
  *
  * @see Log
  */
@@ -50,6 +55,27 @@ public class MobileCenterLog {
         sLogLevel = logLevel;
     }
 
+    /**
+     * Check whether logs of a level are printed.
+     *
+     * @param level the log level.
+     * @return true if logs of that level are printed.
+     */
+    public static boolean isLoggable(int level) {
+        return sLogLevel <= level;
+    }
+
+    /**
+     * Format a message.
+     *
+     * @param format the message format, see {@link String#format(String, Object...)}.
+     * @param args   the format arguments.
+     * @return the formatted message.
+     */
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
+
     /**
      * Log a message with level VERBOSE
      *
@@ -76,6 +102,33 @@ public class MobileCenterLog {
         }
     }
 
+    /**
+     * Log a formatted message with level VERBOSE, formatting it only if the level is enabled.
+     *
+     * @param tag    the log tag for your message
+     * @param format the log message format
+     * @param arg    the format argument
+     */
+    public static void verbose(String tag, String format, Object arg) {
+        if (sLogLevel <= Log.VERBOSE) {
+            Log.v(tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Log a formatted message with level VERBOSE, formatting it only if the level is enabled.
+     *
+     * @param tag    the log tag for your message
+     * @param format the log message format
+     * @param arg1   the first format argument
+     * @param arg2   the second format argument
+     */
+    public static void verbose(String tag, String format, Object arg1, Object arg2) {
+        if (sLogLevel <= Log.VERBOSE) {
+            Log.v(tag, format(format, arg1, arg2));
+        }
+    }
+
     /**
      * Log a message with level DEBUG
      *
@@ -101,6 +154,33 @@ public class MobileCenterLog {
         }
     }
 
+    /**
+     * Log a formatted message with level DEBUG, formatting it only if the level is enabled.
+     *
+     * @param tag    the log tag for your message
+     * @param format the log message format
+     * @param arg    the format argument
+     */
+    public static void debug(String tag, String format, Object arg) {
+        if (sLogLevel <= Log.DEBUG) {
+            Log.d(tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Log a formatted message with level DEBUG, formatting it only if the level is enabled.
+     *
+     * @param tag    the log tag for your message
+     * @param format the log message format
+     * @param arg1   the first format argument
+     * @param arg2   the second format argument
+     */
+    public static void debug(String tag, String format, Object arg1, Object arg2) {
+        if (sLogLevel <= Log.DEBUG) {
+            Log.d(tag, format(format, arg1, arg2));
+        }
+    }
+
     /**
      * Log a message with level INFO
      *
@@ -127,6 +207,33 @@ public class MobileCenterLog {
         }
     }
 
+    /**
+     * Log a formatted message with level INFO, formatting it only if the level is enabled.
+     *
+     * @param tag    the log tag for your message
+     * @param format the log message format
+     * @param arg    the format argument
+     */
+    public static void info(String tag, String format, Object arg) {
+        if (sLogLevel <= Log.INFO) {
+            Log.i(tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Log a formatted message with level INFO, formatting it only if the level is enabled.
+     *
+     * @param tag    the log tag for your message
+     * @param format the log message format
+     * @param arg1   the first format argument
+     * @param arg2   the second format argument
+     */
+    public static void info(String tag, String format, Object arg1, Object arg2) {
+        if (sLogLevel <= Log.INFO) {
+            Log.i(tag, format(format, arg1, arg2));
+        }
+    }
+
     /**
      * Log a message with level WARN
      *
@@ -8,6 +8,7 @@ import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.support.annotation.VisibleForTesting;
+import android.telephony.TelephonyManager;
 
 import com.microsoft.azure.mobile.MobileCenter;
 
@@ -54,6 +55,16 @@ public class NetworkStateHelper implements Closeable {
      */
     private String mNetworkType;
 
+    /**
+     * Is the current network metered.
+     */
+    private boolean mNetworkMetered;
+
+    /**
+     * Is the current network type a slow one.
+     */
+    private boolean mNetworkSlow;
+
     /**
      * Init.
      *
@@ -89,6 +100,24 @@ public class NetworkStateHelper implements Closeable {
         return mNetworkType != null;
     }
 
+    /**
+     * Check whether the current network is metered, i.e. anything else than Wi-Fi or Ethernet.
+     *
+     * @return true for metered, false for unmetered or disconnected.
+     */
+    public boolean isNetworkMetered() {
+        return mNetworkMetered;
+    }
+
+    /**
+     * Check whether the current network type is a slow one, i.e. a 2G mobile network.
+     *
+     * @return true for slow, false otherwise.
+     */
+    public boolean isNetworkSlow() {
+        return mNetworkSlow;
+    }
+
     /**
      * Update network type by polling.
      */
@@ -116,10 +145,36 @@ public class NetworkStateHelper implements Closeable {
         MobileCenterLog.debug(MobileCenter.LOG_TAG, "Active network info=" + networkInfo);
 
         /* Update network type. null for not connected. */
-        if (networkInfo != null && networkInfo.isConnected())
+        if (networkInfo != null && networkInfo.isConnected()) {
             mNetworkType = networkInfo.getTypeName() + networkInfo.getSubtypeName();
-        else
+            int type = networkInfo.getType();
+            mNetworkMetered = type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+            mNetworkSlow = type == ConnectivityManager.TYPE_MOBILE && isSlowSubtype(networkInfo.getSubtype());
+        } else {
             mNetworkType = null;
+            mNetworkMetered = false;
+            mNetworkSlow = false;
+        }
+    }
+
+    /**
+     * Check whether a mobile network subtype is a 2G one.
+     *
+     * @param subtype network subtype.
+     * @return true for a 2G subtype.
+     */
+    private static boolean isSlowSubtype(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+
+            default:
+                return false;
+        }
     }
 
     /**
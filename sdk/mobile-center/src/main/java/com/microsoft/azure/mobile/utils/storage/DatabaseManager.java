@@ -1,12 +1,14 @@
 package com.microsoft.azure.mobile.utils.storage;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -17,12 +19,19 @@ import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Database manager for SQLite with failover to in-memory.
@@ -39,6 +48,23 @@ public class DatabaseManager implements Closeable {
      */
     private static final String PRIMARY_KEY_SELECTION = "oid = ?";
 
+    /**
+     * Value of the auto_vacuum pragma for incremental mode.
+     */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Minimum ratio of free pages in the database for {@link #compact()} to release them.
+     */
+    @VisibleForTesting
+    static final double MIN_FREE_PAGE_RATIO = 0.1;
+
+    /**
+     * Maximum number of pages released by a single {@link #compact()} call, to keep it short.
+     */
+    @VisibleForTesting
+    static final long MAX_VACUUM_PAGES = 256;
+
     /**
      * Application context instance.
      */
@@ -69,6 +95,21 @@ public class DatabaseManager implements Closeable {
      */
     private final ErrorListener mErrorListener;
 
+    /**
+     * Database manager of another table owning the database this table is in, {@code null} if this one owns it.
+     */
+    private final DatabaseManager mDatabaseOwner;
+
+    /**
+     * Statements filling the columns added to the table by a schema upgrade.
+     */
+    private String[] mUpgradeStatements = new String[0];
+
+    /**
+     * Database this table was last created in when it shares the database of another table.
+     */
+    private SQLiteDatabase mTableDatabase;
+
     /**
      * SQLite helper instance.
      */
@@ -85,6 +126,41 @@ public class DatabaseManager implements Closeable {
      */
     private long mIMDBAutoInc;
 
+    /**
+     * Number of rows in the SQLite table, {@code -1} until counted once.
+     */
+    private long mRowCount = -1;
+
+    /**
+     * Number of rows in the SQLite table per column value, for every column counted with {@link #getRowCount(String, Object)}.
+     */
+    private final Map<String, Map<String, Long>> mColumnRowCounts = new HashMap<>();
+
+    /**
+     * Database the compiled statements belong to.
+     */
+    private SQLiteDatabase mStatementsDatabase;
+
+    /**
+     * Schema columns in the order they are bound in {@link #mInsertStatement}.
+     */
+    private String[] mInsertColumns;
+
+    /**
+     * Compiled statement to insert a row.
+     */
+    private SQLiteStatement mInsertStatement;
+
+    /**
+     * Compiled statement to delete a row by identifier.
+     */
+    private SQLiteStatement mDeleteStatement;
+
+    /**
+     * Compiled statement to count rows.
+     */
+    private SQLiteStatement mCountStatement;
+
     /**
      * Initializes the table in the database.
      *
@@ -120,39 +196,131 @@ public class DatabaseManager implements Closeable {
         mSchema = schema;
         mMaxNumberOfRecords = maxRecords;
         mErrorListener = listener;
+        mDatabaseOwner = null;
 
         mSQLiteOpenHelper = new SQLiteOpenHelper(context, database, null, version) {
             @Override
             public void onCreate(SQLiteDatabase db) {
-                /* Generate a schema from specimen. */
-                StringBuilder sql = new StringBuilder("CREATE TABLE `");
-                sql.append(mTable);
-                sql.append("` (oid INTEGER PRIMARY KEY AUTOINCREMENT");
-                for (Map.Entry<String, Object> col : mSchema.valueSet()) {
-                    sql.append(", `").append(col.getKey()).append("` ");
-                    Object val = col.getValue();
-                    if (val instanceof Double || val instanceof Float)
-                        sql.append("REAL");
-                    else if (val instanceof Number || val instanceof Boolean)
-                        sql.append("INTEGER");
-                    else if (val instanceof byte[])
-                        sql.append("BLOB");
-                    else
-                        sql.append("TEXT");
-                }
-                sql.append(");");
-                db.execSQL(sql.toString());
+
+                /* Vacuum mode can only be set cheaply before the first table is created. */
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                createTable(db, false);
             }
 
             @Override
             public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-                /* For now we upgrade by destroying the old table. */
-                db.execSQL("DROP TABLE `" + mTable + "`");
-                onCreate(db);
+
+                /* Upgrade by adding the new columns, the old table is destroyed only if it cannot be migrated. */
+                try {
+                    addMissingColumns(db);
+                    for (String statement : mUpgradeStatements)
+                        db.execSQL(statement);
+                } catch (RuntimeException e) {
+                    MobileCenterLog.warn(MobileCenter.LOG_TAG, "Failed to migrate " + mTable + " from version " + oldVersion + ", recreating it.", e);
+                    db.execSQL("DROP TABLE IF EXISTS `" + mTable + "`");
+                    onCreate(db);
+                }
+            }
+
+            @Override
+            @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+            public void onConfigure(SQLiteDatabase db) {
+
+                /*
+                 * Write-ahead logging lets queries read while logs are inserted.
+                 * Journal is synced only at checkpoints, a power loss can lose the last transactions but not corrupt the database.
+                 * Synchronous mode must be set after enabling WAL as it resets it.
+                 * This is configured before the connection is used, older API levels keep the default journal.
+                 */
+                if (!db.isReadOnly()) {
+                    db.enableWriteAheadLogging();
+                    db.execSQL("PRAGMA synchronous = NORMAL");
+                }
             }
         };
     }
 
+    /**
+     * Initializes another table in the database of a database manager.
+     * Both tables use the same connection so that they can be written in a single transaction.
+     * The table is created the first time it is used and is not affected by the schema version of the database.
+     *
+     * @param databaseOwner The database manager owning the database.
+     * @param table         The table name.
+     * @param schema        The schema.
+     * @param listener      The error listener.
+     */
+    DatabaseManager(DatabaseManager databaseOwner, String table, ContentValues schema, ErrorListener listener) {
+        mContext = databaseOwner.mContext;
+        mDatabase = databaseOwner.mDatabase;
+        mTable = table;
+        mSchema = schema;
+        mMaxNumberOfRecords = 0;
+        mErrorListener = listener;
+        mDatabaseOwner = databaseOwner;
+    }
+
+    /**
+     * Creates the table with a schema generated from specimen.
+     *
+     * @param db          The SQLite database.
+     * @param ifNotExists {@code true} to keep the table if it already exists.
+     * @throws RuntimeException If an error occurs.
+     */
+    private void createTable(SQLiteDatabase db, boolean ifNotExists) throws RuntimeException {
+        StringBuilder sql = new StringBuilder(ifNotExists ? "CREATE TABLE IF NOT EXISTS `" : "CREATE TABLE `");
+        sql.append(mTable);
+        sql.append("` (oid INTEGER PRIMARY KEY AUTOINCREMENT");
+        for (Map.Entry<String, Object> col : mSchema.valueSet())
+            sql.append(", `").append(col.getKey()).append("` ").append(getColumnType(col.getValue()));
+        sql.append(");");
+        db.execSQL(sql.toString());
+    }
+
+    /**
+     * Adds the schema columns missing from the table, creating the table if it does not exist.
+     * Existing rows get {@code null} in the added columns.
+     *
+     * @param db The SQLite database.
+     * @throws RuntimeException If an error occurs.
+     */
+    private void addMissingColumns(SQLiteDatabase db) throws RuntimeException {
+        Set<String> columns = new HashSet<>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(`" + mTable + "`)", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext())
+                columns.add(cursor.getString(nameIndex));
+        } finally {
+            cursor.close();
+        }
+        if (columns.isEmpty()) {
+            createTable(db, false);
+            return;
+        }
+        for (Map.Entry<String, Object> col : mSchema.valueSet()) {
+            if (!columns.contains(col.getKey()))
+                db.execSQL("ALTER TABLE `" + mTable + "` ADD COLUMN `" + col.getKey() + "` " + getColumnType(col.getValue()));
+        }
+    }
+
+    /**
+     * Gets the SQLite type of a column from its specimen value.
+     *
+     * @param specimen The specimen value.
+     * @return The column type.
+     */
+    private static String getColumnType(Object specimen) {
+        if (specimen instanceof Double || specimen instanceof Float)
+            return "REAL";
+        else if (specimen instanceof Number || specimen instanceof Boolean)
+            return "INTEGER";
+        else if (specimen instanceof byte[])
+            return "BLOB";
+        else
+            return "TEXT";
+    }
+
     /**
      * Converts a cursor to an entry.
      *
@@ -201,16 +369,12 @@ public class DatabaseManager implements Closeable {
         if (mIMDB == null) {
             try {
                 /* Insert data. */
-                long id = getDatabase().insertOrThrow(mTable, null, values);
+                SQLiteDatabase database = getDatabase();
+                long id = insertRow(database, values);
+                onRowInserted(database, values);
 
                 /* Purge oldest entry if it hits the limit. */
-                if (mMaxNumberOfRecords < getRowCount() && mMaxNumberOfRecords > 0) {
-                    Cursor cursor = getCursor(null, null);
-                    cursor.moveToNext();
-                    delete(cursor.getLong(0));
-                    cursor.close();
-                }
-
+                purgeOverflow(database);
                 return id;
             } catch (RuntimeException e) {
                 switchToInMemory("put", e);
@@ -218,11 +382,406 @@ public class DatabaseManager implements Closeable {
         }
 
         /* Store the values to in-memory database. */
+        return putInMemory(values);
+    }
+
+    /**
+     * Stores the entries to the table in a single transaction.
+     *
+     * @param valuesList The entries to be stored.
+     */
+    public void put(@NonNull List<ContentValues> valuesList) {
+        if (valuesList.size() <= 0)
+            return;
+
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+
+                /* Insert data, only purge once at the end of the transaction. */
+                SQLiteDatabase database = getDatabase();
+                database.beginTransaction();
+                try {
+                    for (ContentValues values : valuesList) {
+                        insertRow(database, values);
+                        onRowInserted(database, values);
+                    }
+                    purgeOverflow(database);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return;
+            } catch (RuntimeException e) {
+                switchToInMemory("put", e);
+            }
+        }
+
+        /* Store the values to in-memory database, transaction was rolled back so nothing is lost. */
+        for (ContentValues values : valuesList)
+            putInMemory(values);
+    }
+
+    /**
+     * Stores entries to this table and to another table of the same database in a single transaction,
+     * the entries of the other table first.
+     *
+     * @param valuesList      The entries to be stored in this table.
+     * @param otherTable      The database manager of the other table, sharing the database of this one.
+     * @param otherValuesList The entries to be stored in the other table.
+     */
+    public void put(@NonNull List<ContentValues> valuesList, @NonNull DatabaseManager otherTable, @NonNull List<ContentValues> otherValuesList) {
+        if (otherValuesList.size() <= 0) {
+            put(valuesList);
+            return;
+        }
+
+        /* Try SQLite, if both tables are still in it. */
+        if (mIMDB == null && otherTable.mIMDB == null) {
+            try {
+                SQLiteDatabase database = otherTable.getDatabase();
+                database.beginTransaction();
+                try {
+                    for (ContentValues values : otherValuesList) {
+                        otherTable.insertRow(database, values);
+                        otherTable.onRowInserted(database, values);
+                    }
+                    for (ContentValues values : valuesList) {
+                        insertRow(database, values);
+                        onRowInserted(database, values);
+                    }
+                    purgeOverflow(database);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return;
+            } catch (RuntimeException e) {
+
+                /* The other table counted rows that were rolled back. */
+                otherTable.resetRowCounts();
+                switchToInMemory("put", e);
+            }
+        }
+
+        /* Store the values of each table in its own database. */
+        otherTable.put(otherValuesList);
+        put(valuesList);
+    }
+
+    /**
+     * Inserts a row with the compiled insert statement. Only the schema columns are written.
+     *
+     * @param database The SQLite database.
+     * @param values   The entry to be stored.
+     * @return The row identifier.
+     * @throws RuntimeException If an error occurs.
+     */
+    private long insertRow(SQLiteDatabase database, ContentValues values) throws RuntimeException {
+        compileStatements(database);
+        for (int i = 0; i < mInsertColumns.length; i++)
+            bindValue(mInsertStatement, i + 1, values.get(mInsertColumns[i]));
+        return mInsertStatement.executeInsert();
+    }
+
+    /**
+     * Binds a value to a compiled statement argument the same way {@link SQLiteDatabase#insert} does.
+     *
+     * @param statement The compiled statement.
+     * @param index     The 1-based argument index.
+     * @param value     The value.
+     */
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null)
+            statement.bindNull(index);
+        else if (value instanceof Double || value instanceof Float)
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        else if (value instanceof Number)
+            statement.bindLong(index, ((Number) value).longValue());
+        else if (value instanceof Boolean)
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        else if (value instanceof byte[])
+            statement.bindBlob(index, (byte[]) value);
+        else
+            statement.bindString(index, value.toString());
+    }
+
+    /**
+     * Compiles the statements reused by the frequent operations, once per database instance.
+     *
+     * @param database The SQLite database.
+     * @throws RuntimeException If an error occurs.
+     */
+    private void compileStatements(SQLiteDatabase database) throws RuntimeException {
+        if (database == mStatementsDatabase)
+            return;
+        closeStatements();
+        String[] columns = mSchema.keySet().toArray(new String[0]);
+        StringBuilder sql = new StringBuilder("INSERT INTO `").append(mTable).append("` (");
+        for (int i = 0; i < columns.length; i++)
+            sql.append(i > 0 ? ", `" : "`").append(columns[i]).append("`");
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++)
+            sql.append(i > 0 ? ", ?" : "?");
+        sql.append(")");
+        mInsertStatement = database.compileStatement(sql.toString());
+        mDeleteStatement = database.compileStatement("DELETE FROM `" + mTable + "` WHERE " + PRIMARY_KEY_SELECTION);
+        mCountStatement = database.compileStatement("SELECT COUNT(*) FROM `" + mTable + "`");
+        mInsertColumns = columns;
+        mStatementsDatabase = database;
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    private void closeStatements() {
+        for (SQLiteStatement statement : new SQLiteStatement[]{mInsertStatement, mDeleteStatement, mCountStatement})
+            if (statement != null)
+                try {
+                    statement.close();
+                } catch (RuntimeException e) {
+                    MobileCenterLog.warn(MobileCenter.LOG_TAG, "Closing statement failed", e);
+                }
+        mInsertStatement = null;
+        mDeleteStatement = null;
+        mCountStatement = null;
+        mInsertColumns = null;
+        mStatementsDatabase = null;
+    }
+
+    /**
+     * Stores the entry to the in-memory database.
+     *
+     * @param values The entry to be stored.
+     * @return A database identifier
+     */
+    private long putInMemory(@NonNull ContentValues values) {
         values.put(PRIMARY_KEY, mIMDBAutoInc);
         mIMDB.put(mIMDBAutoInc, values);
         return mIMDBAutoInc++;
     }
 
+    /**
+     * Purges the oldest entries with a single statement if the table holds more records than allowed.
+     *
+     * @param database The SQLite database.
+     * @throws RuntimeException If an error occurs.
+     */
+    private void purgeOverflow(SQLiteDatabase database) throws RuntimeException {
+        if (mMaxNumberOfRecords <= 0)
+            return;
+        long overflow = countRows(database) - mMaxNumberOfRecords;
+        if (overflow <= 0)
+            return;
+
+        /* Per column counters need to know the values of the purged rows, only read them if some columns are counted. */
+        String oldestRows = "SELECT " + PRIMARY_KEY + " FROM `" + mTable + "` ORDER BY " + PRIMARY_KEY + " LIMIT " + overflow;
+        if (!mColumnRowCounts.isEmpty()) {
+            String[] columns = mColumnRowCounts.keySet().toArray(new String[0]);
+            Cursor cursor = database.query(mTable, columns, null, null, null, null, PRIMARY_KEY, String.valueOf(overflow));
+            try {
+                while (cursor.moveToNext())
+                    for (int i = 0; i < columns.length; i++)
+                        addToRowCount(mColumnRowCounts.get(columns[i]), cursor.isNull(i) ? null : cursor.getString(i), -1);
+            } finally {
+                cursor.close();
+            }
+        }
+        int deleted = database.delete(mTable, PRIMARY_KEY + " IN (" + oldestRows + ")", null);
+        if (mRowCount >= 0)
+            mRowCount -= deleted;
+    }
+
+    /**
+     * Gets the number of rows in the SQLite table, querying it only the first time.
+     *
+     * @param database The SQLite database.
+     * @return The number of rows.
+     * @throws RuntimeException If an error occurs.
+     */
+    private long countRows(SQLiteDatabase database) throws RuntimeException {
+        if (mRowCount < 0) {
+            compileStatements(database);
+            mRowCount = mCountStatement.simpleQueryForLong();
+        }
+        return mRowCount;
+    }
+
+    /**
+     * Reads a pragma returning a number.
+     *
+     * @param database The SQLite database.
+     * @param pragma   The pragma name.
+     * @return The pragma value.
+     * @throws RuntimeException If an error occurs.
+     */
+    private static long queryPragma(SQLiteDatabase database, String pragma) throws RuntimeException {
+        SQLiteStatement statement = database.compileStatement("PRAGMA " + pragma);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Runs a pragma to completion, ignoring the rows it returns.
+     *
+     * @param database The SQLite database.
+     * @param pragma   The pragma with its argument.
+     * @throws RuntimeException If an error occurs.
+     */
+    private static void runPragma(SQLiteDatabase database, String pragma) throws RuntimeException {
+        Cursor cursor = database.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Updates the row counters after an insert.
+     *
+     * @param database The SQLite database.
+     * @param values   The inserted entry.
+     * @throws RuntimeException If an error occurs.
+     */
+    private void onRowInserted(SQLiteDatabase database, ContentValues values) throws RuntimeException {
+
+        /* The insert is already in the table if we count for the first time. */
+        if (mRowCount < 0)
+            countRows(database);
+        else
+            mRowCount++;
+        for (Map.Entry<String, Map<String, Long>> entry : mColumnRowCounts.entrySet())
+            addToRowCount(entry.getValue(), values.getAsString(entry.getKey()), 1);
+    }
+
+    /**
+     * Deletes the rows matching a selection and updates the row counters.
+     *
+     * @param database    The SQLite database.
+     * @param whereClause The selection.
+     * @param whereArgs   The selection arguments.
+     * @param key         The column that has the same value in all the deleted rows, {@code null} if unknown.
+     * @param value       The value of that column in the deleted rows.
+     * @return The number of deleted rows.
+     * @throws RuntimeException If an error occurs.
+     */
+    private int deleteRows(SQLiteDatabase database, String whereClause, String[] whereArgs, String key, String value) throws RuntimeException {
+        int deleted = database.delete(mTable, whereClause, whereArgs);
+        onRowsDeleted(deleted, key, value);
+        return deleted;
+    }
+
+    /**
+     * Deletes a row by identifier with the compiled delete statement and updates the row counters.
+     *
+     * @param database The SQLite database.
+     * @param id       The database identifier.
+     * @throws RuntimeException If an error occurs.
+     */
+    private void deleteRow(SQLiteDatabase database, long id) throws RuntimeException {
+        compileStatements(database);
+        mDeleteStatement.bindLong(1, id);
+        onRowsDeleted(mDeleteStatement.executeUpdateDelete(), null, null);
+    }
+
+    /**
+     * Updates the row counters after deleting rows, without querying the table.
+     * Counters of a column whose deleted values are unknown are forgotten and counted again on next use.
+     *
+     * @param deleted The number of deleted rows.
+     * @param key     The column that has the same value in all the deleted rows, {@code null} if unknown.
+     * @param value   The value of that column in the deleted rows.
+     */
+    private void onRowsDeleted(int deleted, String key, String value) {
+        if (deleted <= 0)
+            return;
+        if (mRowCount >= 0)
+            mRowCount -= deleted;
+        for (Iterator<Map.Entry<String, Map<String, Long>>> iterator = mColumnRowCounts.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Map<String, Long>> entry = iterator.next();
+            if (entry.getKey().equals(key))
+                addToRowCount(entry.getValue(), value, -deleted);
+            else
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Counts rows grouped by the values of a column.
+     *
+     * @param database The SQLite database.
+     * @param key      The column.
+     * @return A cursor with the column value then the row count.
+     * @throws RuntimeException If an error occurs.
+     */
+    private Cursor queryRowCounts(SQLiteDatabase database, String key) throws RuntimeException {
+        return database.rawQuery("SELECT `" + key + "`, COUNT(*) FROM `" + mTable + "` GROUP BY `" + key + "`", null);
+    }
+
+    /**
+     * Joins database identifiers for an SQL IN clause.
+     *
+     * @param ids The database identifiers.
+     * @return The comma separated identifiers.
+     */
+    private static String joinIds(long[] ids) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(ids[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Checks whether an identifier is in an array.
+     *
+     * @param ids The database identifiers.
+     * @param id  The identifier to look for.
+     * @return {@code true} if found.
+     */
+    private static boolean containsId(long[] ids, Long id) {
+        if (id != null) {
+            for (long candidate : ids)
+                if (candidate == id)
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies values in reverse order.
+     *
+     * @param values The values.
+     * @return A new list with the values in reverse order.
+     */
+    private static List<ContentValues> reverse(Collection<ContentValues> values) {
+        List<ContentValues> reversed = new ArrayList<>(values);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+
+    /**
+     * Adds a delta to a row counter.
+     *
+     * @param counts The counters for a column.
+     * @param value  The column value.
+     * @param delta  The number of rows to add, negative to remove.
+     */
+    private static void addToRowCount(Map<String, Long> counts, String value, long delta) {
+        Long count = counts.get(value);
+        long newCount = (count == null ? 0 : count) + delta;
+        if (newCount > 0)
+            counts.put(value, newCount);
+        else
+            counts.remove(value);
+    }
+
     /**
      * Updates the entry for the identifier.
      *
@@ -254,7 +813,19 @@ public class DatabaseManager implements Closeable {
      * @param id The database identifier.
      */
     public void delete(@IntRange(from = 0) long id) {
-        delete(PRIMARY_KEY, id);
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                deleteRow(getDatabase(), id);
+            } catch (RuntimeException e) {
+                switchToInMemory("delete", e);
+            }
+        }
+
+        /* Deletes the value from in-memory database. */
+        else {
+            mIMDB.remove(id);
+        }
     }
 
     /**
@@ -269,7 +840,7 @@ public class DatabaseManager implements Closeable {
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
-                getDatabase().execSQL(String.format("DELETE FROM " + mTable + " WHERE " + PRIMARY_KEY + " IN (%s);", TextUtils.join(", ", idList)));
+                deleteRows(getDatabase(), PRIMARY_KEY + " IN (" + TextUtils.join(", ", idList) + ")", null, null, null);
             } catch (RuntimeException e) {
                 switchToInMemory("delete", e);
             }
@@ -282,6 +853,63 @@ public class DatabaseManager implements Closeable {
         }
     }
 
+    /**
+     * Deletes the entries by the identifier from the database.
+     *
+     * @param ids The database identifiers.
+     */
+    public void delete(@NonNull long[] ids) {
+        if (ids.length <= 0)
+            return;
+
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                deleteRows(getDatabase(), PRIMARY_KEY + " IN (" + joinIds(ids) + ")", null, null, null);
+            } catch (RuntimeException e) {
+                switchToInMemory("delete", e);
+            }
+        }
+
+        /* Deletes the values from in-memory database. */
+        else {
+            for (long id : ids)
+                mIMDB.remove(id);
+        }
+    }
+
+    /**
+     * Deletes the entries by the identifier from the database, all of them matching key == value.
+     * Knowing the value of the deleted entries lets the row counters of that column be updated without a query.
+     *
+     * @param key   The key the entries match.
+     * @param value The value the entries match.
+     * @param ids   The database identifiers.
+     */
+    public void delete(@NonNull String key, @NonNull Object value, @NonNull long[] ids) {
+        if (ids.length <= 0)
+            return;
+
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                String valueString = String.valueOf(value);
+                deleteRows(getDatabase(), key + " = ? AND " + PRIMARY_KEY + " IN (" + joinIds(ids) + ")", new String[]{valueString}, key, valueString);
+            } catch (RuntimeException e) {
+                switchToInMemory("delete", e);
+            }
+        }
+
+        /* Deletes the values from in-memory database. */
+        else {
+            for (long id : ids) {
+                ContentValues values = mIMDB.get(id);
+                if (values != null && value.equals(values.get(key)))
+                    mIMDB.remove(id);
+            }
+        }
+    }
+
     /**
      * Deletes the entries that matches key == value.
      *
@@ -292,7 +920,8 @@ public class DatabaseManager implements Closeable {
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
-                getDatabase().delete(mTable, key + " = ?", new String[]{String.valueOf(value)});
+                String valueString = String.valueOf(value);
+                deleteRows(getDatabase(), key + " = ?", new String[]{valueString}, key, valueString);
             } catch (RuntimeException e) {
                 switchToInMemory("delete", e);
             }
@@ -314,6 +943,76 @@ public class DatabaseManager implements Closeable {
         }
     }
 
+    /**
+     * Deletes with a single statement the entries that match key == value up to an identifier, skipping some identifiers.
+     *
+     * @param key         The key for query.
+     * @param value       The value for query.
+     * @param maxId       The greatest database identifier to delete.
+     * @param excludedIds The optional database identifiers to keep.
+     * @return The number of deleted entries.
+     */
+    public int delete(@NonNull String key, @NonNull Object value, long maxId, @Nullable long[] excludedIds) {
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                String whereClause = key + " = ? AND " + PRIMARY_KEY + " <= " + maxId;
+                if (excludedIds != null && excludedIds.length > 0)
+                    whereClause += " AND " + PRIMARY_KEY + " NOT IN (" + joinIds(excludedIds) + ")";
+                String valueString = String.valueOf(value);
+                return deleteRows(getDatabase(), whereClause, new String[]{valueString}, key, valueString);
+            } catch (RuntimeException e) {
+                switchToInMemory("delete", e);
+            }
+        }
+
+        /* Deletes the values from in-memory database. */
+        int deleted = 0;
+        for (Iterator<Map.Entry<Long, ContentValues>> iterator = mIMDB.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Long, ContentValues> entry = iterator.next();
+            if (entry.getKey() <= maxId && value.equals(entry.getValue().get(key)) && (excludedIds == null || !containsId(excludedIds, entry.getKey()))) {
+                iterator.remove();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes the entries whose value for a key is not referenced by a column of another table of the same database.
+     *
+     * @param key              The key of the entries.
+     * @param referencingTable The database manager of the other table.
+     * @param referencingKey   The column of the other table holding the referenced values.
+     * @return The number of deleted entries.
+     */
+    public int deleteUnreferenced(@NonNull String key, @NonNull DatabaseManager referencingTable, @NonNull String referencingKey) {
+        /* Try SQLite with a single statement, if both tables are still in it. */
+        if (mIMDB == null && referencingTable.mIMDB == null) {
+            try {
+                String referencedValues = "SELECT `" + referencingKey + "` FROM `" + referencingTable.mTable + "` WHERE `" + referencingKey + "` IS NOT NULL";
+                return deleteRows(getDatabase(), "`" + key + "` NOT IN (" + referencedValues + ")", null, null, null);
+            } catch (RuntimeException e) {
+                switchToInMemory("deleteUnreferenced", e);
+            }
+        }
+
+        /* Otherwise compare the values read from both tables. */
+        Set<String> referencedValues = new HashSet<>();
+        Scanner referencingScanner = referencingTable.getScanner(null, null, new String[]{referencingKey}, false);
+        for (ContentValues values : referencingScanner)
+            referencedValues.add(values.getAsString(referencingKey));
+        referencingScanner.close();
+        List<Long> unreferencedIds = new ArrayList<>();
+        Scanner scanner = getScanner(null, null, new String[]{PRIMARY_KEY, key}, false);
+        for (ContentValues values : scanner)
+            if (!referencedValues.contains(values.getAsString(key)))
+                unreferencedIds.add(values.getAsLong(PRIMARY_KEY));
+        scanner.close();
+        delete(unreferencedIds);
+        return unreferencedIds.size();
+    }
+
     /**
      * Gets the entry by the identifier.
      *
@@ -369,7 +1068,35 @@ public class DatabaseManager implements Closeable {
      * @return A scanner to iterate all values.
      */
     Scanner getScanner(String key, Object value) {
-        return new Scanner(key, value);
+        return getScanner(key, value, null, 0);
+    }
+
+    /**
+     * Gets a scanner to iterate values those match key == value, skipping some identifiers and with a row limit.
+     * Filtering and limiting are done by the SQL query so the scan costs only the returned rows.
+     *
+     * @param key         The optional key for query.
+     * @param value       The optional value for query.
+     * @param excludedIds The optional database identifiers to skip.
+     * @param limit       The maximum number of values to iterate, {@code 0} for no limit.
+     * @return A scanner to iterate the values.
+     */
+    Scanner getScanner(String key, Object value, long[] excludedIds, int limit) {
+        return new Scanner(key, value, excludedIds, limit, null, false);
+    }
+
+    /**
+     * Gets a scanner to iterate some columns of the values those match key == value, newest or oldest first.
+     * Reading only small columns avoids loading large values when scanning a whole table.
+     *
+     * @param key         The optional key for query.
+     * @param value       The optional value for query.
+     * @param columns     The columns to read, {@code null} for all. The in-memory database returns all columns.
+     * @param newestFirst {@code true} to iterate by descending identifier.
+     * @return A scanner to iterate the values.
+     */
+    Scanner getScanner(String key, Object value, String[] columns, boolean newestFirst) {
+        return new Scanner(key, value, null, 0, columns, newestFirst);
     }
 
     /**
@@ -380,6 +1107,9 @@ public class DatabaseManager implements Closeable {
         if (mIMDB == null) {
             try {
                 getDatabase().delete(mTable, null, null);
+                mRowCount = 0;
+                for (Map<String, Long> counts : mColumnRowCounts.values())
+                    counts.clear();
             } catch (RuntimeException e) {
                 switchToInMemory("clear", e);
             }
@@ -391,6 +1121,99 @@ public class DatabaseManager implements Closeable {
         }
     }
 
+    /**
+     * Gets the on-disk footprint of the database.
+     *
+     * Failing to read them does not affect storage.
+     *
+     * @return The database statistics, all zero when the database is in memory or cannot be read.
+     */
+    @NonNull
+    public DatabaseStats getStats() {
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                SQLiteDatabase database = getDatabase();
+                return new DatabaseStats(getFileSize(), queryPragma(database, "page_size"), queryPragma(database, "page_count"), queryPragma(database, "freelist_count"));
+            } catch (RuntimeException e) {
+                MobileCenterLog.error(MobileCenter.LOG_TAG, "Failed to read statistics of " + mDatabase, e);
+            }
+        }
+        return new DatabaseStats(0, 0, 0, 0);
+    }
+
+    /**
+     * Gets the size of the database files, including the write-ahead log.
+     *
+     * @return The size in bytes.
+     */
+    @VisibleForTesting
+    long getFileSize() {
+        File file = mContext.getDatabasePath(mDatabase);
+        return file.length() + new File(file.getPath() + "-wal").length();
+    }
+
+    /**
+     * Gets the space available to the database files.
+     *
+     * @return The number of usable bytes in the database directory.
+     */
+    @VisibleForTesting
+    long getUsableSpace() {
+        File directory = mContext.getDatabasePath(mDatabase).getAbsoluteFile().getParentFile();
+        return directory == null ? 0 : directory.getUsableSpace();
+    }
+
+    /**
+     * Gives free pages back to the file system when they make up a significant part of the database.
+     * At most {@link #MAX_VACUUM_PAGES} pages are released per call so that it can run when the application is idle
+     * without blocking other operations for long.
+     * A database created without incremental vacuum is switched to it with a full vacuum,
+     * only when there is enough free space to rewrite the database.
+     * Failing to compact does not affect storage.
+     *
+     * @return The number of released pages.
+     */
+    public long compact() {
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                SQLiteDatabase database = getDatabase();
+                long pageCount = queryPragma(database, "page_count");
+
+                /* Incremental vacuum lets free pages be given back to the file system in small steps. */
+                if (queryPragma(database, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+
+                    /* A full vacuum needs about as much free space again as the database. */
+                    long fileSize = getFileSize();
+                    if (getUsableSpace() < fileSize) {
+                        MobileCenterLog.debug(MobileCenter.LOG_TAG, "Not enough free space to switch " + mDatabase + " to incremental vacuum");
+                        return 0;
+                    }
+                    database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                    database.execSQL("VACUUM");
+                    runPragma(database, "wal_checkpoint");
+                    long releasedPageCount = pageCount - queryPragma(database, "page_count");
+                    MobileCenterLog.debug(MobileCenter.LOG_TAG, "Switched " + mDatabase + " to incremental vacuum, released " + releasedPageCount + " page(s)");
+                    return releasedPageCount;
+                }
+                long freePageCount = queryPragma(database, "freelist_count");
+                if (freePageCount == 0 || freePageCount < pageCount * MIN_FREE_PAGE_RATIO)
+                    return 0;
+                runPragma(database, "incremental_vacuum(" + Math.min(freePageCount, MAX_VACUUM_PAGES) + ")");
+
+                /* The file shrinks once the write-ahead log is checkpointed. */
+                runPragma(database, "wal_checkpoint");
+                long releasedPageCount = freePageCount - queryPragma(database, "freelist_count");
+                MobileCenterLog.debug(MobileCenter.LOG_TAG, "Released " + releasedPageCount + " of " + freePageCount + " free page(s) from " + mDatabase);
+                return releasedPageCount;
+            } catch (RuntimeException e) {
+                MobileCenterLog.error(MobileCenter.LOG_TAG, "Failed to compact " + mDatabase, e);
+            }
+        }
+        return 0;
+    }
+
     /**
      * Closes database and clean up in-memory database.
      *
@@ -401,7 +1224,14 @@ public class DatabaseManager implements Closeable {
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
-                getDatabase().close();
+                closeStatements();
+
+                /* The database is closed by its owner. */
+                if (mDatabaseOwner == null)
+                    getDatabase().close();
+                else
+                    mTableDatabase = null;
+                resetRowCounts();
             } catch (RuntimeException e) {
                 switchToInMemory("close", e);
             }
@@ -423,7 +1253,7 @@ public class DatabaseManager implements Closeable {
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
-                return DatabaseUtils.queryNumEntries(getDatabase(), mTable);
+                return countRows(getDatabase());
             } catch (RuntimeException e) {
                 switchToInMemory("count", e);
             }
@@ -433,6 +1263,55 @@ public class DatabaseManager implements Closeable {
         return mIMDB.size();
     }
 
+    /**
+     * Gets the count of records that match key == value.
+     * Counters for a column are loaded with one query the first time and then maintained in memory.
+     *
+     * @param key   The key for query.
+     * @param value The optional value for query.
+     * @return The number of matching records.
+     */
+    long getRowCount(@NonNull String key, @Nullable Object value) {
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                Map<String, Long> counts = mColumnRowCounts.get(key);
+                if (counts == null) {
+                    counts = new HashMap<>();
+                    Cursor cursor = queryRowCounts(getDatabase(), key);
+                    try {
+                        while (cursor.moveToNext())
+                            counts.put(cursor.isNull(0) ? null : cursor.getString(0), cursor.getLong(1));
+                    } finally {
+                        cursor.close();
+                    }
+                    mColumnRowCounts.put(key, counts);
+                }
+                Long count = counts.get(value == null ? null : value.toString());
+                return count == null ? 0 : count;
+            } catch (RuntimeException e) {
+                switchToInMemory("count", e);
+            }
+        }
+
+        /* Count matching values in in-memory database. */
+        long count = 0;
+        for (ContentValues values : mIMDB.values()) {
+            Object candidateValue = values.get(key);
+            if ((value != null && value.equals(candidateValue)) || (value == null && candidateValue == null))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Forgets row counters, they will be counted again on next use.
+     */
+    private void resetRowCounts() {
+        mRowCount = -1;
+        mColumnRowCounts.clear();
+    }
+
     /**
      * Gets a cursor for all rows in the table, all rows where key matches value if specified.
      *
@@ -442,6 +1321,36 @@ public class DatabaseManager implements Closeable {
      * @throws RuntimeException If an error occurs.
      */
     Cursor getCursor(String key, Object value) throws RuntimeException {
+        return getCursor(key, value, null, 0);
+    }
+
+    /**
+     * Gets a cursor for rows where key matches value if specified, skipping some identifiers and with a row limit.
+     *
+     * @param key         The optional key for query.
+     * @param value       The optional value for query.
+     * @param excludedIds The optional database identifiers to skip.
+     * @param limit       The maximum number of rows, {@code 0} for no limit.
+     * @return A cursor for rows that match the given criteria, ordered by identifier.
+     * @throws RuntimeException If an error occurs.
+     */
+    Cursor getCursor(String key, Object value, long[] excludedIds, int limit) throws RuntimeException {
+        return getCursor(key, value, excludedIds, limit, null, false);
+    }
+
+    /**
+     * Gets a cursor for some columns of rows where key matches value if specified, skipping some identifiers and with a row limit.
+     *
+     * @param key         The optional key for query.
+     * @param value       The optional value for query.
+     * @param excludedIds The optional database identifiers to skip.
+     * @param limit       The maximum number of rows, {@code 0} for no limit.
+     * @param columns     The columns to read, {@code null} for all.
+     * @param newestFirst {@code true} to order by descending identifier.
+     * @return A cursor for rows that match the given criteria.
+     * @throws RuntimeException If an error occurs.
+     */
+    private Cursor getCursor(String key, Object value, long[] excludedIds, int limit, String[] columns, boolean newestFirst) throws RuntimeException {
 
         /* Build a query to get values. */
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
@@ -457,8 +1366,17 @@ public class DatabaseManager implements Closeable {
             selectionArgs = new String[]{String.valueOf(value.toString())};
         }
 
+        /* Skip identifiers. */
+        if (excludedIds != null && excludedIds.length > 0) {
+            if (key != null)
+                builder.appendWhere(" AND ");
+            builder.appendWhere(PRIMARY_KEY + " NOT IN (" + joinIds(excludedIds) + ")");
+        }
+
         /* Query database. */
-        return builder.query(getDatabase(), null, null, selectionArgs, null, null, PRIMARY_KEY);
+        String limitString = limit > 0 ? String.valueOf(limit) : null;
+        String orderBy = newestFirst ? PRIMARY_KEY + " DESC" : PRIMARY_KEY;
+        return builder.query(getDatabase(), columns, null, selectionArgs, null, null, orderBy, limitString);
     }
 
     /**
@@ -469,12 +1387,27 @@ public class DatabaseManager implements Closeable {
      */
     @VisibleForTesting
     SQLiteDatabase getDatabase() throws RuntimeException {
+
+        /* Use the database of the owner, creating the table the first time or when the database was created again. */
+        if (mDatabaseOwner != null) {
+            SQLiteDatabase database = mDatabaseOwner.getDatabase();
+            if (database != mTableDatabase) {
+                resetRowCounts();
+                closeStatements();
+                createTable(database, true);
+                mTableDatabase = database;
+            }
+            return database;
+        }
+
         /* Try opening database. */
         try {
             return mSQLiteOpenHelper.getWritableDatabase();
         } catch (RuntimeException e) {
-            /* First error, try to delete database (may be corrupted). */
+            /* First error, try to delete database (may be corrupted), counters and statements are for the deleted one. */
             mContext.deleteDatabase(mDatabase);
+            resetRowCounts();
+            closeStatements();
 
             /* Retry, let exception thrown if it fails this time. */
             return mSQLiteOpenHelper.getWritableDatabase();
@@ -489,6 +1422,10 @@ public class DatabaseManager implements Closeable {
      */
     @VisibleForTesting
     void switchToInMemory(String operation, RuntimeException exception) {
+        /* SQLite counters and statements are meaningless now. */
+        resetRowCounts();
+        closeStatements();
+
         /* Create an in-memory database. */
         mIMDB = new LinkedHashMap<Long, ContentValues>() {
             @Override
@@ -502,6 +1439,17 @@ public class DatabaseManager implements Closeable {
             mErrorListener.onError(operation, exception);
     }
 
+    /**
+     * Sets the statements filling the columns added to the table when the schema version is upgraded.
+     * They run after the new columns are added, in the upgrade transaction, and must tolerate tables that were already up to date.
+     * Must be called before the database is first used.
+     *
+     * @param statements The SQL statements.
+     */
+    void setUpgradeStatements(@NonNull String... statements) {
+        mUpgradeStatements = statements;
+    }
+
     /**
      * Sets {@link SQLiteOpenHelper} instance.
      *
@@ -509,6 +1457,7 @@ public class DatabaseManager implements Closeable {
      */
     @VisibleForTesting
     void setSQLiteOpenHelper(@NonNull SQLiteOpenHelper helper) {
+        closeStatements();
         mSQLiteOpenHelper.close();
         mSQLiteOpenHelper = helper;
     }
@@ -537,6 +1486,26 @@ public class DatabaseManager implements Closeable {
          */
         private final Object value;
 
+        /**
+         * Identifiers to skip.
+         */
+        private final long[] excludedIds;
+
+        /**
+         * Maximum number of values, 0 for no limit.
+         */
+        private final int limit;
+
+        /**
+         * Columns to read, null for all.
+         */
+        private final String[] columns;
+
+        /**
+         * Iterate by descending identifier.
+         */
+        private final boolean newestFirst;
+
         /**
          * SQLite cursor.
          */
@@ -545,9 +1514,13 @@ public class DatabaseManager implements Closeable {
         /**
          * Initializes a cursor with optional filter.
          */
-        private Scanner(String key, Object value) {
+        private Scanner(String key, Object value, long[] excludedIds, int limit, String[] columns, boolean newestFirst) {
             this.key = key;
             this.value = value;
+            this.excludedIds = excludedIds;
+            this.limit = limit;
+            this.columns = columns;
+            this.newestFirst = newestFirst;
         }
 
         @Override
@@ -570,7 +1543,7 @@ public class DatabaseManager implements Closeable {
                 try {
                     /* Close cursor first if it was being used. */
                     close();
-                    cursor = getCursor(key, value);
+                    cursor = getCursor(key, value, excludedIds, limit, columns, newestFirst);
 
                     /* Wrap cursor as iterator. */
                     return new Iterator<ContentValues>() {
@@ -629,7 +1602,7 @@ public class DatabaseManager implements Closeable {
             return new Iterator<ContentValues>() {
 
                 /** In memory map iterator that we wrap because of the filter logic. */
-                final Iterator<ContentValues> iterator = mIMDB.values().iterator();
+                final Iterator<ContentValues> iterator = newestFirst ? reverse(mIMDB.values()).iterator() : mIMDB.values().iterator();
 
                 /** True if we moved the iterator but not retrieved the value. */
                 boolean advanced;
@@ -637,17 +1610,22 @@ public class DatabaseManager implements Closeable {
                 /** Next value. */
                 ContentValues next;
 
+                /** Number of values returned so far. */
+                int count;
+
                 @Override
                 public boolean hasNext() {
                     /* Iterator needs to be moved to the next. */
                     if (!advanced) {
                         next = null;
-                        while (iterator.hasNext()) {
+                        while ((limit <= 0 || count < limit) && iterator.hasNext()) {
                             ContentValues nextCandidate = iterator.next();
                             Object candidateValue = nextCandidate.get(key);
                             if (key == null || (value != null && value.equals(candidateValue)) || (value == null && candidateValue == null)) {
-                                next = nextCandidate;
-                                break;
+                                if (excludedIds == null || !containsId(excludedIds, nextCandidate.getAsLong(PRIMARY_KEY))) {
+                                    next = nextCandidate;
+                                    break;
+                                }
                             }
                         }
                         advanced = true;
@@ -660,6 +1638,7 @@ public class DatabaseManager implements Closeable {
                     if (!hasNext())
                         throw new NoSuchElementException();
                     advanced = false;
+                    count++;
                     return next;
                 }
 
@@ -674,7 +1653,7 @@ public class DatabaseManager implements Closeable {
             if (mIMDB == null) {
                 try {
                     if (cursor == null)
-                        cursor = getCursor(key, value);
+                        cursor = getCursor(key, value, excludedIds, limit, columns, newestFirst);
                     return cursor.getCount();
                 } catch (RuntimeException e) {
                     switchToInMemory("scan.count", e);
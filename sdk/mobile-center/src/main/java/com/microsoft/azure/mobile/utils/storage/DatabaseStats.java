@@ -0,0 +1,92 @@
+package com.microsoft.azure.mobile.utils.storage;
+
+/**
+ * Snapshot of the on-disk footprint of a database managed by {@link DatabaseManager}.
+ */
+public class DatabaseStats {
+
+    /**
+     * Size in bytes of the database files, including the write-ahead log.
+     */
+    private final long mFileSize;
+
+    /**
+     * Page size in bytes.
+     */
+    private final long mPageSize;
+
+    /**
+     * Number of pages in the database.
+     */
+    private final long mPageCount;
+
+    /**
+     * Number of unused pages in the database.
+     */
+    private final long mFreePageCount;
+
+    /**
+     * Init.
+     *
+     * @param fileSize      size in bytes of the database files.
+     * @param pageSize      page size in bytes.
+     * @param pageCount     number of pages.
+     * @param freePageCount number of unused pages.
+     */
+    public DatabaseStats(long fileSize, long pageSize, long pageCount, long freePageCount) {
+        mFileSize = fileSize;
+        mPageSize = pageSize;
+        mPageCount = pageCount;
+        mFreePageCount = freePageCount;
+    }
+
+    /**
+     * Get the size of the database files, including the write-ahead log.
+     *
+     * @return size in bytes, 0 when the database is in memory.
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /**
+     * Get the page size.
+     *
+     * @return page size in bytes.
+     */
+    public long getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * Get the number of pages in the database.
+     *
+     * @return number of pages.
+     */
+    public long getPageCount() {
+        return mPageCount;
+    }
+
+    /**
+     * Get the number of unused pages that compaction can give back to the file system.
+     *
+     * @return number of free pages.
+     */
+    public long getFreePageCount() {
+        return mFreePageCount;
+    }
+
+    /**
+     * Get the ratio of unused pages in the database.
+     *
+     * @return ratio between 0 and 1.
+     */
+    public double getFreePageRatio() {
+        return mPageCount > 0 ? (double) mFreePageCount / mPageCount : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DatabaseStats{fileSize=" + mFileSize + ", pageSize=" + mPageSize + ", pageCount=" + mPageCount + ", freePageCount=" + mFreePageCount + "}";
+    }
+}
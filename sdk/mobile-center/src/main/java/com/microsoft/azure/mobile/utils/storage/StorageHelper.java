@@ -577,6 +577,28 @@ public class StorageHelper {
             }));
         }
 
+        /**
+         * Get a new instance of {@code DatabaseManager} for another table in the database of a database storage.
+         * Both tables share the same connection and can be written in a single transaction.
+         *
+         * @param databaseStorage The database storage owning the database.
+         * @param table           The table name.
+         * @param schema          The schema of the table.
+         * @param listener        The error listener.
+         * @return database storage.
+         */
+        public static DatabaseStorage getDatabaseStorage(@NonNull DatabaseStorage databaseStorage,
+                                                         @NonNull String table,
+                                                         @NonNull ContentValues schema,
+                                                         final DatabaseErrorListener listener) {
+            return new DatabaseStorage(new DatabaseManager(databaseStorage.mDatabaseManager, table, schema, new DatabaseManager.ErrorListener() {
+                @Override
+                public void onError(String operation, RuntimeException e) {
+                    listener.onError(operation, e);
+                }
+            }));
+        }
+
         /**
          * Store an entry in a table.
          *
@@ -587,6 +609,26 @@ public class StorageHelper {
             return mDatabaseManager.put(values);
         }
 
+        /**
+         * Store entries in a table in a single transaction.
+         *
+         * @param valuesList The entries to be stored.
+         */
+        public void put(@NonNull List<ContentValues> valuesList) {
+            mDatabaseManager.put(valuesList);
+        }
+
+        /**
+         * Store entries in this table and in another table of the same database in a single transaction.
+         *
+         * @param valuesList      The entries to be stored in this table.
+         * @param otherStorage    The database storage of the other table, sharing the database of this one.
+         * @param otherValuesList The entries to be stored in the other table.
+         */
+        public void put(@NonNull List<ContentValues> valuesList, @NonNull DatabaseStorage otherStorage, @NonNull List<ContentValues> otherValuesList) {
+            mDatabaseManager.put(valuesList, otherStorage.mDatabaseManager, otherValuesList);
+        }
+
         /**
          * Update an entry in a table.
          *
@@ -616,6 +658,26 @@ public class StorageHelper {
             mDatabaseManager.delete(idList);
         }
 
+        /**
+         * Deletes the entries by the identifier from the database.
+         *
+         * @param ids The database identifiers.
+         */
+        public void delete(@NonNull long[] ids) {
+            mDatabaseManager.delete(ids);
+        }
+
+        /**
+         * Deletes the entries by the identifier from the database, all of them matching key == value.
+         *
+         * @param key   The key the entries match.
+         * @param value The value the entries match.
+         * @param ids   The database identifiers.
+         */
+        public void delete(@NonNull String key, @NonNull Object value, @NonNull long[] ids) {
+            mDatabaseManager.delete(key, value, ids);
+        }
+
         /**
          * Deletes the entries that matches key == value.
          *
@@ -626,6 +688,31 @@ public class StorageHelper {
             mDatabaseManager.delete(key, value);
         }
 
+        /**
+         * Deletes with a single statement the entries that match key == value up to an identifier, skipping some identifiers.
+         *
+         * @param key         The key for query.
+         * @param value       The value for query.
+         * @param maxId       The greatest database identifier to delete.
+         * @param excludedIds The optional database identifiers to keep.
+         * @return The number of deleted entries.
+         */
+        public int delete(@NonNull String key, @NonNull Object value, long maxId, @Nullable long[] excludedIds) {
+            return mDatabaseManager.delete(key, value, maxId, excludedIds);
+        }
+
+        /**
+         * Deletes the entries whose value for a key is not referenced by a column of another table of the same database.
+         *
+         * @param key                The key of the entries.
+         * @param referencingStorage The database storage of the other table.
+         * @param referencingKey     The column of the other table holding the referenced values.
+         * @return The number of deleted entries.
+         */
+        public int deleteUnreferenced(@NonNull String key, @NonNull DatabaseStorage referencingStorage, @NonNull String referencingKey) {
+            return mDatabaseManager.deleteUnreferenced(key, referencingStorage.mDatabaseManager, referencingKey);
+        }
+
         /**
          * Gets the entry by the identifier.
          *
@@ -668,6 +755,33 @@ public class StorageHelper {
             return new DatabaseScanner(mDatabaseManager.getScanner(key, value));
         }
 
+        /**
+         * Gets a scanner to iterate values those match key == value, ordered by identifier,
+         * skipping some identifiers and returning at most {@code limit} values.
+         *
+         * @param key         The optional key for query.
+         * @param value       The optional value for query.
+         * @param excludedIds The optional database identifiers to skip.
+         * @param limit       The maximum number of values to iterate, {@code 0} for no limit.
+         * @return A scanner to iterate the values.
+         */
+        public DatabaseScanner getScanner(@Nullable String key, @Nullable Object value, @Nullable long[] excludedIds, @IntRange(from = 0) int limit) {
+            return new DatabaseScanner(mDatabaseManager.getScanner(key, value, excludedIds, limit));
+        }
+
+        /**
+         * Gets a scanner to iterate some columns of the values those match key == value, newest or oldest first.
+         *
+         * @param key         The optional key for query.
+         * @param value       The optional value for query.
+         * @param columns     The columns to read, {@code null} for all.
+         * @param newestFirst {@code true} to iterate by descending identifier.
+         * @return A scanner to iterate the values.
+         */
+        public DatabaseScanner getScanner(@Nullable String key, @Nullable Object value, @Nullable String[] columns, boolean newestFirst) {
+            return new DatabaseScanner(mDatabaseManager.getScanner(key, value, columns, newestFirst));
+        }
+
         /**
          * Clears the table in the database.
          */
@@ -675,6 +789,36 @@ public class StorageHelper {
             mDatabaseManager.clear();
         }
 
+        /**
+         * Gets the on-disk footprint of the database.
+         *
+         * @return The database statistics.
+         */
+        @NonNull
+        public DatabaseStats getStats() {
+            return mDatabaseManager.getStats();
+        }
+
+        /**
+         * Sets the SQL statements filling the columns added to the table when the schema version is upgraded.
+         * Columns missing from the table are added first with {@code null} values.
+         * Must be called before the database is first used.
+         *
+         * @param statements The SQL statements.
+         */
+        public void setUpgradeStatements(@NonNull String... statements) {
+            mDatabaseManager.setUpgradeStatements(statements);
+        }
+
+        /**
+         * Gives free pages of the database back to the file system.
+         *
+         * @return The number of released pages.
+         */
+        public long compact() {
+            return mDatabaseManager.compact();
+        }
+
         /**
          * Closes database and cleans up in-memory database.
          *
@@ -694,6 +838,17 @@ public class StorageHelper {
             return mDatabaseManager.getRowCount();
         }
 
+        /**
+         * Gets the count of records in the table that match key == value.
+         *
+         * @param key   The key for query.
+         * @param value The optional value for query.
+         * @return The number of matching records in the table.
+         */
+        public long size(@NonNull String key, @Nullable Object value) {
+            return mDatabaseManager.getRowCount(key, value);
+        }
+
         /**
          * Gets an array of column names in the table.
          *
@@ -208,7 +208,7 @@ public class AbstractMobileCenterServiceTest {
         Channel channel = mock(Channel.class);
         mService.onStarted(mock(Context.class), "", channel);
         verify(channel).removeGroup(mService.getGroupName());
-        verify(channel).addGroup(mService.getGroupName(), mService.getTriggerCount(), mService.getTriggerInterval(), mService.getTriggerMaxParallelRequests(), mService.getChannelListener());
+        verify(channel).addGroup(mService.getGroupName(), mService.getTriggerCount(), mService.getTriggerInterval(), mService.getTriggerMaxParallelRequests(), mService.getTriggerPriority(), mService.getChannelListener());
         verifyNoMoreInteractions(channel);
         assertSame(channel, mService.mChannel);
 
@@ -223,14 +223,14 @@ public class AbstractMobileCenterServiceTest {
         Channel channel = mock(Channel.class);
         mService.onStarted(mock(Context.class), "", channel);
         verify(channel).removeGroup(mService.getGroupName());
-        verify(channel).addGroup(eq(mService.getGroupName()), anyInt(), anyLong(), anyInt(), any(Channel.GroupListener.class));
+        verify(channel).addGroup(eq(mService.getGroupName()), anyInt(), anyLong(), anyInt(), anyInt(), any(Channel.GroupListener.class));
         mService.setInstanceEnabled(false);
         verify(channel, times(2)).removeGroup(mService.getGroupName());
         verify(channel).clear(mService.getGroupName());
         verifyNoMoreInteractions(channel);
         assertSame(channel, mService.mChannel);
         mService.setInstanceEnabled(true);
-        verify(channel, times(2)).addGroup(mService.getGroupName(), mService.getTriggerCount(), mService.getTriggerInterval(), mService.getTriggerMaxParallelRequests(), mService.getChannelListener());
+        verify(channel, times(2)).addGroup(mService.getGroupName(), mService.getTriggerCount(), mService.getTriggerInterval(), mService.getTriggerMaxParallelRequests(), mService.getTriggerPriority(), mService.getChannelListener());
         verifyNoMoreInteractions(channel);
     }
 
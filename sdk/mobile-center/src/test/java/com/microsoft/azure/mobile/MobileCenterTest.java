@@ -9,6 +9,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.ChannelMetrics;
 import com.microsoft.azure.mobile.channel.DefaultChannel;
 import com.microsoft.azure.mobile.ingestion.models.CustomPropertiesLog;
 import com.microsoft.azure.mobile.ingestion.models.StartServiceLog;
@@ -725,6 +726,21 @@ public class MobileCenterTest {
         verify(mChannel).setLogUrl(logUrl);
     }
 
+    @Test
+    public void getMetrics() {
+
+        /* Not available before configure. */
+        assertNull(MobileCenter.getMetrics().get());
+
+        /* Available once configured, even when disabled. */
+        ChannelMetrics metrics = mock(ChannelMetrics.class);
+        when(mChannel.getMetrics()).thenReturn(metrics);
+        MobileCenter.start(mApplication, DUMMY_APP_SECRET, DummyService.class);
+        assertSame(metrics, MobileCenter.getMetrics().get());
+        MobileCenter.setEnabled(false);
+        assertSame(metrics, MobileCenter.getMetrics().get());
+    }
+
     @Test
     public void setCustomPropertiesTest() throws Exception {
 
@@ -8,7 +8,6 @@ import com.microsoft.azure.mobile.http.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
-import com.microsoft.azure.mobile.utils.HandlerUtils;
 import com.microsoft.azure.mobile.utils.IdHelper;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
@@ -27,12 +26,11 @@ import java.util.ArrayList;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
-import static org.powermock.api.mockito.PowerMockito.doAnswer;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 @SuppressWarnings("WeakerAccess")
-@PrepareForTest({DefaultChannel.class, IdHelper.class, DeviceInfoHelper.class, MobileCenterLog.class, HandlerUtils.class})
+@PrepareForTest({DefaultChannel.class, IdHelper.class, DeviceInfoHelper.class, MobileCenterLog.class})
 public class AbstractDefaultChannelTest {
 
     static final String TEST_GROUP = "group_test";
@@ -61,13 +59,19 @@ public class AbstractDefaultChannelTest {
             @SuppressWarnings("unchecked")
             public String answer(InvocationOnMock invocation) throws Throwable {
                 Object[] args = invocation.getArguments();
+                int length = size >= 0 ? size : (int) args[1];
                 if (args[2] instanceof ArrayList) {
                     ArrayList logs = (ArrayList) args[2];
-                    int length = size >= 0 ? size : (int) args[1];
                     for (int i = 0; i < length; i++) {
                         logs.add(mock(Log.class));
                     }
                 }
+                if (args.length > 3 && args[3] instanceof ArrayList) {
+                    ArrayList payloads = (ArrayList) args[3];
+                    for (int i = 0; i < length; i++) {
+                        payloads.add("{}");
+                    }
+                }
                 return UUIDUtils.randomUUID().toString();
             }
         };
@@ -108,15 +112,5 @@ public class AbstractDefaultChannelTest {
                 return true;
             }
         });
-        mockStatic(HandlerUtils.class);
-        doAnswer(new Answer<Void>() {
-
-            @Override
-            public Void answer(InvocationOnMock invocation) throws Throwable {
-                ((Runnable) invocation.getArguments()[0]).run();
-                return null;
-            }
-        }).when(HandlerUtils.class);
-        HandlerUtils.runOnUiThread(any(Runnable.class));
     }
 }
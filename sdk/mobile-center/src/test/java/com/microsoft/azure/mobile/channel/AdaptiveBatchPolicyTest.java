@@ -0,0 +1,122 @@
+package com.microsoft.azure.mobile.channel;
+
+import org.junit.Test;
+
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.BACKLOG_BATCHES;
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.DEFAULT_BOUNDS_FACTOR;
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.FAST_LATENCY;
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.SLOW_LATENCY;
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatchPolicyTest {
+
+    private static final int LOGS_PER_BATCH = 50;
+
+    private static final long BATCH_TIME_INTERVAL = 3000;
+
+    @Test
+    public void startsWithGroupValues() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL, policy.getBatchTimeInterval());
+
+        /* Requests without measurable duration don't tell the network is fast. */
+        policy.onBatchSent(0, 1000);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL, policy.getBatchTimeInterval());
+    }
+
+    @Test
+    public void shrinksIntervalOnFastNetwork() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+
+        /* Fast requests send sooner, batch size cannot go under the group value. */
+        policy.onBatchSent(FAST_LATENCY / 2, 1000);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL / 2, policy.getBatchTimeInterval());
+
+        /* Observed speed compensates a slow network type. */
+        policy.setNetwork(false, true);
+        assertEquals(BATCH_TIME_INTERVAL, policy.getBatchTimeInterval());
+
+        /* Metered networks still send fewer requests. */
+        policy.setNetwork(true, false);
+        assertEquals(BATCH_TIME_INTERVAL * 2, policy.getBatchTimeInterval());
+
+        /* Not shorter than the lower bound. */
+        policy.setNetwork(false, false);
+        policy.setBounds(LOGS_PER_BATCH, LOGS_PER_BATCH, BATCH_TIME_INTERVAL, BATCH_TIME_INTERVAL);
+        assertEquals(BATCH_TIME_INTERVAL, policy.getBatchTimeInterval());
+    }
+
+    @Test
+    public void growsOnMeteredAndSlowNetworks() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+        policy.setNetwork(true, false);
+        assertEquals(LOGS_PER_BATCH * 2, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL * 2, policy.getBatchTimeInterval());
+        policy.setNetwork(true, true);
+        assertEquals(LOGS_PER_BATCH * 4, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL * 4, policy.getBatchTimeInterval());
+
+        /* Back to an unmetered network. */
+        policy.setNetwork(false, false);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL, policy.getBatchTimeInterval());
+    }
+
+    @Test
+    public void followsObservedLatency() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+
+        /* Slow requests grow batches. */
+        policy.onBatchSent(SLOW_LATENCY * 2, 100000);
+        assertEquals(LOGS_PER_BATCH * 2, policy.getMaxLogsPerBatch(0));
+        assertEquals(BATCH_TIME_INTERVAL * 2, policy.getBatchTimeInterval());
+
+        /* Fast requests bring them back progressively. */
+        for (int i = 0; i < 10; i++)
+            policy.onBatchSent(FAST_LATENCY / 2, 1000);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(0));
+
+        /* Low throughput on a request that is not fast is slow too. */
+        policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+        policy.onBatchSent(FAST_LATENCY * 2, 1000);
+        assertEquals(LOGS_PER_BATCH * 2, policy.getMaxLogsPerBatch(0));
+    }
+
+    @Test
+    public void growsWithBacklog() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(LOGS_PER_BATCH * BACKLOG_BATCHES - 1));
+        assertEquals(LOGS_PER_BATCH * 2, policy.getMaxLogsPerBatch(LOGS_PER_BATCH * BACKLOG_BATCHES));
+    }
+
+    @Test
+    public void shrinksInBackground() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+        policy.setNetwork(true, true);
+        policy.setBackground(true);
+        assertEquals(LOGS_PER_BATCH, policy.getMaxLogsPerBatch(LOGS_PER_BATCH * BACKLOG_BATCHES * 4));
+        assertEquals(BATCH_TIME_INTERVAL / DEFAULT_BOUNDS_FACTOR, policy.getBatchTimeInterval());
+        policy.setBackground(false);
+        assertEquals(BATCH_TIME_INTERVAL * 4, policy.getBatchTimeInterval());
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        AdaptiveBatchPolicy policy = new AdaptiveBatchPolicy(LOGS_PER_BATCH, BATCH_TIME_INTERVAL);
+        policy.setBounds(10, 60, 1000, 4000);
+        policy.setNetwork(true, true);
+        assertEquals(60, policy.getMaxLogsPerBatch(0));
+        assertEquals(4000, policy.getBatchTimeInterval());
+        policy.setBackground(true);
+        assertEquals(10, policy.getMaxLogsPerBatch(0));
+        assertEquals(1000, policy.getBatchTimeInterval());
+
+        /* Invalid bounds are fixed. */
+        policy.setBounds(0, -1, -1, -2);
+        assertEquals(1, policy.getMaxLogsPerBatch(0));
+        assertEquals(0, policy.getBatchTimeInterval());
+    }
+}
@@ -9,7 +9,6 @@ import com.microsoft.azure.mobile.ingestion.IngestionHttp;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 import com.microsoft.azure.mobile.persistence.Persistence;
-import com.microsoft.azure.mobile.utils.HandlerUtils;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 
 import org.junit.Test;
@@ -20,9 +19,13 @@ import org.mockito.stubbing.Answer;
 import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.microsoft.azure.mobile.channel.DefaultChannel.CLEAR_BATCH_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
@@ -43,38 +46,121 @@ public class DefaultChannelRaceConditionTest extends AbstractDefaultChannelTest
         final Semaphore afterCallSemaphore = new Semaphore(0);
         Persistence mockPersistence = mock(Persistence.class);
         when(mockPersistence.countLogs(anyString())).thenReturn(1);
-        when(mockPersistence.getLogs(anyString(), eq(1), anyListOf(Log.class))).then(getGetLogsAnswer(1));
-        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class))).then(getGetLogsAnswer(0));
+        when(mockPersistence.getLogs(anyString(), eq(1), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(0));
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
-        doAnswer(new Answer<Void>() {
 
-            @Override
-            public Void answer(final InvocationOnMock invocation) throws Throwable {
-                new Thread() {
+        /* Hold the batch send posted to the handler, run anything else right away. */
+        final AtomicBoolean sendPosted = new AtomicBoolean();
+        when(mCoreHandler.post(any(Runnable.class))).then(new Answer<Boolean>() {
 
-                    @Override
-                    public void run() {
-                        beforeCallSemaphore.acquireUninterruptibly();
-                        ((Runnable) invocation.getArguments()[0]).run();
-                        afterCallSemaphore.release();
-                    }
-                }.start();
-                return null;
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                if (sendPosted.compareAndSet(false, true)) {
+                    new Thread() {
+
+                        @Override
+                        public void run() {
+                            beforeCallSemaphore.acquireUninterruptibly();
+                            ((Runnable) invocation.getArguments()[0]).run();
+                            afterCallSemaphore.release();
+                        }
+                    }.start();
+                } else
+                    ((Runnable) invocation.getArguments()[0]).run();
+                return true;
             }
-        }).when(HandlerUtils.class);
-        HandlerUtils.runOnUiThread(any(Runnable.class));
+        });
 
         /* Simulate enable module then disable. */
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
         Channel.GroupListener listener = mock(Channel.GroupListener.class);
         channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        assertTrue(sendPosted.get());
         channel.setEnabled(false);
         channel.setEnabled(true);
 
-        /* Release call to mock ingestion. */
+        /* Release the batch send. */
         beforeCallSemaphore.release();
 
-        /* Wait for callback ingestion. */
+        /* Wait for the handler callback. */
+        afterCallSemaphore.acquireUninterruptibly();
+
+        /* Verify ingestion not sent. */
+        verify(mockIngestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(listener).onFailure(any(Log.class), argThat(new ArgumentMatcher<Exception>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                return argument instanceof CancellationException;
+            }
+        }));
+    }
+
+    @Test
+    public void disabledWhileCollectingBatches() throws Exception {
+
+        /* Block reading the batch of the other group that rides along. */
+        final Semaphore readingSemaphore = new Semaphore(0);
+        final Semaphore releaseSemaphore = new Semaphore(0);
+        final Semaphore afterCallSemaphore = new Semaphore(0);
+        Persistence mockPersistence = mock(Persistence.class);
+        when(mockPersistence.countLogs(anyString())).thenReturn(1);
+        when(mockPersistence.getLogs(eq("other"), anyInt(), anyListOf(Log.class), anyListOf(String.class))).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                readingSemaphore.release();
+                releaseSemaphore.acquireUninterruptibly();
+                return getGetLogsAnswer(1).answer(invocation);
+            }
+        });
+        when(mockPersistence.getLogs(eq(TEST_GROUP), eq(1), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(0));
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+
+        /* Run the batch send on its own thread, anything else right away. */
+        final AtomicBoolean sendPosted = new AtomicBoolean();
+        when(mCoreHandler.post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                if (sendPosted.compareAndSet(false, true)) {
+                    new Thread() {
+
+                        @Override
+                        public void run() {
+                            ((Runnable) invocation.getArguments()[0]).run();
+                            afterCallSemaphore.release();
+                        }
+                    }.start();
+                } else
+                    ((Runnable) invocation.getArguments()[0]).run();
+                return true;
+            }
+        });
+
+        /* The other group only has a timer scheduled, the test group triggers a send. */
+        final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
+        channel.addGroup("other", 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, mock(Channel.GroupListener.class));
+        readingSemaphore.acquireUninterruptibly();
+
+        /* Disabling does not wait for the send to finish reading persistence, only for the group being read. */
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                channel.setEnabled(false);
+            }
+        };
+        thread.start();
+        while (thread.getState() != Thread.State.BLOCKED)
+            Thread.sleep(10);
+
+        /* Release persistence. */
+        releaseSemaphore.release();
+        thread.join();
         afterCallSemaphore.acquireUninterruptibly();
 
         /* Verify ingestion not sent. */
@@ -89,8 +175,8 @@ public class DefaultChannelRaceConditionTest extends AbstractDefaultChannelTest
         final Semaphore afterCallSemaphore = new Semaphore(0);
         Persistence mockPersistence = mock(Persistence.class);
         when(mockPersistence.countLogs(anyString())).thenReturn(1);
-        when(mockPersistence.getLogs(anyString(), eq(1), anyListOf(Log.class))).then(getGetLogsAnswer(1));
-        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class))).then(getGetLogsAnswer(0));
+        when(mockPersistence.getLogs(anyString(), eq(1), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(0));
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(new Answer<Object>() {
 
@@ -141,8 +227,8 @@ public class DefaultChannelRaceConditionTest extends AbstractDefaultChannelTest
         final Semaphore afterCallSemaphore = new Semaphore(0);
         Persistence mockPersistence = mock(Persistence.class);
         when(mockPersistence.countLogs(anyString())).thenReturn(1);
-        when(mockPersistence.getLogs(anyString(), eq(1), anyListOf(Log.class))).then(getGetLogsAnswer(1));
-        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class))).then(getGetLogsAnswer(0));
+        when(mockPersistence.getLogs(anyString(), eq(1), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), eq(CLEAR_BATCH_SIZE), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(0));
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         final Exception mockException = new IOException();
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(new Answer<Object>() {
@@ -185,4 +271,43 @@ public class DefaultChannelRaceConditionTest extends AbstractDefaultChannelTest
             }
         }));
     }
+
+    @Test
+    public void groupsDoNotWaitForEachOther() throws Exception {
+
+        /* Block persistence of the first group. */
+        final Semaphore persistingSemaphore = new Semaphore(0);
+        final Semaphore releaseSemaphore = new Semaphore(0);
+        Persistence mockPersistence = mock(Persistence.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                persistingSemaphore.release();
+                releaseSemaphore.acquireUninterruptibly();
+                return null;
+            }
+        }).when(mockPersistence).putLog(eq(TEST_GROUP), any(Log.class));
+        final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mock(IngestionHttp.class), mCoreHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.addGroup("other", 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                channel.enqueue(mock(Log.class), TEST_GROUP);
+            }
+        };
+        thread.start();
+        persistingSemaphore.acquireUninterruptibly();
+
+        /* Other group is not blocked. */
+        channel.enqueue(mock(Log.class), "other");
+        assertEquals(1, channel.getCounter("other"));
+
+        /* Release first group. */
+        releaseSemaphore.release();
+        thread.join();
+        assertEquals(1, channel.getCounter(TEST_GROUP));
+    }
 }
@@ -1,11 +1,15 @@
 package com.microsoft.azure.mobile.channel;
 
+import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 
 import com.microsoft.azure.mobile.CancellationException;
 import com.microsoft.azure.mobile.http.HttpException;
+import com.microsoft.azure.mobile.http.RequestStats;
 import com.microsoft.azure.mobile.http.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.Ingestion;
 import com.microsoft.azure.mobile.ingestion.IngestionHttp;
@@ -14,9 +18,13 @@ import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 import com.microsoft.azure.mobile.persistence.Persistence;
 import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+import com.microsoft.azure.mobile.utils.NetworkStateHelper;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
+import com.microsoft.azure.mobile.utils.storage.DatabaseStats;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -24,6 +32,7 @@ import org.mockito.stubbing.Answer;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
@@ -31,13 +40,20 @@ import java.util.concurrent.atomic.AtomicReference;
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.notNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -73,7 +89,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class))).then(getGetLogsAnswer(50)).then(getGetLogsAnswer(1)).then(getGetLogsAnswer(2));
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class))).then(getGetLogsAnswer(50)).then(getGetLogsAnswer(1)).then(getGetLogsAnswer(2));
 
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
 
@@ -180,7 +196,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class))).then(getGetLogsAnswer());
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class))).then(getGetLogsAnswer());
 
         final List<ServiceCallback> callbacks = new ArrayList<>();
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(new Answer<Object>() {
@@ -232,7 +248,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
 
         when(mockPersistence.countLogs(any(String.class))).thenReturn(100);
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class))).then(getGetLogsAnswer());
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class))).then(getGetLogsAnswer());
 
         final List<ServiceCallback> callbacks = new ArrayList<>();
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(new Answer<Object>() {
@@ -286,7 +302,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class)))
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class)))
                 .then(getGetLogsAnswer(50))
                 .then(getGetLogsAnswer(50))
                 .then(getGetLogsAnswer(20));
@@ -364,7 +380,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class)))
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class)))
                 .then(getGetLogsAnswer(50))
                 /* Second 50 logs will be used for clearing pending states. */
                 .then(getGetLogsAnswer(50))
@@ -447,7 +463,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Ingestion mockIngestion = mock(Ingestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class))).then(getGetLogsAnswer());
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class))).then(getGetLogsAnswer());
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
@@ -487,7 +503,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Ingestion mockIngestion = mock(Ingestion.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class))).then(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(any(String.class), anyInt(), any(ArrayList.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException())).then(getSendAsyncAnswer());
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
@@ -554,7 +570,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
         when(mockPersistence.countLogs(anyString())).thenReturn(30);
-        when(mockPersistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(10));
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(10));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
                 /* Simulate waiting for response for the first batch. */
                 .then(new Answer<Object>() {
@@ -589,7 +605,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Persistence mockPersistence = mock(Persistence.class);
 
         when(mockPersistence.countLogs(anyString())).thenReturn(3);
-        when(mockPersistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(1));
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(1));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
                 /* Simulate waiting for response for the first batch. */
                 .then(new Answer<Object>() {
@@ -644,7 +660,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Ingestion ingestion = mock(Ingestion.class);
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
-        when(persistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(1));
+        when(persistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(1));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, mCoreHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
         channel.enqueue(mock(Log.class), TEST_GROUP);
@@ -672,7 +688,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Ingestion ingestion = mock(Ingestion.class);
         Persistence persistence = mock(Persistence.class);
         final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, mCoreHandler);
-        when(persistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(1));
+        when(persistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(1));
         when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).thenAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
@@ -690,6 +706,25 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         verify(mHandler, never()).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendPayloadsWithoutDeserializingWhenNoListener() {
+        Ingestion ingestion = mock(Ingestion.class);
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(1));
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, mCoreHandler);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* Verify no log objects were requested and that stored payloads are sent as is. */
+        verify(persistence).getLogs(eq(TEST_GROUP), eq(1), isNull(List.class), anyListOf(String.class));
+        ArgumentCaptor<LogContainer> container = ArgumentCaptor.forClass(LogContainer.class);
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), container.capture(), any(ServiceCallback.class));
+        assertNull(container.getValue().getLogs());
+        assertEquals(1, container.getValue().getRawLogs().size());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void setLogUrl() {
@@ -708,7 +743,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
         when(persistence.countLogs(anyString())).thenReturn(3);
-        when(persistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(3));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, mCoreHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
         verify(ingestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
@@ -728,7 +763,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
         when(persistence.countLogs(anyString())).thenReturn(103);
-        when(persistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(50)).thenAnswer(getGetLogsAnswer(3));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, mCoreHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
         verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
@@ -748,7 +783,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         doThrow(new IOException()).when(ingestion).close();
         Persistence persistence = mock(Persistence.class);
         when(persistence.countLogs(anyString())).thenReturn(3);
-        when(persistence.getLogs(anyString(), anyInt(), anyList())).thenAnswer(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).thenAnswer(getGetLogsAnswer(3));
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, mCoreHandler);
         channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
         assertEquals(3, channel.getCounter(TEST_GROUP));
@@ -828,7 +863,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(eq(TEST_GROUP), anyInt(), any(ArrayList.class)))
+        when(mockPersistence.getLogs(eq(TEST_GROUP), anyInt(), any(ArrayList.class), anyListOf(String.class)))
                 .then(getGetLogsAnswer(1))
                 /* Logs from here will be used TEST_GROUP to clear pending states. */
                 .then(getGetLogsAnswer(DefaultChannel.CLEAR_BATCH_SIZE))
@@ -860,7 +895,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
         /* Simulate a lot of logs already in database. */
-        when(mockPersistence.getLogs(eq(TEST_GROUP), anyInt(), any(ArrayList.class)))
+        when(mockPersistence.getLogs(eq(TEST_GROUP), anyInt(), any(ArrayList.class), anyListOf(String.class)))
                 .then(getGetLogsAnswer(1))
                 .then(getGetLogsAnswer(1))
                 .then(getGetLogsAnswer(DefaultChannel.CLEAR_BATCH_SIZE));
@@ -891,7 +926,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(eq(TEST_GROUP), anyInt(), any(ArrayList.class)))
+        when(mockPersistence.getLogs(eq(TEST_GROUP), anyInt(), any(ArrayList.class), anyListOf(String.class)))
                 .then(getGetLogsAnswer(1));
         when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(503)));
 
@@ -921,7 +956,7 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         IngestionHttp mockIngestion = mock(IngestionHttp.class);
         Channel.GroupListener mockListener = mock(Channel.GroupListener.class);
 
-        when(mockPersistence.getLogs(any(String.class), anyInt(), Matchers.<List<Log>>any()))
+        when(mockPersistence.getLogs(any(String.class), anyInt(), Matchers.<List<Log>>any(), anyListOf(String.class)))
                 .then(getGetLogsAnswer(1));
 
         DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
@@ -934,5 +969,452 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         channel.shutdown();
         verify(mockListener, never()).onFailure(any(Log.class), any(Exception.class));
         verify(mockPersistence).clearPendingLogState();
+        verify(mockPersistence).flush();
+    }
+
+    @Test
+    public void flushPersistenceOnTimer() throws Exception {
+        Persistence mockPersistence = mock(Persistence.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mock(IngestionHttp.class), mCoreHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+
+        /* Enqueuing logs schedules a single flush. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        verify(mCoreHandler).postDelayed(runnable.capture(), eq(DefaultChannel.PERSISTENCE_FLUSH_INTERVAL));
+        verify(mockPersistence, never()).flush();
+
+        /* Timer flushes the buffered logs. */
+        runnable.getValue().run();
+        verify(mockPersistence).flush();
+
+        /* Next enqueue schedules again. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mCoreHandler, times(2)).postDelayed(any(Runnable.class), eq(DefaultChannel.PERSISTENCE_FLUSH_INTERVAL));
+    }
+
+    @Test
+    public void adaptBatchesToMeteredNetwork() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        NetworkStateHelper networkStateHelper = mock(NetworkStateHelper.class);
+        when(networkStateHelper.isNetworkMetered()).thenReturn(true);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mock(Ingestion.class), mCoreHandler, networkStateHelper);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+
+        /* Batch size and interval are doubled on a metered network. */
+        for (int i = 0; i < 50; i++)
+            channel.enqueue(mock(Log.class), TEST_GROUP);
+        assertEquals(50, channel.getCounter(TEST_GROUP));
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL * 2));
+        verify(mockPersistence, never()).getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class));
+
+        /* Bounds limit the growth. */
+        channel.setBatchBounds(TEST_GROUP, 10, 50, BATCH_TIME_INTERVAL, BATCH_TIME_INTERVAL);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mockPersistence).getLogs(eq(TEST_GROUP), eq(50), anyList(), anyListOf(String.class));
+    }
+
+    @Test
+    public void flushSoonerInBackground() throws Persistence.PersistenceException {
+        Application application = mock(Application.class);
+        DefaultChannel channel = new DefaultChannel(application, UUIDUtils.randomUUID().toString(), mock(Persistence.class), mock(Ingestion.class), mCoreHandler);
+        ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks = ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+        verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        callbacks.getValue().onActivityStarted(mock(Activity.class));
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+
+        /* Going to background reschedules with the shortest interval. */
+        callbacks.getValue().onActivityStopped(mock(Activity.class));
+        verify(mHandler).removeCallbacks(any(Runnable.class));
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL / AdaptiveBatchPolicy.DEFAULT_BOUNDS_FACTOR));
+
+        /* Back to foreground does not reschedule. */
+        callbacks.getValue().onActivityStarted(mock(Activity.class));
+        verify(mHandler).removeCallbacks(any(Runnable.class));
+    }
+
+    @Test
+    public void backgroundAppliedOnHandlerThread() throws Persistence.PersistenceException {
+        Application application = mock(Application.class);
+        Handler coreHandler = mock(Handler.class);
+        DefaultChannel channel = new DefaultChannel(application, UUIDUtils.randomUUID().toString(), mock(Persistence.class), mock(Ingestion.class), coreHandler);
+        ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks = ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+        verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+
+        /* The main thread only posts the transition. */
+        callbacks.getValue().onActivityStarted(mock(Activity.class));
+        callbacks.getValue().onActivityStopped(mock(Activity.class));
+        verify(mHandler, never()).removeCallbacks(any(Runnable.class));
+        ArgumentCaptor<Runnable> transitions = ArgumentCaptor.forClass(Runnable.class);
+        verify(coreHandler, times(2)).post(transitions.capture());
+
+        /* The superseded foreground transition does nothing, the background one reschedules. */
+        List<Runnable> runnables = transitions.getAllValues();
+        runnables.get(runnables.size() - 2).run();
+        verify(mHandler, never()).removeCallbacks(any(Runnable.class));
+        runnables.get(runnables.size() - 1).run();
+        verify(mHandler).removeCallbacks(any(Runnable.class));
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL / AdaptiveBatchPolicy.DEFAULT_BOUNDS_FACTOR));
+    }
+
+    @Test
+    public void overflowPolicyStagesLogs() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        Handler coreHandler = mock(Handler.class);
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mock(Ingestion.class), coreHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        channel.setOverflowPolicy(TEST_GROUP, OverflowPolicy.DROP_NEWEST, 2, 1);
+
+        /* Logs are staged without being persisted, extra ones are dropped. */
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        channel.enqueue(log1, TEST_GROUP);
+        channel.enqueue(log2, TEST_GROUP);
+        channel.enqueue(log3, TEST_GROUP);
+        verify(mockPersistence, never()).putLog(anyString(), any(Log.class));
+        assertEquals(1, channel.getDroppedLogCount(TEST_GROUP));
+        assertEquals(0, channel.getDroppedLogCount("other"));
+
+        /* One drain is scheduled, and one failure notification. */
+        ArgumentCaptor<Runnable> runnables = ArgumentCaptor.forClass(Runnable.class);
+        verify(coreHandler, times(2)).post(runnables.capture());
+        for (Runnable runnable : runnables.getAllValues())
+            runnable.run();
+        verify(mockPersistence).putLog(TEST_GROUP, log1);
+        verify(mockPersistence).putLog(TEST_GROUP, log2);
+        verify(mockPersistence, never()).putLog(TEST_GROUP, log3);
+        verify(listener).onFailure(eq(log3), any(CancellationException.class));
+        assertEquals(2, channel.getCounter(TEST_GROUP));
+
+        /* Shutdown persists staged logs. */
+        Log log4 = mock(Log.class);
+        channel.enqueue(log4, TEST_GROUP);
+        channel.shutdown();
+        verify(mockPersistence).putLog(TEST_GROUP, log4);
+
+        /* Back to blocking persists right away. */
+        channel.setOverflowPolicy(TEST_GROUP, OverflowPolicy.BLOCK, 0, 0);
+        Log log5 = mock(Log.class);
+        channel.enqueue(log5, TEST_GROUP);
+        verify(mockPersistence).putLog(TEST_GROUP, log5);
+    }
+
+    @Test
+    public void stagedLogsStampedOnEnqueue() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        Handler coreHandler = mock(Handler.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mock(Ingestion.class), coreHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.setOverflowPolicy(TEST_GROUP, OverflowPolicy.DROP_OLDEST, 10, 1);
+        Channel.Listener listener = mock(Channel.Listener.class);
+        channel.addListener(listener);
+
+        /* Timestamp and listeners are applied on the calling thread, before the log is staged. */
+        Log log = mock(Log.class);
+        channel.enqueue(log, TEST_GROUP);
+        verify(log).setToffset(anyLong());
+        verify(listener).onEnqueuingLog(log, TEST_GROUP);
+        verify(mockPersistence, never()).putLog(anyString(), any(Log.class));
+
+        /* Persisting staged logs does not call listeners again. */
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(coreHandler).post(drain.capture());
+        drain.getValue().run();
+        verify(mockPersistence).putLog(TEST_GROUP, log);
+        verify(listener).onEnqueuingLog(log, TEST_GROUP);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalesceGroupsIntoSingleRequest() throws Exception {
+        Persistence mockPersistence = mock(Persistence.class);
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        Channel.GroupListener otherListener = mock(Channel.GroupListener.class);
+        when(mockPersistence.countLogs("other")).thenReturn(1);
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+
+        /* Other group has a pending log waiting for its timer. */
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
+        channel.addGroup("other", 10, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, otherListener);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+
+        /* Triggering the first group sends both groups in one request. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), argThat(new ArgumentMatcher<LogContainer>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                LogContainer logContainer = (LogContainer) argument;
+                return logContainer.getRawLogs().size() == 2 && logContainer.getLogs().size() == 2;
+            }
+        }), any(ServiceCallback.class));
+        verify(mHandler).removeCallbacks(any(Runnable.class));
+
+        /* Success is split back to each group. */
+        verify(listener).onSuccess(any(Log.class));
+        verify(otherListener).onSuccess(any(Log.class));
+        verify(mockPersistence).deleteLogs(eq(TEST_GROUP), anyString());
+        verify(mockPersistence).deleteLogs(eq("other"), anyString());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+        assertEquals(0, channel.getCounter("other"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalescedRequestRecoverableFailure() throws Exception {
+        Persistence mockPersistence = mock(Persistence.class);
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        when(mockPersistence.countLogs("other")).thenReturn(1);
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(503)));
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
+        channel.addGroup("other", 10, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* Channel is suspended once and logs of both groups are kept for later. */
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(mockIngestion).close();
+        verify(mockPersistence).clearPendingLogState();
+        verify(mockPersistence, never()).deleteLogs(anyString(), anyString());
+        verify(listener, never()).onFailure(any(Log.class), any(Exception.class));
+        assertFalse(channel.isEnabled());
+        assertEquals(1, channel.getCounter(TEST_GROUP));
+        assertEquals(1, channel.getCounter("other"));
+    }
+
+    @Test
+    public void immediateGroupBypassesBatchInterval() throws Exception {
+        Persistence mockPersistence = mock(Persistence.class);
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, GroupPriority.IMMEDIATE, null);
+
+        /* Log is sent right away, without waiting for the batch to be full or the timer. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(mHandler, never()).postDelayed(any(Runnable.class), anyLong());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
+
+    @Test
+    public void higherPriorityGroupPreemptsParallelBatches() throws Exception {
+        Persistence mockPersistence = mock(Persistence.class);
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyListOf(Log.class), anyListOf(String.class))).then(new Answer<String>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                ((List<String>) invocation.getArguments()[3]).add((String) invocation.getArguments()[0]);
+                return UUIDUtils.randomUUID().toString();
+            }
+        });
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.addGroup("high", 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, GroupPriority.HIGH, null);
+
+        /* Low priority group sends a batch that does not complete. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* While the high priority group has pending logs, the low priority group does not send another batch in parallel. */
+        channel.enqueue(mock(Log.class), "high");
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(1, channel.getCounter(TEST_GROUP));
+
+        /* When the high priority group timer fires, low priority logs ride along after the high priority ones. */
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandler).postDelayed(timer.capture(), eq(BATCH_TIME_INTERVAL));
+        timer.getValue().run();
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), argThat(new ArgumentMatcher<LogContainer>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                return ((LogContainer) argument).getRawLogs().equals(Arrays.asList("high", TEST_GROUP));
+            }
+        }), any(ServiceCallback.class));
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+        assertEquals(0, channel.getCounter("high"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void retentionPolicySweepsLogs() {
+        Persistence mockPersistence = mock(Persistence.class);
+        Handler coreHandler = mock(Handler.class);
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        final Log expiredLog = mock(Log.class);
+        final Log evictedLog = mock(Log.class);
+        when(mockPersistence.countLogs(TEST_GROUP)).thenReturn(3);
+
+        /* A third log is deleted but cannot be read back to be reported. */
+        doAnswer(new Answer<Integer>() {
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                ((List<Log>) invocation.getArguments()[3]).add(expiredLog);
+                ((List<Log>) invocation.getArguments()[4]).add(evictedLog);
+                return 3;
+            }
+        }).when(mockPersistence).trimLogs(eq(TEST_GROUP), anyLong(), anyLong(), anyListOf(Log.class), anyListOf(Log.class));
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mock(Ingestion.class), coreHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        channel.addGroup("other", 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+
+        /* Nothing to sweep without a policy. */
+        channel.sweepLogs();
+        verify(mockPersistence, never()).trimLogs(anyString(), anyLong(), anyLong(), anyListOf(Log.class), anyListOf(Log.class));
+        verify(coreHandler, never()).postDelayed(any(Runnable.class), anyLong());
+
+        /* Setting a policy schedules a sweep once. */
+        channel.setRetentionPolicy(TEST_GROUP, 1000, 2000);
+        channel.setRetentionPolicy(TEST_GROUP, 1000, 2000);
+        channel.setRetentionPolicy("missing", 1000, 2000);
+        ArgumentCaptor<Runnable> sweep = ArgumentCaptor.forClass(Runnable.class);
+        verify(coreHandler).postDelayed(sweep.capture(), eq(0L));
+
+        /* Sweep reports and counts removed logs, then reschedules itself. */
+        sweep.getValue().run();
+        verify(mockPersistence).trimLogs(eq(TEST_GROUP), eq(1000L), eq(2000L), anyListOf(Log.class), anyListOf(Log.class));
+        verify(mockPersistence, never()).trimLogs(eq("other"), anyLong(), anyLong(), anyListOf(Log.class), anyListOf(Log.class));
+        verify(listener).onBeforeSending(expiredLog);
+        verify(listener).onFailure(eq(expiredLog), any(CancellationException.class));
+        verify(listener).onBeforeSending(evictedLog);
+        verify(listener).onFailure(eq(evictedLog), any(CancellationException.class));
+        assertEquals(1, channel.getExpiredLogCount(TEST_GROUP));
+        assertEquals(1, channel.getEvictedLogCount(TEST_GROUP));
+        assertEquals(0, channel.getExpiredLogCount("missing"));
+        assertEquals(0, channel.getEvictedLogCount("missing"));
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+        verify(coreHandler).postDelayed(sweep.getValue(), DefaultChannel.RETENTION_SWEEP_INTERVAL);
+
+        /* Removing the policy stops sweeping. */
+        channel.setRetentionPolicy(TEST_GROUP, 0, 0);
+        channel.sweepLogs();
+        verify(mockPersistence).trimLogs(anyString(), anyLong(), anyLong(), anyListOf(Log.class), anyListOf(Log.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void compactStorageWhenIdleOrInBackground() throws Exception {
+        Persistence mockPersistence = mock(Persistence.class);
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+        Handler coreHandler = mock(Handler.class);
+        Application application = mock(Application.class);
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyListOf(Log.class), anyListOf(String.class))).then(getGetLogsAnswer(1));
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        when(coreHandler.post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return true;
+            }
+        });
+        DefaultChannel channel = new DefaultChannel(application, UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, coreHandler);
+        ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks = ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+        verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        DatabaseStats stats = mock(DatabaseStats.class);
+        when(mockPersistence.getStorageStats()).thenReturn(stats);
+
+        /* Each sent batch postpones compaction. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        ArgumentCaptor<Runnable> compaction = ArgumentCaptor.forClass(Runnable.class);
+        verify(coreHandler, times(2)).postDelayed(compaction.capture(), eq(DefaultChannel.COMPACTION_IDLE_DELAY));
+        verify(coreHandler, times(2)).removeCallbacks(compaction.getValue());
+        verify(mockPersistence, never()).compact();
+        assertEquals(0, channel.getStorageStats().getFileSize());
+        compaction.getValue().run();
+        verify(mockPersistence).compact();
+
+        /* Storage stats are measured after compaction and then read without querying persistence. */
+        assertEquals(stats, channel.getStorageStats());
+        assertEquals(stats, channel.getMetrics().getStorageStats());
+        verify(mockPersistence).getStorageStats();
+
+        /* Going to background compacts right away. */
+        callbacks.getValue().onActivityStarted(mock(Activity.class));
+        callbacks.getValue().onActivityStopped(mock(Activity.class));
+        verify(coreHandler).postDelayed(compaction.getValue(), 0);
+    }
+
+    @Test
+    public void payloadSizeInUtf8Bytes() {
+        LogContainer logContainer = new LogContainer();
+        logContainer.setRawLogs(Arrays.asList("abc", "\u00e9\u20ac", "\ud83d\ude00"));
+        assertEquals(3 + 2 + 3 + 4, DefaultChannel.getPayloadSize(logContainer));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void metrics() {
+        Persistence mockPersistence = mock(Persistence.class);
+        IngestionHttp mockIngestion = mock(IngestionHttp.class);
+        RequestStats requestStats = new RequestStats();
+        when(mockIngestion.getRequestStats()).thenReturn(requestStats);
+        final long enqueueTime = System.currentTimeMillis() - 1000;
+        when(mockPersistence.getLogs(anyString(), anyInt(), anyList(), anyListOf(String.class))).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                List<String> payloads = (List<String>) invocation.getArguments()[3];
+                for (int i = 0; i < 2; i++)
+                    payloads.add("{\"type\":\"mock\",\"toffset\":" + enqueueTime + "}");
+                return UUIDUtils.randomUUID().toString();
+            }
+        });
+
+        /* First request succeeds, second one never completes. */
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer()).thenReturn(null);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion, mCoreHandler);
+        channel.addGroup(TEST_GROUP, 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        ChannelMetrics metrics = channel.getMetrics();
+        assertSame(metrics, channel.getMetrics());
+        assertTrue(metrics.getGroupNames().contains(TEST_GROUP));
+        assertNull(metrics.getGroupMetrics("unknown"));
+        assertSame(requestStats, metrics.getRequestStats());
+
+        /* Send a batch. */
+        GroupMetrics groupMetrics = metrics.getGroupMetrics(TEST_GROUP);
+        assertNotNull(groupMetrics);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        assertEquals(1, groupMetrics.getPendingLogCount());
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        assertEquals(0, groupMetrics.getPendingLogCount());
+        assertEquals(0, groupMetrics.getInFlightBatchCount());
+        assertEquals(2, groupMetrics.getSentLogCount());
+        assertEquals(1, groupMetrics.getRequestLatency().getCount());
+
+        /* Delivery latency is measured from the time logs were enqueued. */
+        assertEquals(2, groupMetrics.getDeliveryLatency().getCount());
+        assertTrue(groupMetrics.getDeliveryLatency().getMean() >= 1000);
+
+        /* Next batch stays in flight. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        assertEquals(1, groupMetrics.getInFlightBatchCount());
+        assertEquals(2, groupMetrics.getSentLogCount());
+        assertEquals(0, groupMetrics.getFailedLogCount());
+
+        /* Removing the group removes its metrics. */
+        channel.removeGroup(TEST_GROUP);
+        assertFalse(metrics.getGroupNames().contains(TEST_GROUP));
     }
 }
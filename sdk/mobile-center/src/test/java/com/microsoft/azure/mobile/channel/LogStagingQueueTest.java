@@ -0,0 +1,81 @@
+package com.microsoft.azure.mobile.channel;
+
+import com.microsoft.azure.mobile.ingestion.models.Log;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class LogStagingQueueTest {
+
+    @Test
+    public void dropNewest() {
+        LogStagingQueue queue = new LogStagingQueue(OverflowPolicy.DROP_NEWEST, 2, 1);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        assertNull(queue.offer(log1));
+        assertNull(queue.offer(log2));
+        assertSame(log3, queue.offer(log3));
+        assertSame(log1, queue.poll());
+        assertSame(log2, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void dropOldest() {
+        LogStagingQueue queue = new LogStagingQueue(OverflowPolicy.DROP_OLDEST, 2, 1);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        assertNull(queue.offer(log1));
+        assertNull(queue.offer(log2));
+        assertSame(log1, queue.offer(log3));
+        assertSame(log2, queue.poll());
+        assertSame(log3, queue.poll());
+        assertNull(queue.poll());
+
+        /* Room is made again after polling. */
+        assertNull(queue.offer(log1));
+    }
+
+    @Test
+    public void sample() {
+        LogStagingQueue queue = new LogStagingQueue(OverflowPolicy.SAMPLE, 1, 3);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        Log log4 = mock(Log.class);
+        assertNull(queue.offer(log1));
+
+        /* Only the third log while full is kept, replacing the oldest. */
+        assertSame(log2, queue.offer(log2));
+        assertSame(log3, queue.offer(log3));
+        assertSame(log1, queue.offer(log4));
+        assertSame(log4, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void invalidCapacity() {
+        LogStagingQueue queue = new LogStagingQueue(OverflowPolicy.SAMPLE, 0, 0);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        assertNull(queue.offer(log1));
+        assertSame(log1, queue.offer(log2));
+        assertSame(log2, queue.poll());
+    }
+
+    @Test
+    public void scheduleDrain() {
+        LogStagingQueue queue = new LogStagingQueue(OverflowPolicy.DROP_NEWEST, 2, 1);
+        assertTrue(queue.scheduleDrain());
+        assertFalse(queue.scheduleDrain());
+        queue.onDrainStarted();
+        assertTrue(queue.scheduleDrain());
+    }
+}
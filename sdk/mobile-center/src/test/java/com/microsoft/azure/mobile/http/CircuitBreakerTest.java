@@ -0,0 +1,261 @@
+package com.microsoft.azure.mobile.http;
+
+import android.os.Handler;
+
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper.PreferencesStorage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.microsoft.azure.mobile.http.CircuitBreaker.FAILURE_THRESHOLD;
+import static com.microsoft.azure.mobile.http.CircuitBreaker.MAX_OPEN_DURATION;
+import static com.microsoft.azure.mobile.http.CircuitBreaker.MIN_OPEN_DURATION;
+import static com.microsoft.azure.mobile.http.CircuitBreaker.PREFERENCE_OPEN_DURATION;
+import static com.microsoft.azure.mobile.http.CircuitBreaker.PREFERENCE_OPEN_UNTIL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.longThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.powermock.api.mockito.PowerMockito.doAnswer;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@SuppressWarnings("unused")
+@PrepareForTest({PreferencesStorage.class, MobileCenterLog.class})
+public class CircuitBreakerTest {
+
+    private static final String ENDPOINT = "in.mobile.azure.com";
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private final Map<String, Long> mPreferences = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        CircuitBreaker.unsetInstances();
+        mockStatic(MobileCenterLog.class);
+        mockStatic(PreferencesStorage.class);
+        when(PreferencesStorage.getLong(anyString(), anyLong())).then(new Answer<Long>() {
+
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                Long value = mPreferences.get(invocation.getArguments()[0].toString());
+                return value == null ? (Long) invocation.getArguments()[1] : value;
+            }
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                mPreferences.put(invocation.getArguments()[0].toString(), (Long) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(PreferencesStorage.class);
+        PreferencesStorage.putLong(anyString(), anyLong());
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                mPreferences.remove(invocation.getArguments()[0].toString());
+                return null;
+            }
+        }).when(PreferencesStorage.class);
+        PreferencesStorage.remove(anyString());
+    }
+
+    @After
+    public void tearDown() {
+        CircuitBreaker.unsetInstances();
+    }
+
+    @Test
+    public void sharedInstancePerEndpoint() {
+        assertSame(CircuitBreaker.getInstance(ENDPOINT), CircuitBreaker.getInstance(ENDPOINT));
+        assertNotSame(CircuitBreaker.getInstance(ENDPOINT), CircuitBreaker.getInstance("other"));
+    }
+
+    @Test
+    public void opensAfterThreshold() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        assertEquals(0, circuitBreaker.acquire());
+
+        /* Client errors and network errors don't count. */
+        circuitBreaker.onFailure(new HttpException(400));
+        circuitBreaker.onFailure(new IOException());
+        for (int i = 1; i < FAILURE_THRESHOLD; i++)
+            circuitBreaker.onFailure(new HttpException(500));
+        assertEquals(0, circuitBreaker.acquire());
+
+        /* Success resets the count. */
+        circuitBreaker.onSuccess();
+        for (int i = 1; i < FAILURE_THRESHOLD; i++)
+            circuitBreaker.onFailure(new HttpException(500));
+        assertEquals(0, circuitBreaker.acquire());
+        circuitBreaker.onFailure(new HttpException(500));
+        long delay = circuitBreaker.acquire();
+        assertTrue(delay > 0 && delay <= MIN_OPEN_DURATION);
+        assertTrue(mPreferences.containsKey(PREFERENCE_OPEN_UNTIL + ENDPOINT));
+    }
+
+    @Test
+    public void opensOnBackOffStatus() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        circuitBreaker.onFailure(new HttpException(429));
+        assertTrue(circuitBreaker.acquire() > 0);
+        circuitBreaker = new CircuitBreaker("other");
+        circuitBreaker.onFailure(new HttpException(503));
+        assertTrue(circuitBreaker.acquire() > 0);
+    }
+
+    @Test
+    public void honorsRetryAfter() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        circuitBreaker.onFailure(new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, "1800")));
+        long delay = circuitBreaker.acquire();
+        assertTrue(delay > 1700000 && delay <= 1800000);
+    }
+
+    @Test
+    public void hugeRetryAfterIsClamped() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        circuitBreaker.onFailure(new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, String.valueOf(Long.MAX_VALUE))));
+        long delay = circuitBreaker.acquire();
+        assertTrue(delay > 0 && delay <= MAX_OPEN_DURATION);
+        assertTrue(mPreferences.get(PREFERENCE_OPEN_UNTIL + ENDPOINT) <= System.currentTimeMillis() + MAX_OPEN_DURATION);
+    }
+
+    @Test
+    public void negativeRetryAfterIsIgnored() {
+        assertEquals(0, CircuitBreaker.clampRetryAfter(-1000));
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        circuitBreaker.onFailure(new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, "-60")));
+        long delay = circuitBreaker.acquire();
+        assertTrue(delay > 0 && delay <= MIN_OPEN_DURATION);
+    }
+
+    @Test
+    public void clockSetBackDoesNotExtendOpenPeriod() {
+
+        /* Open period saved while the wall clock was far in the future. */
+        mPreferences.put(PREFERENCE_OPEN_UNTIL + ENDPOINT, System.currentTimeMillis() + MAX_OPEN_DURATION * 24);
+        mPreferences.put(PREFERENCE_OPEN_DURATION + ENDPOINT, MIN_OPEN_DURATION);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        long delay = circuitBreaker.acquire();
+        assertTrue(delay > 0 && delay <= MAX_OPEN_DURATION);
+        assertTrue(circuitBreaker.acquire() <= delay);
+    }
+
+    @Test
+    public void halfOpenSingleProbe() {
+
+        /* Simulate an open period that just ended. */
+        mPreferences.put(PREFERENCE_OPEN_UNTIL + ENDPOINT, System.currentTimeMillis() - 1);
+        mPreferences.put(PREFERENCE_OPEN_DURATION + ENDPOINT, MIN_OPEN_DURATION);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+
+        /* Only one probe goes through. */
+        assertEquals(0, circuitBreaker.acquire());
+        assertEquals(MIN_OPEN_DURATION, circuitBreaker.acquire());
+
+        /* Probe failure opens the circuit again at once, within jittered bounds. */
+        circuitBreaker.onFailure(new HttpException(500));
+        long delay = circuitBreaker.acquire();
+        assertTrue(delay > 0 && delay <= MIN_OPEN_DURATION * 3);
+
+        /* Probe success closes the circuit and clears persisted state. */
+        mPreferences.put(PREFERENCE_OPEN_UNTIL + ENDPOINT, System.currentTimeMillis() - 1);
+        circuitBreaker = new CircuitBreaker(ENDPOINT);
+        assertEquals(0, circuitBreaker.acquire());
+        circuitBreaker.onSuccess();
+        assertEquals(0, circuitBreaker.acquire());
+        assertEquals(0, circuitBreaker.acquire());
+        assertFalse(mPreferences.containsKey(PREFERENCE_OPEN_UNTIL + ENDPOINT));
+        assertFalse(mPreferences.containsKey(PREFERENCE_OPEN_DURATION + ENDPOINT));
+    }
+
+    @Test
+    public void openStateSurvivesRestart() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(ENDPOINT);
+        circuitBreaker.onFailure(new HttpException(503));
+        assertTrue(circuitBreaker.acquire() > 0);
+
+        /* Simulate process restart. */
+        assertTrue(new CircuitBreaker(ENDPOINT).acquire() > 0);
+        assertEquals(0, new CircuitBreaker("other").acquire());
+    }
+
+    @Test
+    public void retryerWaitsWhileOpen() {
+        final ServiceCallback callback = mock(ServiceCallback.class);
+        HttpClient httpClient = mock(HttpClient.class);
+        doAnswer(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocation) throws Throwable {
+                ((ServiceCallback) invocation.getArguments()[4]).onCallFailed(new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, "600")));
+                return mock(ServiceCall.class);
+            }
+        }).when(httpClient).callAsync(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.CallTemplate.class), any(ServiceCallback.class));
+        Handler handler = mock(Handler.class);
+        HttpClientRetryer retryer = new HttpClientRetryer(httpClient, handler, true);
+        retryer.callAsync("https://" + ENDPOINT + "/logs", "", Collections.<String, String>emptyMap(), null, callback);
+
+        /* Retry is delayed by the server. */
+        verify(handler).postDelayed(any(Runnable.class), longThat(new ArgumentMatcher<Long>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                return (Long) argument >= 600000;
+            }
+        }));
+
+        /* Another call to the same endpoint waits for the circuit without calling the server. */
+        retryer.callAsync("https://" + ENDPOINT + "/other", "", Collections.<String, String>emptyMap(), null, callback);
+        verify(httpClient).callAsync(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.CallTemplate.class), any(ServiceCallback.class));
+        verify(handler, times(2)).postDelayed(any(Runnable.class), anyLong());
+        verifyZeroInteractions(callback);
+    }
+
+    @Test
+    public void retryerClampsHugeRetryAfter() {
+        final ServiceCallback callback = mock(ServiceCallback.class);
+        HttpClient httpClient = mock(HttpClient.class);
+        doAnswer(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocation) throws Throwable {
+                ((ServiceCallback) invocation.getArguments()[4]).onCallFailed(new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, String.valueOf(Long.MAX_VALUE))));
+                return mock(ServiceCall.class);
+            }
+        }).when(httpClient).callAsync(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.CallTemplate.class), any(ServiceCallback.class));
+        Handler handler = mock(Handler.class);
+        HttpClientRetryer retryer = new HttpClientRetryer(httpClient, handler, true);
+        retryer.callAsync("https://" + ENDPOINT + "/logs", "", Collections.<String, String>emptyMap(), null, callback);
+        verify(handler).postDelayed(any(Runnable.class), eq(MAX_OPEN_DURATION));
+    }
+}
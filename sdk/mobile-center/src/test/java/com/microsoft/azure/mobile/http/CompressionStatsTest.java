@@ -0,0 +1,23 @@
+package com.microsoft.azure.mobile.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+@SuppressWarnings("unused")
+public class CompressionStatsTest {
+
+    @Test
+    public void record() {
+        CompressionStats stats = new CompressionStats();
+        assertEquals(0, stats.getRequestCount());
+        assertEquals(1, stats.getCompressionRatio(), 0);
+        stats.record(1000, 100, 2000000L);
+        stats.record(3000, 300, 3000000L);
+        assertEquals(2, stats.getRequestCount());
+        assertEquals(4000, stats.getUncompressedBytes());
+        assertEquals(400, stats.getCompressedBytes());
+        assertEquals(5, stats.getCompressionTime());
+        assertEquals(0.1, stats.getCompressionRatio(), 0.0001);
+    }
+}
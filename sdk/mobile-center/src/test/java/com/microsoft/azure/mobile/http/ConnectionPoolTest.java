@@ -0,0 +1,126 @@
+package com.microsoft.azure.mobile.http;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+
+import java.net.HttpURLConnection;
+import java.net.Socket;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@PrepareForTest(SystemClock.class)
+public class ConnectionPoolTest {
+
+    @Rule
+    public PowerMockRule rule = new PowerMockRule();
+
+    @Before
+    public void setUp() {
+        mockStatic(SystemClock.class);
+    }
+
+    @Test
+    public void countHandshakesAndReuses() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 1000);
+        SSLSocketFactory defaultFactory = mock(SSLSocketFactory.class);
+        Socket socket = mock(Socket.class);
+        when(defaultFactory.createSocket(any(Socket.class), anyString(), anyInt(), eq(true))).thenReturn(socket);
+
+        /* First call opens a connection through the tracking factory. */
+        HttpsURLConnection urlConnection = mock(HttpsURLConnection.class);
+        when(urlConnection.getSSLSocketFactory()).thenReturn(defaultFactory);
+        pool.onCallStarted(urlConnection);
+        ArgumentCaptor<SSLSocketFactory> factory = ArgumentCaptor.forClass(SSLSocketFactory.class);
+        verify(urlConnection).setSSLSocketFactory(factory.capture());
+        assertNotSame(defaultFactory, factory.getValue());
+        assertSame(socket, factory.getValue().createSocket(mock(Socket.class), "in.mobile.azure.com", 443, true));
+        pool.onCallEnded();
+
+        /* Second call reuses it with the same factory. */
+        HttpsURLConnection urlConnection2 = mock(HttpsURLConnection.class);
+        pool.onCallStarted(urlConnection2);
+        verify(urlConnection2).setSSLSocketFactory(factory.getValue());
+        pool.onCallEnded();
+        ConnectionStats stats = pool.getConnectionStats();
+        assertEquals(2, stats.getRequestCount());
+        assertEquals(1, stats.getHandshakeCount());
+        assertEquals(1, stats.getReuseCount());
+        verify(socket, never()).close();
+
+        /* Plain HTTP is not tracked. */
+        pool.onCallStarted(mock(HttpURLConnection.class));
+        pool.onCallEnded();
+        assertEquals(2, stats.getRequestCount());
+    }
+
+    @Test
+    public void closeIdleConnections() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 1000);
+        when(SystemClock.elapsedRealtime()).thenReturn(1000L);
+        pool.onCallStarted(mock(HttpsURLConnection.class));
+        Socket socket = pool.onSocketCreated(mock(Socket.class));
+        pool.onCallEnded();
+
+        /* Not idle long enough. */
+        when(SystemClock.elapsedRealtime()).thenReturn(2000L);
+        pool.onCallStarted(mock(HttpsURLConnection.class));
+        pool.onCallEnded();
+        verify(socket, never()).close();
+        assertEquals(1, pool.getConnectionCount());
+
+        /* Idle too long. */
+        when(SystemClock.elapsedRealtime()).thenReturn(3001L);
+        pool.onCallStarted(mock(HttpsURLConnection.class));
+        verify(socket).close();
+        assertEquals(0, pool.getConnectionCount());
+        pool.onCallEnded();
+    }
+
+    @Test
+    public void closeConnectionsExceedingPoolSize() throws Exception {
+        ConnectionPool pool = new ConnectionPool(1, 1000);
+
+        /* Two concurrent calls open two connections. */
+        pool.onCallStarted(mock(HttpsURLConnection.class));
+        pool.onCallStarted(mock(HttpsURLConnection.class));
+        Socket socket1 = pool.onSocketCreated(mock(Socket.class));
+        Socket socket2 = pool.onSocketCreated(mock(Socket.class));
+
+        /* Nothing closed while a call is in progress. */
+        pool.onCallEnded();
+        verify(socket1, never()).close();
+        verify(socket2, never()).close();
+
+        /* Oldest closed when all calls are done. */
+        pool.onCallEnded();
+        verify(socket1).close();
+        verify(socket2, never()).close();
+        assertEquals(1, pool.getConnectionCount());
+
+        /* Sockets closed by someone else are forgotten. */
+        when(socket2.isClosed()).thenReturn(true);
+        pool.onCallStarted(mock(HttpsURLConnection.class));
+        pool.onCallEnded();
+        assertEquals(0, pool.getConnectionCount());
+    }
+}
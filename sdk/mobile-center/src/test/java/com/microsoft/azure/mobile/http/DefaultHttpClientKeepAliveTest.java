@@ -0,0 +1,189 @@
+package com.microsoft.azure.mobile.http;
+
+import android.os.Handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import static com.microsoft.azure.mobile.http.DefaultHttpClient.METHOD_GET;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Check connection reuse against local HTTP and HTTPS servers.
+ */
+public class DefaultHttpClientKeepAliveTest {
+
+    /**
+     * Client ports of the connections the server received requests on.
+     */
+    private final Set<Integer> mClientPorts = new HashSet<>();
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+
+    private String mUrl;
+
+    private SSLSocketFactory mDefaultSocketFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDefaultSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        startServer(mServer);
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/logs";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        HttpsURLConnection.setDefaultSSLSocketFactory(mDefaultSocketFactory);
+    }
+
+    private void startServer(HttpServer server) {
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (mClientPorts) {
+                    mClientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                byte[] response = "OK".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Replace the HTTP server by an HTTPS one with a self-signed certificate trusted by default.
+     */
+    private void useHttps() throws Exception {
+
+        /* Generate a certificate for the loopback address. */
+        File keyStoreFile = new File(mTemporaryFolder.getRoot(), "server.jks");
+        char[] password = "password".toCharArray();
+        Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1", "-validity", "1",
+                "-keystore", keyStoreFile.getPath(), "-storetype", "JKS",
+                "-storepass", new String(password), "-keypass", new String(password))
+                .redirectErrorStream(true).start();
+        assertEquals(0, keytool.waitFor());
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        HttpsURLConnection.setDefaultSSLSocketFactory(clientContext.getSocketFactory());
+
+        /* Swap servers. */
+        mServer.stop(0);
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        mServer = server;
+        startServer(mServer);
+        mUrl = "https://127.0.0.1:" + mServer.getAddress().getPort() + "/logs";
+    }
+
+    private static DefaultHttpClient createHttpClient() {
+
+        /* Run calls and callbacks synchronously. */
+        Executor executor = new Executor() {
+
+            @Override
+            public void execute(@SuppressWarnings("NullableProblems") Runnable command) {
+                command.run();
+            }
+        };
+        Handler handler = mock(Handler.class);
+        when(handler.post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return true;
+            }
+        });
+        DefaultHttpClient httpClient = new DefaultHttpClient(false, executor, handler);
+        httpClient.setKeepAlive(1, 60000);
+        return httpClient;
+    }
+
+    @Test
+    public void reuseSecureConnection() throws Exception {
+        useHttps();
+        DefaultHttpClient httpClient = createHttpClient();
+
+        /* Verify a single handshake is paid for all calls. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        for (int i = 0; i < 3; i++)
+            httpClient.callAsync(mUrl, METHOD_GET, new HashMap<String, String>(), null, serviceCallback);
+        verify(serviceCallback, times(3)).onCallSucceeded("OK");
+        assertEquals(1, mClientPorts.size());
+        ConnectionStats connectionStats = httpClient.getConnectionStats();
+        assertEquals(3, connectionStats.getRequestCount());
+        assertEquals(1, connectionStats.getHandshakeCount());
+        assertEquals(2, connectionStats.getReuseCount());
+    }
+
+    @Test
+    public void reuseConnection() {
+        DefaultHttpClient httpClient = createHttpClient();
+
+        /* Verify all calls use the same connection. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        for (int i = 0; i < 3; i++)
+            httpClient.callAsync(mUrl, METHOD_GET, new HashMap<String, String>(), null, serviceCallback);
+        verify(serviceCallback, times(3)).onCallSucceeded("OK");
+        assertEquals(1, mClientPorts.size());
+    }
+}
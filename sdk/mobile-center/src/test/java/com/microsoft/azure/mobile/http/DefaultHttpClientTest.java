@@ -1,6 +1,7 @@
 package com.microsoft.azure.mobile.http;
 
 import android.net.TrafficStats;
+import android.os.Handler;
 
 import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.utils.HandlerUtils;
@@ -19,6 +20,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashMap;
@@ -27,13 +29,18 @@ import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
 
 import static android.util.Log.VERBOSE;
+import static android.util.Log.WARN;
 import static com.microsoft.azure.mobile.http.DefaultHttpClient.METHOD_GET;
 import static com.microsoft.azure.mobile.http.DefaultHttpClient.METHOD_POST;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.any;
@@ -69,7 +76,7 @@ public class DefaultHttpClientTest {
             public Object answer(InvocationOnMock invocation) throws Throwable {
 
                 @SuppressWarnings("unchecked")
-                final DefaultHttpClient.Call call = new DefaultHttpClient.Call(invocation.getArguments()[0].toString(), invocation.getArguments()[1].toString(), (Map<String, String>) invocation.getArguments()[2], (HttpClient.CallTemplate) invocation.getArguments()[3], (ServiceCallback) invocation.getArguments()[4]);
+                final DefaultHttpClient.Call call = new DefaultHttpClient.Call(invocation.getArguments()[0].toString(), invocation.getArguments()[1].toString(), (Map<String, String>) invocation.getArguments()[2], (HttpClient.CallTemplate) invocation.getArguments()[3], (ServiceCallback) invocation.getArguments()[4], (CompressionStats) invocation.getArguments()[5], (Handler) invocation.getArguments()[6], (ConnectionPool) invocation.getArguments()[7], (RequestStats) invocation.getArguments()[8]);
                 DefaultHttpClient.Call spyCall = spy(call);
                 when(spyCall.executeOnExecutor(any(Executor.class))).then(new Answer<DefaultHttpClient.Call>() {
 
@@ -107,6 +114,7 @@ public class DefaultHttpClientTest {
         HttpClient.CallTemplate callTemplate = mock(HttpClient.CallTemplate.class);
         when(callTemplate.buildRequestBody()).thenReturn("mockPayload");
         DefaultHttpClient httpClient = new DefaultHttpClient();
+        assertNull(httpClient.getCompressionStats());
 
         /* Test calling code. Use shorter but valid app secret. */
         String appSecret = "SHORT";
@@ -132,6 +140,14 @@ public class DefaultHttpClientTest {
         String sentPayload = buffer.toString("UTF-8");
         assertEquals("mockPayload", sentPayload);
 
+        /* Verify statistics. */
+        RequestStats requestStats = httpClient.getRequestStats();
+        assertEquals(1, requestStats.getRequestCount());
+        assertEquals(1, requestStats.getStatusCount(2));
+        assertEquals(0, requestStats.getNetworkErrorCount());
+        assertEquals(sentPayload.length(), requestStats.getRequestBytes());
+        assertEquals(1, requestStats.getLatency().getCount());
+
         /* Verify socket tagged to avoid strict mode error. */
         verifyStatic();
         TrafficStats.setThreadStatsTag(anyInt());
@@ -139,6 +155,218 @@ public class DefaultHttpClientTest {
         TrafficStats.clearThreadStatsTag();
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void post200Streaming() throws Exception {
+
+        /* Streaming is not used in verbose mode as payload is printed. */
+        MobileCenter.setLogLevel(WARN);
+
+        /* Configure mock HTTP. */
+        String urlString = "http://mock/logs?api_version=1.0.0-preview20160914";
+        URL url = mock(URL.class);
+        whenNew(URL.class).withArguments(urlString).thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = spy(new ByteArrayOutputStream());
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client. */
+        HttpClient.StreamingCallTemplate callTemplate = mock(HttpClient.StreamingCallTemplate.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArguments()[0]).write("mockPayload".getBytes("UTF-8"));
+                return null;
+            }
+        }).when(callTemplate).writeRequestBody(any(OutputStream.class));
+        DefaultHttpClient httpClient = new DefaultHttpClient();
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+        verify(serviceCallback).onCallSucceeded("OK");
+        verifyNoMoreInteractions(serviceCallback);
+        verify(urlConnection).setDoOutput(true);
+        verify(urlConnection).setChunkedStreamingMode(DefaultHttpClient.STREAMING_CHUNK_SIZE);
+        verify(urlConnection, never()).setFixedLengthStreamingMode(anyInt());
+        verify(callTemplate, never()).buildRequestBody();
+        verify(buffer).close();
+        verify(urlConnection).disconnect();
+
+        /* Verify payload. */
+        assertEquals("mockPayload", buffer.toString("UTF-8"));
+        assertEquals("mockPayload".length(), httpClient.getRequestStats().getRequestBytes());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void post200StreamingTemplateInVerbose() throws Exception {
+
+        /* Payload is built as a string to be printed. */
+        MobileCenter.setLogLevel(VERBOSE);
+
+        /* Configure mock HTTP. */
+        String urlString = "http://mock/logs?api_version=1.0.0-preview20160914";
+        URL url = mock(URL.class);
+        whenNew(URL.class).withArguments(urlString).thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client. */
+        HttpClient.StreamingCallTemplate callTemplate = mock(HttpClient.StreamingCallTemplate.class);
+        when(callTemplate.buildRequestBody()).thenReturn("mockPayload");
+        DefaultHttpClient httpClient = new DefaultHttpClient();
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+        verify(serviceCallback).onCallSucceeded("OK");
+        verify(urlConnection).setFixedLengthStreamingMode(11);
+        verify(callTemplate, never()).writeRequestBody(any(OutputStream.class));
+        assertEquals("mockPayload", buffer.toString("UTF-8"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void post200Compressed() throws Exception {
+        MobileCenter.setLogLevel(VERBOSE);
+
+        /* Configure mock HTTP. */
+        String urlString = "http://mock/logs?api_version=1.0.0-preview20160914";
+        URL url = mock(URL.class);
+        whenNew(URL.class).withArguments(urlString).thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client with a large repetitive payload. */
+        StringBuilder payload = new StringBuilder();
+        while (payload.length() < DefaultHttpClient.MIN_GZIP_LENGTH)
+            payload.append("{\"type\":\"mock\"},");
+        HttpClient.CallTemplate callTemplate = mock(HttpClient.CallTemplate.class);
+        when(callTemplate.buildRequestBody()).thenReturn(payload.toString());
+        DefaultHttpClient httpClient = new DefaultHttpClient(true);
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+        verify(serviceCallback).onCallSucceeded("OK");
+        verify(urlConnection).setRequestProperty(DefaultHttpClient.CONTENT_ENCODING_KEY, DefaultHttpClient.CONTENT_ENCODING_VALUE);
+        verify(urlConnection).setFixedLengthStreamingMode(buffer.size());
+
+        /* Verify payload. */
+        assertEquals(payload.toString(), gunzip(buffer.toByteArray()));
+
+        /* Verify statistics. */
+        CompressionStats stats = httpClient.getCompressionStats();
+        assertEquals(1, stats.getRequestCount());
+        assertEquals(payload.length(), stats.getUncompressedBytes());
+        assertEquals(buffer.size(), stats.getCompressedBytes());
+        assertTrue(stats.getCompressionRatio() < 1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void post200NotCompressedIfSmall() throws Exception {
+        MobileCenter.setLogLevel(VERBOSE);
+
+        /* Configure mock HTTP. */
+        String urlString = "http://mock/logs?api_version=1.0.0-preview20160914";
+        URL url = mock(URL.class);
+        whenNew(URL.class).withArguments(urlString).thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client. */
+        HttpClient.CallTemplate callTemplate = mock(HttpClient.CallTemplate.class);
+        when(callTemplate.buildRequestBody()).thenReturn("mockPayload");
+        DefaultHttpClient httpClient = new DefaultHttpClient(true);
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+        verify(serviceCallback).onCallSucceeded("OK");
+        verify(urlConnection, never()).setRequestProperty(eq(DefaultHttpClient.CONTENT_ENCODING_KEY), anyString());
+        assertEquals("mockPayload", buffer.toString("UTF-8"));
+        assertEquals(0, httpClient.getCompressionStats().getRequestCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void post200StreamingCompressed() throws Exception {
+        MobileCenter.setLogLevel(WARN);
+
+        /* Configure mock HTTP. */
+        String urlString = "http://mock/logs?api_version=1.0.0-preview20160914";
+        URL url = mock(URL.class);
+        whenNew(URL.class).withArguments(urlString).thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client. */
+        HttpClient.StreamingCallTemplate callTemplate = mock(HttpClient.StreamingCallTemplate.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                OutputStream out = (OutputStream) invocation.getArguments()[0];
+                out.write('{');
+                out.write("\"logs\":[]}".getBytes("UTF-8"));
+                return null;
+            }
+        }).when(callTemplate).writeRequestBody(any(OutputStream.class));
+        DefaultHttpClient httpClient = new DefaultHttpClient(true);
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.callAsync(urlString, METHOD_POST, new HashMap<String, String>(), callTemplate, serviceCallback);
+        verify(serviceCallback).onCallSucceeded("OK");
+        verify(urlConnection).setRequestProperty(DefaultHttpClient.CONTENT_ENCODING_KEY, DefaultHttpClient.CONTENT_ENCODING_VALUE);
+        verify(urlConnection).setChunkedStreamingMode(DefaultHttpClient.STREAMING_CHUNK_SIZE);
+
+        /* Verify payload and statistics. */
+        assertEquals("{\"logs\":[]}", gunzip(buffer.toByteArray()));
+        CompressionStats stats = httpClient.getCompressionStats();
+        assertEquals(1, stats.getRequestCount());
+        assertEquals(11, stats.getUncompressedBytes());
+        assertEquals(buffer.size(), stats.getCompressedBytes());
+    }
+
+    private static String gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = in.read(buffer)) > 0)
+            out.write(buffer, 0, len);
+        in.close();
+        return out.toString("UTF-8");
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void post200WithoutCallTemplate() throws Exception {
@@ -300,6 +528,9 @@ public class DefaultHttpClientTest {
         verify(serviceCallback).onCallFailed(new HttpException(503, "Busy"));
         verifyNoMoreInteractions(serviceCallback);
         verify(urlConnection).disconnect();
+        assertEquals(1, httpClient.getRequestStats().getStatusCount(5));
+        assertEquals(0, httpClient.getRequestStats().getStatusCount(2));
+        assertEquals(0, httpClient.getRequestStats().getNetworkErrorCount());
 
         /* Verify socket tagged to avoid strict mode error. */
         verifyStatic();
@@ -366,6 +597,8 @@ public class DefaultHttpClientTest {
         verify(serviceCallback).onCallFailed(exception);
         verifyZeroInteractions(serviceCallback);
         verify(inputStream).close();
+        assertEquals(1, httpClient.getRequestStats().getNetworkErrorCount());
+        assertEquals(1, httpClient.getRequestStats().getRequestCount());
         verifyStatic();
         TrafficStats.setThreadStatsTag(anyInt());
         verifyStatic();
@@ -440,4 +673,79 @@ public class DefaultHttpClientTest {
         verify(serviceCallback).onCallFailed(exception);
         verify(serviceCallback, never()).onCallSucceeded(notNull(String.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void callbackOnHandler() throws Exception {
+
+        /* Configure mock HTTP. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+        mockStatic(TrafficStats.class);
+
+        /* Run calls synchronously and hold callbacks in the handler. */
+        Executor executor = new Executor() {
+
+            @Override
+            public void execute(@SuppressWarnings("NullableProblems") Runnable command) {
+                command.run();
+            }
+        };
+        final Runnable[] postedRunnable = new Runnable[1];
+        Handler handler = mock(Handler.class);
+        when(handler.post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                postedRunnable[0] = (Runnable) invocation.getArguments()[0];
+                return true;
+            }
+        });
+        DefaultHttpClient httpClient = new DefaultHttpClient(false, executor, handler);
+
+        /* Call is done but callback is only invoked by the handler. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        httpClient.callAsync("", METHOD_GET, new HashMap<String, String>(), null, serviceCallback);
+        verify(urlConnection).disconnect();
+        verifyZeroInteractions(serviceCallback);
+        assertNotNull(postedRunnable[0]);
+        postedRunnable[0].run();
+        verify(serviceCallback).onCallSucceeded("OK");
+
+        /* A call canceled before its callback is posted never calls back. */
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+        serviceCallback = mock(ServiceCallback.class);
+        ServiceCall call = httpClient.callAsync("", METHOD_GET, new HashMap<String, String>(), null, serviceCallback);
+        call.cancel();
+        postedRunnable[0].run();
+        verifyZeroInteractions(serviceCallback);
+    }
+
+    @Test
+    public void canceledBeforeRunning() throws Exception {
+
+        /* Hold calls in the executor. */
+        final Runnable[] queuedCall = new Runnable[1];
+        Executor executor = new Executor() {
+
+            @Override
+            public void execute(@SuppressWarnings("NullableProblems") Runnable command) {
+                queuedCall[0] = command;
+            }
+        };
+        Handler handler = mock(Handler.class);
+        DefaultHttpClient httpClient = new DefaultHttpClient(false, executor, handler);
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        ServiceCall call = httpClient.callAsync("", METHOD_GET, new HashMap<String, String>(), null, serviceCallback);
+        call.cancel();
+
+        /* Verify the call is skipped once dequeued. */
+        whenNew(URL.class).withAnyArguments().thenThrow(new AssertionError("call should be skipped"));
+        queuedCall[0].run();
+        verifyZeroInteractions(handler);
+        verifyZeroInteractions(serviceCallback);
+    }
+}
@@ -10,6 +10,7 @@ import org.mockito.stubbing.Answer;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
@@ -117,7 +118,8 @@ public class HttpClientRetryerTest {
             }
         }).when(httpClient).callAsync(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.CallTemplate.class), any(ServiceCallback.class));
         Handler handler = mock(Handler.class);
-        HttpClient retryer = new HttpClientRetryer(httpClient, handler);
+        RequestStats requestStats = new RequestStats();
+        HttpClient retryer = new HttpClientRetryer(httpClient, handler, false, requestStats);
         simulateRetryAfterDelay(handler);
         retryer.callAsync(null, null, null, null, callback);
         verifyDelay(handler, 0);
@@ -125,6 +127,7 @@ public class HttpClientRetryerTest {
         verify(callback).onCallFailed(any(Exception.class));
         verify(callback).onCallFailed(expectedException);
         verifyNoMoreInteractions(callback);
+        assertEquals(1, requestStats.getRetryCount());
     }
 
     @Test
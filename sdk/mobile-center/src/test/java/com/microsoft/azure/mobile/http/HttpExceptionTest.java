@@ -2,10 +2,17 @@ package com.microsoft.azure.mobile.http;
 
 import org.junit.Test;
 
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
 import static com.microsoft.azure.mobile.test.TestUtils.checkEquals;
 import static com.microsoft.azure.mobile.test.TestUtils.checkNotEquals;
 import static com.microsoft.azure.mobile.test.TestUtils.compareSelfNullClass;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @SuppressWarnings("unused")
 public class HttpExceptionTest {
@@ -20,4 +27,21 @@ public class HttpExceptionTest {
         assertEquals("", new HttpException(403).getPayload());
         assertEquals("Busy", new HttpException(503, "Busy").getPayload());
     }
+
+    @Test
+    public void retryAfter() {
+        assertEquals(0, new HttpException(503).getRetryAfter());
+        assertEquals(120000, new HttpException(429, "", Collections.singletonMap(HttpException.RETRY_AFTER, " 120 ")).getRetryAfter());
+        assertEquals(0, new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, "-5")).getRetryAfter());
+        assertEquals(0, new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, "soon")).getRetryAfter());
+
+        /* HTTP date. */
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String date = format.format(new Date(System.currentTimeMillis() + 600000));
+        long retryAfter = new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, date)).getRetryAfter();
+        assertTrue(retryAfter > 590000 && retryAfter <= 600000);
+        date = format.format(new Date(System.currentTimeMillis() - 600000));
+        assertEquals(0, new HttpException(503, "", Collections.singletonMap(HttpException.RETRY_AFTER, date)).getRetryAfter());
+    }
 }
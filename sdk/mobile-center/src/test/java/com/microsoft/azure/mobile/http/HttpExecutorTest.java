@@ -0,0 +1,58 @@
+package com.microsoft.azure.mobile.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpExecutorTest {
+
+    @Test
+    public void init() {
+        new HttpExecutor();
+    }
+
+    @Test
+    public void sharedInstance() {
+        assertSame(HttpExecutor.getSharedInstance(), HttpExecutor.getSharedInstance());
+    }
+
+    @Test
+    public void boundedAndNamed() throws Exception {
+        ThreadPoolExecutor executor = HttpExecutor.newExecutor();
+        final Semaphore blocker = new Semaphore(0);
+        final Semaphore started = new Semaphore(0);
+        final String[] threadName = new String[1];
+        Runnable blockingCall = new Runnable() {
+
+            @Override
+            public void run() {
+                threadName[0] = Thread.currentThread().getName();
+                started.release();
+                blocker.acquireUninterruptibly();
+            }
+        };
+
+        /* Fill threads and queue. */
+        for (int i = 0; i < HttpExecutor.POOL_SIZE + HttpExecutor.QUEUE_CAPACITY; i++)
+            executor.execute(blockingCall);
+        started.acquireUninterruptibly(HttpExecutor.POOL_SIZE);
+        assertTrue(threadName[0].startsWith(HttpExecutor.THREAD_NAME_PREFIX));
+        assertEquals(HttpExecutor.POOL_SIZE, executor.getPoolSize());
+
+        /* Verify saturation is reported to the caller. */
+        try {
+            executor.execute(blockingCall);
+            fail("executor should be saturated");
+        } catch (RejectedExecutionException ignored) {
+        }
+        blocker.release(HttpExecutor.POOL_SIZE + HttpExecutor.QUEUE_CAPACITY);
+        executor.shutdown();
+    }
+}
@@ -17,13 +17,17 @@ import org.json.JSONException;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,7 +44,9 @@ import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
@@ -113,6 +119,145 @@ public class IngestionHttpTest {
         verify(httpClient).close();
     }
 
+    @Test
+    public void sendRawLogs() throws Exception {
+
+        /* Build some pre-serialized payload. */
+        LogContainer container = new LogContainer();
+        List<String> rawLogs = new ArrayList<>();
+        rawLogs.add("{\"type\":\"mock\",\"toffset\":123,\"sid\":\"s\"}");
+        rawLogs.add("{\"type\":\"mock\",\"toffset\":400}");
+        container.setRawLogs(rawLogs);
+        LogSerializer serializer = mock(LogSerializer.class);
+        final AtomicReference<LogContainer> serializedContainer = new AtomicReference<>();
+        when(serializer.serializeContainer(any(LogContainer.class))).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                serializedContainer.set((LogContainer) invocation.getArguments()[0]);
+                return "mockPayload";
+            }
+        });
+
+        /* Stable time. */
+        mockStatic(System.class);
+        long now = 456L;
+        when(System.currentTimeMillis()).thenReturn(now);
+
+        /* Configure mock HTTP. */
+        HttpClientNetworkStateHandler httpClient = mock(HttpClientNetworkStateHandler.class);
+        whenNew(HttpClientNetworkStateHandler.class).withAnyArguments().thenReturn(httpClient);
+        final AtomicReference<HttpClient.CallTemplate> callTemplate = new AtomicReference<>();
+        when(httpClient.callAsync(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.CallTemplate.class), any(ServiceCallback.class))).then(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocation) throws Throwable {
+                callTemplate.set((HttpClient.CallTemplate) invocation.getArguments()[3]);
+                return mock(ServiceCall.class);
+            }
+        });
+
+        /* Build request body. */
+        IngestionHttp ingestionHttp = new IngestionHttp(mock(Context.class), serializer);
+        ingestionHttp.sendAsync(UUIDUtils.randomUUID().toString(), UUIDUtils.randomUUID(), container, mock(ServiceCallback.class));
+        assertEquals("mockPayload", callTemplate.get().buildRequestBody());
+
+        /* Verify toffset were made relative in the serialized copy only, originals could be retried later. */
+        List<String> relativeLogs = serializedContainer.get().getRawLogs();
+        assertEquals("{\"type\":\"mock\",\"toffset\":333,\"sid\":\"s\"}", relativeLogs.get(0));
+        assertEquals("{\"type\":\"mock\",\"toffset\":56}", relativeLogs.get(1));
+        assertEquals("{\"type\":\"mock\",\"toffset\":123,\"sid\":\"s\"}", rawLogs.get(0));
+    }
+
+    @Test
+    public void writeRequestBody() throws Exception {
+
+        /* Build some payload. */
+        LogContainer container = new LogContainer();
+        Log log = mock(Log.class);
+        long logAbsoluteTime = 123L;
+        when(log.getToffset()).thenReturn(logAbsoluteTime);
+        container.setLogs(Collections.singletonList(log));
+        LogSerializer serializer = mock(LogSerializer.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((Writer) invocation.getArguments()[1]).write("mockPayload");
+                return null;
+            }
+        }).when(serializer).serializeContainer(any(LogContainer.class), any(Writer.class));
+
+        /* Stable time. */
+        mockStatic(System.class);
+        long now = 456L;
+        when(System.currentTimeMillis()).thenReturn(now);
+
+        /* Configure mock HTTP. */
+        HttpClientNetworkStateHandler httpClient = mock(HttpClientNetworkStateHandler.class);
+        whenNew(HttpClientNetworkStateHandler.class).withAnyArguments().thenReturn(httpClient);
+        final AtomicReference<HttpClient.CallTemplate> callTemplate = new AtomicReference<>();
+        when(httpClient.callAsync(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.CallTemplate.class), any(ServiceCallback.class))).then(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocation) throws Throwable {
+                callTemplate.set((HttpClient.CallTemplate) invocation.getArguments()[3]);
+                return mock(ServiceCall.class);
+            }
+        });
+
+        /* Stream request body. */
+        IngestionHttp ingestionHttp = new IngestionHttp(mock(Context.class), serializer);
+        ingestionHttp.sendAsync(UUIDUtils.randomUUID().toString(), UUIDUtils.randomUUID(), container, mock(ServiceCallback.class));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((HttpClient.StreamingCallTemplate) callTemplate.get()).writeRequestBody(out);
+        assertEquals("mockPayload", out.toString("UTF-8"));
+        verify(serializer, never()).serializeContainer(any(LogContainer.class));
+
+        /* Verify toffset manipulation. */
+        verify(log).setToffset(now - logAbsoluteTime);
+        verify(log).setToffset(logAbsoluteTime);
+
+        /* Pre-serialized logs are streamed with relative times as well. */
+        container.setRawLogs(Collections.singletonList("{\"type\":\"mock\",\"toffset\":123}"));
+        ArgumentCaptor<LogContainer> serializedContainer = ArgumentCaptor.forClass(LogContainer.class);
+        ((HttpClient.StreamingCallTemplate) callTemplate.get()).writeRequestBody(new ByteArrayOutputStream());
+        verify(serializer, times(2)).serializeContainer(serializedContainer.capture(), any(Writer.class));
+        assertEquals(Collections.singletonList("{\"type\":\"mock\",\"toffset\":333}"), serializedContainer.getValue().getRawLogs());
+    }
+
+    @Test
+    public void toRelativeToffset() throws Exception {
+        assertEquals("{\"type\":\"a\",\"toffset\":-10}", IngestionHttp.toRelativeToffset("{\"type\":\"a\",\"toffset\":20}", 10));
+        assertEquals("{\"toffset\":15,\"app_launch_toffset\":5}", IngestionHttp.toRelativeToffset("{\"toffset\":-5,\"app_launch_toffset\":5}", 10));
+        try {
+            IngestionHttp.toRelativeToffset("{\"app_launch_toffset\":5}", 10);
+            Assert.fail("Expected json exception");
+        } catch (JSONException ignored) {
+        }
+        try {
+            IngestionHttp.toRelativeToffset("{\"toffset\":null}", 10);
+            Assert.fail("Expected json exception");
+        } catch (JSONException ignored) {
+        }
+    }
+
+    @Test
+    public void getToffset() throws Exception {
+        assertEquals(20, IngestionHttp.getToffset("{\"type\":\"a\",\"toffset\":20}"));
+        assertEquals(-5, IngestionHttp.getToffset("{\"toffset\":-5,\"app_launch_toffset\":5}"));
+        try {
+            IngestionHttp.getToffset("{\"toffset\":-}");
+            Assert.fail("Expected json exception");
+        } catch (JSONException ignored) {
+        }
+        try {
+            IngestionHttp.getToffset("{\"toffset\":12345678901234567890}");
+            Assert.fail("Expected json exception");
+        } catch (JSONException ignored) {
+        }
+    }
+
     @Test
     public void failedSerialization() throws Exception {
 
@@ -12,6 +12,10 @@ import org.junit.Test;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -32,6 +36,35 @@ public class DefaultLogSerializerTest {
     @Rule
     public PowerMockRule mPowerMockRule = new PowerMockRule();
 
+    @Test
+    public void serializeRawLogs() throws Exception {
+        LogContainer container = new LogContainer();
+        container.setRawLogs(new ArrayList<String>());
+        DefaultLogSerializer serializer = new DefaultLogSerializer();
+        assertEquals("{\"logs\":[]}", serializer.serializeContainer(container));
+        container.setRawLogs(Arrays.asList("{\"type\":\"a\"}", "{\"type\":\"b\"}"));
+        assertEquals("{\"logs\":[{\"type\":\"a\"},{\"type\":\"b\"}]}", serializer.serializeContainer(container));
+    }
+
+    @Test
+    public void serializeContainerToWriter() throws Exception {
+        DefaultLogSerializer serializer = new DefaultLogSerializer();
+
+        /* Raw logs. */
+        LogContainer container = new LogContainer();
+        container.setRawLogs(Arrays.asList("{\"type\":\"a\"}", "{\"type\":\"b\"}"));
+        StringWriter writer = new StringWriter();
+        serializer.serializeContainer(container, writer);
+        assertEquals("{\"logs\":[{\"type\":\"a\"},{\"type\":\"b\"}]}", writer.toString());
+
+        /* Log objects, serialized one at a time. */
+        container = new LogContainer();
+        container.setLogs(Arrays.asList(mock(com.microsoft.azure.mobile.ingestion.models.Log.class), mock(com.microsoft.azure.mobile.ingestion.models.Log.class)));
+        writer = new StringWriter();
+        serializer.serializeContainer(container, writer);
+        assertEquals("{\"logs\":[{},{}]}", writer.toString());
+    }
+
     @Test
     public void failToUsePrettyJson() throws Exception {
 
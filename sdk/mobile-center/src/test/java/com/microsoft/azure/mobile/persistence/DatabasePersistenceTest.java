@@ -3,9 +3,11 @@ package com.microsoft.azure.mobile.persistence;
 import android.content.ContentValues;
 
 import com.microsoft.azure.mobile.MobileCenter;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
 import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.HashUtils;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.storage.DatabaseManager;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper;
@@ -13,29 +15,47 @@ import com.microsoft.azure.mobile.utils.storage.StorageHelper;
 import org.json.JSONException;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import static com.microsoft.azure.mobile.persistence.DatabasePersistence.COLUMN_GROUP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
 @SuppressWarnings("unused")
-@PrepareForTest({MobileCenterLog.class, StorageHelper.DatabaseStorage.class})
+@PrepareForTest({MobileCenterLog.class, StorageHelper.DatabaseStorage.class, HashUtils.class})
 public class DatabasePersistenceTest {
 
     @Rule
@@ -104,7 +124,7 @@ public class DatabasePersistenceTest {
         for (int i = 0; i < groupCount; i++) {
             StorageHelper.DatabaseStorage.DatabaseScanner mockDatabaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
             when(mockDatabaseScanner.iterator()).thenReturn(list.get(i).iterator());
-            when(mockDatabaseStorage.getScanner(COLUMN_GROUP, String.valueOf(i))).thenReturn(mockDatabaseScanner);
+            when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq(String.valueOf(i)), any(long[].class), eq(logCount))).thenReturn(mockDatabaseScanner);
         }
 
         LogSerializer mockLogSerializer = mock(LogSerializer.class);
@@ -121,11 +141,381 @@ public class DatabasePersistenceTest {
 
         /* Verify there are 4 pending groups. */
         assertEquals(groupCount, persistence.mPendingDbIdentifiersGroups.size());
-        assertEquals(groupCount * logCount, persistence.mPendingDbIdentifiers.size());
+        for (int i = 0; i < groupCount; i++) {
+            Map<String, long[]> pendingBatches = persistence.mPendingDbIdentifiersGroups.get(String.valueOf(i));
+            assertEquals(1, pendingBatches.size());
+            assertEquals(logCount, pendingBatches.values().iterator().next().length);
+        }
 
         /* Clear all pending groups and verify. */
         persistence.clearPendingLogState();
         assertEquals(0, persistence.mPendingDbIdentifiersGroups.size());
-        assertEquals(0, persistence.mPendingDbIdentifiers.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void putLogsAreBufferedAndFlushedInOneTransaction() throws Persistence.PersistenceException, JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Nothing written until buffer is full. */
+        for (int i = 0; i < DatabasePersistence.WRITE_BUFFER_SIZE - 1; i++)
+            persistence.putLog("test", mock(Log.class));
+        verify(mockDatabaseStorage, never()).put(any(ContentValues.class));
+        verify(mockDatabaseStorage, never()).put(anyList());
+        assertEquals(DatabasePersistence.WRITE_BUFFER_SIZE - 1, persistence.mWriteBuffer.size());
+
+        /* Filling the buffer writes all logs at once. */
+        persistence.putLog("test", mock(Log.class));
+        verify(mockDatabaseStorage).put(anyList());
+        assertEquals(0, persistence.mWriteBuffer.size());
+
+        /* Flush before counting. */
+        when(mockDatabaseStorage.size(COLUMN_GROUP, "test")).thenReturn(21L);
+        persistence.putLog("test", mock(Log.class));
+        assertEquals(21, persistence.countLogs("test"));
+        verify(mockDatabaseStorage, times(2)).put(anyList());
+        assertEquals(0, persistence.mWriteBuffer.size());
+
+        /* Flush with empty buffer does nothing. */
+        persistence.flush();
+        verify(mockDatabaseStorage, times(2)).put(anyList());
+    }
+
+    @Test
+    public void getLogsSkipsPendingLogsInQuery() throws JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        final List<ContentValues> rows = new ArrayList<>();
+        for (long l = 1; l <= 4; l++) {
+            ContentValues values = mock(ContentValues.class);
+            when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(l);
+            when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
+            rows.add(values);
+        }
+        StorageHelper.DatabaseStorage.DatabaseScanner firstScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(firstScanner.iterator()).thenReturn(rows.subList(0, 2).iterator());
+        StorageHelper.DatabaseStorage.DatabaseScanner secondScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(secondScanner.iterator()).thenReturn(rows.subList(2, 4).iterator());
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("test"), any(long[].class), eq(2))).thenReturn(firstScanner).thenReturn(secondScanner);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.deserializeLog(anyString())).thenReturn(mock(Log.class));
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* First batch. */
+        List<Log> outLogs = new ArrayList<>();
+        persistence.getLogs("test", 2, outLogs);
+        assertEquals(2, outLogs.size());
+
+        /* Second batch query excludes the pending identifiers of the first one. */
+        outLogs.clear();
+        persistence.getLogs("test", 2, outLogs);
+        assertEquals(2, outLogs.size());
+        verify(mockDatabaseStorage).getScanner(eq(COLUMN_GROUP), eq("test"), isNull(long[].class), eq(2));
+        verify(mockDatabaseStorage).getScanner(eq(COLUMN_GROUP), eq("test"), aryEq(new long[]{1, 2}), eq(2));
+        assertEquals(2, persistence.mPendingDbIdentifiersGroups.get("test").size());
+    }
+
+    @Test
+    public void putLogDoesNotWaitForGetLogs() throws Exception {
+
+        /* Mock a scan that blocks until released. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        final Semaphore scanningSemaphore = new Semaphore(0);
+        final Semaphore releaseSemaphore = new Semaphore(0);
+        StorageHelper.DatabaseStorage.DatabaseScanner mockDatabaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(mockDatabaseScanner.iterator()).then(new Answer<Iterator<ContentValues>>() {
+
+            @Override
+            public Iterator<ContentValues> answer(InvocationOnMock invocation) throws Throwable {
+                scanningSemaphore.release();
+                releaseSemaphore.acquireUninterruptibly();
+                return Collections.<ContentValues>emptyList().iterator();
+            }
+        });
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("test"), any(long[].class), anyInt())).thenReturn(mockDatabaseScanner);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        final DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                persistence.getLogs("test", 1, new ArrayList<Log>());
+            }
+        };
+        thread.start();
+        scanningSemaphore.acquireUninterruptibly();
+
+        /* Storing a log while scanning only buffers it. */
+        persistence.putLog("test", mock(Log.class));
+        assertEquals(1, persistence.mWriteBuffer.size());
+
+        /* Release scan. */
+        releaseSemaphore.release();
+        thread.join();
+    }
+
+    @Test
+    public void getPayloadsWithoutDeserializing() throws JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        ContentValues values = mock(ContentValues.class);
+        when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(1L);
+        when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{\"type\":\"mock\"}");
+        StorageHelper.DatabaseStorage.DatabaseScanner mockDatabaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(mockDatabaseScanner.iterator()).thenReturn(Collections.singletonList(values).iterator());
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("test"), any(long[].class), anyInt())).thenReturn(mockDatabaseScanner);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Get payloads only. */
+        List<String> outPayloads = new ArrayList<>();
+        assertNotNull(persistence.getLogs("test", 1, null, outPayloads));
+        assertEquals(Collections.singletonList("{\"type\":\"mock\"}"), outPayloads);
+        verify(mockLogSerializer, never()).deserializeLog(anyString());
+        assertEquals(1, persistence.mPendingDbIdentifiersGroups.get("test").size());
+    }
+
+    @Test
+    public void deleteLogsForGroupDoesNotMatchGroupPrefix() throws JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        ContentValues values = mock(ContentValues.class);
+        when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(1L);
+        when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
+        StorageHelper.DatabaseStorage.DatabaseScanner mockDatabaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(mockDatabaseScanner.iterator()).thenReturn(Collections.singletonList(values).iterator());
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("group_a"), any(long[].class), anyInt())).thenReturn(mockDatabaseScanner);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.deserializeLog(anyString())).thenReturn(mock(Log.class));
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Get logs for a group, then clear a group whose name is a prefix of it. */
+        String id = persistence.getLogs("group_a", 1, new ArrayList<Log>());
+        persistence.deleteLogs("group");
+        assertEquals(1, persistence.mPendingDbIdentifiersGroups.get("group_a").size());
+
+        /* Deleting the batch removes the group pending state and database rows. */
+        persistence.deleteLogs("group_a", id);
+        verify(mockDatabaseStorage).delete(eq(COLUMN_GROUP), eq("group_a"), aryEq(new long[]{1}));
+        assertNull(persistence.mPendingDbIdentifiersGroups.get("group_a"));
+    }
+
+    @Test
+    public void getLogsExpandsDeviceSnapshots() throws JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDevicesStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(same(mockDatabaseStorage), eq("devices"), any(ContentValues.class),
+                any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDevicesStorage);
+        ContentValues device = mock(ContentValues.class);
+        when(device.getAsString(DatabasePersistence.COLUMN_DEVICE)).thenReturn("{\"model\":\"S5\"}");
+        when(mockDevicesStorage.get(DatabasePersistence.COLUMN_DEVICE_HASH, "hash3")).thenReturn(device);
+        List<ContentValues> rows = new ArrayList<>();
+        String[] payloads = {
+                "{\"type\":\"mock\"}",
+                "{\"type\":\"mock\",\"device\":{\"model\":\"S4\"}}",
+                "{\"type\":\"mock\"}"
+        };
+        String[] deviceHashes = {"hash3", null, "hash4"};
+        for (int i = 0; i < payloads.length; i++) {
+            ContentValues values = mock(ContentValues.class);
+            when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(i + 1L);
+            when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn(payloads[i]);
+            when(values.getAsString(DatabasePersistence.COLUMN_LOG_DEVICE_HASH)).thenReturn(deviceHashes[i]);
+            rows.add(values);
+        }
+        StorageHelper.DatabaseStorage.DatabaseScanner mockDatabaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(mockDatabaseScanner.iterator()).thenReturn(rows.iterator());
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("test"), any(long[].class), anyInt())).thenReturn(mockDatabaseScanner);
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mock(LogSerializer.class));
+
+        /* Snapshot is expanded, inline device is kept and log with an unknown snapshot is deleted. */
+        List<String> outPayloads = new ArrayList<>();
+        persistence.getLogs("test", 3, null, outPayloads);
+        assertEquals(2, outPayloads.size());
+        assertEquals("{\"type\":\"mock\",\"device\":{\"model\":\"S5\"}}", outPayloads.get(0));
+        assertEquals(payloads[1], outPayloads.get(1));
+        verify(mockDatabaseStorage).delete(eq(COLUMN_GROUP), eq("test"), aryEq(new long[]{3}));
+
+        /* Device snapshot is cached. */
+        outPayloads.clear();
+        when(mockDatabaseScanner.iterator()).thenReturn(rows.subList(0, 1).iterator());
+        persistence.clearPendingLogState();
+        persistence.getLogs("test", 1, null, outPayloads);
+        assertEquals(1, outPayloads.size());
+        verify(mockDevicesStorage).get(DatabasePersistence.COLUMN_DEVICE_HASH, "hash3");
+    }
+
+    @Test
+    public void putLogBuffersNewDeviceSnapshotWithLog() throws JSONException, Persistence.PersistenceException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDevicesStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(same(mockDatabaseStorage), eq("devices"), any(ContentValues.class),
+                any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDevicesStorage);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Two logs with the same new device only buffer one snapshot. */
+        mockStatic(HashUtils.class);
+        when(HashUtils.sha256(any(String.class))).thenReturn("hash");
+        Device device = mock(Device.class);
+        Log firstLog = mock(Log.class);
+        when(firstLog.getDevice()).thenReturn(device);
+        Log secondLog = mock(Log.class);
+        when(secondLog.getDevice()).thenReturn(device);
+        persistence.putLog("test", firstLog);
+        persistence.putLog("test", secondLog);
+        verify(mockDevicesStorage).get(DatabasePersistence.COLUMN_DEVICE_HASH, "hash");
+        verify(firstLog).setDevice(null);
+        verify(firstLog).setDevice(device);
+
+        /* Snapshot and logs are written in the same transaction. */
+        persistence.flush();
+        verify(mockDatabaseStorage).put(argThat(new ArgumentMatcher<List<ContentValues>>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                return ((List) argument).size() == 2;
+            }
+        }), same(mockDevicesStorage), argThat(new ArgumentMatcher<List<ContentValues>>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                return ((List) argument).size() == 1;
+            }
+        }));
+        verify(mockDatabaseStorage, never()).put(anyList());
+    }
+
+    @Test
+    public void deleteLogsDeletesUnreferencedDeviceSnapshots() throws JSONException, Persistence.PersistenceException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDevicesStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(same(mockDatabaseStorage), eq("devices"), any(ContentValues.class),
+                any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDevicesStorage);
+        ContentValues storedDevice = mock(ContentValues.class);
+        when(mockDevicesStorage.get(DatabasePersistence.COLUMN_DEVICE_HASH, "hash")).thenReturn(storedDevice);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+        mockStatic(HashUtils.class);
+        when(HashUtils.sha256(any(String.class))).thenReturn("hash");
+        Log log = mock(Log.class);
+        when(log.getDevice()).thenReturn(mock(Device.class));
+        persistence.putLog("test", log);
+
+        /* Few snapshots are kept even if unreferenced. */
+        when(mockDevicesStorage.size()).thenReturn((long) DatabasePersistence.MAX_DEVICES);
+        persistence.deleteLogs("test");
+        verify(mockDevicesStorage, never()).deleteUnreferenced(anyString(), any(StorageHelper.DatabaseStorage.class), anyString());
+
+        /* Above the limit, only unreferenced snapshots are deleted, after writing buffered logs. */
+        persistence.putLog("test", log);
+        when(mockDevicesStorage.size()).thenReturn(DatabasePersistence.MAX_DEVICES + 1L);
+        persistence.deleteLogs("other");
+        verify(mockDatabaseStorage).put(anyList());
+        verify(mockDevicesStorage).deleteUnreferenced(DatabasePersistence.COLUMN_DEVICE_HASH, mockDatabaseStorage, DatabasePersistence.COLUMN_LOG_DEVICE_HASH);
+
+        /* Snapshot is looked up again for the next log as it may have been deleted. */
+        verify(mockDevicesStorage).get(DatabasePersistence.COLUMN_DEVICE_HASH, "hash");
+        persistence.putLog("test", log);
+        verify(mockDevicesStorage, times(2)).get(DatabasePersistence.COLUMN_DEVICE_HASH, "hash");
+    }
+
+    @Test
+    public void trimLogsDeletesExpiredAndOverQuotaLogsInOneStatement() throws JSONException {
+
+        /* Mock 4 logs of 100 bytes, the oldest being expired. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        long now = System.currentTimeMillis();
+        List<ContentValues> rows = new ArrayList<>();
+        for (long l = 1; l <= 4; l++) {
+            ContentValues values = mock(ContentValues.class);
+            when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(l);
+            when(values.getAsLong(DatabasePersistence.COLUMN_TIMESTAMP)).thenReturn(l == 1 ? now - 7200000 : now);
+            when(values.getAsLong(DatabasePersistence.COLUMN_SIZE)).thenReturn(100L);
+            when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
+            rows.add(values);
+        }
+        List<ContentValues> newestFirst = new ArrayList<>(rows);
+        Collections.reverse(newestFirst);
+        StorageHelper.DatabaseStorage.DatabaseScanner sizeScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(sizeScanner.iterator()).thenReturn(newestFirst.iterator());
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("test"), any(String[].class), eq(true))).thenReturn(sizeScanner);
+        StorageHelper.DatabaseStorage.DatabaseScanner logScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(logScanner.iterator()).thenReturn(rows.iterator());
+        when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq("test"), any(long[].class), eq(0))).thenReturn(logScanner);
+        when(mockDatabaseStorage.delete(COLUMN_GROUP, "test", 2, null)).thenReturn(2);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        Log expiredLog = mock(Log.class);
+        Log evictedLog = mock(Log.class);
+        when(mockLogSerializer.deserializeLog(anyString())).thenReturn(expiredLog).thenReturn(evictedLog);
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* No policy does nothing. */
+        List<Log> expiredLogs = new ArrayList<>();
+        List<Log> evictedLogs = new ArrayList<>();
+        assertEquals(0, persistence.trimLogs("test", 0, 0, expiredLogs, evictedLogs));
+        verify(mockDatabaseStorage, never()).getScanner(anyString(), any(), any(String[].class), eq(true));
+
+        /* Keep 250 bytes and 1 hour: the 2 oldest logs are reported and deleted together. */
+        assertEquals(2, persistence.trimLogs("test", 3600000, 250, expiredLogs, evictedLogs));
+        assertEquals(Collections.singletonList(expiredLog), expiredLogs);
+        assertEquals(Collections.singletonList(evictedLog), evictedLogs);
+        verify(mockDatabaseStorage).delete(COLUMN_GROUP, "test", 2, null);
+        verify(mockDatabaseStorage, never()).delete(anyLong());
+        verify(sizeScanner).close();
+        verify(logScanner).close();
+    }
+}
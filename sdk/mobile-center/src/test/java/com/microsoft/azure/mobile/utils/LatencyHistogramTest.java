@@ -0,0 +1,53 @@
+package com.microsoft.azure.mobile.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+@SuppressWarnings("unused")
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void record() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(-5);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(150);
+        histogram.record(5000000);
+        assertEquals(7, histogram.getCount());
+        assertEquals(5000161, histogram.getSum());
+        assertEquals(714308, histogram.getMean());
+        assertEquals(5000000, histogram.getMax());
+
+        /* Check buckets. */
+        int bucketCount = LatencyHistogram.getBucketCount();
+        long[] counts = new long[bucketCount];
+        histogram.getBucketCounts(counts);
+        assertEquals(3, counts[0]);
+        assertEquals(1, counts[2]);
+        assertEquals(1, counts[3]);
+        assertEquals(1, counts[7]);
+        assertEquals(1, counts[bucketCount - 1]);
+        assertEquals(1, histogram.getBucketCount(bucketCount - 1));
+        assertEquals(200, LatencyHistogram.getBucketBound(7));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketBound(bucketCount - 1));
+
+        /* Percentiles are bucket bounds capped by the maximum. */
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(200, histogram.getPercentile(85));
+        assertEquals(5000000, histogram.getPercentile(100));
+    }
+}
@@ -13,7 +13,10 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -188,4 +191,47 @@ public class MobileCenterLogTest {
         verifyError(times(1));
         verifyAssert(times(1));
     }
+
+    @Test
+    public void formatOverloads() {
+        MobileCenter.setLogLevel(Log.INFO);
+        assertFalse(MobileCenterLog.isLoggable(Log.VERBOSE));
+        assertFalse(MobileCenterLog.isLoggable(Log.DEBUG));
+        assertTrue(MobileCenterLog.isLoggable(Log.INFO));
+        assertTrue(MobileCenterLog.isLoggable(Log.ASSERT));
+        MobileCenterLog.verbose("my-tag", "verbose %s", "one");
+        MobileCenterLog.verbose("my-tag", "verbose %s %s", "one", 2);
+        MobileCenterLog.debug("my-tag", "debug %s", "one");
+        MobileCenterLog.debug("my-tag", "debug %s %s", "one", 2);
+        MobileCenterLog.info("my-tag", "info %s", "one");
+        MobileCenterLog.info("my-tag", "info %s %s", "one", 2);
+        verifyStatic(never());
+        Log.v(anyString(), anyString());
+        verifyStatic(never());
+        Log.d(anyString(), anyString());
+        verifyStatic();
+        Log.i("my-tag", "info one");
+        verifyStatic();
+        Log.i("my-tag", "info one 2");
+
+        /* Check enabling more levels. */
+        MobileCenter.setLogLevel(Log.VERBOSE);
+        assertTrue(MobileCenterLog.isLoggable(Log.VERBOSE));
+        MobileCenterLog.verbose("my-tag", "verbose %s", "one");
+        MobileCenterLog.verbose("my-tag", "verbose %s %s", "one", 2);
+        MobileCenterLog.debug("my-tag", "debug %s", "one");
+        MobileCenterLog.debug("my-tag", "debug %s %s", "one", 2);
+        verifyStatic();
+        Log.v("my-tag", "verbose one");
+        verifyStatic();
+        Log.v("my-tag", "verbose one 2");
+        verifyStatic();
+        Log.d("my-tag", "debug one");
+        verifyStatic();
+        Log.d("my-tag", "debug one 2");
+
+        /* Nothing is loggable when disabled. */
+        MobileCenter.setLogLevel(MobileCenterLog.NONE);
+        assertFalse(MobileCenterLog.isLoggable(Log.ASSERT));
+    }
 }
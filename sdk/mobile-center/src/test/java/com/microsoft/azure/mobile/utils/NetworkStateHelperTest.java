@@ -6,6 +6,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
 
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
@@ -16,6 +17,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Mockito.mock;
@@ -50,6 +52,41 @@ public class NetworkStateHelperTest {
         }
     }
 
+    @Test
+    public void networkTypes() {
+        Context context = mock(Context.class);
+        ConnectivityManager connectivityManager = mock(ConnectivityManager.class);
+        NetworkInfo networkInfo = mock(NetworkInfo.class);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(connectivityManager);
+        when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+        when(networkInfo.isConnected()).thenReturn(true);
+
+        /* Wi-Fi. */
+        when(networkInfo.getType()).thenReturn(ConnectivityManager.TYPE_WIFI);
+        NetworkStateHelper helper = new NetworkStateHelper(context);
+        assertFalse(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkSlow());
+
+        /* 4G. */
+        when(networkInfo.getType()).thenReturn(ConnectivityManager.TYPE_MOBILE);
+        when(networkInfo.getSubtype()).thenReturn(TelephonyManager.NETWORK_TYPE_LTE);
+        helper = new NetworkStateHelper(context);
+        assertTrue(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkSlow());
+
+        /* 2G. */
+        when(networkInfo.getSubtype()).thenReturn(TelephonyManager.NETWORK_TYPE_EDGE);
+        helper = new NetworkStateHelper(context);
+        assertTrue(helper.isNetworkMetered());
+        assertTrue(helper.isNetworkSlow());
+
+        /* Disconnected. */
+        when(networkInfo.isConnected()).thenReturn(false);
+        helper = new NetworkStateHelper(context);
+        assertFalse(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkSlow());
+    }
+
     @Test
     public void permissionDenied() {
         Context context = mock(Context.class);
@@ -6,15 +6,21 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.internal.stubbing.answers.Returns;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import static org.junit.Assert.assertEquals;
@@ -29,6 +35,7 @@ import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -57,6 +64,15 @@ public class DatabaseManagerTest {
         databaseManagerMock.put(new ContentValues());
         verify(databaseManagerMock).switchToInMemory(eq("put"), any(RuntimeException.class));
 
+        /* Put multiple values. */
+        databaseManagerMock = getDatabaseManagerMock();
+        databaseManagerMock.put(new ArrayList<ContentValues>());
+        verify(databaseManagerMock, never()).switchToInMemory(eq("put"), any(RuntimeException.class));
+        databaseManagerMock = getDatabaseManagerMock();
+        databaseManagerMock.put(Arrays.asList(new ContentValues(), new ContentValues()));
+        verify(databaseManagerMock).switchToInMemory(eq("put"), any(RuntimeException.class));
+        assertEquals(2, databaseManagerMock.getRowCount());
+
         /* Update. */
         databaseManagerMock = getDatabaseManagerMock();
         databaseManagerMock.update(0, new ContentValues());
@@ -141,6 +157,12 @@ public class DatabaseManagerTest {
         databaseManagerMock = getDatabaseManagerMock();
         databaseManagerMock.delete(Arrays.asList(new Long[]{0L, 1L}));
         verify(databaseManagerMock).switchToInMemory(eq("delete"), any(RuntimeException.class));
+        databaseManagerMock = getDatabaseManagerMock();
+        databaseManagerMock.delete(new long[0]);
+        verify(databaseManagerMock, never()).switchToInMemory(eq("delete"), any(RuntimeException.class));
+        databaseManagerMock = getDatabaseManagerMock();
+        databaseManagerMock.delete(new long[]{0L, 1L});
+        verify(databaseManagerMock).switchToInMemory(eq("delete"), any(RuntimeException.class));
 
         /* Clear. */
         databaseManagerMock = getDatabaseManagerMock();
@@ -157,6 +179,15 @@ public class DatabaseManagerTest {
         databaseManagerMock.getRowCount();
         verify(databaseManagerMock).switchToInMemory(eq("count"), any(RuntimeException.class));
 
+        /* Stats failures do not affect storage. */
+        databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(0, databaseManagerMock.getStats().getPageCount());
+        verify(databaseManagerMock, never()).switchToInMemory(anyString(), any(RuntimeException.class));
+
+        /* Neither do compaction failures. */
+        databaseManagerMock = getDatabaseManagerMock();
+        assertEquals(0, databaseManagerMock.compact());
+        verify(databaseManagerMock, never()).switchToInMemory(anyString(), any(RuntimeException.class));
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -309,4 +340,209 @@ public class DatabaseManagerTest {
         assertNotNull(databaseManager.get(value2Id));
         assertNotNull(databaseManager.get(value3Id));
     }
-}
\ No newline at end of file
+
+    private static ContentValues mockSchema(String... columns) {
+        ContentValues schema = mock(ContentValues.class);
+        when(schema.keySet()).thenReturn(new LinkedHashSet<>(Arrays.asList(columns)));
+        return schema;
+    }
+
+    @Test
+    public void rowCountersAndPurge() {
+
+        /* Mock SQLite. */
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, mockSchema("group"), 2, null));
+        SQLiteDatabase sqliteDatabaseMock = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(sqliteDatabaseMock);
+        SQLiteStatement insertStatement = mock(SQLiteStatement.class);
+        when(sqliteDatabaseMock.compileStatement("INSERT INTO `table` (`group`) VALUES (?)")).thenReturn(insertStatement);
+        SQLiteStatement countStatement = mock(SQLiteStatement.class);
+        when(sqliteDatabaseMock.compileStatement("SELECT COUNT(*) FROM `table`")).thenReturn(countStatement);
+        when(sqliteDatabaseMock.compileStatement("DELETE FROM `table` WHERE oid = ?")).thenReturn(mock(SQLiteStatement.class));
+        when(countStatement.simpleQueryForLong()).thenReturn(1L);
+        when(sqliteDatabaseMock.delete(eq("table"), anyString(), any(String[].class))).thenReturn(1);
+
+        /* Counting is done once, then maintained on each insert. */
+        databaseManager.put(mock(ContentValues.class));
+        assertEquals(1, databaseManager.getRowCount());
+        databaseManager.put(mock(ContentValues.class));
+        assertEquals(2, databaseManager.getRowCount());
+        verify(countStatement).simpleQueryForLong();
+        verify(sqliteDatabaseMock, never()).delete(anyString(), anyString(), any(String[].class));
+
+        /* Inserts reuse the statement compiled once. */
+        verify(insertStatement, times(2)).bindNull(1);
+        verify(insertStatement, times(2)).executeInsert();
+        verify(sqliteDatabaseMock, times(3)).compileStatement(anyString());
+
+        /* Overflow is purged with a single statement. */
+        databaseManager.put(mock(ContentValues.class));
+        verify(sqliteDatabaseMock).delete(eq("table"), eq("oid IN (SELECT oid FROM `table` ORDER BY oid LIMIT 1)"), any(String[].class));
+        assertEquals(2, databaseManager.getRowCount());
+
+        /* Clear resets counter. */
+        databaseManager.clear();
+        assertEquals(0, databaseManager.getRowCount());
+    }
+
+    @Test
+    public void rowCountersPerColumn() {
+
+        /* Mock SQLite with 2 rows in group "a". */
+        DatabaseManager databaseManager = spy(new DatabaseManager(null, "database", "table", 1, mockSchema("group"), null));
+        SQLiteDatabase sqliteDatabaseMock = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(sqliteDatabaseMock);
+        SQLiteStatement insertStatement = mock(SQLiteStatement.class);
+        when(sqliteDatabaseMock.compileStatement("INSERT INTO `table` (`group`) VALUES (?)")).thenReturn(insertStatement);
+        SQLiteStatement deleteStatement = mock(SQLiteStatement.class);
+        when(sqliteDatabaseMock.compileStatement("DELETE FROM `table` WHERE oid = ?")).thenReturn(deleteStatement);
+        when(deleteStatement.executeUpdateDelete()).thenReturn(1);
+        when(sqliteDatabaseMock.compileStatement("SELECT COUNT(*) FROM `table`")).thenReturn(mock(SQLiteStatement.class));
+        Cursor seedCursor = mock(Cursor.class);
+        when(seedCursor.moveToNext()).thenReturn(true, false, true, false);
+        when(seedCursor.getString(0)).thenReturn("a");
+        when(seedCursor.getLong(1)).thenReturn(2L);
+        when(sqliteDatabaseMock.rawQuery(eq("SELECT `group`, COUNT(*) FROM `table` GROUP BY `group`"), any(String[].class))).thenReturn(seedCursor);
+        assertEquals(2, databaseManager.getRowCount("group", "a"));
+        assertEquals(0, databaseManager.getRowCount("group", "b"));
+
+        /* Insert maintains counter without querying again. */
+        ContentValues values = mock(ContentValues.class);
+        when(values.getAsString("group")).thenReturn("b");
+        when(values.get("group")).thenReturn("b");
+        databaseManager.put(values);
+        verify(insertStatement).bindString(1, "b");
+        assertEquals(1, databaseManager.getRowCount("group", "b"));
+
+        /* Delete by identifiers of a known group updates its counter without querying. */
+        when(sqliteDatabaseMock.delete(eq("table"), eq("group = ? AND oid IN (1, 2)"), any(String[].class))).thenReturn(1);
+        databaseManager.delete("group", "a", new long[]{1, 2});
+        assertEquals(1, databaseManager.getRowCount("group", "a"));
+        assertEquals(1, databaseManager.getRowCount("group", "b"));
+        verify(sqliteDatabaseMock).rawQuery(eq("SELECT `group`, COUNT(*) FROM `table` GROUP BY `group`"), any(String[].class));
+
+        /* Delete by identifier alone does not know the group, counters are queried again on next use. */
+        databaseManager.delete(1);
+        verify(deleteStatement).bindLong(1, 1L);
+        verify(deleteStatement).executeUpdateDelete();
+        verify(sqliteDatabaseMock).rawQuery(eq("SELECT `group`, COUNT(*) FROM `table` GROUP BY `group`"), any(String[].class));
+        assertEquals(2, databaseManager.getRowCount("group", "a"));
+        verify(sqliteDatabaseMock, times(2)).rawQuery(eq("SELECT `group`, COUNT(*) FROM `table` GROUP BY `group`"), any(String[].class));
+    }
+
+    @Test
+    public void rowCountersResetWhenDatabaseIsRecreated() {
+
+        /* Mock a corrupted database that gets deleted and created again on first open. */
+        Context contextMock = mock(Context.class);
+        SQLiteOpenHelper helperMock = mock(SQLiteOpenHelper.class);
+        SQLiteDatabase sqliteDatabaseMock = mock(SQLiteDatabase.class);
+        when(helperMock.getWritableDatabase()).thenReturn(sqliteDatabaseMock).thenThrow(new RuntimeException()).thenReturn(sqliteDatabaseMock);
+        SQLiteStatement countStatement = mock(SQLiteStatement.class);
+        when(countStatement.simpleQueryForLong()).thenReturn(5L).thenReturn(0L);
+        when(sqliteDatabaseMock.compileStatement("SELECT COUNT(*) FROM `table`")).thenReturn(countStatement);
+        when(sqliteDatabaseMock.compileStatement("INSERT INTO `table` (`group`) VALUES (?)")).thenReturn(mock(SQLiteStatement.class));
+        when(sqliteDatabaseMock.compileStatement("DELETE FROM `table` WHERE oid = ?")).thenReturn(mock(SQLiteStatement.class));
+        DatabaseManager databaseManager = new DatabaseManager(contextMock, "database", "table", 1, mockSchema("group"), null);
+        databaseManager.setSQLiteOpenHelper(helperMock);
+
+        /* Counter of the deleted database is not reused. */
+        assertEquals(5, databaseManager.getRowCount());
+        assertEquals(0, databaseManager.getRowCount());
+        verify(contextMock).deleteDatabase("database");
+        verify(countStatement, times(2)).simpleQueryForLong();
+    }
+
+    private static SQLiteStatement mockPragma(SQLiteDatabase sqliteDatabaseMock, String pragma, Long value, Long... values) {
+        SQLiteStatement statement = mock(SQLiteStatement.class);
+        when(statement.simpleQueryForLong()).thenReturn(value, values);
+        when(sqliteDatabaseMock.compileStatement("PRAGMA " + pragma)).thenReturn(statement);
+        return statement;
+    }
+
+    @Test
+    public void statsAndCompaction() {
+
+        /* Mock a database of 1000 pages with 5 free pages. */
+        Context context = mock(Context.class);
+        when(context.getDatabasePath("database")).thenReturn(new File("missing-database"));
+        DatabaseManager databaseManager = spy(new DatabaseManager(context, "database", "table", 1, null, null));
+        SQLiteDatabase sqliteDatabaseMock = mock(SQLiteDatabase.class);
+        when(databaseManager.getDatabase()).thenReturn(sqliteDatabaseMock);
+        mockPragma(sqliteDatabaseMock, "page_size", 4096L);
+        mockPragma(sqliteDatabaseMock, "page_count", 1000L, 1000L, 1000L, 1000L, 1000L, 1000L, 1000L, 990L);
+        mockPragma(sqliteDatabaseMock, "freelist_count", 5L, 5L, 300L, 44L, 44L, 0L, 0L);
+        mockPragma(sqliteDatabaseMock, "auto_vacuum", 2L, 2L, 2L, 2L, 0L);
+        when(sqliteDatabaseMock.rawQuery(anyString(), any(String[].class))).thenReturn(mock(Cursor.class));
+        DatabaseStats stats = databaseManager.getStats();
+        assertEquals(0, stats.getFileSize());
+        assertEquals(4096, stats.getPageSize());
+        assertEquals(1000, stats.getPageCount());
+        assertEquals(5, stats.getFreePageCount());
+        assertEquals(0.005, stats.getFreePageRatio(), 0.0001);
+
+        /* Not enough free pages to compact. */
+        assertEquals(0, databaseManager.compact());
+        verify(sqliteDatabaseMock, never()).rawQuery(anyString(), any(String[].class));
+
+        /* Many free pages are released in several steps. */
+        assertEquals(DatabaseManager.MAX_VACUUM_PAGES, databaseManager.compact());
+        verify(sqliteDatabaseMock).rawQuery("PRAGMA incremental_vacuum(" + DatabaseManager.MAX_VACUUM_PAGES + ")", null);
+        verify(sqliteDatabaseMock).rawQuery("PRAGMA wal_checkpoint", null);
+        assertEquals(44, databaseManager.compact());
+        verify(sqliteDatabaseMock).rawQuery("PRAGMA incremental_vacuum(44)", null);
+        verify(sqliteDatabaseMock, times(2)).rawQuery("PRAGMA wal_checkpoint", null);
+
+        /* Nothing left. */
+        assertEquals(0, databaseManager.compact());
+        verify(sqliteDatabaseMock, times(2)).rawQuery("PRAGMA wal_checkpoint", null);
+        verify(sqliteDatabaseMock, never()).execSQL("VACUUM");
+
+        /* A database created without incremental vacuum is not switched when free space is too low. */
+        when(databaseManager.getFileSize()).thenReturn(4096000L);
+        when(databaseManager.getUsableSpace()).thenReturn(4095999L);
+        assertEquals(0, databaseManager.compact());
+        verify(sqliteDatabaseMock, never()).execSQL("VACUUM");
+
+        /* Otherwise it is switched with a full vacuum. */
+        when(databaseManager.getUsableSpace()).thenReturn(4096000L);
+        assertEquals(10, databaseManager.compact());
+        verify(sqliteDatabaseMock).execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        verify(sqliteDatabaseMock).execSQL("VACUUM");
+        verify(sqliteDatabaseMock, times(3)).rawQuery("PRAGMA wal_checkpoint", null);
+    }
+
+    @Test
+    public void upgradeAddsMissingColumns() {
+
+        /* Mock a table that only has the first column of the schema. */
+        ContentValues schema = mock(ContentValues.class);
+        Map<String, Object> columns = new LinkedHashMap<>();
+        columns.put("key", "");
+        columns.put("timestamp", 0L);
+        when(schema.valueSet()).thenReturn(columns.entrySet());
+        DatabaseManager databaseManager = new DatabaseManager(null, "database", "table", 2, schema, null);
+        databaseManager.setUpgradeStatements("UPDATE `table` SET `timestamp` = 1");
+        SQLiteOpenHelper helper = Whitebox.getInternalState(databaseManager, "mSQLiteOpenHelper");
+        SQLiteDatabase sqliteDatabaseMock = mock(SQLiteDatabase.class);
+        Cursor cursor = mock(Cursor.class);
+        when(cursor.getColumnIndexOrThrow("name")).thenReturn(1);
+        when(cursor.moveToNext()).thenReturn(true, true, false);
+        when(cursor.getString(1)).thenReturn("oid", "key");
+        when(sqliteDatabaseMock.rawQuery("PRAGMA table_info(`table`)", null)).thenReturn(cursor);
+
+        /* The missing column is added then filled, logs are kept. */
+        helper.onUpgrade(sqliteDatabaseMock, 1, 2);
+        verify(sqliteDatabaseMock).execSQL("ALTER TABLE `table` ADD COLUMN `timestamp` INTEGER");
+        verify(sqliteDatabaseMock).execSQL("UPDATE `table` SET `timestamp` = 1");
+        verify(sqliteDatabaseMock, never()).execSQL("DROP TABLE IF EXISTS `table`");
+        verify(cursor).close();
+
+        /* The table is recreated if it cannot be migrated. */
+        when(cursor.moveToNext()).thenReturn(true, true, false);
+        doThrow(new RuntimeException()).when(sqliteDatabaseMock).execSQL("UPDATE `table` SET `timestamp` = 1");
+        helper.onUpgrade(sqliteDatabaseMock, 1, 2);
+        verify(sqliteDatabaseMock).execSQL("DROP TABLE IF EXISTS `table`");
+        verify(sqliteDatabaseMock).execSQL("CREATE TABLE `table` (oid INTEGER PRIMARY KEY AUTOINCREMENT, `key` TEXT, `timestamp` INTEGER);");
+    }
+}